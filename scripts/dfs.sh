@@ -0,0 +1,41 @@
+#!/usr/bin/env bash
+# Thin client: runs a command of the Client in a client agent that is already running
+# (Client controller-host controller-port agent), without starting a JVM.
+#   ./dfs.sh ls dataset/
+#   for f in part-*; do ./dfs.sh upload-file $f dataset/$f; done
+
+port=${DFS_AGENT_PORT:-19099}
+
+if ! { exec 3<>/dev/tcp/127.0.0.1/$port; } 2>/dev/null
+then
+    echo "No client agent on port $port, start one with: Client controller-host controller-port agent" >&2
+    exit 1
+fi
+
+# Written by the agent when it starts, only readable by its owner
+token_file=$HOME/.dfs-agent-$port.token
+
+if ! token=$(cat "$token_file" 2>/dev/null)
+then
+    echo "Could not read the client agent token from $token_file" >&2
+    exit 1
+fi
+
+request=$token$'\t'$PWD
+for arg in "$@"
+do
+    request+=$'\t'$arg
+done
+printf '%s\n' "$request" >&3
+
+# Frames: "out length" or "err length" followed by that many bytes, then "exit status"
+while read -r stream value <&3
+do
+    case $stream in
+        out) head -c "$value" <&3 || exit 1 ;;
+        err) head -c "$value" <&3 >&2 ;;
+        exit) exit "$value" ;;
+    esac
+done
+echo "Connection to the client agent lost" >&2
+exit 1
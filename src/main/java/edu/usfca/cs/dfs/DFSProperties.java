@@ -59,6 +59,10 @@ public class DFSProperties {
         return parseInt(getProperty("client-parallel-downloads"));
     }
 
+    public int getClientParallelUploads() {
+        return parseInt(getProperty("client-parallel-uploads"));
+    }
+
     public int getHeartbeatCheckPeriod() {
         return parseInt(getProperty("heartbeat-check-period"));
     }
@@ -71,6 +75,107 @@ public class DFSProperties {
         return parseInt(getProperty("corruption-verification-period"));
     }
 
+    public String getControllerMetadataDir() {
+        return getProperty("controller-metadata-dir");
+    }
+
+    public int getMetadataSnapshotPeriod() {
+        return parseInt(getProperty("metadata-snapshot-period"));
+    }
+
+    public int getListPageSize() {
+        return parseInt(getProperty("list-page-size"));
+    }
+
+    public int getClientLocationCacheSize() {
+        return parseInt(getProperty("client-location-cache-size"));
+    }
+
+    public double getClientHedgePercentile() {
+        return Double.parseDouble(getProperty("client-hedge-percentile"));
+    }
+
+    public int getClientHedgeDefaultDelay() {
+        return parseInt(getProperty("client-hedge-default-delay"));
+    }
+
+    public int getClientReadBufferSize() {
+        return parseInt(getProperty("client-read-buffer-size"));
+    }
+
+    public int getClientReadAheadChunks() {
+        return parseInt(getProperty("client-read-ahead-chunks"));
+    }
+
+    public int getClientPoolMaxIdlePerNode() {
+        return parseInt(getProperty("client-pool-max-idle-per-node"));
+    }
+
+    public int getClientPoolIdleTimeout() {
+        return parseInt(getProperty("client-pool-idle-timeout"));
+    }
+
+    public int getClientAgentPort() {
+        return parseInt(getProperty("client-agent-port"));
+    }
+
+    public boolean isClientResumeTransfers() {
+        return "true".equals(getProperty("client-resume-transfers"));
+    }
+
+    // A leading ~ is the home directory of the user
+    public String getClientStateDir() {
+        String directory = getProperty("client-state-dir");
+        if (directory.equals("~") || directory.startsWith("~/")) {
+            directory = System.getProperty("user.home") + directory.substring(1);
+        }
+        return directory;
+    }
+
+    public boolean isClientShortCircuitReads() {
+        return Boolean.parseBoolean(getProperty("client-short-circuit-reads"));
+    }
+
+    public int getRebalancePeriod() {
+        return parseInt(getProperty("rebalance-period"));
+    }
+
+    public double getRebalanceThreshold() {
+        return Double.parseDouble(getProperty("rebalance-threshold"));
+    }
+
+    public int getRebalanceMaxMoves() {
+        return parseInt(getProperty("rebalance-max-moves"));
+    }
+
+    public int getContentChunkGracePeriod() {
+        return parseInt(getProperty("content-chunk-grace-period"));
+    }
+
+    public int getRebalanceMoveTimeout() {
+        return parseInt(getProperty("rebalance-move-timeout"));
+    }
+
+    public int getErasureCodingDataShards() {
+        return parseInt(getProperty("erasure-coding-data-shards"));
+    }
+
+    public int getErasureCodingParityShards() {
+        return parseInt(getProperty("erasure-coding-parity-shards"));
+    }
+
+    public long getBackgroundOutgoingBandwidth() {
+        return Long.parseLong(getProperty("background-outgoing-bandwidth"));
+    }
+
+    public long getBackgroundIncomingBandwidth() {
+        return Long.parseLong(getProperty("background-incoming-bandwidth"));
+    }
+
+    public int getIoSchedulerMaxOutstanding() {
+        return parseInt(getProperty("io-scheduler-max-outstanding"));
+    }
+
     private String getProperty(String name) {
         return System.getProperty(name, properties.getProperty(name));
     }
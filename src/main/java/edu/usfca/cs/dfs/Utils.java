@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -48,6 +49,49 @@ public class Utils {
         }
     }
 
+    public static String md5sum(byte[] data) {
+        try {
+            return toHexString(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            System.err.println("MD5 message digest not found, exiting.");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Checksum of the remaining bytes of a buffer. Consumes them.
+     */
+    public static String md5sum(ByteBuffer data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(data);
+            return toHexString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            System.err.println("MD5 message digest not found, exiting.");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Content hash of a byte range, to name chunks after their content.
+     */
+    public static String sha256sum(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, offset, length);
+            return toHexString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            System.err.println("SHA-256 message digest not found, exiting.");
+            System.exit(1);
+            return null;
+        }
+    }
+
     private static String toHexString(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -69,4 +113,22 @@ public class Utils {
             throw new ChecksumException(file, expectedChecksum, actualChecksum);
         }
     }
+
+    /**
+     * Returns whether a name is allowed for a file of the DFS: relative, with directories
+     * separated by single slashes, and no . or .. among them. Chunk files are stored under
+     * that name in the chunks directory of storage nodes, so any other name could put them
+     * elsewhere on their disk.
+     */
+    public static boolean isValidFilename(String filename) {
+        if (filename.isEmpty() || filename.indexOf('\0') != -1) {
+            return false;
+        }
+        for (String segment : filename.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
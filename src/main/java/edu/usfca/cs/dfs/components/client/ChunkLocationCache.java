@@ -0,0 +1,65 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.messages.Messages;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers where the chunks of recently downloaded files are, so that reading
+ * the same file again doesn't require asking the controller.
+ * <p>
+ * Entries are not refreshed on a timer. They are invalidated when a storage node
+ * doesn't have a chunk anymore, and are then fetched again from the controller.
+ * The generation number the controller attaches to every file makes sure an older
+ * answer never replaces a newer one. Least recently used entries are evicted first.
+ */
+public class ChunkLocationCache {
+    private final Map<String, Messages.DownloadFileResponse> entries;
+
+    public ChunkLocationCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Messages.DownloadFileResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Messages.DownloadFileResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param filename file name
+     * @return cached chunk locations, or null if not cached
+     */
+    public synchronized Messages.DownloadFileResponse get(String filename) {
+        return entries.get(filename);
+    }
+
+    /**
+     * Cache chunk locations just received from the controller, unless a newer
+     * version is already cached.
+     *
+     * @param locations chunk locations of a file
+     */
+    public synchronized void put(Messages.DownloadFileResponse locations) {
+        Messages.DownloadFileResponse cached = entries.get(locations.getFilename());
+        if (cached == null || cached.getGeneration() <= locations.getGeneration()) {
+            entries.put(locations.getFilename(), locations);
+        }
+    }
+
+    /**
+     * Forget chunk locations found to be stale.
+     *
+     * @param locations the stale chunk locations
+     */
+    public synchronized void invalidate(Messages.DownloadFileResponse locations) {
+        Messages.DownloadFileResponse cached = entries.get(locations.getFilename());
+        if (cached != null && cached.getGeneration() == locations.getGeneration()) {
+            entries.remove(locations.getFilename());
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -1,407 +1,300 @@
 package edu.usfca.cs.dfs.components.client;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.TextFormat;
 import edu.usfca.cs.dfs.DFSProperties;
-import edu.usfca.cs.dfs.Utils;
-import edu.usfca.cs.dfs.exceptions.ChecksumException;
 import edu.usfca.cs.dfs.messages.Messages;
-import edu.usfca.cs.dfs.structures.Chunk;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.ConnectException;
-import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.*;
 
+/**
+ * Command line interface of the DFS, over a {@link DfsClient}. Commands run in this JVM,
+ * or in a {@link ClientAgent} that is already running.
+ */
 public class Client {
 
-    private static final Random random = new Random();
-
     private static final Logger logger = LoggerFactory.getLogger(Client.class);
 
+    // Milliseconds between two progress lines of directory transfers
+    private static final long PROGRESS_REPORT_INTERVAL = 2000;
+
     public static void main(String[] args) throws Exception {
 
         if (args.length < 3) {
             System.err.println("Usage: Client controller-host controller-port fileToSend");
-            printHelp();
+            printHelp(System.err);
             System.exit(1);
         }
 
         ComponentAddress controllerAddr = new ComponentAddress(args[0], Integer.parseInt(args[1]));
 
-        String command = args[2].toLowerCase();
+        if (args[2].equalsIgnoreCase("agent")) {
+            int port = args.length > 3 ? Integer.parseInt(args[3]) : DFSProperties.getInstance().getClientAgentPort();
+            new ClientAgent(new DfsClient(controllerAddr), port).start();
+            return;
+        }
+
+        int status;
+        try (DfsClient client = new DfsClient(controllerAddr)) {
+            status = run(client, Arrays.copyOfRange(args, 2, args.length), Paths.get("").toAbsolutePath(), System.out, System.err);
+        }
+        System.out.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Run a command of the command line.
+     *
+     * @param args             command, and its arguments
+     * @param workingDirectory directory that local paths are relative to
+     * @param out              standard output of the command
+     * @param err              standard error of the command
+     * @return exit status
+     */
+    static int run(DfsClient client, String[] args, Path workingDirectory, PrintStream out, PrintStream err) throws IOException {
+        String command = args[0].toLowerCase();
 
         switch (command) {
             case "list-storage-nodes":
-                listStorageNodes(controllerAddr);
+                listStorageNodes(client, out);
                 break;
 
             case "list-files":
-                listFiles(controllerAddr, false);
+                for (Messages.DownloadFileResponse downloadFileResponse : client.listFiles(args.length > 1 ? args[1] : "")) {
+                    printFile(downloadFileResponse, out);
+                }
                 break;
 
-            case "ls":
             case "list-filenames":
-                listFiles(controllerAddr, true);
+                for (String filename : client.list(args.length > 1 ? args[1] : "")) {
+                    out.println(filename);
+                }
                 break;
 
-            case "upload-file":
-                sendFile(args[3], controllerAddr);
+            case "ls":
+                listDirectory(client, args.length > 1 ? args[1] : "", out);
                 break;
 
-            case "download-file":
-                downloadFile(controllerAddr, args[3]);
+            case "upload-file":
+                client.upload(workingDirectory.resolve(args[1]).toString(), args.length > 2 ? args[2] : new File(args[1]).getName(), false);
                 break;
 
-            case "free-space":
-                freeSpace(controllerAddr);
+            case "upload-file-ec":
+                client.upload(workingDirectory.resolve(args[1]).toString(), args.length > 2 ? args[2] : new File(args[1]).getName(), true);
                 break;
 
-            default:
-                printHelp();
-                System.exit(1);
-        }
-    }
-
-    private static void freeSpace(ComponentAddress controllerAddr) throws IOException {
-        Socket socket = controllerAddr.getSocket();
+            case "upload-file-dedup":
+                client.uploadDeduplicated(workingDirectory.resolve(args[1]).toString(), args.length > 2 ? args[2] : new File(args[1]).getName());
+                break;
 
-        sendGetFreeSpaceRequest(socket);
+            case "upload-files-packed":
+                List<String> localFiles = new ArrayList<>();
+                List<String> dfsFilenames = new ArrayList<>();
+                for (String localFile : Arrays.asList(args).subList(1, args.length)) {
+                    localFiles.add(workingDirectory.resolve(localFile).toString());
+                    dfsFilenames.add(new File(localFile).getName());
+                }
+                client.uploadPacked(localFiles, dfsFilenames);
+                break;
 
-        Messages.GetFreeSpaceResponse msg = receiveGetFreeSpaceResponse(socket);
-        long freeSpace = msg.getFreeSpace();
-        double gigabytes = freeSpace / 1e9;
-        gigabytes = roundTo2Decimals(gigabytes);
-        double gibibytes = freeSpace / 1024.0 / 1024.0 / 1024.0;
-        gibibytes = roundTo2Decimals(gibibytes);
-        System.out.println("Free space on DFS: " + gigabytes + " GB (" + gibibytes + " GiB)");
-    }
+            case "update-file":
+                client.update(workingDirectory.resolve(args[1]).toString(), args.length > 2 ? args[2] : new File(args[1]).getName());
+                break;
 
-    private static double roundTo2Decimals(double d) {
-        return ((int) Math.round(100 * d)) / 100.0;
-    }
+            case "download-file":
+                downloadFile(client, args[1], workingDirectory);
+                break;
 
-    private static Messages.GetFreeSpaceResponse receiveGetFreeSpaceResponse(Socket socket) throws IOException {
-        Messages.MessageWrapper responseMsgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
-        if (!responseMsgWrapper.hasGetFreeSpaceResponseMsg()) {
-            throw new IllegalStateException("Expected get free space response message, but got: " + responseMsgWrapper);
-        }
-        return responseMsgWrapper.getGetFreeSpaceResponseMsg();
-    }
+            case "download-files":
+                // One round trip to the controller for all the files, then every download finds its locations in the cache
+                List<String> missingFilenames = client.downloadFiles(Arrays.asList(args).subList(1, args.length), workingDirectory.toString());
+                for (String filename : missingFilenames) {
+                    err.println("File not found: " + filename);
+                }
+                break;
 
-    private static void sendGetFreeSpaceRequest(Socket socket) throws IOException {
-        Messages.MessageWrapper.newBuilder()
-                .setGetFreeSpaceRequestMsg(Messages.GetFreeSpaceRequest.newBuilder().build())
-                .build()
-                .writeDelimitedTo(socket.getOutputStream());
-    }
+            case "upload-dir":
+                return uploadDirectory(client, workingDirectory.resolve(args[1]).toString(), args.length > 2 ? args[2] : "", err);
 
-    private static void listFiles(ComponentAddress controllerAddr, boolean filenamesOnly) throws IOException {
-        Socket socket = controllerAddr.getSocket();
+            case "download-dir":
+                return downloadDirectory(client, args[1], workingDirectory.resolve(args.length > 2 ? args[2] : "").toString(), err);
 
-        // Send request
-        sendGetFilesRequest(socket);
+            case "cat":
+                cat(client, Arrays.asList(args).subList(1, args.length), out);
+                break;
 
-        // Get response
-        Messages.GetFilesResponse msg = receiveGetFilesResponse(socket);
+            case "read-range":
+                readRange(client, args[1], Long.parseLong(args[2]), Integer.parseInt(args[3]), out);
+                break;
 
-        for (Messages.DownloadFileResponse downloadFileResponse : msg.getFilesList()) {
-            String filename = downloadFileResponse.getFilename();
-            if (filenamesOnly) {
-                System.out.println(filename);
-                continue;
-            }
-            System.out.println("Filename: " + filename);
-            for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : downloadFileResponse.getChunkLocationsList()) {
-                System.out.print(String.format("    Chunk #%02d at ", chunkLocation.getSequenceNo()));
-                SortedSet<ComponentAddress> storageNodes = new TreeSet<>();
-                for (Messages.StorageNode msgStorageNode : chunkLocation.getStorageNodesList()) {
-                    storageNodes.add(new ComponentAddress(msgStorageNode.getHost(), msgStorageNode.getPort()));
+            case "delete":
+                if (!client.delete(args[1])) {
+                    err.println("File not found: " + args[1]);
+                    return 1;
                 }
-                System.out.println(storageNodes);
-            }
-            System.out.println();
-        }
-    }
-
-    private static Messages.GetFilesResponse receiveGetFilesResponse(Socket socket) throws IOException {
-        Messages.MessageWrapper msgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
-        if (!msgWrapper.hasGetFilesResponseMsg()) {
-            throw new IllegalStateException("Expected GetFilesResponse message, got: " + msgWrapper);
-        }
-        return msgWrapper.getGetFilesResponseMsg();
-    }
+                break;
 
-    private static void sendGetFilesRequest(Socket socket) throws IOException {
-        Messages.MessageWrapper.newBuilder()
-                .setGetFilesRequestMsg(Messages.GetFilesRequest.newBuilder().build())
-                .build()
-                .writeDelimitedTo(socket.getOutputStream());
-    }
+            case "free-space":
+                freeSpace(client, out);
+                break;
 
-    private static void listStorageNodes(ComponentAddress controllerAddr) throws IOException {
-        Set<ComponentAddress> storageNodes = new TreeSet<>(fetchStorageNodes(controllerAddr));
-        if (storageNodes.isEmpty()) {
-            System.out.println("No storage nodes found.");
-            return;
-        }
+            case "set-bandwidth-limits":
+                client.setBandwidthLimits(Long.parseLong(args[1]), Long.parseLong(args[2]));
+                break;
 
-        String header = String.format("%-40s %5s", "Host", "Port");
-        System.out.println(header);
-        for (int i = 0; i < header.length(); ++i) {
-            System.out.print("-");
-        }
-        System.out.println();
+            case "storage-node-metrics":
+                printStorageNodeMetrics(client, new ComponentAddress(args[1], Integer.parseInt(args[2])), out);
+                break;
 
-        for (ComponentAddress storageNode : storageNodes) {
-            System.out.println(String.format("%-40s %5d", storageNode.getHost(), storageNode.getPort()));
+            default:
+                printHelp(err);
+                return 1;
         }
+        return 0;
     }
 
-    private static void downloadFile(ComponentAddress controllerAddr, String filename) throws IOException, ExecutionException, InterruptedException {
-        Socket controllerSocket = controllerAddr.getSocket();
-        logger.info("Asking controller " + controllerAddr + " about file " + filename);
-        sendDownloadFileMsg(filename, controllerSocket);
-
-        Messages.DownloadFileResponse downloadFileResponseMsg = receiveDownloadFileResponse(controllerSocket);
-
-        SortedSet<Chunk> chunks = downloadChunks(filename, downloadFileResponseMsg);
-
-        logger.info("Assembling chunks into file " + filename);
-        File file = Chunk.createFileFromChunks(chunks, filename);
-        long bytes = Files.size(file.toPath());
-        double megabytes = bytes / 1e6;
-        megabytes = roundTo2Decimals(megabytes); // round to two decimals
-        logger.info("File assembled. Size: " + megabytes + " MB");
-
-        // Cleanup
-        logger.debug("Deleting all chunks from local filesystem");
-        for (Chunk chunk : chunks) {
-            chunk.getChunkLocalPath().toFile().delete();
+    private static int uploadDirectory(DfsClient client, String localDirectory, String dfsDirectory, PrintStream err) throws IOException {
+        TransferProgress progress = new TransferProgress(err, PROGRESS_REPORT_INTERVAL);
+        List<String> failedFilenames = client.uploadDirectory(localDirectory, dfsDirectory, progress);
+        err.println(progress);
+        for (String filename : failedFilenames) {
+            err.println("Could not upload " + filename);
         }
+        return failedFilenames.isEmpty() ? 0 : 1;
     }
 
-    private static Messages.DownloadFileResponse receiveDownloadFileResponse(Socket controllerSocket) throws IOException {
-        Messages.MessageWrapper msgWrapper = Messages.MessageWrapper.parseDelimitedFrom(controllerSocket.getInputStream());
-        if (!msgWrapper.hasDownloadFileResponseMsg()) {
-            throw new IllegalStateException("Controller is supposed to give back the DownloadFileResponse but got " + msgWrapper);
+    private static int downloadDirectory(DfsClient client, String dfsDirectory, String localDirectory, PrintStream err) throws IOException {
+        TransferProgress progress = new TransferProgress(err, PROGRESS_REPORT_INTERVAL);
+        List<String> failedFilenames = client.downloadDirectory(dfsDirectory, localDirectory, progress);
+        err.println(progress);
+        for (String filename : failedFilenames) {
+            err.println("Could not download " + filename);
         }
-        return msgWrapper.getDownloadFileResponseMsg();
+        return failedFilenames.isEmpty() ? 0 : 1;
     }
 
-    private static void sendDownloadFileMsg(String filename, Socket controllerSocket) throws IOException {
-        Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
-                .setDownloadFileMsg(
-                        Messages.DownloadFile.newBuilder()
-                                .setFileName(filename)
-                                .build()
-                )
-                .build();
-        msg.writeDelimitedTo(controllerSocket.getOutputStream());
+    private static void freeSpace(DfsClient client, PrintStream out) throws IOException {
+        Messages.GetFreeSpaceResponse msg = client.getFreeSpace();
+        out.println("Free space on DFS: " + formatSize(msg.getFreeSpace()));
+        out.println("Used by chunks:    " + formatSize(msg.getUsedSpace()));
+        out.println("Total capacity:    " + formatSize(msg.getTotalSpace()));
     }
 
-    private static SortedSet<Chunk> downloadChunks(String filename, Messages.DownloadFileResponse downloadFileResponseMsg) throws ExecutionException, InterruptedException {
-
-        int nThreads = DFSProperties.getInstance().getClientParallelDownloads();
-        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-
-        List<DownloadChunkTask> tasks = new ArrayList<>();
-
-        Map<Integer, List<ComponentAddress>> chunkLocations = parseChunkLocations(downloadFileResponseMsg);
-        for (Map.Entry<Integer, List<ComponentAddress>> entry : chunkLocations.entrySet()) {
-            int sequenceNo = entry.getKey();
-            List<ComponentAddress> nodes = entry.getValue();
-
-            DownloadChunkTask task = new DownloadChunkTask(filename, sequenceNo, nodes);
-            tasks.add(task);
-            executor.submit(task);
-        }
-
-        SortedSet<Chunk> chunks = new TreeSet<>();
-
-        try {
-            logger.debug("Waiting for all " + tasks.size() + " download tasks to finish...");
-            List<Future<Chunk>> futures = executor.invokeAll(tasks);
-
-            for (int sequenceNo : chunkLocations.keySet()) {
-                chunks.add(futures.get(sequenceNo).get());
-            }
-        } finally {
-
-            try {
-                logger.trace("Attempting to shutdown executor");
-                executor.shutdown();
-                executor.awaitTermination(5, TimeUnit.SECONDS);
-            } finally {
-                if (!executor.isTerminated()) {
-                    logger.error("Some tasks didn't finish.");
-                }
-                executor.shutdownNow();
-                logger.trace("ExecutorService shutdown finished.");
-            }
+    private static void printStorageNodeMetrics(DfsClient client, ComponentAddress storageNodeAddr, PrintStream out) throws IOException {
+        for (Map.Entry<String, Long> metric : client.getStorageNodeMetrics(storageNodeAddr).entrySet()) {
+            out.println(metric.getKey() + " " + metric.getValue());
         }
-
-        return chunks;
     }
 
-    private static Chunk downloadChunk(String filename, int sequenceNo, Socket socket) throws IOException {
-        sendDownloadChunkRequest(filename, sequenceNo, socket);
-
-        Messages.MessageWrapper msgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
-        if (!msgWrapper.hasStoreChunkMsg()) {
-            throw new IllegalStateException("Response to DownloadChunk should have been StoreChunk. Got: " + TextFormat.printToString(msgWrapper));
-        }
-
-        return processStoreChunkMsg(msgWrapper);
-    }
-
-    private static void sendDownloadChunkRequest(String filename, int sequenceNo, Socket socket) throws IOException {
-        Messages.MessageWrapper requestMsg = Messages.MessageWrapper.newBuilder()
-                .setDownloadChunkMsg(
-                        Messages.DownloadChunk.newBuilder()
-                                .setFilename(filename)
-                                .setSequenceNo(sequenceNo)
-                                .build()
-                )
-                .build();
-        requestMsg.writeDelimitedTo(socket.getOutputStream());
+    private static String formatSize(long bytes) {
+        double gigabytes = roundTo2Decimals(bytes / 1e9);
+        double gibibytes = roundTo2Decimals(bytes / 1024.0 / 1024.0 / 1024.0);
+        return gigabytes + " GB (" + gibibytes + " GiB)";
     }
 
-    public static List<ComponentAddress> fetchStorageNodes(ComponentAddress controllerAddr) throws IOException {
-        Socket socket = controllerAddr.getSocket();
-        logger.debug("Asking for list of storage nodes...");
-        sendGetStorageNodesRequest(socket);
-
-        logger.debug("Waiting for list of storage nodes...");
-        Messages.GetStorageNodesResponse responseMsg = receiveGetStorageNodesResponse(socket);
-
-        return toComponentAddresses(responseMsg.getNodesList());
+    private static double roundTo2Decimals(double d) {
+        return ((int) Math.round(100 * d)) / 100.0;
     }
 
-    private static Messages.GetStorageNodesResponse receiveGetStorageNodesResponse(Socket socket) throws IOException {
-        Messages.MessageWrapper receivedMsgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
-        if (!receivedMsgWrapper.hasGetStorageNodesResponseMsg()) {
-            throw new UnsupportedOperationException("Expected storage node list response, but got something else.");
+    private static void listDirectory(DfsClient client, String directory, PrintStream out) throws IOException {
+        Messages.ListFilesResponse msg = client.listDirectory(directory);
+        for (Messages.DirectoryEntry entry : msg.getEntriesList()) {
+            if (entry.getDirectory()) {
+                out.println(String.format("%-60s %8d files", entry.getName(), entry.getFileCount()));
+            } else {
+                out.println(entry.getName());
+            }
         }
-        return receivedMsgWrapper.getGetStorageNodesResponseMsg();
+        out.println("Total: " + msg.getDirectoryFileCount() + " files");
     }
 
-    private static void sendGetStorageNodesRequest(Socket socket) throws IOException {
-        Messages.GetStorageNodesRequest storageNodesRequestMsg = Messages.GetStorageNodesRequest.newBuilder().build();
-        Messages.MessageWrapper sentMsgWrapper = Messages.MessageWrapper.newBuilder()
-                .setGetStoragesNodesRequestMsg(storageNodesRequestMsg)
-                .build();
-        sentMsgWrapper.writeDelimitedTo(socket.getOutputStream());
-    }
-
-    private static Chunk processStoreChunkMsg(Messages.MessageWrapper msgWrapper) throws IOException {
-        Messages.StoreChunk storeChunkMsg
-                = msgWrapper.getStoreChunkMsg();
-        logger.debug("Storing file name: "
-                + storeChunkMsg.getFileName() + " Chunk #" + storeChunkMsg.getSequenceNo());
-
-        String storageDirectory = DFSProperties.getInstance().getClientChunksDir();
-        File storageDirectoryFile = new File(storageDirectory);
-        if (!storageDirectoryFile.exists()) {
-            if (!storageDirectoryFile.mkdir()) {
-                System.err.println("Could not create storage directory.");
-                System.exit(1);
+    private static void printFile(Messages.DownloadFileResponse downloadFileResponse, PrintStream out) {
+        out.println("Filename: " + downloadFileResponse.getFilename());
+        for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : downloadFileResponse.getChunkLocationsList()) {
+            out.print(String.format("    Chunk #%02d at ", chunkLocation.getSequenceNo()));
+            SortedSet<ComponentAddress> storageNodes = new TreeSet<>();
+            for (Messages.StorageNode msgStorageNode : chunkLocation.getStorageNodesList()) {
+                storageNodes.add(new ComponentAddress(msgStorageNode.getHost(), msgStorageNode.getPort()));
             }
+            out.println(storageNodes);
         }
+        out.println();
+    }
 
-        // Store chunk file
-        String chunkFilename = storeChunkMsg.getFileName() + "-chunk" + storeChunkMsg.getSequenceNo();
-        Path chunkFilePath = Paths.get(storageDirectory, chunkFilename);
-        File chunkFile = chunkFilePath.toFile();
-        if (chunkFile.exists()) {
-            if (!chunkFile.delete()) {
-                throw new RuntimeException("Unable to delete existing file before overwriting");
-            }
+    private static void listStorageNodes(DfsClient client, PrintStream out) throws IOException {
+        Set<ComponentAddress> storageNodes = new TreeSet<>(client.getStorageNodes(false));
+        if (storageNodes.isEmpty()) {
+            out.println("No storage nodes found.");
+            return;
         }
-        logger.debug("Storing to file " + chunkFilePath);
-        FileOutputStream fos = new FileOutputStream(chunkFile);
-        storeChunkMsg.getData().writeTo(fos);
-        fos.close();
 
-        Utils.checkSum(chunkFile, storeChunkMsg.getChecksum());
+        String header = String.format("%-40s %5s", "Host", "Port");
+        out.println(header);
+        for (int i = 0; i < header.length(); ++i) {
+            out.print("-");
+        }
+        out.println();
 
-        return new Chunk(storeChunkMsg.getFileName(), storeChunkMsg.getSequenceNo(), Files.size(chunkFilePath), storeChunkMsg.getChecksum(), chunkFilePath);
+        for (ComponentAddress storageNode : storageNodes) {
+            out.println(String.format("%-40s %5d", storageNode.getHost(), storageNode.getPort()));
+        }
     }
 
-    private static void sendFile(String filename, ComponentAddress controllerAddr) throws IOException {
-
-        List<ComponentAddress> storageNodeAddresses = fetchStorageNodes(controllerAddr);
-
-        int storageNodeIndex = random.nextInt(storageNodeAddresses.size());
-        int nbStorageNodes = storageNodeAddresses.size();
-
-        Chunk[] chunks = Chunk.createChunksFromFile(
-                filename,
-                DFSProperties.getInstance().getChunkSize(),
-                DFSProperties.getInstance().getClientChunksDir());
-        for (Chunk chunk : chunks) {
-            int i = (storageNodeIndex + 1) % nbStorageNodes;
-            storageNodeIndex = i;
-            logger.trace("Will send chunk " + chunk.getSequenceNo() + " to node #" + i);
-
-            ComponentAddress storageNodeAddr = storageNodeAddresses.get(i);
+    private static void downloadFile(DfsClient client, String filename, Path workingDirectory) throws IOException {
+        Path localFile = workingDirectory.resolve(filename);
+        client.download(filename, localFile.toString());
 
-            logger.debug("Connecting to storage node " + storageNodeAddr);
-            Socket socket = storageNodeAddr.getSocket();
-
-            logger.debug("Sending chunk '" + chunk + "' to storage node " + storageNodeAddr);
-            // Read chunk data from disk
-            File chunkFile = chunk.getChunkLocalPath().toFile();
-            FileInputStream fis = new FileInputStream(chunkFile);
-            ByteString data = ByteString.readFrom(fis);
-            fis.close();
-
-            sendStoreChunkMsg(chunk, data, socket);
+        long bytes = Files.size(localFile);
+        double megabytes = bytes / 1e6;
+        megabytes = roundTo2Decimals(megabytes); // round to two decimals
+        logger.info("File downloaded. Size: " + megabytes + " MB");
+    }
 
-            logger.debug("Close connection to storage node " + storageNodeAddr.getHost());
-            logger.debug("Deleting chunk file " + chunkFile.getName());
-            if (!chunkFile.delete()) {
-                logger.warn("Chunk file " + chunkFile.getName() + " could not be deleted.");
+    /**
+     * Stream files to the standard output, in order, downloading a few chunks ahead.
+     */
+    private static void cat(DfsClient client, List<String> filenames, PrintStream out) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        for (String filename : filenames) {
+            try (DFSInputStream in = client.open(filename, client.getConfig().getReadAheadChunks())) {
+                int read;
+                while ((read = in.read(buf)) != -1) {
+                    out.write(buf, 0, read);
+                    // E.g. the other end of the pipe is gone
+                    if (out.checkError()) {
+                        return;
+                    }
+                }
             }
-            socket.close();
         }
+        out.flush();
     }
 
-    private static void sendStoreChunkMsg(Chunk chunk, ByteString data, Socket socket) throws IOException {
-        Messages.MessageWrapper.newBuilder()
-                .setStoreChunkMsg(
-                        Messages.StoreChunk.newBuilder()
-                                .setFileName(chunk.getFilename())
-                                .setSequenceNo(chunk.getSequenceNo())
-                                .setChecksum(chunk.getChecksum())
-                                .setData(data)
-                                .build()
-                )
-                .build()
-                .writeDelimitedTo(socket.getOutputStream());
-    }
-
-    private static Map<Integer, List<ComponentAddress>> parseChunkLocations(Messages.DownloadFileResponse downloadFileResponseMsg) {
-        Map<Integer, List<ComponentAddress>> result = new HashMap<>();
-        for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : downloadFileResponseMsg.getChunkLocationsList()) {
-            List<ComponentAddress> nodes = new ArrayList<>();
-            for (Messages.StorageNode node : chunkLocation.getStorageNodesList()) {
-                nodes.add(new ComponentAddress(node.getHost(), node.getPort()));
+    /**
+     * Write a byte range of a file to the standard output.
+     *
+     * @param offset where the range starts, from the end of the file if negative
+     */
+    private static void readRange(DfsClient client, String filename, long offset, int length, PrintStream out) throws IOException {
+        try (DFSInputStream in = client.open(filename)) {
+            if (offset < 0) {
+                offset = Math.max(0, in.length() + offset);
             }
-            logger.debug("Chunk " + chunkLocation.getSequenceNo() + " is on " + nodes);
-            result.put(chunkLocation.getSequenceNo(), nodes);
+            byte[] data = new byte[(int) Math.max(0, Math.min(length, in.length() - offset))];
+            in.readFully(offset, data, 0, data.length);
+            out.write(data);
+            out.flush();
         }
-        return result;
     }
 
-    private static void printHelp() throws IOException {
+    private static void printHelp(PrintStream err) throws IOException {
         StringBuilder sb = new StringBuilder();
         InputStream is = Client.class.getClassLoader().getResourceAsStream("help.txt");
         char[] buf = new char[1024];
@@ -413,44 +306,6 @@ public class Client {
         }
         reader.close();
 
-        System.err.println(sb.toString());
+        err.println(sb.toString());
     }
-
-    static List<ComponentAddress> toComponentAddresses(List<Messages.StorageNode> list) {
-        List<ComponentAddress> addresses = new ArrayList<>(list.size());
-        for (Messages.StorageNode storageNode : list) {
-            addresses.add(toComponentAddress(storageNode));
-        }
-        return addresses;
-    }
-
-    private static ComponentAddress toComponentAddress(Messages.StorageNode node) {
-        return new ComponentAddress(node.getHost(), node.getPort());
-    }
-
-    private static class DownloadChunkTask implements Callable<Chunk> {
-
-        private final String filename;
-        private final int sequenceNo;
-        private final List<ComponentAddress> storageNodes;
-
-        public DownloadChunkTask(String filename, int sequenceNo, List<ComponentAddress> storageNodes) {
-            this.filename = filename;
-            this.sequenceNo = sequenceNo;
-            this.storageNodes = storageNodes;
-        }
-
-        @Override
-        public Chunk call() throws Exception {
-            for (ComponentAddress storageNode : storageNodes) {
-                try {
-                    return downloadChunk(filename, sequenceNo, storageNode.getSocket());
-                } catch (ConnectException | ChecksumException ce) {
-                    // Just try the next node
-                }
-            }
-            throw new ConnectException("Couldn't retrieve one good chunk (correct checksum) or connect to any of: " + storageNodes);
-        }
-    }
-
 }
@@ -0,0 +1,183 @@
+package edu.usfca.cs.dfs.components.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Runs commands of the command line for thin clients, e.g. scripts/dfs.sh, so that they
+ * don't pay for starting a JVM and connecting to the DFS: one {@link DfsClient} serves
+ * all the commands, with its connections and chunk location cache.
+ * <p>
+ * Only listens on the loopback interface, and only runs commands of whoever can read its
+ * token: a random string written to {@link #getTokenFile(int)}, that only the owner can
+ * read. The protocol is made of lines, to be easy to speak from a shell. A request is one
+ * line of tab separated fields: the token, the working directory of the thin client, which
+ * local paths are relative to, then the command and its arguments. The response is a series of frames: "out length" or "err length", a
+ * newline and that many bytes of standard output or standard error, and finally
+ * "exit status" and a newline. Requests can follow one another on the same connection.
+ */
+public class ClientAgent {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientAgent.class);
+
+    // Standard output is buffered, and sent in frames of about this many bytes
+    private static final int FRAME_SIZE = 1024 * 1024;
+
+    private final DfsClient client;
+    private final int port;
+    private byte[] token;
+
+    public ClientAgent(DfsClient client, int port) {
+        this.client = client;
+        this.port = port;
+    }
+
+    /**
+     * Returns the file the token of the agent listening on a port is written to, in the home
+     * directory of the user.
+     */
+    public static Path getTokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".dfs-agent-" + port + ".token");
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        token = writeToken(getTokenFile(port));
+        logger.info("Client agent listening on " + serverSocket.getLocalSocketAddress());
+
+        while (true) {
+            final Socket socket = serverSocket.accept();
+            logger.debug("New connection from " + socket.getRemoteSocketAddress());
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }).start();
+        }
+    }
+
+    // A new token every time, written to a file that is only readable by the owner from the start
+    private static byte[] writeToken(Path tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+
+        Path tmpFile = Files.createTempFile(tokenFile.getParent(), tokenFile.getFileName().toString(), ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            Files.write(tmpFile, token.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        logger.info("Wrote client agent token to " + tokenFile);
+        return token.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            String request;
+            while ((request = in.readLine()) != null) {
+                String[] fields = request.split("\t", -1);
+                // Same time whatever the token sent, so that it can't be guessed a byte at a time
+                if (!MessageDigest.isEqual(token, fields[0].getBytes(StandardCharsets.UTF_8))) {
+                    logger.warn("Refused a request with a wrong token from " + s.getRemoteSocketAddress());
+                    byte[] refused = ("Wrong token, expected the content of " + getTokenFile(port) + "\n").getBytes(StandardCharsets.UTF_8);
+                    writeFrame(out, "err", refused, 0, refused.length);
+                    writeExit(out, 1);
+                    return;
+                }
+                if (fields.length < 3) {
+                    byte[] usage = "Expected: token<TAB>working-directory<TAB>command[<TAB>argument...]\n".getBytes(StandardCharsets.UTF_8);
+                    writeFrame(out, "err", usage, 0, usage.length);
+                    writeExit(out, 1);
+                    continue;
+                }
+                writeExit(out, runCommand(Paths.get(fields[1]), Arrays.copyOfRange(fields, 2, fields.length), out));
+            }
+        } catch (IOException e) {
+            // E.g. the thin client was interrupted
+            logger.debug("Connection to thin client lost", e);
+        }
+    }
+
+    private int runCommand(Path workingDirectory, String[] args, OutputStream out) throws IOException {
+        logger.info("Running " + Arrays.toString(args));
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, "out"), FRAME_SIZE));
+        PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, "err")), true);
+        int status;
+        try {
+            status = Client.run(client, args, workingDirectory, stdout, stderr);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Command " + Arrays.toString(args) + " failed", e);
+            stdout.flush();
+            stderr.println(e);
+            status = 1;
+        }
+        stdout.flush();
+        if (stdout.checkError() || stderr.checkError()) {
+            throw new IOException("Could not send the output of " + Arrays.toString(args));
+        }
+        return status;
+    }
+
+    private static void writeFrame(OutputStream out, String stream, byte[] b, int off, int len) throws IOException {
+        synchronized (out) {
+            out.write((stream + " " + len + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(b, off, len);
+            out.flush();
+        }
+    }
+
+    private static void writeExit(OutputStream out, int status) throws IOException {
+        synchronized (out) {
+            out.write(("exit " + status + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends everything written to it as frames of one stream.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final String stream;
+
+        private FrameOutputStream(OutputStream out, String stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeFrame(out, stream, b, off, len);
+            }
+        }
+    }
+}
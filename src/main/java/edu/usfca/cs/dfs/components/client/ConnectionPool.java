@@ -0,0 +1,146 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Open connections to the controller and storage nodes, to send one request after
+ * the other over the same socket instead of connecting every time. Thread-safe.
+ * <p>
+ * A connection is borrowed for one request and its response, then released so that
+ * another request can use it. Connections that failed must be discarded instead:
+ * there is no telling what is left to read on them. Idle connections are closed after
+ * a while, and the most recently used ones are reused first.
+ */
+class ConnectionPool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final int maxIdlePerNode;
+    private final long idleTimeoutMillis;
+    private final Map<ComponentAddress, Deque<IdleConnection>> idle = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * @param maxIdlePerNode    connections to keep open to every node, when not used
+     * @param idleTimeoutMillis time after which a connection that is not used is closed
+     */
+    ConnectionPool(int maxIdlePerNode, long idleTimeoutMillis) {
+        this.maxIdlePerNode = maxIdlePerNode;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Returns an idle connection to a node, or a new one.
+     */
+    Socket borrow(ComponentAddress node) throws IOException {
+        Socket socket = pollIdle(node);
+        return socket != null ? socket : node.getSocket();
+    }
+
+    /**
+     * Returns an idle connection to a node, or null if there is none.
+     */
+    synchronized Socket pollIdle(ComponentAddress node) {
+        if (closed) {
+            return null;
+        }
+        Deque<IdleConnection> connections = idle.get(node);
+        long now = System.currentTimeMillis();
+        while (connections != null && !connections.isEmpty()) {
+            IdleConnection connection = connections.pollLast();
+            if (!connection.socket.isClosed() && now - connection.since < idleTimeoutMillis) {
+                return connection.socket;
+            }
+            closeQuietly(connection.socket);
+        }
+        return null;
+    }
+
+    /**
+     * Give back a connection after a complete request and response.
+     */
+    void release(ComponentAddress node, Socket socket) {
+        synchronized (this) {
+            if (!closed && !socket.isClosed()) {
+                evictExpired();
+                Deque<IdleConnection> connections = idle.get(node);
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    idle.put(node, connections);
+                }
+                if (connections.size() < maxIdlePerNode) {
+                    connections.addLast(new IdleConnection(socket, System.currentTimeMillis()));
+                    return;
+                }
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Close a connection that failed, or that is in an unknown state.
+     */
+    void discard(Socket socket) {
+        closeQuietly(socket);
+    }
+
+    synchronized int getIdleCount(ComponentAddress node) {
+        Deque<IdleConnection> connections = idle.get(node);
+        return connections == null ? 0 : connections.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Deque<IdleConnection> connections : idle.values()) {
+            for (IdleConnection connection : connections) {
+                closeQuietly(connection.socket);
+            }
+        }
+        idle.clear();
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Deque<IdleConnection>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            Deque<IdleConnection> connections = it.next();
+            // Oldest first
+            while (!connections.isEmpty() && now - connections.peekFirst().since >= idleTimeoutMillis) {
+                closeQuietly(connections.pollFirst().socket);
+            }
+            if (connections.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Could not close socket", e);
+        }
+    }
+
+    private static class IdleConnection {
+        private final Socket socket;
+        private final long since;
+
+        private IdleConnection(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.dedup.DedupLayout;
+import edu.usfca.cs.dfs.erasure.StripeLayout;
+import edu.usfca.cs.dfs.exceptions.ChecksumException;
+import edu.usfca.cs.dfs.exceptions.ChunkNotFoundException;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a file of the DFS without downloading it: only the byte ranges that are read are
+ * asked from the storage nodes, chunk by chunk. Supports seeking, and positional reads that
+ * don't move the position of the stream, e.g. to read the footer of a file.
+ * <p>
+ * Sequential reads go through a buffer of client-read-buffer-size bytes, so that reading
+ * a few bytes at a time doesn't make as many requests. Every range is read from the
+ * replica that has been the fastest so far, and from the next ones if it fails. Lost data
+ * chunks of erasure coded files are not rebuilt, download-file does that.
+ * <p>
+ * To stream a whole file, open it with a read-ahead window instead: sequential reads then
+ * get whole chunks, and the next chunks of the window are downloaded in parallel in the
+ * background. Bytes are returned in order as soon as the chunk they are in is there, and
+ * memory stays bounded by the window, whatever the size of the file.
+ * Opened with {@link DfsClient#open}, and read-ahead downloads run on the threads of the
+ * client. Not thread-safe.
+ */
+public class DFSInputStream extends InputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(DFSInputStream.class);
+
+    private final DfsClient client;
+    private final String filename;
+    private final long chunkSize;
+    // Only for deduplicated files, their chunks have different sizes
+    private final DedupLayout dedupLayout;
+    private final long length;
+    private final int bufferSize;
+    private final int readAheadChunks;
+    // Downloads of the read-ahead window, by sequence number
+    private final Map<Integer, Future<byte[]>> readAhead = new HashMap<>();
+    // Both are replaced together by read-ahead threads when chunks move
+    private Messages.DownloadFileResponse locations;
+    private Map<Integer, List<ComponentAddress>> chunkLocations;
+    private long position = 0;
+    // Bytes of the file from bufferStart on, from the last sequential read
+    private byte[] buffer = new byte[0];
+    private long bufferStart = 0;
+    private boolean closed = false;
+
+    /**
+     * @param readAheadChunks number of chunks to download ahead of sequential reads, 0 for none
+     * @throws java.io.FileNotFoundException if there is no such file in the DFS
+     */
+    DFSInputStream(DfsClient client, String filename, int readAheadChunks) throws IOException {
+        this.client = client;
+        this.filename = filename;
+        this.bufferSize = client.getConfig().getReadBufferSize();
+        this.readAheadChunks = readAheadChunks;
+        this.locations = client.getChunkLocations(filename);
+        this.chunkLocations = DfsClient.parseChunkLocations(locations);
+        this.chunkSize = client.getChunkSize(locations);
+
+        Messages.FileAttributes attributes = locations.getAttributes();
+        this.dedupLayout = DedupLayout.isDeduplicated(attributes) ? new DedupLayout(attributes) : null;
+        if (locations.hasAttributes() && (attributes.getComplete() || StripeLayout.isErasureCoded(attributes) || dedupLayout != null)) {
+            this.length = attributes.getFileSize();
+        } else {
+            // Uploaded before the controller kept file lengths: only the last chunk can tell
+            int lastSequenceNo = chunkLocations.isEmpty() ? -1 : Collections.max(chunkLocations.keySet());
+            this.length = lastSequenceNo == -1 ? 0 : lastSequenceNo * chunkSize + readChunkRange(lastSequenceNo, 0, 0).length;
+        }
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Returns the length of the file, in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    public long getPos() {
+        return position;
+    }
+
+    /**
+     * Move to a position in the file, the next read starts there.
+     *
+     * @throws EOFException if the position is past the end of the file
+     */
+    public void seek(long position) throws IOException {
+        checkNotClosed();
+        if (position < 0 || position > length) {
+            throw new EOFException("Can't seek to " + position + " in " + filename + " of " + length + " bytes");
+        }
+        this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkNotClosed();
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+
+        int read;
+        if (position >= bufferStart && position < bufferStart + buffer.length) {
+            read = Math.min(len, (int) (bufferStart + buffer.length - position));
+            System.arraycopy(buffer, (int) (position - bufferStart), b, off, read);
+        } else if (readAheadChunks > 0) {
+            int sequenceNo = getSequenceNo(position);
+            buffer = takeChunk(sequenceNo);
+            bufferStart = getChunkOffset(sequenceNo);
+            if (position >= bufferStart + buffer.length) {
+                throw new EOFException("Chunk " + sequenceNo + " of " + filename + " is only " + buffer.length + " bytes long");
+            }
+            read = Math.min(len, (int) (bufferStart + buffer.length - position));
+            System.arraycopy(buffer, (int) (position - bufferStart), b, off, read);
+        } else if (len >= bufferSize) {
+            // Nothing to gain from the buffer
+            read = read(position, b, off, len);
+        } else {
+            int sequenceNo = getSequenceNo(position);
+            long chunkOffset = position - getChunkOffset(sequenceNo);
+            buffer = readChunkRange(sequenceNo, chunkOffset, (int) Math.min(bufferSize, getChunkLength(sequenceNo) - chunkOffset));
+            bufferStart = position;
+            read = Math.min(len, buffer.length);
+            System.arraycopy(buffer, 0, b, off, read);
+        }
+        position += read;
+        return read;
+    }
+
+    /**
+     * Read bytes at a position in the file, without moving the position of the stream.
+     *
+     * @return number of bytes read, only fewer than len at the end of the file, or -1 if
+     * the position is at the end of the file
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        checkNotClosed();
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        if (position >= length) {
+            return len == 0 ? 0 : -1;
+        }
+
+        len = (int) Math.min(len, length - position);
+        int read = 0;
+        while (read < len) {
+            long current = position + read;
+            int sequenceNo = getSequenceNo(current);
+            long chunkOffset = current - getChunkOffset(sequenceNo);
+            byte[] data = readChunkRange(sequenceNo, chunkOffset, (int) Math.min(len - read, getChunkLength(sequenceNo) - chunkOffset));
+            if (data.length == 0) {
+                throw new EOFException("Chunk " + sequenceNo + " of " + filename + " ends before offset " + chunkOffset);
+            }
+            System.arraycopy(data, 0, b, off + read, data.length);
+            read += data.length;
+        }
+        return read;
+    }
+
+    /**
+     * Read exactly len bytes at a position in the file, without moving the position of the stream.
+     *
+     * @throws EOFException if the file ends before
+     */
+    public void readFully(long position, byte[] b, int off, int len) throws IOException {
+        if (position + len > length) {
+            throw new EOFException("Can't read " + len + " bytes at " + position + " in " + filename + " of " + length + " bytes");
+        }
+        read(position, b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkNotClosed();
+        long skipped = Math.max(0, Math.min(n, length - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkNotClosed();
+        if (position >= bufferStart && position < bufferStart + buffer.length) {
+            return (int) (bufferStart + buffer.length - position);
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        buffer = new byte[0];
+        for (Future<byte[]> future : readAhead.values()) {
+            future.cancel(true);
+        }
+        readAhead.clear();
+    }
+
+    /**
+     * Wait for a whole chunk, after making sure the chunks of the window that starts with
+     * it are being downloaded. Chunks out of the window, e.g. after a seek, are dropped.
+     */
+    private byte[] takeChunk(int sequenceNo) throws IOException {
+        int end = Math.min(sequenceNo + readAheadChunks, getChunkCount());
+        Iterator<Map.Entry<Integer, Future<byte[]>>> it = readAhead.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<byte[]>> entry = it.next();
+            if (entry.getKey() < sequenceNo || entry.getKey() >= end) {
+                entry.getValue().cancel(true);
+                it.remove();
+            }
+        }
+        for (int i = sequenceNo; i < end; i++) {
+            if (!readAhead.containsKey(i)) {
+                final int chunkSequenceNo = i;
+                readAhead.put(i, client.getDownloadExecutor().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return readChunkRange(chunkSequenceNo, 0, 0);
+                    }
+                }));
+            }
+        }
+
+        Future<byte[]> future = readAhead.remove(sequenceNo);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunk " + sequenceNo + " of " + filename);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Couldn't read chunk " + sequenceNo + " of " + filename, e.getCause());
+        }
+    }
+
+    private int getSequenceNo(long position) {
+        return dedupLayout != null ? dedupLayout.getSequenceNo(position) : (int) (position / chunkSize);
+    }
+
+    private long getChunkOffset(int sequenceNo) {
+        return dedupLayout != null ? dedupLayout.getChunkOffset(sequenceNo) : sequenceNo * chunkSize;
+    }
+
+    private long getChunkLength(int sequenceNo) {
+        if (dedupLayout != null) {
+            return dedupLayout.getChunkLength(sequenceNo);
+        }
+        return Math.min(chunkSize, length - sequenceNo * chunkSize);
+    }
+
+    private int getChunkCount() {
+        return dedupLayout != null ? dedupLayout.getChunkCount() : (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Read a byte range of a chunk from the first replica that has it. If none has,
+     * the chunk may have moved: ask the controller where it is, and try again once.
+     */
+    private byte[] readChunkRange(int sequenceNo, long offset, int length) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (attempt == 1) {
+                logger.info("Could not read chunk " + sequenceNo + " of " + filename + ", refreshing chunk locations");
+                refreshChunkLocations();
+            }
+
+            List<ComponentAddress> storageNodes = getStorageNodes(sequenceNo);
+            if (storageNodes == null) {
+                continue;
+            }
+            for (ComponentAddress storageNode : client.rankReplicas(storageNodes)) {
+                try {
+                    if (dedupLayout != null) {
+                        // Cut at the end of the chunk of the file, not of the stored chunk
+                        return client.downloadChunkRange(dedupLayout.getChunkFilename(sequenceNo), 0, storageNode,
+                                dedupLayout.getStoredChunkOffset(sequenceNo) + offset,
+                                length == 0 ? (int) (getChunkLength(sequenceNo) - offset) : length);
+                    }
+                    return client.downloadChunkRange(filename, sequenceNo, storageNode, offset, length);
+                } catch (IOException | ChecksumException | ChunkNotFoundException e) {
+                    // Just try the next node
+                    logger.debug("Could not read chunk " + sequenceNo + " of " + filename + " from " + storageNode, e);
+                }
+            }
+        }
+        throw new IOException("Couldn't read chunk " + sequenceNo + " of " + filename + " from any storage node");
+    }
+
+    private synchronized List<ComponentAddress> getStorageNodes(int sequenceNo) {
+        return chunkLocations.get(sequenceNo);
+    }
+
+    private synchronized void refreshChunkLocations() throws IOException {
+        client.invalidateChunkLocations(locations);
+        locations = client.getChunkLocations(filename);
+        chunkLocations = DfsClient.parseChunkLocations(locations);
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a file into the DFS, a chunk at a time: bytes are kept in memory until a whole
+ * chunk is there, which is then uploaded to a storage node, and acknowledged by it before
+ * anything else is written. Consecutive chunks go to distinct storage nodes, and a chunk
+ * goes to the next storage node if one fails to store it.
+ * <p>
+ * The file only has its size once the stream is closed. Replicated files only: erasure
+ * coded files are uploaded with {@link DfsClient#upload}. Not thread-safe.
+ */
+public class DFSOutputStream extends OutputStream {
+
+    private static final Random random = new Random();
+
+    private final DfsClient client;
+    private final String filename;
+    private final byte[] buffer;
+    private final List<ComponentAddress> storageNodes;
+    private final String version = DfsClient.newVersion();
+    private int count = 0;
+    private int sequenceNo = 0;
+    private int storageNodeIndex;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * @throws IllegalStateException if no storage node has room for more chunks
+     */
+    DFSOutputStream(DfsClient client, String filename) throws IOException {
+        this.client = client;
+        this.filename = filename;
+        this.buffer = new byte[(int) client.getConfig().getChunkSize()];
+        this.storageNodes = client.getWritableStorageNodes();
+        this.storageNodeIndex = random.nextInt(storageNodes.size());
+        // Also brings back a file that was just deleted
+        client.sendFileAttributes(getAttributes(false));
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkNotClosed();
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buffer.length) {
+                storeChunk();
+            }
+        }
+    }
+
+    /**
+     * Upload the last chunk, and tell the controller the size of the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (count > 0) {
+            storeChunk();
+        }
+        client.sendFileAttributes(getAttributes(true));
+    }
+
+    private void storeChunk() throws IOException {
+        byte[] data = Arrays.copyOf(buffer, count);
+        storageNodeIndex = client.storeChunk(filename, sequenceNo, data, Utils.md5sum(data), storageNodes, storageNodeIndex + 1);
+        size += count;
+        sequenceNo++;
+        count = 0;
+    }
+
+    private Messages.FileAttributes getAttributes(boolean complete) {
+        return Messages.FileAttributes.newBuilder()
+                .setFilename(filename)
+                .setFileSize(size)
+                .setChunkSize(buffer.length)
+                .setComplete(complete)
+                .setVersion(version)
+                .build();
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
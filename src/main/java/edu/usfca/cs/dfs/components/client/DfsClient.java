@@ -0,0 +1,1916 @@
+package edu.usfca.cs.dfs.components.client;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.TextFormat;
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.dedup.ContentDefinedChunker;
+import edu.usfca.cs.dfs.dedup.DedupLayout;
+import edu.usfca.cs.dfs.erasure.StripeLayout;
+import edu.usfca.cs.dfs.exceptions.ChecksumException;
+import edu.usfca.cs.dfs.exceptions.ChunkNotFoundException;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Client of the DFS, to use it from another program: open, create, list, delete,
+ * upload and download files. Thread-safe, and meant to be shared: connections to the
+ * controller and storage nodes, chunk locations, download times of storage nodes and
+ * download threads are all kept from one call to the next. Close it when done.
+ */
+public class DfsClient implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DfsClient.class);
+
+    private static final Random random = new Random();
+
+    // Whether storage node hosts are this host, by host name
+    private static final Map<String, Boolean> localHosts = new ConcurrentHashMap<>();
+
+    private final ComponentAddress controllerAddr;
+    private final DfsClientConfig config;
+    private final ConnectionPool pool;
+    private final ChunkLocationCache chunkLocationCache;
+    private final ReplicaLatencies replicaLatencies;
+    // Runs chunk downloads, for all the downloads and streams of the client
+    private final ExecutorService downloadExecutor;
+    // Chunks of directory uploads, from all their files
+    private final ExecutorService uploadExecutor;
+    // Runs the download attempts of DownloadChunkTask, including hedged ones
+    private final ExecutorService hedgeExecutor;
+
+    public DfsClient(ComponentAddress controllerAddr) {
+        this(controllerAddr, new DfsClientConfig());
+    }
+
+    public DfsClient(ComponentAddress controllerAddr, DfsClientConfig config) {
+        this.controllerAddr = controllerAddr;
+        this.config = config;
+        this.pool = new ConnectionPool(config.getPoolMaxIdlePerNode(), config.getPoolIdleTimeout());
+        this.chunkLocationCache = new ChunkLocationCache(config.getLocationCacheSize());
+        this.replicaLatencies = new ReplicaLatencies(config.getHedgePercentile(), config.getHedgeDefaultDelay());
+        this.downloadExecutor = Executors.newFixedThreadPool(config.getParallelDownloads(), daemonThreads("chunk-download"));
+        this.uploadExecutor = Executors.newFixedThreadPool(config.getParallelUploads(), daemonThreads("chunk-upload"));
+        this.hedgeExecutor = Executors.newCachedThreadPool(daemonThreads("chunk-download-attempt"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public ComponentAddress getControllerAddress() {
+        return controllerAddr;
+    }
+
+    public DfsClientConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Open a file for reading, see {@link DFSInputStream}.
+     *
+     * @throws FileNotFoundException if there is no such file
+     */
+    public DFSInputStream open(String filename) throws IOException {
+        return open(filename, 0);
+    }
+
+    /**
+     * Open a file for streaming, downloading a few chunks ahead of the reads.
+     *
+     * @param readAheadChunks chunks to download ahead, e.g. {@link DfsClientConfig#getReadAheadChunks()}
+     * @throws FileNotFoundException if there is no such file
+     */
+    public DFSInputStream open(String filename, int readAheadChunks) throws IOException {
+        return new DFSInputStream(this, filename, readAheadChunks);
+    }
+
+    /**
+     * Create a file, or replace it, see {@link DFSOutputStream}.
+     *
+     * @throws IllegalStateException if no storage node has room for more chunks
+     */
+    public DFSOutputStream create(String filename) throws IOException {
+        return new DFSOutputStream(this, filename);
+    }
+
+    /**
+     * Returns the names of the files that start with a prefix, sorted.
+     */
+    public List<String> list(String prefix) throws IOException {
+        final List<String> filenames = new ArrayList<>();
+        listFiles(prefix, false, new ListFilesHandler() {
+            @Override
+            public void handle(Messages.ListFilesResponse msg) {
+                filenames.addAll(msg.getFilenamesList());
+            }
+        });
+        return filenames;
+    }
+
+    /**
+     * Returns the files that start with a prefix, with where their chunks are, sorted by name.
+     */
+    public List<Messages.DownloadFileResponse> listFiles(String prefix) throws IOException {
+        final List<Messages.DownloadFileResponse> files = new ArrayList<>();
+        listFiles(prefix, true, new ListFilesHandler() {
+            @Override
+            public void handle(Messages.ListFilesResponse msg) {
+                files.addAll(msg.getFilesList());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Returns the files and sub-directories of a directory, sorted, and the number of files
+     * in the directory, sub-directories included.
+     */
+    public Messages.ListFilesResponse listDirectory(final String directory) throws IOException {
+        final Messages.ListFilesResponse.Builder result = Messages.ListFilesResponse.newBuilder();
+        String pageToken = "";
+        do {
+            final String token = pageToken;
+            pageToken = exchange(controllerAddr, new Exchange<String>() {
+                @Override
+                public String run(Socket socket) throws IOException {
+                    Messages.MessageWrapper.newBuilder()
+                            .setListFilesRequestMsg(
+                                    Messages.ListFilesRequest.newBuilder()
+                                            .setPrefix(directory)
+                                            .setPageToken(token)
+                                            .setPageSize(config.getListPageSize())
+                                            .setDirectory(true)
+                                            .build()
+                            )
+                            .build()
+                            .writeDelimitedTo(socket.getOutputStream());
+
+                    Messages.ListFilesResponse msg;
+                    do {
+                        msg = receiveListFilesResponse(socket);
+                        result.addAllEntries(msg.getEntriesList());
+                    } while (!msg.getLast());
+                    result.setDirectoryFileCount(msg.getDirectoryFileCount());
+                    return msg.getNextPageToken();
+                }
+            });
+        } while (!pageToken.isEmpty());
+        return result.setLast(true).build();
+    }
+
+    private interface ListFilesHandler {
+        void handle(Messages.ListFilesResponse msg);
+    }
+
+    private void listFiles(final String prefix, final boolean withChunkLocations, final ListFilesHandler handler) throws IOException {
+        String pageToken = "";
+        do {
+            final String token = pageToken;
+            pageToken = exchange(controllerAddr, new Exchange<String>() {
+                @Override
+                public String run(Socket socket) throws IOException {
+                    Messages.MessageWrapper.newBuilder()
+                            .setListFilesRequestMsg(
+                                    Messages.ListFilesRequest.newBuilder()
+                                            .setPrefix(prefix)
+                                            .setPageToken(token)
+                                            .setPageSize(config.getListPageSize())
+                                            .setWithChunkLocations(withChunkLocations)
+                                            .build()
+                            )
+                            .build()
+                            .writeDelimitedTo(socket.getOutputStream());
+
+                    // A page comes in several messages
+                    Messages.ListFilesResponse msg;
+                    do {
+                        msg = receiveListFilesResponse(socket);
+                        handler.handle(msg);
+                    } while (!msg.getLast());
+                    return msg.getNextPageToken();
+                }
+            });
+        } while (!pageToken.isEmpty());
+    }
+
+    private static Messages.ListFilesResponse receiveListFilesResponse(Socket socket) throws IOException {
+        Messages.MessageWrapper msgWrapper = receive(socket);
+        if (!msgWrapper.hasListFilesResponseMsg()) {
+            throw new IllegalStateException("Expected ListFilesResponse message, got: " + msgWrapper);
+        }
+        return msgWrapper.getListFilesResponseMsg();
+    }
+
+    /**
+     * Delete a file, and all its chunks.
+     *
+     * @return false if there was no such file
+     */
+    public boolean delete(final String filename) throws IOException {
+        Messages.MessageWrapper request = Messages.MessageWrapper.newBuilder()
+                .setDeleteFileMsg(Messages.DeleteFile.newBuilder().setFilename(filename).build())
+                .build();
+        // Sent again after the file is deleted, it would answer there is no such file
+        boolean deleted = exchange(controllerAddr, request, new Exchange<Boolean>() {
+            @Override
+            public Boolean run(Socket socket) throws IOException {
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (!msgWrapper.hasDeleteFileResponseMsg()) {
+                    throw new IllegalStateException("Expected DeleteFileResponse message, got: " + msgWrapper);
+                }
+                return msgWrapper.getDeleteFileResponseMsg().getDeleted();
+            }
+        });
+        Messages.DownloadFileResponse cached = chunkLocationCache.get(filename);
+        if (cached != null) {
+            chunkLocationCache.invalidate(cached);
+        }
+        return deleted;
+    }
+
+    /**
+     * Upload a local file, a chunk at a time. If resuming transfers is enabled and a previous
+     * upload of the same file failed, only the chunks that it didn't upload are sent.
+     *
+     * @param localFile    file to upload
+     * @param dfsFilename  name of the file in the DFS, may contain slashes (directories)
+     * @param erasureCoded erasure code the file instead of replicating it: every stripe of
+     *                     k data chunks is uploaded with its m parity chunks
+     */
+    public void upload(String localFile, String dfsFilename, boolean erasureCoded) throws IOException {
+        Path path = Paths.get(localFile);
+        long fileSize = Files.size(path);
+        if (fileSize == 0) {
+            throw new IllegalArgumentException("File " + localFile + " is empty");
+        }
+        Messages.FileAttributes.Builder builder = Messages.FileAttributes.newBuilder()
+                .setFilename(dfsFilename)
+                .setFileSize(fileSize)
+                .setChunkSize(config.getChunkSize());
+        if (erasureCoded) {
+            builder.setDataShards(config.getErasureCodingDataShards())
+                    .setParityShards(config.getErasureCodingParityShards());
+        }
+        // Resuming an upload continues the same version
+        Path journalPath = getJournalPath("upload", path);
+        Messages.FileAttributes journaled = config.isResumeTransfers() ? TransferJournal.readAttributes(journalPath) : null;
+        if (journaled != null && journaled.toBuilder().clearVersion().build().equals(builder.build())) {
+            builder.setVersion(journaled.getVersion());
+        } else {
+            builder.setVersion(newVersion());
+        }
+        Messages.FileAttributes attributes = builder.build();
+
+        List<ComponentAddress> storageNodes = getWritableStorageNodes();
+        StripeLayout layout = erasureCoded ? new StripeLayout(attributes) : null;
+        if (erasureCoded && storageNodes.size() < layout.getDataShards() + layout.getParityShards()) {
+            logger.warn("Only " + storageNodes.size() + " storage nodes, some chunks of the same stripe will be on the same node");
+        }
+
+        Map<Integer, Messages.TransferRecord.TransferredChunk> uploaded = config.isResumeTransfers()
+                ? getUploadedChunks(journalPath, attributes)
+                : Collections.<Integer, Messages.TransferRecord.TransferredChunk>emptyMap();
+        // Tell the controller first, so it doesn't replicate the chunks of an erasure coded file as they arrive
+        sendFileAttributes(attributes);
+
+        // Consecutive chunks go to distinct storage nodes, and so do the chunks of a stripe
+        ChunkUploader uploader = new ChunkUploader(dfsFilename, storageNodes, uploaded);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(localFile));
+             TransferJournal journal = config.isResumeTransfers() ? TransferJournal.create(journalPath, attributes, uploaded.values()) : null) {
+            uploader.journal = journal;
+            if (!erasureCoded) {
+                int chunkCount = (int) ((fileSize + config.getChunkSize() - 1) / config.getChunkSize());
+                for (int sequenceNo = 0; sequenceNo < chunkCount; sequenceNo++) {
+                    uploader.upload(sequenceNo, readFully(in, (int) Math.min(config.getChunkSize(), fileSize - sequenceNo * config.getChunkSize())));
+                }
+            } else {
+                for (int stripe = 0; stripe < layout.getStripeCount(); stripe++) {
+                    byte[][] stripeData = new byte[layout.getDataChunkCount(stripe)][];
+                    for (int i = 0; i < stripeData.length; i++) {
+                        int sequenceNo = layout.getSequenceNo(stripe, i);
+                        stripeData[i] = readFully(in, (int) Math.min(config.getChunkSize(), fileSize - sequenceNo * config.getChunkSize()));
+                        uploader.upload(sequenceNo, stripeData[i]);
+                    }
+
+                    byte[][] parity = layout.encode(stripe, stripeData);
+                    for (int j = 0; j < parity.length; j++) {
+                        uploader.upload(layout.getSequenceNo(stripe, layout.getDataShards() + j), parity[j]);
+                    }
+                }
+            }
+        }
+
+        sendFileAttributes(attributes.toBuilder().setComplete(true).build());
+        TransferJournal.delete(journalPath);
+    }
+
+    /**
+     * Returns where the journal of a transfer of a local file is, in the state directory.
+     *
+     * @param transfer "upload" or "download"
+     */
+    private Path getJournalPath(String transfer, Path localFile) {
+        return TransferJournal.getPath(Paths.get(config.getStateDirectory()), transfer, localFile);
+    }
+
+    /**
+     * Returns the chunks a previous upload of a local file journaled, that the controller
+     * knows about. Chunks the controller doesn't know about yet, because the storage node
+     * that has them hasn't sent a heartbeat since, are uploaded again: the extra replicas
+     * are dropped later on.
+     */
+    private Map<Integer, Messages.TransferRecord.TransferredChunk> getUploadedChunks(Path journalPath, Messages.FileAttributes attributes) throws IOException {
+        Map<Integer, Messages.TransferRecord.TransferredChunk> uploaded = TransferJournal.read(journalPath, attributes);
+        if (uploaded.isEmpty()) {
+            return uploaded;
+        }
+
+        Messages.DownloadFileResponse cached = chunkLocationCache.get(attributes.getFilename());
+        if (cached != null) {
+            chunkLocationCache.invalidate(cached);
+        }
+        Set<Integer> stored = new HashSet<>();
+        try {
+            for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : getChunkLocations(attributes.getFilename()).getChunkLocationsList()) {
+                if (chunkLocation.getStorageNodesCount() > 0) {
+                    stored.add(chunkLocation.getSequenceNo());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing left of it
+        }
+        uploaded.keySet().retainAll(stored);
+        logger.info("Resuming upload of " + attributes.getFilename() + ": " + uploaded.size() + " chunks already uploaded");
+        return uploaded;
+    }
+
+    /**
+     * Uploads the chunks of a file to storage nodes in turn, skipping the chunks that were
+     * already uploaded, as long as their data didn't change.
+     */
+    private class ChunkUploader {
+        private final String filename;
+        private final List<ComponentAddress> storageNodes;
+        private final Map<Integer, Messages.TransferRecord.TransferredChunk> uploaded;
+        private TransferJournal journal;
+        private int storageNodeIndex;
+
+        private ChunkUploader(String filename, List<ComponentAddress> storageNodes, Map<Integer, Messages.TransferRecord.TransferredChunk> uploaded) {
+            this.filename = filename;
+            this.storageNodes = storageNodes;
+            this.uploaded = uploaded;
+            this.storageNodeIndex = random.nextInt(storageNodes.size());
+        }
+
+        private void upload(int sequenceNo, byte[] data) throws IOException {
+            String checksum = Utils.md5sum(data);
+            Messages.TransferRecord.TransferredChunk previous = uploaded.get(sequenceNo);
+            if (previous != null && previous.getChecksum().equals(checksum)) {
+                logger.debug("Chunk " + sequenceNo + " of " + filename + " is already uploaded");
+                return;
+            }
+            storageNodeIndex = storeChunk(filename, sequenceNo, data, checksum, storageNodes, storageNodeIndex + 1);
+            if (journal != null) {
+                journal.chunkTransferred(sequenceNo, data.length, checksum);
+            }
+        }
+    }
+
+    /**
+     * Upload a local file, deduplicated: it is cut into content defined chunks of about
+     * chunk-size bytes, and only the chunks that the DFS doesn't have yet, from this file
+     * or any other, are uploaded. See {@link DedupLayout}.
+     *
+     * @param localFile   file to upload
+     * @param dfsFilename name of the file in the DFS, may contain slashes (directories)
+     */
+    public void uploadDeduplicated(String localFile, String dfsFilename) throws IOException {
+        Path path = Paths.get(localFile);
+        Messages.FileAttributes attributes = getDeduplicatedFileAttributes(path, dfsFilename);
+        DedupLayout layout = new DedupLayout(attributes);
+
+        // From now on the controller keeps the chunks the file references
+        Set<String> stored = getStoredChunkFilenames(layout, sendDeduplicatedFileAttributes(attributes));
+        Set<String> uploaded = new HashSet<>();
+        long uploadedBytes = uploadContentChunks(path, layout, stored, uploaded);
+
+        sendDeduplicatedFileAttributes(attributes.toBuilder().setComplete(true).build());
+        logger.info("Uploaded " + uploaded.size() + " of " + layout.getChunkCount() + " chunks of " + dfsFilename
+                + ", " + uploadedBytes + " of " + attributes.getFileSize() + " bytes: the others were already stored");
+    }
+
+    /**
+     * Upload a new version of a file, only sending the chunks that changed: the local file
+     * is cut into content defined chunks, and only those whose SHA-256 is not in the current
+     * version of the file, nor elsewhere in the DFS, are uploaded. Readers see the current
+     * version until all of them are stored, then the new version at once.
+     * <p>
+     * A file that is not deduplicated yet is uploaded whole, deduplicated: the next updates
+     * only send what changed.
+     *
+     * @param localFile   new version of the file
+     * @param dfsFilename name of the file in the DFS, uploaded whole if there is none yet
+     * @throws IllegalArgumentException if the file is erasure coded
+     */
+    public void update(String localFile, String dfsFilename) throws IOException {
+        Path path = Paths.get(localFile);
+        Messages.FileAttributes current = getCurrentAttributes(dfsFilename);
+        if (StripeLayout.isErasureCoded(current)) {
+            throw new IllegalArgumentException(dfsFilename + " is erasure coded, upload it again instead");
+        }
+        Messages.FileAttributes attributes = getDeduplicatedFileAttributes(path, dfsFilename);
+        if (current != null && current.getComplete()
+                && current.getContentChunksList().equals(attributes.getContentChunksList())) {
+            logger.info(dfsFilename + " did not change");
+            return;
+        }
+        DedupLayout layout = new DedupLayout(attributes);
+
+        // Keeps the chunks of the new version, and readers on the current one
+        String pendingFilename = DedupLayout.getPendingFilename(dfsFilename);
+        Messages.DownloadFileResponse pending = sendDeduplicatedFileAttributes(attributes.toBuilder().setFilename(pendingFilename).build());
+        Set<String> stored = getStoredChunkFilenames(layout, pending);
+        if (current != null && !DedupLayout.isDeduplicated(current)) {
+            logger.info(dfsFilename + " is not deduplicated yet, uploading all of it once");
+        } else if (current != null && current.getComplete() && current.equals(getCurrentAttributes(dfsFilename))) {
+            // Chunks of a complete version are all stored, even those no heartbeat reported yet,
+            // unless the version was replaced or deleted before the pending version referenced them
+            for (Messages.ContentChunk contentChunk : current.getContentChunksList()) {
+                stored.add(DedupLayout.getChunkFilename(contentChunk.getHash()));
+            }
+        }
+        Set<String> uploaded = new HashSet<>();
+        long uploadedBytes = uploadContentChunks(path, layout, stored, uploaded);
+
+        // Commit
+        sendDeduplicatedFileAttributes(attributes.toBuilder().setComplete(true).build());
+        delete(pendingFilename);
+        logger.info("Updated " + dfsFilename + ": uploaded " + uploaded.size() + " of " + layout.getChunkCount()
+                + " chunks, " + uploadedBytes + " of " + attributes.getFileSize() + " bytes");
+    }
+
+    /**
+     * Upload small files packed together: files are appended to one another, up to chunk-size
+     * bytes, and every such container is stored as one chunk. Each file is the byte range of
+     * the container it is in, read with byte range requests: no chunk of its own, just its
+     * attributes on the controller. Files become visible once their container is stored, and
+     * a container is deleted once all of its files are. Files of chunk-size bytes or more are
+     * uploaded on their own.
+     *
+     * @param localFiles   files to upload
+     * @param dfsFilenames names of the files in the DFS, in the same order
+     */
+    public void uploadPacked(List<String> localFiles, List<String> dfsFilenames) throws IOException {
+        if (localFiles.size() != dfsFilenames.size()) {
+            throw new IllegalArgumentException("Got " + localFiles.size() + " files for " + dfsFilenames.size() + " names");
+        }
+        ByteArrayOutputStream container = new ByteArrayOutputStream();
+        List<Messages.FileAttributes> packedFiles = new ArrayList<>();
+        int containerCount = 0;
+        for (int i = 0; i < localFiles.size(); i++) {
+            Path path = Paths.get(localFiles.get(i));
+            long fileSize = Files.size(path);
+            if (fileSize == 0) {
+                throw new IllegalArgumentException("File " + path + " is empty");
+            }
+            if (fileSize >= config.getChunkSize()) {
+                upload(localFiles.get(i), dfsFilenames.get(i), false);
+                continue;
+            }
+            if (container.size() + fileSize > config.getChunkSize()) {
+                uploadContainer(container.toByteArray(), packedFiles);
+                containerCount++;
+                container.reset();
+                packedFiles.clear();
+            }
+            packedFiles.add(Messages.FileAttributes.newBuilder()
+                    .setFilename(dfsFilenames.get(i))
+                    .setFileSize(fileSize)
+                    .setChunkSize(config.getChunkSize())
+                    .setVersion(newVersion())
+                    .addContentChunks(Messages.ContentChunk.newBuilder()
+                            .setOffset(container.size())
+                            .setLength(fileSize))
+                    .setComplete(true)
+                    .build());
+            Files.copy(path, container);
+        }
+        if (!packedFiles.isEmpty()) {
+            uploadContainer(container.toByteArray(), packedFiles);
+            containerCount++;
+        }
+        logger.info("Uploaded " + localFiles.size() + " files, small ones packed into " + containerCount + " chunks");
+    }
+
+    /**
+     * Store a container, unless the DFS has it already, then set the attributes of the files
+     * it holds all at once.
+     *
+     * @param packedFiles attributes of the files, without the hash of the container yet
+     */
+    private void uploadContainer(byte[] container, List<Messages.FileAttributes> packedFiles) throws IOException {
+        String hash = Utils.sha256sum(container, 0, container.length);
+        String chunkFilename = DedupLayout.getChunkFilename(hash);
+
+        // Keeps the container from being refused until its files reference it
+        String pendingFilename = DedupLayout.getPendingFilename(hash);
+        Messages.DownloadFileResponse pending = sendDeduplicatedFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename(pendingFilename)
+                .setFileSize(container.length)
+                .setChunkSize(config.getChunkSize())
+                .addContentChunks(Messages.ContentChunk.newBuilder().setHash(hash).setLength(container.length))
+                .build());
+        if (pending.getChunkLocationsCount() == 0) {
+            List<ComponentAddress> storageNodes = getWritableStorageNodes();
+            storeChunk(chunkFilename, 0, container, Utils.md5sum(container), storageNodes, random.nextInt(storageNodes.size()));
+        } else {
+            logger.debug(chunkFilename + " is already stored");
+        }
+
+        final Messages.FileAttributesBatch.Builder batch = Messages.FileAttributesBatch.newBuilder();
+        for (Messages.FileAttributes attributes : packedFiles) {
+            batch.addFiles(attributes.toBuilder()
+                    .setContentChunks(0, attributes.getContentChunks(0).toBuilder().setHash(hash))
+                    .build());
+        }
+        Messages.MessageWrapper request = Messages.MessageWrapper.newBuilder()
+                .setFileAttributesBatchMsg(batch)
+                .build();
+        exchange(controllerAddr, request, new Exchange<Void>() {
+            @Override
+            public Void run(Socket socket) throws IOException {
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (msgWrapper.hasErrorMsg()) {
+                    throw new IOException(msgWrapper.getErrorMsg().getText());
+                }
+                if (!msgWrapper.hasFileAttributesBatchAckMsg()) {
+                    throw new IllegalStateException("Expected FileAttributesBatchAck message, got: " + msgWrapper);
+                }
+                return null;
+            }
+        });
+        delete(pendingFilename);
+        logger.debug("Packed " + packedFiles.size() + " files into " + chunkFilename);
+    }
+
+    /**
+     * @return attributes of the file as the controller has them now, or null if there is no such file
+     */
+    private Messages.FileAttributes getCurrentAttributes(String filename) throws IOException {
+        Messages.DownloadFileResponse cached = chunkLocationCache.get(filename);
+        if (cached != null) {
+            chunkLocationCache.invalidate(cached);
+        }
+        try {
+            Messages.DownloadFileResponse fileMsg = getChunkLocations(filename);
+            return fileMsg.hasAttributes() ? fileMsg.getAttributes() : null;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    // Cut a local file into content defined chunks
+    private Messages.FileAttributes getDeduplicatedFileAttributes(Path path, String dfsFilename) throws IOException {
+        long fileSize = Files.size(path);
+        if (fileSize == 0) {
+            throw new IllegalArgumentException("File " + path + " is empty");
+        }
+        ContentDefinedChunker chunker = new ContentDefinedChunker((int) config.getChunkSize());
+        List<Messages.ContentChunk> contentChunks;
+        try (InputStream in = Files.newInputStream(path)) {
+            contentChunks = chunker.split(in);
+        }
+        return Messages.FileAttributes.newBuilder()
+                .setFilename(dfsFilename)
+                .setFileSize(fileSize)
+                .setChunkSize(config.getChunkSize())
+                .addAllContentChunks(contentChunks)
+                .setVersion(newVersion())
+                .build();
+    }
+
+    /**
+     * Returns a new version identifier, for the attributes of a file being uploaded.
+     */
+    static String newVersion() {
+        return UUID.randomUUID().toString();
+    }
+
+    private static Set<String> getStoredChunkFilenames(DedupLayout layout, Messages.DownloadFileResponse fileMsg) {
+        Set<String> stored = new HashSet<>();
+        for (int sequenceNo : parseChunkLocations(fileMsg).keySet()) {
+            stored.add(layout.getChunkFilename(sequenceNo));
+        }
+        return stored;
+    }
+
+    /**
+     * Upload the content chunks of a local file that are not stored already, each once.
+     *
+     * @param stored   content chunks not to upload
+     * @param uploaded filled with the content chunks uploaded
+     * @return number of bytes uploaded
+     */
+    private long uploadContentChunks(Path path, DedupLayout layout, Set<String> stored, Set<String> uploaded) throws IOException {
+        List<ComponentAddress> storageNodes = getWritableStorageNodes();
+        long uploadedBytes = 0;
+        int storageNodeIndex = random.nextInt(storageNodes.size());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int sequenceNo = 0; sequenceNo < layout.getChunkCount(); sequenceNo++) {
+                String chunkFilename = layout.getChunkFilename(sequenceNo);
+                // Also skips chunks repeated within the file
+                if (stored.contains(chunkFilename) || !uploaded.add(chunkFilename)) {
+                    continue;
+                }
+                ByteBuffer data = ByteBuffer.allocate((int) layout.getChunkLength(sequenceNo));
+                while (data.hasRemaining()) {
+                    if (channel.read(data, layout.getChunkOffset(sequenceNo) + data.position()) == -1) {
+                        throw new EOFException("File got shorter while uploading it");
+                    }
+                }
+                if (!DedupLayout.getChunkFilename(Utils.sha256sum(data.array(), 0, data.limit())).equals(chunkFilename)) {
+                    throw new IOException("File " + path + " changed while uploading it");
+                }
+                storageNodeIndex = storeChunk(chunkFilename, 0, data.array(), Utils.md5sum(data.array()), storageNodes, storageNodeIndex + 1);
+                uploadedBytes += data.limit();
+            }
+        }
+        return uploadedBytes;
+    }
+
+    /**
+     * @return where the content chunks of the file that are stored already are
+     * @throws FileNotFoundException if the file was deleted in the meantime
+     */
+    private Messages.DownloadFileResponse sendDeduplicatedFileAttributes(final Messages.FileAttributes attributes) throws IOException {
+        return exchange(controllerAddr, new Exchange<Messages.DownloadFileResponse>() {
+            @Override
+            public Messages.DownloadFileResponse run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setFileAttributesMsg(attributes)
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (msgWrapper.hasErrorMsg()) {
+                    throw new FileNotFoundException(attributes.getFilename() + ": " + msgWrapper.getErrorMsg().getText());
+                }
+                if (!msgWrapper.hasDownloadFileResponseMsg()) {
+                    throw new IllegalStateException("Expected DownloadFileResponse message, got: " + msgWrapper);
+                }
+                return msgWrapper.getDownloadFileResponseMsg();
+            }
+        });
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(data, read, length - read);
+            if (n == -1) {
+                throw new EOFException("File got shorter while uploading it");
+            }
+            read += n;
+        }
+        return data;
+    }
+
+    /**
+     * Returns storage nodes that have room for more chunks, the emptiest first.
+     *
+     * @throws IllegalStateException if there is none
+     */
+    List<ComponentAddress> getWritableStorageNodes() throws IOException {
+        List<ComponentAddress> storageNodes = getStorageNodes(true);
+        if (storageNodes.isEmpty()) {
+            throw new IllegalStateException("No storage node has room for more chunks");
+        }
+        return storageNodes;
+    }
+
+    /**
+     * Upload a chunk, and wait until it is stored. Storage nodes are tried in turn, starting
+     * at the given index, until one of them stores it.
+     *
+     * @return index of the storage node that stored the chunk
+     */
+    int storeChunk(String filename, int sequenceNo, byte[] data, String checksum, List<ComponentAddress> storageNodes, int index) throws IOException {
+        final Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
+                .setStoreChunkMsg(
+                        Messages.StoreChunk.newBuilder()
+                                .setFileName(filename)
+                                .setSequenceNo(sequenceNo)
+                                .setChecksum(checksum)
+                                .setData(ByteString.copyFrom(data))
+                                .setAcknowledge(true)
+                                .build()
+                )
+                .build();
+
+        IOException lastException = null;
+        for (int i = 0; i < storageNodes.size(); i++) {
+            int storageNodeIndex = (index + i) % storageNodes.size();
+            ComponentAddress storageNode = storageNodes.get(storageNodeIndex);
+            logger.debug("Sending chunk " + sequenceNo + " of " + filename + " to storage node " + storageNode);
+            try {
+                exchange(storageNode, new Exchange<Void>() {
+                    @Override
+                    public Void run(Socket socket) throws IOException {
+                        msg.writeDelimitedTo(socket.getOutputStream());
+                        Messages.MessageWrapper response = receive(socket);
+                        if (response.hasErrorMsg()) {
+                            throw new IOException(response.getErrorMsg().getText());
+                        }
+                        if (!response.hasChunkStoredMsg()) {
+                            throw new IllegalStateException("Expected ChunkStored message, got: " + response);
+                        }
+                        return null;
+                    }
+                });
+                return storageNodeIndex;
+            } catch (IOException e) {
+                logger.warn("Could not store chunk " + sequenceNo + " of " + filename + " on " + storageNode, e);
+                lastException = e;
+            }
+        }
+        throw new IOException("Could not store chunk " + sequenceNo + " of " + filename + " on any storage node", lastException);
+    }
+
+    /**
+     * @throws IOException if the controller refused the attributes
+     */
+    void sendFileAttributes(Messages.FileAttributes attributes) throws IOException {
+        Messages.MessageWrapper request = Messages.MessageWrapper.newBuilder()
+                .setFileAttributesMsg(attributes)
+                .build();
+        exchange(controllerAddr, request, new Exchange<Void>() {
+            @Override
+            public Void run(Socket socket) throws IOException {
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (msgWrapper.hasErrorMsg()) {
+                    throw new IOException(msgWrapper.getErrorMsg().getText());
+                }
+                if (!msgWrapper.hasFileAttributesAckMsg()) {
+                    throw new IllegalStateException("Expected FileAttributesAck message, got: " + msgWrapper);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Download a file into a local file. If resuming transfers is enabled and a previous
+     * download into the same local file failed, only the chunks that it didn't download,
+     * or that aren't intact, are downloaded.
+     *
+     * @throws FileNotFoundException if there is no such file
+     * @throws IllegalStateException if the local file exists, and may not be overwritten
+     */
+    public void download(String filename, String localFile) throws IOException {
+        download(getChunkLocations(filename), localFile);
+    }
+
+    private void download(Messages.DownloadFileResponse downloadFileResponseMsg, String localFile) throws IOException {
+        String filename = downloadFileResponseMsg.getFilename();
+        File parentDirectory = new File(localFile).getAbsoluteFile().getParentFile();
+        if (!parentDirectory.exists() && !parentDirectory.mkdirs()) {
+            throw new IOException("Could not create directory " + parentDirectory);
+        }
+
+        boolean completed = false;
+        OutputFile output = createOutputFile(filename, Paths.get(localFile), downloadFileResponseMsg);
+        try {
+            try {
+                downloadChunks(filename, downloadFileResponseMsg, output);
+            } catch (ExecutionException e) {
+                // Chunks may have moved since we got their locations: ask the controller again,
+                // and download the chunks that are still missing
+                logger.info("Could not download all chunks of " + filename + ", refreshing chunk locations");
+                chunkLocationCache.invalidate(downloadFileResponseMsg);
+                downloadFileResponseMsg = getChunkLocations(filename);
+                downloadChunks(filename, downloadFileResponseMsg, output);
+            }
+            output.complete();
+            completed = true;
+        } catch (ExecutionException e) {
+            throw new IOException("Could not download " + filename, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + filename);
+        } finally {
+            output.close();
+            if (completed) {
+                TransferJournal.delete(getJournalPath("download", output.getPath()));
+            } else if (!config.isResumeTransfers()) {
+                Files.deleteIfExists(output.getPartPath());
+            } else {
+                logger.info("Download of " + filename + " can be resumed from " + output.getPartPath());
+            }
+        }
+    }
+
+    /**
+     * Download files, each into a local file of the same name. The locations of the chunks
+     * of all the files are asked from the controller at once.
+     *
+     * @param localDirectory directory to download the files into
+     * @return names of the files that do not exist
+     * @throws IOException if a file can't be downloaded, or its name would put it outside of the local directory
+     */
+    public List<String> downloadFiles(List<String> filenames, String localDirectory) throws IOException {
+        Path root = Paths.get(localDirectory).toAbsolutePath().normalize();
+        Map<String, Path> localFiles = new HashMap<>();
+        for (String filename : filenames) {
+            localFiles.put(filename, getLocalFile(root, filename));
+        }
+        List<String> missingFilenames = lookupFiles(filenames, "");
+        for (String filename : filenames) {
+            if (!missingFilenames.contains(filename)) {
+                download(filename, localFiles.get(filename).toString());
+            }
+        }
+        return missingFilenames;
+    }
+
+    /**
+     * Returns where to download a file of the DFS into a local directory.
+     *
+     * @param root absolute and normalized path of the local directory
+     * @param name name of the file, relative to that directory
+     * @throws IOException if the name would put it outside of that directory, e.g. with .. in it
+     */
+    private static Path getLocalFile(Path root, String name) throws IOException {
+        Path localFile = root.resolve(name).normalize();
+        if (!localFile.startsWith(root) || localFile.equals(root)) {
+            throw new IOException(name + " would be written outside of " + root);
+        }
+        return localFile;
+    }
+
+    /**
+     * Download all the files of a directory of the DFS, sub-directories included, into a
+     * local directory. Several files are downloaded at the same time, parallel-downloads at
+     * most, and their chunks share the download threads of the client: at most
+     * parallel-downloads chunks at the same time, whatever the number of files. A file that
+     * can't be downloaded doesn't stop the others.
+     *
+     * @param dfsDirectory   directory of the DFS, empty for all the files
+     * @param localDirectory directory to download the files into
+     * @param progress       updated as files are downloaded
+     * @return names of the files that could not be downloaded
+     */
+    public List<String> downloadDirectory(String dfsDirectory, String localDirectory, final TransferProgress progress) throws IOException {
+        String prefix = toDirectoryPrefix(dfsDirectory);
+        // With their chunk locations: one request per page rather than per file
+        List<Messages.DownloadFileResponse> files = listFiles(prefix);
+        ExecutorService fileExecutor = Executors.newFixedThreadPool(config.getParallelDownloads(), daemonThreads("file-download"));
+        Map<String, Future<Void>> futures = new LinkedHashMap<>();
+        List<String> failedFilenames = new ArrayList<>();
+        Path root = Paths.get(localDirectory).toAbsolutePath().normalize();
+        try {
+            for (final Messages.DownloadFileResponse file : files) {
+                progress.addFile(file.getAttributes().getFileSize());
+                final Path localFile;
+                try {
+                    localFile = getLocalFile(root, file.getFilename().substring(prefix.length()));
+                } catch (IOException e) {
+                    logger.warn("Not downloading " + file.getFilename() + ": " + e.getMessage());
+                    progress.fileFailed();
+                    failedFilenames.add(file.getFilename());
+                    continue;
+                }
+                futures.put(file.getFilename(), fileExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        download(file, localFile.toString());
+                        progress.bytesTransferred(Files.size(localFile));
+                        progress.fileTransferred();
+                        return null;
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.warn("Could not download " + entry.getKey(), e.getCause());
+                    progress.fileFailed();
+                    failedFilenames.add(entry.getKey());
+                }
+            }
+            return failedFilenames;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + dfsDirectory);
+        } finally {
+            fileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Upload all the files of a local directory, sub-directories included, into a directory
+     * of the DFS. Files are read one after the other, but their chunks are uploaded by the
+     * upload threads of the client, parallel-uploads chunks at the same time, from as many
+     * files as it takes: many small files upload as fast as a large one. A file is complete
+     * once all its chunks are stored. A file that can't be uploaded doesn't stop the others.
+     * Empty files are skipped, the DFS can't store them.
+     *
+     * @param localDirectory directory to upload
+     * @param dfsDirectory   directory of the DFS to upload the files into, empty for the root
+     * @param progress       updated as chunks are uploaded
+     * @return names of the files that could not be uploaded
+     */
+    public List<String> uploadDirectory(String localDirectory, String dfsDirectory, TransferProgress progress) throws IOException {
+        final Path root = Paths.get(localDirectory);
+        final Map<Path, Long> localFiles = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (attrs.size() == 0) {
+                    logger.warn("Skipping empty file " + file);
+                } else {
+                    localFiles.put(file, attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (long fileSize : localFiles.values()) {
+            progress.addFile(fileSize);
+        }
+
+        String prefix = toDirectoryPrefix(dfsDirectory);
+        List<ComponentAddress> storageNodes = getWritableStorageNodes();
+        int storageNodeIndex = random.nextInt(storageNodes.size());
+        // Chunks read but not stored yet: enough to keep the upload threads busy, no more
+        Semaphore bufferedChunks = new Semaphore(2 * config.getParallelUploads());
+        List<FileUpload> uploads = new ArrayList<>();
+        try {
+            for (Map.Entry<Path, Long> entry : localFiles.entrySet()) {
+                Path localFile = entry.getKey();
+                long fileSize = entry.getValue();
+                FileUpload upload = new FileUpload(Messages.FileAttributes.newBuilder()
+                        .setFilename(prefix + root.relativize(localFile).toString().replace(File.separatorChar, '/'))
+                        .setFileSize(fileSize)
+                        .setChunkSize(config.getChunkSize())
+                        .setVersion(newVersion())
+                        .build(), storageNodes, progress);
+                uploads.add(upload);
+
+                int chunkCount = (int) ((fileSize + config.getChunkSize() - 1) / config.getChunkSize());
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(localFile))) {
+                    sendFileAttributes(upload.attributes);
+                    for (int sequenceNo = 0; sequenceNo < chunkCount && !upload.isFailed(); sequenceNo++) {
+                        byte[] data = readFully(in, (int) Math.min(config.getChunkSize(), fileSize - sequenceNo * config.getChunkSize()));
+                        bufferedChunks.acquire();
+                        upload.uploadChunk(sequenceNo, data, storageNodeIndex++, bufferedChunks);
+                    }
+                } catch (IOException e) {
+                    upload.fail(e);
+                }
+            }
+
+            List<String> failedFilenames = new ArrayList<>();
+            for (FileUpload upload : uploads) {
+                if (!upload.await()) {
+                    failedFilenames.add(upload.attributes.getFilename());
+                }
+            }
+            return failedFilenames;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + localDirectory);
+        } finally {
+            for (FileUpload upload : uploads) {
+                upload.cancel();
+            }
+        }
+    }
+
+    // Files whose name starts with the returned prefix are in the directory
+    private static String toDirectoryPrefix(String directory) {
+        return directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+    }
+
+    /**
+     * A file of a directory upload. Its chunks are uploaded by the upload threads, and the
+     * last one to be stored completes the file.
+     */
+    private class FileUpload {
+        private final Messages.FileAttributes attributes;
+        private final List<ComponentAddress> storageNodes;
+        private final TransferProgress progress;
+        private final List<Future<Void>> chunks = new ArrayList<>();
+        private int remainingChunks;
+        private IOException failure;
+
+        private FileUpload(Messages.FileAttributes attributes, List<ComponentAddress> storageNodes, TransferProgress progress) {
+            this.attributes = attributes;
+            this.storageNodes = storageNodes;
+            this.progress = progress;
+            this.remainingChunks = (int) ((attributes.getFileSize() + attributes.getChunkSize() - 1) / attributes.getChunkSize());
+        }
+
+        /**
+         * @param storageNodeIndex index of the first storage node to try
+         * @param bufferedChunks   released once the chunk is stored, or failed to be
+         */
+        private void uploadChunk(final int sequenceNo, final byte[] data, final int storageNodeIndex, final Semaphore bufferedChunks) {
+            chunks.add(uploadExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        if (isFailed()) {
+                            return null;
+                        }
+                        storeChunk(attributes.getFilename(), sequenceNo, data, Utils.md5sum(data), storageNodes, storageNodeIndex);
+                        progress.bytesTransferred(data.length);
+                        if (chunkStored()) {
+                            sendFileAttributes(attributes.toBuilder().setComplete(true).build());
+                            progress.fileTransferred();
+                        }
+                        return null;
+                    } catch (IOException e) {
+                        fail(e);
+                        throw e;
+                    } finally {
+                        bufferedChunks.release();
+                    }
+                }
+            }));
+        }
+
+        // True for the last chunk
+        private synchronized boolean chunkStored() {
+            return --remainingChunks == 0;
+        }
+
+        private synchronized boolean isFailed() {
+            return failure != null;
+        }
+
+        private void fail(IOException e) {
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                failure = e;
+            }
+            logger.warn("Could not upload " + attributes.getFilename(), e);
+            progress.fileFailed();
+        }
+
+        /**
+         * Wait until all the chunks of the file are stored.
+         *
+         * @return false if the file could not be uploaded
+         */
+        private boolean await() throws InterruptedException {
+            for (Future<Void> chunk : chunks) {
+                try {
+                    chunk.get();
+                } catch (ExecutionException e) {
+                    // Recorded as the failure of the file
+                }
+            }
+            return !isFailed();
+        }
+
+        private void cancel() {
+            for (Future<Void> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Create the .part file to download into, as big as all its chunks, or reopen the one
+     * of a previous download of the same version of the file.
+     */
+    private OutputFile createOutputFile(String filename, Path localFile, Messages.DownloadFileResponse downloadFileResponseMsg) throws IOException {
+        long chunkSize = getChunkSize(downloadFileResponseMsg);
+        int chunkCount = 0;
+        // Only for deduplicated files, their chunks have different sizes
+        long[] chunkOffsets = null;
+        if (StripeLayout.isErasureCoded(downloadFileResponseMsg.getAttributes())) {
+            chunkCount = new StripeLayout(downloadFileResponseMsg.getAttributes()).getDataChunkCount();
+        } else if (DedupLayout.isDeduplicated(downloadFileResponseMsg.getAttributes())) {
+            chunkOffsets = new DedupLayout(downloadFileResponseMsg.getAttributes()).getChunkOffsets();
+            chunkCount = chunkOffsets.length - 1;
+        } else {
+            for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : downloadFileResponseMsg.getChunkLocationsList()) {
+                chunkCount = Math.max(chunkCount, chunkLocation.getSequenceNo() + 1);
+            }
+        }
+        if (!config.isResumeTransfers()) {
+            return newOutputFile(localFile, chunkSize, chunkCount, chunkOffsets, config.isOverwriteOutputFile());
+        }
+
+        Messages.FileAttributes attributes = downloadFileResponseMsg.getAttributes().toBuilder()
+                .setFilename(filename)
+                .setChunkSize(chunkSize)
+                .build();
+        Path journalPath = getJournalPath("download", localFile);
+        Map<Integer, Messages.TransferRecord.TransferredChunk> downloaded = Files.exists(OutputFile.getPartPath(localFile))
+                ? TransferJournal.read(journalPath, attributes)
+                : Collections.<Integer, Messages.TransferRecord.TransferredChunk>emptyMap();
+        OutputFile output;
+        List<Messages.TransferRecord.TransferredChunk> intact = new ArrayList<>();
+        if (downloaded.isEmpty()) {
+            output = newOutputFile(localFile, chunkSize, chunkCount, chunkOffsets, config.isOverwriteOutputFile());
+        } else {
+            output = chunkOffsets == null
+                    ? OutputFile.resume(localFile, chunkSize, chunkCount, config.isOverwriteOutputFile())
+                    : OutputFile.resume(localFile, chunkOffsets, config.isOverwriteOutputFile());
+            for (Messages.TransferRecord.TransferredChunk chunk : downloaded.values()) {
+                if (output.resumeChunk(chunk.getSequenceNo(), chunk.getLength(), chunk.getChecksum())) {
+                    intact.add(chunk);
+                }
+            }
+            logger.info("Resuming download of " + filename + ": " + intact.size() + " of " + chunkCount + " chunks already downloaded");
+        }
+        output.setJournal(TransferJournal.create(journalPath, attributes, intact));
+        return output;
+    }
+
+    private static OutputFile newOutputFile(Path localFile, long chunkSize, int chunkCount, long[] chunkOffsets, boolean overwrite) throws IOException {
+        return chunkOffsets == null
+                ? new OutputFile(localFile, chunkSize, chunkCount, overwrite)
+                : new OutputFile(localFile, chunkOffsets, overwrite);
+    }
+
+    /**
+     * Files uploaded before the controller was told their attributes were cut with
+     * the chunk size of the configuration.
+     */
+    long getChunkSize(Messages.DownloadFileResponse downloadFileResponseMsg) {
+        if (downloadFileResponseMsg.hasAttributes() && downloadFileResponseMsg.getAttributes().getChunkSize() > 0) {
+            return downloadFileResponseMsg.getAttributes().getChunkSize();
+        }
+        return config.getChunkSize();
+    }
+
+    /**
+     * Ask the controller where the chunks of several files are, in one round trip,
+     * and put the answer in the chunk location cache.
+     *
+     * @param filenames names of files to look up
+     * @param prefix    if not empty, also look up files whose name starts with this prefix
+     * @return names of the files that do not exist
+     */
+    private List<String> lookupFiles(final List<String> filenames, final String prefix) throws IOException {
+        logger.info("Asking controller " + controllerAddr + " about " + filenames.size() + " files");
+        Messages.DownloadFilesResponse response = exchange(controllerAddr, new Exchange<Messages.DownloadFilesResponse>() {
+            @Override
+            public Messages.DownloadFilesResponse run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setDownloadFilesRequestMsg(
+                                Messages.DownloadFilesRequest.newBuilder()
+                                        .addAllFilenames(filenames)
+                                        .setPrefix(prefix)
+                                        .build()
+                        )
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (!msgWrapper.hasDownloadFilesResponseMsg()) {
+                    throw new IllegalStateException("Expected DownloadFilesResponse message, got: " + msgWrapper);
+                }
+                return msgWrapper.getDownloadFilesResponseMsg();
+            }
+        });
+
+        for (Messages.DownloadFileResponse locations : response.getFilesList()) {
+            chunkLocationCache.put(locations);
+        }
+        return response.getMissingFilenamesList();
+    }
+
+    /**
+     * Returns where the chunks of a file are, from the cache if possible.
+     *
+     * @throws FileNotFoundException if there is no such file
+     */
+    Messages.DownloadFileResponse getChunkLocations(final String filename) throws IOException {
+        Messages.DownloadFileResponse locations = chunkLocationCache.get(filename);
+        if (locations != null) {
+            logger.debug("Chunk locations of " + filename + " found in cache");
+            return locations;
+        }
+
+        logger.info("Asking controller " + controllerAddr + " about file " + filename);
+        locations = exchange(controllerAddr, new Exchange<Messages.DownloadFileResponse>() {
+            @Override
+            public Messages.DownloadFileResponse run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setDownloadFileMsg(Messages.DownloadFile.newBuilder().setFileName(filename).build())
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper msgWrapper = receive(socket);
+                if (msgWrapper.hasErrorMsg()) {
+                    throw new FileNotFoundException(filename + ": " + msgWrapper.getErrorMsg().getText());
+                }
+                if (!msgWrapper.hasDownloadFileResponseMsg()) {
+                    throw new IllegalStateException("Controller is supposed to give back the DownloadFileResponse but got " + msgWrapper);
+                }
+                return msgWrapper.getDownloadFileResponseMsg();
+            }
+        });
+        chunkLocationCache.put(locations);
+        return locations;
+    }
+
+    /**
+     * Forget chunk locations found to be stale, so the next call to getChunkLocations asks the controller.
+     */
+    void invalidateChunkLocations(Messages.DownloadFileResponse locations) {
+        chunkLocationCache.invalidate(locations);
+    }
+
+    private void downloadChunks(String filename, Messages.DownloadFileResponse downloadFileResponseMsg, OutputFile output) throws ExecutionException, InterruptedException, IOException {
+        if (StripeLayout.isErasureCoded(downloadFileResponseMsg.getAttributes())) {
+            downloadErasureCodedChunks(filename, downloadFileResponseMsg, output);
+            return;
+        }
+
+        DedupLayout dedupLayout = DedupLayout.isDeduplicated(downloadFileResponseMsg.getAttributes())
+                ? new DedupLayout(downloadFileResponseMsg.getAttributes())
+                : null;
+        List<Future<Void>> futures = new ArrayList<>();
+        Map<Integer, List<ComponentAddress>> chunkLocations = parseChunkLocations(downloadFileResponseMsg);
+        for (Map.Entry<Integer, List<ComponentAddress>> entry : chunkLocations.entrySet()) {
+            int sequenceNo = entry.getKey();
+            List<ComponentAddress> nodes = entry.getValue();
+
+            // Already there if this is a retry
+            if (output.hasChunk(sequenceNo)) {
+                continue;
+            }
+            if (dedupLayout != null) {
+                futures.add(downloadExecutor.submit(new DownloadChunkTask(dedupLayout.getChunkFilename(sequenceNo), 0, nodes, output, sequenceNo,
+                        dedupLayout.getStoredChunkOffset(sequenceNo), (int) dedupLayout.getChunkLength(sequenceNo))));
+            } else {
+                futures.add(downloadExecutor.submit(new DownloadChunkTask(filename, sequenceNo, nodes, output, sequenceNo)));
+            }
+        }
+
+        logger.debug("Waiting for all " + futures.size() + " download tasks to finish...");
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            // Don't leave tasks writing to a file that is about to be closed
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Download the data chunks of an erasure coded file. Data chunks that can't be downloaded
+     * are rebuilt from the other chunks of their stripe.
+     */
+    private void downloadErasureCodedChunks(String filename, Messages.DownloadFileResponse downloadFileResponseMsg, OutputFile output) throws InterruptedException, IOException {
+        StripeLayout layout = new StripeLayout(downloadFileResponseMsg.getAttributes());
+        Map<Integer, List<ComponentAddress>> chunkLocations = parseChunkLocations(downloadFileResponseMsg);
+
+        Map<Integer, Future<Void>> futures = new TreeMap<>();
+        try {
+            for (int sequenceNo = 0; sequenceNo < layout.getDataChunkCount(); sequenceNo++) {
+                if (output.hasChunk(sequenceNo)) {
+                    continue;
+                }
+                List<ComponentAddress> nodes = chunkLocations.get(sequenceNo);
+                futures.put(sequenceNo, downloadExecutor.submit(new DownloadChunkTask(filename, sequenceNo,
+                        nodes == null ? Collections.<ComponentAddress>emptyList() : nodes, output, sequenceNo)));
+            }
+
+            SortedSet<Integer> brokenStripes = new TreeSet<>();
+            for (Map.Entry<Integer, Future<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    logger.info("Could not download chunk " + entry.getKey() + " of " + filename + ", will rebuild it");
+                    brokenStripes.add(layout.getStripe(entry.getKey()));
+                }
+            }
+
+            for (int stripe : brokenStripes) {
+                reconstructStripe(filename, layout, stripe, output, chunkLocations);
+            }
+        } finally {
+            for (Future<Void> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void reconstructStripe(String filename, StripeLayout layout, int stripe,
+                                   OutputFile output, Map<Integer, List<ComponentAddress>> chunkLocations) throws IOException {
+        byte[][] stripeChunks = new byte[layout.getDataShards() + layout.getParityShards()][];
+        int needed = layout.getDataChunkCount(stripe);
+        int available = 0;
+        for (int shardIndex = 0; shardIndex < layout.getDataShards(); shardIndex++) {
+            int sequenceNo = layout.getSequenceNo(stripe, shardIndex);
+            if (sequenceNo != -1 && output.hasChunk(sequenceNo)) {
+                stripeChunks[shardIndex] = output.readChunk(sequenceNo);
+                available++;
+            }
+        }
+
+        // Only download as many parity chunks as needed
+        for (int shardIndex = layout.getDataShards(); shardIndex < stripeChunks.length && available < needed; shardIndex++) {
+            int sequenceNo = layout.getSequenceNo(stripe, shardIndex);
+            if (!chunkLocations.containsKey(sequenceNo)) {
+                continue;
+            }
+            for (ComponentAddress storageNode : chunkLocations.get(sequenceNo)) {
+                try {
+                    stripeChunks[shardIndex] = downloadChunkRange(filename, sequenceNo, storageNode, 0, 0);
+                    available++;
+                    break;
+                } catch (IOException | ChecksumException | ChunkNotFoundException e) {
+                    // Just try the next node
+                }
+            }
+        }
+        if (available < needed) {
+            throw new IOException("Stripe " + stripe + " of " + filename + " has only " + available
+                    + " chunks left, " + needed + " needed to rebuild it");
+        }
+
+        logger.info("Rebuilding stripe " + stripe + " of " + filename);
+        layout.reconstruct(stripe, stripeChunks);
+        for (int shardIndex = 0; shardIndex < layout.getDataShards(); shardIndex++) {
+            int sequenceNo = layout.getSequenceNo(stripe, shardIndex);
+            if (sequenceNo == -1 || output.hasChunk(sequenceNo)) {
+                continue;
+            }
+            output.writeChunk(sequenceNo, ByteBuffer.wrap(stripeChunks[shardIndex]), Utils.md5sum(stripeChunks[shardIndex]));
+        }
+    }
+
+    /**
+     * Write a downloaded chunk at its place in the output file. If the storage node runs on
+     * this host, the chunk file is read directly from its disk instead of through the socket.
+     *
+     * @param msgWrapper       answer of the storage node to a chunk request
+     * @param outputSequenceNo sequence number of the chunk in the output file
+     * @param offset           start of the byte range of the chunk that was asked for
+     * @param length           length of the byte range, 0 for the whole chunk
+     */
+    private void writeChunk(final String filename, final int sequenceNo, ComponentAddress storageNode, Messages.MessageWrapper msgWrapper,
+                            OutputFile output, int outputSequenceNo, long offset, int length) throws IOException {
+        if (msgWrapper.hasShortCircuitChunkMsg()) {
+            Messages.ShortCircuitChunk shortCircuitChunkMsg = msgWrapper.getShortCircuitChunkMsg();
+            try {
+                if (length == 0) {
+                    output.transferChunk(outputSequenceNo, Paths.get(shortCircuitChunkMsg.getPath()), shortCircuitChunkMsg.getChecksum());
+                } else {
+                    byte[] data = readLocalChunkRange(filename, sequenceNo, shortCircuitChunkMsg, offset, length);
+                    output.writeChunk(outputSequenceNo, ByteBuffer.wrap(data), Utils.md5sum(data));
+                }
+                return;
+            } catch (IOException e) {
+                // E.g. the storage node runs as another user
+                logger.warn("Could not read " + shortCircuitChunkMsg.getPath() + " directly, asking " + storageNode + " for it", e);
+                msgWrapper = requestChunk(filename, sequenceNo, storageNode, false, offset, length);
+            }
+        }
+
+        Messages.StoreChunk storeChunkMsg = msgWrapper.getStoreChunkMsg();
+        output.writeChunk(outputSequenceNo, storeChunkMsg.getData().asReadOnlyByteBuffer(), storeChunkMsg.getChecksum());
+    }
+
+    /**
+     * Download a byte range of a chunk into memory. The range is cut at the end of the chunk.
+     *
+     * @param length number of bytes to download, 0 for up to the end of the chunk
+     */
+    byte[] downloadChunkRange(String filename, int sequenceNo, ComponentAddress storageNode, long offset, int length) throws IOException {
+        try {
+            Messages.MessageWrapper msgWrapper = requestChunk(filename, sequenceNo, storageNode, true, offset, length);
+            if (msgWrapper.hasShortCircuitChunkMsg()) {
+                Messages.ShortCircuitChunk shortCircuitChunkMsg = msgWrapper.getShortCircuitChunkMsg();
+                try {
+                    return readLocalChunkRange(filename, sequenceNo, shortCircuitChunkMsg, offset, length);
+                } catch (IOException e) {
+                    logger.warn("Could not read " + shortCircuitChunkMsg.getPath() + " directly, asking " + storageNode + " for it", e);
+                    msgWrapper = requestChunk(filename, sequenceNo, storageNode, false, offset, length);
+                }
+            }
+
+            Messages.StoreChunk storeChunkMsg = msgWrapper.getStoreChunkMsg();
+            return checkData(filename, sequenceNo, storeChunkMsg.getData().toByteArray(), storeChunkMsg.getChecksum());
+        } catch (IOException | ChecksumException | ChunkNotFoundException e) {
+            replicaLatencies.recordFailure(storageNode);
+            throw e;
+        }
+    }
+
+    /**
+     * Verify a whole chunk file of a local storage node, and copy the range out of it.
+     */
+    private static byte[] readLocalChunkRange(String filename, int sequenceNo, Messages.ShortCircuitChunk shortCircuitChunkMsg, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(shortCircuitChunkMsg.getPath()), StandardOpenOption.READ)) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String actualChecksum = Utils.md5sum(chunk.duplicate());
+            if (!actualChecksum.equals(shortCircuitChunkMsg.getChecksum())) {
+                throw new ChecksumException(new File(filename + "-chunk" + sequenceNo), shortCircuitChunkMsg.getChecksum(), actualChecksum);
+            }
+
+            int start = (int) Math.min(offset, chunk.limit());
+            int end = length == 0 ? chunk.limit() : (int) Math.min(start + (long) length, chunk.limit());
+            byte[] data = new byte[end - start];
+            chunk.position(start);
+            chunk.get(data);
+            return data;
+        }
+    }
+
+    private static byte[] checkData(String filename, int sequenceNo, byte[] data, String checksum) {
+        String actualChecksum = Utils.md5sum(data);
+        if (!actualChecksum.equals(checksum)) {
+            throw new ChecksumException(new File(filename + "-chunk" + sequenceNo), checksum, actualChecksum);
+        }
+        return data;
+    }
+
+    /**
+     * @param shortCircuit if the storage node runs on this host, ask for the path of the chunk file
+     * @param offset       start of the byte range to ask for
+     * @param length       length of the byte range, 0 for the whole chunk
+     * @return StoreChunk or ShortCircuitChunk message
+     */
+    private Messages.MessageWrapper requestChunk(final String filename, final int sequenceNo, final ComponentAddress storageNode, final boolean shortCircuit,
+                                                 final long offset, final long length) throws IOException {
+        return exchange(storageNode, new Exchange<Messages.MessageWrapper>() {
+            @Override
+            public Messages.MessageWrapper run(Socket socket) throws IOException {
+                return requestChunk(filename, sequenceNo, storageNode, shortCircuit, offset, length, socket);
+            }
+        });
+    }
+
+    private Messages.MessageWrapper requestChunk(String filename, int sequenceNo, ComponentAddress storageNode, boolean shortCircuit,
+                                                 long offset, long length, Socket socket) throws IOException {
+        shortCircuit = shortCircuit && config.isShortCircuitReads() && isLocal(storageNode);
+        Messages.MessageWrapper.newBuilder()
+                .setDownloadChunkMsg(
+                        Messages.DownloadChunk.newBuilder()
+                                .setFilename(filename)
+                                .setSequenceNo(sequenceNo)
+                                .setShortCircuit(shortCircuit)
+                                .setOffset(offset)
+                                .setLength(length)
+                                .build()
+                )
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+        Messages.MessageWrapper msgWrapper = receive(socket);
+
+        if (msgWrapper.hasErrorMsg()) {
+            throw new ChunkNotFoundException(filename, sequenceNo, storageNode);
+        }
+        if (!msgWrapper.hasStoreChunkMsg() && !msgWrapper.hasShortCircuitChunkMsg()) {
+            throw new IllegalStateException("Response to DownloadChunk should have been StoreChunk. Got: " + TextFormat.printToString(msgWrapper));
+        }
+        return msgWrapper;
+    }
+
+    private static boolean isLocal(ComponentAddress storageNode) {
+        Boolean local = localHosts.get(storageNode.getHost());
+        if (local == null) {
+            try {
+                InetAddress address = InetAddress.getByName(storageNode.getHost());
+                local = address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException e) {
+                local = false;
+            }
+            localHosts.put(storageNode.getHost(), local);
+        }
+        return local;
+    }
+
+    /**
+     * Replicas to read a chunk from, in the order to try them: local storage nodes first,
+     * they are the fastest to read from, then the fastest so far.
+     */
+    List<ComponentAddress> rankReplicas(List<ComponentAddress> storageNodes) {
+        List<ComponentAddress> ranked = replicaLatencies.rank(storageNodes);
+        List<ComponentAddress> result = new ArrayList<>(ranked.size());
+        for (ComponentAddress storageNode : ranked) {
+            if (isLocal(storageNode)) {
+                result.add(storageNode);
+            }
+        }
+        for (ComponentAddress storageNode : ranked) {
+            if (!isLocal(storageNode)) {
+                result.add(storageNode);
+            }
+        }
+        return result;
+    }
+
+    ExecutorService getDownloadExecutor() {
+        return downloadExecutor;
+    }
+
+    /**
+     * @param writable only storage nodes that have room for another chunk, the emptiest first
+     * @return online storage nodes
+     */
+    public List<ComponentAddress> getStorageNodes(final boolean writable) throws IOException {
+        logger.debug("Asking for list of storage nodes...");
+        Messages.GetStorageNodesResponse responseMsg = exchange(controllerAddr, new Exchange<Messages.GetStorageNodesResponse>() {
+            @Override
+            public Messages.GetStorageNodesResponse run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setGetStoragesNodesRequestMsg(Messages.GetStorageNodesRequest.newBuilder().setWritable(writable).build())
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper receivedMsgWrapper = receive(socket);
+                if (!receivedMsgWrapper.hasGetStorageNodesResponseMsg()) {
+                    throw new UnsupportedOperationException("Expected storage node list response, but got something else.");
+                }
+                return receivedMsgWrapper.getGetStorageNodesResponseMsg();
+            }
+        });
+
+        List<ComponentAddress> addresses = new ArrayList<>(responseMsg.getNodesCount());
+        for (Messages.StorageNode storageNode : responseMsg.getNodesList()) {
+            addresses.add(new ComponentAddress(storageNode.getHost(), storageNode.getPort()));
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns free space, space used by chunks and total capacity of the DFS,
+     * as of the last heartbeat of every storage node.
+     */
+    public Messages.GetFreeSpaceResponse getFreeSpace() throws IOException {
+        return exchange(controllerAddr, new Exchange<Messages.GetFreeSpaceResponse>() {
+            @Override
+            public Messages.GetFreeSpaceResponse run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setGetFreeSpaceRequestMsg(Messages.GetFreeSpaceRequest.newBuilder().build())
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper responseMsgWrapper = receive(socket);
+                if (!responseMsgWrapper.hasGetFreeSpaceResponseMsg()) {
+                    throw new IllegalStateException("Expected get free space response message, but got: " + responseMsgWrapper);
+                }
+                return responseMsgWrapper.getGetFreeSpaceResponseMsg();
+            }
+        });
+    }
+
+    /**
+     * Limit the bandwidth every storage node uses for replication, rebalancing and repair.
+     *
+     * @param outgoingBytesPerSecond 0 for no limit
+     * @param incomingBytesPerSecond 0 for no limit
+     */
+    public void setBandwidthLimits(long outgoingBytesPerSecond, long incomingBytesPerSecond) throws IOException {
+        try (Socket socket = controllerAddr.getSocket()) {
+            Messages.MessageWrapper.newBuilder()
+                    .setSetBandwidthLimitsMsg(
+                            Messages.SetBandwidthLimits.newBuilder()
+                                    .setOutgoingBytesPerSecond(outgoingBytesPerSecond)
+                                    .setIncomingBytesPerSecond(incomingBytesPerSecond)
+                                    .build()
+                    )
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
+        }
+    }
+
+    public Map<String, Long> getStorageNodeMetrics(ComponentAddress storageNodeAddr) throws IOException {
+        return exchange(storageNodeAddr, new Exchange<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> run(Socket socket) throws IOException {
+                Messages.MessageWrapper.newBuilder()
+                        .setGetMetricsRequestMsg(Messages.GetMetricsRequest.newBuilder().build())
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+
+                Messages.MessageWrapper responseMsgWrapper = receive(socket);
+                if (!responseMsgWrapper.hasGetMetricsResponseMsg()) {
+                    throw new IllegalStateException("Expected get metrics response message, but got: " + responseMsgWrapper);
+                }
+                return new TreeMap<>(responseMsgWrapper.getGetMetricsResponseMsg().getMetricsMap());
+            }
+        });
+    }
+
+    static Map<Integer, List<ComponentAddress>> parseChunkLocations(Messages.DownloadFileResponse downloadFileResponseMsg) {
+        Map<Integer, List<ComponentAddress>> result = new HashMap<>();
+        for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : downloadFileResponseMsg.getChunkLocationsList()) {
+            List<ComponentAddress> nodes = new ArrayList<>();
+            for (Messages.StorageNode node : chunkLocation.getStorageNodesList()) {
+                nodes.add(new ComponentAddress(node.getHost(), node.getPort()));
+            }
+            logger.debug("Chunk " + chunkLocation.getSequenceNo() + " is on " + nodes);
+            result.put(chunkLocation.getSequenceNo(), nodes);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        downloadExecutor.shutdownNow();
+        uploadExecutor.shutdownNow();
+        hedgeExecutor.shutdownNow();
+        pool.close();
+    }
+
+    /**
+     * A request and its response, over a connection of the pool.
+     */
+    private interface Exchange<T> {
+        T run(Socket socket) throws IOException;
+    }
+
+    /**
+     * Run a request over a pooled connection. A pooled connection may have been closed by
+     * the other side while it was idle: the request is then sent again over a new one, so it
+     * must do no harm if it was run already.
+     */
+    private <T> T exchange(ComponentAddress node, Exchange<T> exchange) throws IOException {
+        Socket socket = pool.pollIdle(node);
+        if (socket != null) {
+            try {
+                T result = exchange.run(socket);
+                pool.release(node, socket);
+                return result;
+            } catch (SocketException | EOFException e) {
+                pool.discard(socket);
+                logger.debug("Pooled connection to " + node + " is closed, opening a new one", e);
+            } catch (IOException | RuntimeException e) {
+                pool.discard(socket);
+                throw e;
+            }
+        }
+
+        socket = node.getSocket();
+        try {
+            T result = exchange.run(socket);
+            pool.release(node, socket);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            pool.discard(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Send a request that must not be run twice, and read its response. It is only sent again
+     * over a new connection if it could not be written to the pooled one: once written, the
+     * other side may have run it even if the response never comes.
+     *
+     * @param response reads the response, the request is already sent
+     */
+    private <T> T exchange(ComponentAddress node, Messages.MessageWrapper request, Exchange<T> response) throws IOException {
+        Socket socket = pool.pollIdle(node);
+        if (socket != null) {
+            boolean written = false;
+            try {
+                request.writeDelimitedTo(socket.getOutputStream());
+                written = true;
+                T result = response.run(socket);
+                pool.release(node, socket);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                pool.discard(socket);
+                if (written || !(e instanceof SocketException)) {
+                    throw e;
+                }
+                logger.debug("Pooled connection to " + node + " is closed, opening a new one", e);
+            }
+        }
+
+        socket = node.getSocket();
+        try {
+            request.writeDelimitedTo(socket.getOutputStream());
+            T result = response.run(socket);
+            pool.release(node, socket);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            pool.discard(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the response to a request.
+     *
+     * @throws EOFException if the connection was closed instead
+     */
+    private static Messages.MessageWrapper receive(Socket socket) throws IOException {
+        Messages.MessageWrapper msgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
+        if (msgWrapper == null) {
+            throw new EOFException("Connection closed by " + socket.getRemoteSocketAddress());
+        }
+        return msgWrapper;
+    }
+
+    /**
+     * Downloads a chunk from the replica that has been the fastest so far. If it doesn't answer
+     * within the hedge delay, the next replica is asked too, and so on: the first one to deliver
+     * a good chunk wins, and the others are cancelled. Failed replicas are replaced right away.
+     * The chunk is written as chunk outputSequenceNo of the output file: the same as its own
+     * sequence number, but for content chunks of deduplicated files.
+     */
+    private class DownloadChunkTask implements Callable<Void> {
+
+        private final String filename;
+        private final int sequenceNo;
+        private final List<ComponentAddress> storageNodes;
+        private final OutputFile output;
+        private final int outputSequenceNo;
+        // Byte range of the chunk to download, the whole chunk if length is 0
+        private final long offset;
+        private final int length;
+
+        public DownloadChunkTask(String filename, int sequenceNo, List<ComponentAddress> storageNodes, OutputFile output, int outputSequenceNo) {
+            this(filename, sequenceNo, storageNodes, output, outputSequenceNo, 0, 0);
+        }
+
+        public DownloadChunkTask(String filename, int sequenceNo, List<ComponentAddress> storageNodes, OutputFile output, int outputSequenceNo,
+                                 long offset, int length) {
+            this.filename = filename;
+            this.sequenceNo = sequenceNo;
+            this.storageNodes = storageNodes;
+            this.output = output;
+            this.outputSequenceNo = outputSequenceNo;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            List<ComponentAddress> candidates = rankReplicas(storageNodes);
+            CompletionService<Void> completionService = new ExecutorCompletionService<>(hedgeExecutor);
+            Map<Future<Void>, Attempt> running = new HashMap<>();
+            int next = 0;
+            try {
+                while (true) {
+                    if (running.isEmpty()) {
+                        if (next == candidates.size()) {
+                            throw new ConnectException("Couldn't retrieve one good chunk (correct checksum) or connect to any of: " + storageNodes);
+                        }
+                        launch(candidates.get(next++), completionService, running);
+                    }
+
+                    Future<Void> finished = next < candidates.size()
+                            ? completionService.poll(replicaLatencies.getHedgeDelay(), TimeUnit.MILLISECONDS)
+                            : completionService.take();
+                    if (finished == null) {
+                        logger.debug("Chunk " + sequenceNo + " of " + filename + " is late, also asking " + candidates.get(next));
+                        launch(candidates.get(next++), completionService, running);
+                        continue;
+                    }
+
+                    Attempt attempt = running.remove(finished);
+                    try {
+                        finished.get();
+                        return null;
+                    } catch (ExecutionException e) {
+                        if (!(e.getCause() instanceof IOException || e.getCause() instanceof ChecksumException || e.getCause() instanceof ChunkNotFoundException)) {
+                            throw e;
+                        }
+                        // Just try the next node
+                        logger.debug("Could not download chunk " + sequenceNo + " of " + filename + " from " + attempt.storageNode, e.getCause());
+                    }
+                }
+            } finally {
+                for (Attempt attempt : running.values()) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        private void launch(ComponentAddress storageNode, CompletionService<Void> completionService, Map<Future<Void>, Attempt> running) {
+            Attempt attempt = new Attempt(storageNode);
+            running.put(completionService.submit(attempt), attempt);
+        }
+
+        private class Attempt implements Callable<Void> {
+            private final ComponentAddress storageNode;
+            private final long start = System.nanoTime();
+            // Set while the request is on the wire, closed to cancel it
+            private Socket socket;
+            private boolean cancelled = false;
+
+            private Attempt(ComponentAddress storageNode) {
+                this.storageNode = storageNode;
+            }
+
+            @Override
+            public Void call() throws IOException {
+                try {
+                    Messages.MessageWrapper msgWrapper = request();
+
+                    // Only the first attempt to get here writes the chunk
+                    synchronized (DownloadChunkTask.this) {
+                        if (!output.hasChunk(outputSequenceNo)) {
+                            writeChunk(filename, sequenceNo, storageNode, msgWrapper, output, outputSequenceNo, offset, length);
+                        }
+                    }
+                    replicaLatencies.record(storageNode, getElapsedMillis());
+                    return null;
+                } catch (IOException | RuntimeException e) {
+                    if (!isCancelled()) {
+                        replicaLatencies.recordFailure(storageNode);
+                    }
+                    throw e;
+                }
+            }
+
+            private Messages.MessageWrapper request() throws IOException {
+                Socket socket = pool.borrow(storageNode);
+                synchronized (this) {
+                    if (cancelled) {
+                        pool.discard(socket);
+                        throw new SocketException("Cancelled");
+                    }
+                    this.socket = socket;
+                }
+
+                Messages.MessageWrapper msgWrapper;
+                try {
+                    msgWrapper = requestChunk(filename, sequenceNo, storageNode, true, offset, length, socket);
+                } catch (IOException | RuntimeException e) {
+                    pool.discard(socket);
+                    throw e;
+                }
+                synchronized (this) {
+                    this.socket = null;
+                    if (cancelled) {
+                        pool.discard(socket);
+                        throw new SocketException("Cancelled");
+                    }
+                }
+                pool.release(storageNode, socket);
+                return msgWrapper;
+            }
+
+            private synchronized boolean isCancelled() {
+                return cancelled;
+            }
+
+            private void cancel() {
+                Socket socket;
+                synchronized (this) {
+                    cancelled = true;
+                    socket = this.socket;
+                }
+                // Slower than the winner, at least
+                replicaLatencies.record(storageNode, getElapsedMillis());
+                if (socket != null) {
+                    pool.discard(socket);
+                }
+            }
+
+            private long getElapsedMillis() {
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+    }
+}
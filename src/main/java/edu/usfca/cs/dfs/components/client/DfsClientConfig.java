@@ -0,0 +1,247 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.DFSProperties;
+
+/**
+ * Settings of a {@link DfsClient}. They start with the values of dfs.properties, and
+ * can be changed for one client without changing them for the others, e.g.
+ * {@code new DfsClientConfig().setReadAheadChunks(16)}. Must not be changed once
+ * the client is created.
+ */
+public class DfsClientConfig {
+
+    private long chunkSize;
+    private int parallelDownloads;
+    private int parallelUploads;
+    private int listPageSize;
+    private int locationCacheSize;
+    private double hedgePercentile;
+    private int hedgeDefaultDelay;
+    private boolean shortCircuitReads;
+    private int readBufferSize;
+    private int readAheadChunks;
+    private boolean overwriteOutputFile;
+    private int erasureCodingDataShards;
+    private int erasureCodingParityShards;
+    private int poolMaxIdlePerNode;
+    private int poolIdleTimeout;
+    private boolean resumeTransfers;
+    private String stateDirectory;
+
+    public DfsClientConfig() {
+        DFSProperties properties = DFSProperties.getInstance();
+        chunkSize = properties.getChunkSize();
+        parallelDownloads = properties.getClientParallelDownloads();
+        parallelUploads = properties.getClientParallelUploads();
+        listPageSize = properties.getListPageSize();
+        locationCacheSize = properties.getClientLocationCacheSize();
+        hedgePercentile = properties.getClientHedgePercentile();
+        hedgeDefaultDelay = properties.getClientHedgeDefaultDelay();
+        shortCircuitReads = properties.isClientShortCircuitReads();
+        readBufferSize = properties.getClientReadBufferSize();
+        readAheadChunks = properties.getClientReadAheadChunks();
+        overwriteOutputFile = properties.isOverwriteOutputFile();
+        erasureCodingDataShards = properties.getErasureCodingDataShards();
+        erasureCodingParityShards = properties.getErasureCodingParityShards();
+        poolMaxIdlePerNode = properties.getClientPoolMaxIdlePerNode();
+        poolIdleTimeout = properties.getClientPoolIdleTimeout();
+        resumeTransfers = properties.isClientResumeTransfers();
+        stateDirectory = properties.getClientStateDir();
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Size of the chunks of uploaded files.
+     */
+    public DfsClientConfig setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getParallelDownloads() {
+        return parallelDownloads;
+    }
+
+    /**
+     * Chunks downloaded at the same time, by all the downloads of the client.
+     */
+    public DfsClientConfig setParallelDownloads(int parallelDownloads) {
+        this.parallelDownloads = parallelDownloads;
+        return this;
+    }
+
+    public int getParallelUploads() {
+        return parallelUploads;
+    }
+
+    /**
+     * Chunks uploaded at the same time when uploading a directory.
+     */
+    public DfsClientConfig setParallelUploads(int parallelUploads) {
+        this.parallelUploads = parallelUploads;
+        return this;
+    }
+
+    public int getListPageSize() {
+        return listPageSize;
+    }
+
+    public DfsClientConfig setListPageSize(int listPageSize) {
+        this.listPageSize = listPageSize;
+        return this;
+    }
+
+    public int getLocationCacheSize() {
+        return locationCacheSize;
+    }
+
+    /**
+     * Files whose chunk locations are remembered.
+     */
+    public DfsClientConfig setLocationCacheSize(int locationCacheSize) {
+        this.locationCacheSize = locationCacheSize;
+        return this;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Percentile of chunk download times after which another replica is asked too.
+     */
+    public DfsClientConfig setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    public int getHedgeDefaultDelay() {
+        return hedgeDefaultDelay;
+    }
+
+    /**
+     * Milliseconds after which another replica is asked too, until enough downloads were timed.
+     */
+    public DfsClientConfig setHedgeDefaultDelay(int hedgeDefaultDelay) {
+        this.hedgeDefaultDelay = hedgeDefaultDelay;
+        return this;
+    }
+
+    public boolean isShortCircuitReads() {
+        return shortCircuitReads;
+    }
+
+    /**
+     * Read chunks of storage nodes running on this host straight from their disk.
+     */
+    public DfsClientConfig setShortCircuitReads(boolean shortCircuitReads) {
+        this.shortCircuitReads = shortCircuitReads;
+        return this;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Bytes asked from storage nodes at once by sequential reads of a {@link DFSInputStream}.
+     */
+    public DfsClientConfig setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+        return this;
+    }
+
+    public int getReadAheadChunks() {
+        return readAheadChunks;
+    }
+
+    /**
+     * Chunks downloaded ahead of a stream opened for streaming.
+     */
+    public DfsClientConfig setReadAheadChunks(int readAheadChunks) {
+        this.readAheadChunks = readAheadChunks;
+        return this;
+    }
+
+    public boolean isOverwriteOutputFile() {
+        return overwriteOutputFile;
+    }
+
+    /**
+     * Downloads may replace existing local files.
+     */
+    public DfsClientConfig setOverwriteOutputFile(boolean overwriteOutputFile) {
+        this.overwriteOutputFile = overwriteOutputFile;
+        return this;
+    }
+
+    public int getErasureCodingDataShards() {
+        return erasureCodingDataShards;
+    }
+
+    public DfsClientConfig setErasureCodingDataShards(int erasureCodingDataShards) {
+        this.erasureCodingDataShards = erasureCodingDataShards;
+        return this;
+    }
+
+    public int getErasureCodingParityShards() {
+        return erasureCodingParityShards;
+    }
+
+    public DfsClientConfig setErasureCodingParityShards(int erasureCodingParityShards) {
+        this.erasureCodingParityShards = erasureCodingParityShards;
+        return this;
+    }
+
+    public int getPoolMaxIdlePerNode() {
+        return poolMaxIdlePerNode;
+    }
+
+    /**
+     * Connections kept open to the controller and to every storage node, when not used.
+     */
+    public DfsClientConfig setPoolMaxIdlePerNode(int poolMaxIdlePerNode) {
+        this.poolMaxIdlePerNode = poolMaxIdlePerNode;
+        return this;
+    }
+
+    public int getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    /**
+     * Milliseconds after which a connection that is not used is closed.
+     */
+    public DfsClientConfig setPoolIdleTimeout(int poolIdleTimeout) {
+        this.poolIdleTimeout = poolIdleTimeout;
+        return this;
+    }
+
+    public boolean isResumeTransfers() {
+        return resumeTransfers;
+    }
+
+    /**
+     * Keep a journal of the chunks of every upload and download of a local file, so that
+     * trying again after a failure only transfers the chunks that are missing.
+     */
+    public DfsClientConfig setResumeTransfers(boolean resumeTransfers) {
+        this.resumeTransfers = resumeTransfers;
+        return this;
+    }
+
+    public String getStateDirectory() {
+        return stateDirectory;
+    }
+
+    /**
+     * Directory the client keeps its own files in, e.g. the journals of transfers.
+     */
+    public DfsClientConfig setStateDirectory(String stateDirectory) {
+        this.stateDirectory = stateDirectory;
+        return this;
+    }
+}
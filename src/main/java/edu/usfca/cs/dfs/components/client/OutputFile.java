@@ -0,0 +1,289 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.exceptions.ChecksumException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * A file being downloaded. Chunks are verified and written straight at their position,
+ * sequenceNo * chunkSize, or the offset of the chunk if chunks have different sizes, in
+ * whatever order they arrive: the file is written only once, with no chunk files on the
+ * side. Thread-safe.
+ * <p>
+ * Chunks are written to path.part, made as big as all its chunks would be if they were
+ * full, which is cut to its actual size and renamed to the path once the last chunk is in:
+ * a download that fails never leaves a file that looks complete, nor replaces the file
+ * that was there. Chunks written can be journaled, to resume a download that failed with
+ * the chunks that are already in the .part file.
+ */
+class OutputFile implements Closeable {
+
+    private final Path path;
+    private final Path partPath;
+    private final boolean overwrite;
+    private final long chunkSize;
+    private final int chunkCount;
+    // Where every chunk starts, then the file size, if chunks have different sizes
+    private final long[] chunkOffsets;
+    private final FileChannel channel;
+    private final BitSet written = new BitSet();
+    private long lastChunkLength = -1;
+    private TransferJournal journal;
+
+    OutputFile(Path path, long chunkSize, int chunkCount) throws IOException {
+        this(path, chunkSize, chunkCount, DFSProperties.getInstance().isOverwriteOutputFile());
+    }
+
+    /**
+     * @param overwrite replace the file if it exists, instead of failing. A .part file
+     *                  left by a previous download is always replaced.
+     */
+    OutputFile(Path path, long chunkSize, int chunkCount, boolean overwrite) throws IOException {
+        this(path, chunkSize, chunkCount, null, overwrite, false);
+    }
+
+    /**
+     * A file whose chunks have different sizes, e.g. a deduplicated file.
+     *
+     * @param chunkOffsets where every chunk starts, followed by the size of the file
+     */
+    OutputFile(Path path, long[] chunkOffsets, boolean overwrite) throws IOException {
+        this(path, 0, chunkOffsets.length - 1, chunkOffsets, overwrite, false);
+    }
+
+    private OutputFile(Path path, long chunkSize, int chunkCount, long[] chunkOffsets, boolean overwrite, boolean resume) throws IOException {
+        this.path = path;
+        this.partPath = getPartPath(path);
+        this.overwrite = overwrite;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.chunkOffsets = chunkOffsets;
+
+        File file = path.toFile();
+        if (file.exists() && file.length() != 0 && !overwrite) {
+            throw new IllegalStateException("File already exists.");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(partPath.toFile(), "rw")) {
+            if (!resume) {
+                raf.setLength(0);
+            }
+            raf.setLength(chunkOffsets == null ? chunkSize * chunkCount : chunkOffsets[chunkCount]);
+        }
+        this.channel = FileChannel.open(partPath, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    /**
+     * Open the .part file of a download that failed, keeping what is in it. Chunks it has
+     * must be marked with {@link #resumeChunk}.
+     */
+    static OutputFile resume(Path path, long chunkSize, int chunkCount, boolean overwrite) throws IOException {
+        return new OutputFile(path, chunkSize, chunkCount, null, overwrite, true);
+    }
+
+    static OutputFile resume(Path path, long[] chunkOffsets, boolean overwrite) throws IOException {
+        return new OutputFile(path, 0, chunkOffsets.length - 1, chunkOffsets, overwrite, true);
+    }
+
+    /**
+     * Returns the file chunks are written to until the download is complete.
+     */
+    static Path getPartPath(Path path) {
+        return Paths.get(path + ".part");
+    }
+
+    /**
+     * Journal every chunk written from now on.
+     */
+    synchronized void setJournal(TransferJournal journal) {
+        this.journal = journal;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    Path getPartPath() {
+        return partPath;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    synchronized boolean hasChunk(int sequenceNo) {
+        return written.get(sequenceNo);
+    }
+
+    /**
+     * Verify a chunk, and write it at its position.
+     *
+     * @throws ChecksumException if the data doesn't match the checksum
+     */
+    void writeChunk(int sequenceNo, ByteBuffer data, String checksum) throws IOException {
+        checkLength(sequenceNo, data.remaining());
+        String actualChecksum = Utils.md5sum(data.duplicate());
+        if (!actualChecksum.equals(checksum)) {
+            throw new ChecksumException(new File(path + "-chunk" + sequenceNo), checksum, actualChecksum);
+        }
+
+        long length = data.remaining();
+        long position = getPosition(sequenceNo);
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        setWritten(sequenceNo, length);
+        journal(sequenceNo, length, checksum);
+    }
+
+    /**
+     * Verify a chunk file, and copy it at its position without going through the heap.
+     *
+     * @throws ChecksumException if the file doesn't match the checksum
+     */
+    void transferChunk(int sequenceNo, Path chunkFile, String checksum) throws IOException {
+        try (FileChannel source = FileChannel.open(chunkFile, StandardOpenOption.READ)) {
+            long length = source.size();
+            checkLength(sequenceNo, length);
+            String actualChecksum = Utils.md5sum(source.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            if (!actualChecksum.equals(checksum)) {
+                throw new ChecksumException(chunkFile.toFile(), checksum, actualChecksum);
+            }
+
+            long transferred = 0;
+            while (transferred < length) {
+                transferred += channel.transferFrom(source.position(transferred), getPosition(sequenceNo) + transferred, length - transferred);
+            }
+            setWritten(sequenceNo, length);
+            journal(sequenceNo, length, checksum);
+        }
+    }
+
+    /**
+     * Take a chunk that is already in the file, from a previous download, if it is intact.
+     *
+     * @return false if the chunk must be downloaded again
+     */
+    boolean resumeChunk(int sequenceNo, long length, String checksum) throws IOException {
+        if (sequenceNo < 0 || sequenceNo >= chunkCount || !isValidLength(sequenceNo, length)) {
+            return false;
+        }
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, getPosition(sequenceNo), length);
+        if (!Utils.md5sum(data).equals(checksum)) {
+            return false;
+        }
+        setWritten(sequenceNo, length);
+        return true;
+    }
+
+    /**
+     * Read back a chunk that was written.
+     */
+    byte[] readChunk(int sequenceNo) throws IOException {
+        long length;
+        synchronized (this) {
+            if (!written.get(sequenceNo)) {
+                throw new IllegalArgumentException("Chunk " + sequenceNo + " hasn't been written");
+            }
+            if (chunkOffsets != null) {
+                length = chunkOffsets[sequenceNo + 1] - chunkOffsets[sequenceNo];
+            } else {
+                length = sequenceNo == chunkCount - 1 ? lastChunkLength : chunkSize;
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        long position = getPosition(sequenceNo);
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            position += read;
+        }
+        return data.array();
+    }
+
+    /**
+     * Cut the file to its actual size, once every chunk is written, and rename it to its path.
+     *
+     * @throws IllegalStateException if chunks are missing
+     */
+    synchronized void complete() throws IOException {
+        if (written.cardinality() != chunkCount) {
+            throw new IllegalStateException("Only " + written.cardinality() + " chunks of " + chunkCount + " were downloaded");
+        }
+        if (chunkOffsets == null) {
+            channel.truncate(chunkCount == 0 ? 0 : (chunkCount - 1) * chunkSize + lastChunkLength);
+        }
+        channel.force(false);
+        channel.close();
+        // Created in the meantime
+        if (!overwrite && path.toFile().length() != 0) {
+            throw new IllegalStateException("File already exists.");
+        }
+        Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private long getPosition(int sequenceNo) {
+        return chunkOffsets == null ? sequenceNo * chunkSize : chunkOffsets[sequenceNo];
+    }
+
+    private void checkLength(int sequenceNo, long length) {
+        if (sequenceNo < 0 || sequenceNo >= chunkCount) {
+            throw new IllegalArgumentException("No chunk " + sequenceNo + " in a file of " + chunkCount + " chunks");
+        }
+        if (!isValidLength(sequenceNo, length)) {
+            if (chunkOffsets != null) {
+                throw new IllegalStateException("Chunk " + sequenceNo + " is " + length + " bytes long, expected "
+                        + (chunkOffsets[sequenceNo + 1] - chunkOffsets[sequenceNo]));
+            }
+            throw new IllegalStateException("Chunk " + sequenceNo + " is " + length + " bytes long, expected "
+                    + (sequenceNo < chunkCount - 1 ? "" : "at most ") + chunkSize);
+        }
+    }
+
+    // Chunks all have the same size, but the last one, unless their offsets are given
+    private boolean isValidLength(int sequenceNo, long length) {
+        if (chunkOffsets != null) {
+            return length == chunkOffsets[sequenceNo + 1] - chunkOffsets[sequenceNo];
+        }
+        return length <= chunkSize && (sequenceNo == chunkCount - 1 || length == chunkSize);
+    }
+
+    private void journal(int sequenceNo, long length, String checksum) throws IOException {
+        TransferJournal journal;
+        synchronized (this) {
+            journal = this.journal;
+        }
+        if (journal != null) {
+            journal.chunkTransferred(sequenceNo, length, checksum);
+        }
+    }
+
+    private synchronized void setWritten(int sequenceNo, long length) {
+        written.set(sequenceNo);
+        if (sequenceNo == chunkCount - 1) {
+            lastChunkLength = length;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+
+import java.util.*;
+
+/**
+ * How long chunk downloads take, as seen by this client.
+ * <p>
+ * Every storage node gets an exponentially weighted moving average of its download times,
+ * used to try the fastest replica first. The download times of all storage nodes are also
+ * kept in a sliding window: a download that takes longer than the given percentile of the
+ * window is late, and is worth a hedged request to another replica.
+ * Thread-safe.
+ */
+class ReplicaLatencies {
+
+    // Weight of the latest download time in the average
+    private static final double ALPHA = 0.2;
+    private static final int WINDOW_SIZE = 200;
+    // Below that, the percentile says little
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long defaultHedgeDelay;
+    private final Map<ComponentAddress, Double> averages = new HashMap<>();
+    private final long[] window = new long[WINDOW_SIZE];
+    private int sampleCount = 0;
+
+    /**
+     * @param percentile        percentile of download times after which a download is late, e.g. 95
+     * @param defaultHedgeDelay delay in milliseconds until there are enough download times
+     */
+    ReplicaLatencies(double percentile, long defaultHedgeDelay) {
+        this.percentile = percentile;
+        this.defaultHedgeDelay = defaultHedgeDelay;
+    }
+
+    synchronized void record(ComponentAddress storageNode, long millis) {
+        Double average = averages.get(storageNode);
+        averages.put(storageNode, average == null ? millis : ALPHA * millis + (1 - ALPHA) * average);
+        window[sampleCount % WINDOW_SIZE] = millis;
+        sampleCount++;
+    }
+
+    /**
+     * A download failed: rank the storage node behind the others for a while,
+     * without polluting the download times of the window.
+     */
+    synchronized void recordFailure(ComponentAddress storageNode) {
+        Double average = averages.get(storageNode);
+        double penalty = 2 * Math.max(getHedgeDelay(), average == null ? 0 : average);
+        averages.put(storageNode, penalty);
+    }
+
+    /**
+     * Returns the average download time of a storage node, or -1 if unknown.
+     */
+    synchronized double getLatency(ComponentAddress storageNode) {
+        Double average = averages.get(storageNode);
+        return average == null ? -1 : average;
+    }
+
+    /**
+     * Returns storage nodes sorted by average download time, fastest first. Unknown storage
+     * nodes are assumed to be as fast as the average of known ones, so they get tried too.
+     * Storage nodes that are just as fast keep their order.
+     */
+    synchronized List<ComponentAddress> rank(List<ComponentAddress> storageNodes) {
+        double sum = 0;
+        for (double average : averages.values()) {
+            sum += average;
+        }
+        final double unknown = averages.isEmpty() ? 0 : sum / averages.size();
+
+        List<ComponentAddress> result = new ArrayList<>(storageNodes);
+        final Map<ComponentAddress, Double> latencies = new HashMap<>();
+        for (ComponentAddress storageNode : result) {
+            Double average = averages.get(storageNode);
+            latencies.put(storageNode, average == null ? unknown : average);
+        }
+        Collections.sort(result, new Comparator<ComponentAddress>() {
+            @Override
+            public int compare(ComponentAddress o1, ComponentAddress o2) {
+                return Double.compare(latencies.get(o1), latencies.get(o2));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns how long to wait for a download before sending a hedged request, in milliseconds.
+     */
+    synchronized long getHedgeDelay() {
+        int n = Math.min(sampleCount, WINDOW_SIZE);
+        if (n < MIN_SAMPLES) {
+            return defaultHedgeDelay;
+        }
+        long[] samples = Arrays.copyOf(window, n);
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * n) - 1;
+        return Math.max(1, samples[Math.max(0, Math.min(n - 1, index))]);
+    }
+}
@@ -0,0 +1,151 @@
+package edu.usfca.cs.dfs.components.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.messages.Messages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Progress of an upload or a download, kept in the state directory of the client so that a
+ * transfer that failed halfway, or was killed, can be resumed instead of starting over.
+ * Journals are named after the local file, but never written next to it: the directory of
+ * the file may be read-only, and is the user's.
+ * <p>
+ * The journal is a sequence of delimited {@link Messages.TransferRecord}: the attributes of
+ * the file, then a record for every chunk transferred, with its checksum. A journal for
+ * other attributes, e.g. because the file changed in between, is ignored: attributes have
+ * a version that is new for every upload, so even a file uploaded again with the same size
+ * doesn't match. Records are
+ * flushed one by one, like the controller WAL: chunks written just before a power failure
+ * may be journaled but not on disk, so the checksum of journaled chunks must be verified
+ * before skipping them. Thread-safe.
+ */
+class TransferJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferJournal.class);
+
+    private static final String SUFFIX = ".dfs-journal";
+
+    private final OutputStream outputStream;
+
+    private TransferJournal(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        this.outputStream = new BufferedOutputStream(new FileOutputStream(path.toFile()));
+    }
+
+    /**
+     * Returns where the journal of a transfer of a local file is kept.
+     *
+     * @param stateDirectory state directory of the client
+     * @param transfer       "upload" or "download", so that both can be journaled at once
+     * @param localFile      file uploaded from or downloaded into
+     */
+    static Path getPath(Path stateDirectory, String transfer, Path localFile) {
+        byte[] absolutePath = localFile.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        return stateDirectory.resolve("journals").resolve(
+                transfer + "-" + Utils.sha256sum(absolutePath, 0, absolutePath.length) + SUFFIX);
+    }
+
+    /**
+     * Returns the attributes of the file a journal is about.
+     *
+     * @param path journal, see {@link #getPath}
+     * @return attributes of the file, or null if there is no journal
+     */
+    static Messages.FileAttributes readAttributes(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (InputStream is = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+            Messages.TransferRecord first = Messages.TransferRecord.parseDelimitedFrom(is);
+            return first == null ? null : first.getAttributes();
+        } catch (InvalidProtocolBufferException e) {
+            logger.warn("Ignoring truncated journal " + path);
+            return null;
+        }
+    }
+
+    /**
+     * Read the journal of a previous transfer of a local file.
+     *
+     * @param path       journal, see {@link #getPath}
+     * @param attributes attributes of the file being transferred now
+     * @return chunks transferred, by sequence number: none if there is no journal,
+     * or if it is about other attributes
+     */
+    static Map<Integer, Messages.TransferRecord.TransferredChunk> read(Path path, Messages.FileAttributes attributes) throws IOException {
+        Map<Integer, Messages.TransferRecord.TransferredChunk> chunks = new TreeMap<>();
+        if (!Files.exists(path)) {
+            return chunks;
+        }
+
+        try (InputStream is = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+            Messages.TransferRecord first = Messages.TransferRecord.parseDelimitedFrom(is);
+            if (first == null || !first.getAttributes().equals(attributes)) {
+                logger.info("Ignoring the journal of another version of " + attributes.getFilename());
+                return chunks;
+            }
+            while (true) {
+                Messages.TransferRecord record = Messages.TransferRecord.parseDelimitedFrom(is);
+                if (record == null) {
+                    break;
+                }
+                chunks.put(record.getChunk().getSequenceNo(), record.getChunk());
+            }
+        } catch (InvalidProtocolBufferException e) {
+            // Client probably died while writing the last record
+            logger.warn("Ignoring truncated record at the end of " + path);
+        }
+        return chunks;
+    }
+
+    /**
+     * Start a new journal, replacing the previous one.
+     *
+     * @param path   journal, see {@link #getPath}
+     * @param chunks chunks already transferred
+     */
+    static TransferJournal create(Path path, Messages.FileAttributes attributes,
+                                  Iterable<Messages.TransferRecord.TransferredChunk> chunks) throws IOException {
+        TransferJournal journal = new TransferJournal(path);
+        journal.write(Messages.TransferRecord.newBuilder().setAttributes(attributes).build());
+        for (Messages.TransferRecord.TransferredChunk chunk : chunks) {
+            journal.write(Messages.TransferRecord.newBuilder().setChunk(chunk).build());
+        }
+        return journal;
+    }
+
+    static void delete(Path path) throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    void chunkTransferred(int sequenceNo, long length, String checksum) throws IOException {
+        write(Messages.TransferRecord.newBuilder()
+                .setChunk(
+                        Messages.TransferRecord.TransferredChunk.newBuilder()
+                                .setSequenceNo(sequenceNo)
+                                .setLength(length)
+                                .setChecksum(checksum)
+                                .build()
+                )
+                .build());
+    }
+
+    private synchronized void write(Messages.TransferRecord record) throws IOException {
+        record.writeDelimitedTo(outputStream);
+        outputStream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        outputStream.close();
+    }
+}
@@ -0,0 +1,76 @@
+package edu.usfca.cs.dfs.components.client;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a transfer of many files, as a whole: files and bytes transferred so far,
+ * out of how many, and how fast. Chunks of many files are transferred at the same time,
+ * so it is updated by many threads, and printed every few seconds by whichever updates
+ * it then.
+ */
+public class TransferProgress {
+
+    private final PrintStream out;
+    private final long reportIntervalNanos;
+    private final long start = System.nanoTime();
+    private long lastReport = start;
+
+    private int totalFiles;
+    private long totalBytes;
+    private int transferredFiles;
+    private int failedFiles;
+    private long transferredBytes;
+
+    /**
+     * @param out            where to print progress, or null not to print it
+     * @param reportInterval milliseconds between two reports
+     */
+    public TransferProgress(PrintStream out, long reportInterval) {
+        this.out = out;
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportInterval);
+    }
+
+    synchronized void addFile(long size) {
+        totalFiles++;
+        totalBytes += size;
+    }
+
+    synchronized void bytesTransferred(long count) {
+        transferredBytes += count;
+        long now = System.nanoTime();
+        if (out != null && now - lastReport >= reportIntervalNanos) {
+            lastReport = now;
+            out.println(this);
+        }
+    }
+
+    synchronized void fileTransferred() {
+        transferredFiles++;
+    }
+
+    synchronized void fileFailed() {
+        failedFiles++;
+    }
+
+    public synchronized int getTransferredFiles() {
+        return transferredFiles;
+    }
+
+    public synchronized int getFailedFiles() {
+        return failedFiles;
+    }
+
+    public synchronized long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        return String.format(Locale.ROOT, "%d of %d files%s, %.1f of %.1f MB, %.1f MB/s",
+                transferredFiles, totalFiles, failedFiles > 0 ? " (" + failedFiles + " failed)" : "",
+                transferredBytes / 1e6, totalBytes / 1e6, transferredBytes / 1e6 / seconds);
+    }
+}
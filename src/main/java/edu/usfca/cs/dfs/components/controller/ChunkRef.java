@@ -2,22 +2,26 @@ package edu.usfca.cs.dfs.components.controller;
 
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 
+import java.util.Collections;
 import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * A ChunkRef (full name: File Chunk Reference) is used by the controller, as an object
  * that refers to a Chunk object stored on a storage node.
+ * <p>
+ * ChunkRefs are not kept in the {@link FileTable}, they are created on demand and
+ * the replica locations reflect the file table at the time they were created.
  */
 public class ChunkRef implements Comparable<ChunkRef> {
     private final String filename;
     private final int sequenceNo;
-    private Set<ComponentAddress> replicaLocations = new TreeSet<>();
+    private final Set<ComponentAddress> replicaLocations;
 
-    public ChunkRef(String filename, int sequenceNo) {
+    public ChunkRef(String filename, int sequenceNo, Set<ComponentAddress> replicaLocations) {
         this.filename = filename;
         this.sequenceNo = sequenceNo;
+        this.replicaLocations = Collections.unmodifiableSet(replicaLocations);
     }
 
     public int getReplicaCount() {
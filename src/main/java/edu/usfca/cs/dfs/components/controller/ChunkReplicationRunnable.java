@@ -2,19 +2,21 @@ package edu.usfca.cs.dfs.components.controller;
 
 import edu.usfca.cs.dfs.DFSProperties;
 import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.erasure.StripeLayout;
 import edu.usfca.cs.dfs.messages.Messages;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Periodically checks if chunks need to be replicated, and if so orders
  * storage nodes to send chunks to other nodes.
+ * Lost chunks of erasure coded files are rebuilt by a storage node from the
+ * rest of their stripe.
+ * Chunks that have more replicas than needed are trimmed, starting with
+ * the replicas on the storage nodes that have the most chunks.
  */
 public class ChunkReplicationRunnable implements Runnable {
 
@@ -22,11 +24,13 @@ public class ChunkReplicationRunnable implements Runnable {
     private final Set<ComponentAddress> storageNodes;
     private final Map<ComponentAddress, MessageFifoQueue> messageQueues;
     private final FileTable fileTable;
+    private final StorageUsage storageUsage;
 
-    public ChunkReplicationRunnable(Set<ComponentAddress> onlineStorageNodes, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable) {
+    public ChunkReplicationRunnable(Set<ComponentAddress> onlineStorageNodes, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable, StorageUsage storageUsage) {
         this.storageNodes = onlineStorageNodes;
         this.messageQueues = messageQueues;
         this.fileTable = fileTable;
+        this.storageUsage = storageUsage;
     }
 
     @Override
@@ -39,6 +43,16 @@ public class ChunkReplicationRunnable implements Runnable {
                     orderMoreReplicas(underReplicatedChunks);
                 }
 
+                List<ChunkRef> lostChunks = fileTable.getLostChunks();
+                if (!lostChunks.isEmpty()) {
+                    orderReconstructions(lostChunks);
+                }
+
+                List<ChunkRef> overReplicatedChunks = fileTable.getOverReplicatedChunks();
+                if (!overReplicatedChunks.isEmpty()) {
+                    trimReplicas(overReplicatedChunks);
+                }
+
                 Thread.sleep(checkPeriod);
             }
         } catch (InterruptedException e) {
@@ -48,6 +62,7 @@ public class ChunkReplicationRunnable implements Runnable {
 
     private void orderMoreReplicas(List<ChunkRef> underReplicatedChunks) {
         int minReplicas = DFSProperties.getInstance().getMinReplicas();
+        long chunkSize = DFSProperties.getInstance().getChunkSize();
         for (ChunkRef chunk : underReplicatedChunks) {
             Set<ComponentAddress> unusedStorageNodes = new HashSet<>(storageNodes);
             unusedStorageNodes.removeAll(chunk.getReplicaLocations());
@@ -57,15 +72,24 @@ public class ChunkReplicationRunnable implements Runnable {
                 return;
             }
             int missingReplicas = minReplicas - chunk.getReplicaCount();
-            Set<ComponentAddress> additionalNodes = Utils.chooseNrandomOrMin(missingReplicas, unusedStorageNodes);
+            // The emptiest storage nodes first
+            Set<ComponentAddress> additionalNodes = storageUsage.chooseStorageNodes(missingReplicas, unusedStorageNodes, chunkSize);
             if (additionalNodes.size() != missingReplicas) {
                 logger.warn(chunk + ": " + missingReplicas + " more replica(s) needed, but as of now we can only get " + additionalNodes.size() + " more.");
 
             }
 
+            // Replicas recovered from the metadata log may be on nodes that haven't reconnected yet
+            Set<ComponentAddress> senderNodes = new HashSet<>(chunk.getReplicaLocations());
+            senderNodes.retainAll(messageQueues.keySet());
+            if (senderNodes.isEmpty()) {
+                logger.debug("No connected storage node has " + chunk + " yet.");
+                continue;
+            }
+
             for (ComponentAddress additionalNode : additionalNodes) {
                 Messages.MessageWrapper msg = buildOrderChunkMsg(chunk, additionalNode);
-                ComponentAddress senderNode = Utils.chooseNrandomOrMin(1, chunk.getReplicaLocations()).iterator().next();
+                ComponentAddress senderNode = Utils.chooseNrandomOrMin(1, senderNodes).iterator().next();
                 logger.debug("Telling " + senderNode + " to transfer " + chunk + " to " + additionalNode);
                 messageQueues.get(senderNode).queue(msg);
             }
@@ -73,6 +97,106 @@ public class ChunkReplicationRunnable implements Runnable {
 
     }
 
+    private void orderReconstructions(List<ChunkRef> lostChunks) {
+        Set<ComponentAddress> connectedNodes = new HashSet<>(storageNodes);
+        connectedNodes.retainAll(messageQueues.keySet());
+        if (connectedNodes.isEmpty()) {
+            return;
+        }
+
+        for (ChunkRef chunk : lostChunks) {
+            Messages.DownloadFileResponse file = fileTable.getFileMsg(chunk.getFilename());
+            if (file == null) {
+                continue;
+            }
+
+            // Rebuild it on a storage node that has no other chunk of the stripe, if possible
+            Set<ComponentAddress> candidates = new HashSet<>(connectedNodes);
+            candidates.removeAll(getStripeNodes(file, chunk.getSequenceNo()));
+            if (candidates.isEmpty()) {
+                logger.warn("Every storage node has a chunk of the stripe of " + chunk + ", rebuilding it next to one of them.");
+                candidates = connectedNodes;
+            }
+
+            ComponentAddress storageNode = Utils.chooseNrandomOrMin(1, candidates).iterator().next();
+            logger.debug("Telling " + storageNode + " to rebuild lost " + chunk);
+            messageQueues.get(storageNode).queue(buildOrderReconstructChunkMsg(chunk, file));
+        }
+    }
+
+    private static Set<ComponentAddress> getStripeNodes(Messages.DownloadFileResponse file, int sequenceNo) {
+        StripeLayout layout = new StripeLayout(file.getAttributes());
+        int stripe = layout.getStripe(sequenceNo);
+        Set<ComponentAddress> stripeNodes = new HashSet<>();
+        for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : file.getChunkLocationsList()) {
+            if (layout.getStripe(chunkLocation.getSequenceNo()) != stripe) {
+                continue;
+            }
+            for (Messages.StorageNode storageNode : chunkLocation.getStorageNodesList()) {
+                stripeNodes.add(new ComponentAddress(storageNode.getHost(), storageNode.getPort()));
+            }
+        }
+        return stripeNodes;
+    }
+
+    private Messages.MessageWrapper buildOrderReconstructChunkMsg(ChunkRef chunk, Messages.DownloadFileResponse file) {
+        return Messages.MessageWrapper.newBuilder()
+                .setOrderReconstructChunkMsg(
+                        Messages.OrderReconstructChunk.newBuilder()
+                                .setFileChunk(
+                                        Messages.FileChunk.newBuilder()
+                                                .setFilename(chunk.getFilename())
+                                                .setSequenceNo(chunk.getSequenceNo())
+                                                .build()
+                                )
+                                .setFile(file)
+                                .build()
+                )
+                .build();
+    }
+
+    private void trimReplicas(List<ChunkRef> overReplicatedChunks) {
+        // Only replicas on connected storage nodes can be deleted
+        final Map<ComponentAddress, Integer> replicaCounts = fileTable.getReplicaCounts(new HashSet<>(messageQueues.keySet()));
+
+        for (ChunkRef chunk : overReplicatedChunks) {
+            List<ComponentAddress> candidates = new ArrayList<>(chunk.getReplicaLocations());
+            candidates.retainAll(replicaCounts.keySet());
+            // Fullest storage nodes first
+            Collections.sort(candidates, new Comparator<ComponentAddress>() {
+                @Override
+                public int compare(ComponentAddress o1, ComponentAddress o2) {
+                    return Integer.compare(replicaCounts.get(o2), replicaCounts.get(o1));
+                }
+            });
+
+            // The file table refuses once the chunk is down to the replicas it needs
+            for (ComponentAddress storageNode : candidates) {
+                MessageFifoQueue queue = messageQueues.get(storageNode);
+                if (queue != null && fileTable.removeExtraReplica(chunk.getFilename(), chunk.getSequenceNo(), storageNode)) {
+                    logger.debug(chunk + " has extra replicas. Telling " + storageNode + " to delete it.");
+                    queue.queue(buildDeleteChunkMsg(chunk));
+                    replicaCounts.put(storageNode, replicaCounts.get(storageNode) - 1);
+                }
+            }
+        }
+    }
+
+    private Messages.MessageWrapper buildDeleteChunkMsg(ChunkRef chunk) {
+        return Messages.MessageWrapper.newBuilder()
+                .setDeleteChunkMsg(
+                        Messages.DeleteChunk.newBuilder()
+                                .setFileChunk(
+                                        Messages.FileChunk.newBuilder()
+                                                .setFilename(chunk.getFilename())
+                                                .setSequenceNo(chunk.getSequenceNo())
+                                                .build()
+                                )
+                                .build()
+                )
+                .build();
+    }
+
     private Messages.MessageWrapper buildOrderChunkMsg(ChunkRef chunk, ComponentAddress additionalNode) {
         return Messages.MessageWrapper.newBuilder()
                 .setOrderSendChunkMsg(
@@ -0,0 +1,71 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Periodically deletes the content chunks of deduplicated files that no file has referenced
+ * for content-chunk-grace-period. They are not deleted as soon as their last reference goes
+ * away: a client may be uploading the same content for another file at that time.
+ */
+public class ContentChunkCollectorRunnable implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentChunkCollectorRunnable.class);
+    private final Map<ComponentAddress, MessageFifoQueue> messageQueues;
+    private final FileTable fileTable;
+
+    public ContentChunkCollectorRunnable(Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable) {
+        this.messageQueues = messageQueues;
+        this.fileTable = fileTable;
+    }
+
+    @Override
+    public void run() {
+        int gracePeriod = DFSProperties.getInstance().getContentChunkGracePeriod();
+        try {
+            while (true) {
+                // A chunk waits at most twice the grace period
+                Thread.sleep(gracePeriod);
+                collect(gracePeriod);
+            }
+        } catch (InterruptedException e) {
+            logger.error("Thread interrupted", e);
+        }
+    }
+
+    private void collect(int gracePeriod) {
+        for (String chunkFilename : fileTable.getUnreferencedContentChunks(gracePeriod)) {
+            List<ChunkRef> chunks = fileTable.collectContentChunk(chunkFilename, gracePeriod);
+            for (ChunkRef chunk : chunks) {
+                for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
+                    MessageFifoQueue queue = messageQueues.get(storageNode);
+                    if (queue == null) {
+                        // Offline: its replicas of deleted files are refused when it comes back
+                        continue;
+                    }
+                    logger.debug("Deleting unreferenced " + chunk + " from " + storageNode);
+                    queue.queue(buildDeleteChunkMsg(chunk));
+                }
+            }
+        }
+    }
+
+    private static Messages.MessageWrapper buildDeleteChunkMsg(ChunkRef chunk) {
+        return Messages.MessageWrapper.newBuilder()
+                .setDeleteChunkMsg(
+                        Messages.DeleteChunk.newBuilder()
+                                .setFileChunk(Messages.FileChunk.newBuilder()
+                                        .setFilename(chunk.getFilename())
+                                        .setSequenceNo(chunk.getSequenceNo())
+                                        .build())
+                                .build()
+                )
+                .build();
+    }
+}
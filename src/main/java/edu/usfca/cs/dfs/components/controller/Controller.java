@@ -1,12 +1,15 @@
 package edu.usfca.cs.dfs.components.controller;
 
+import edu.usfca.cs.dfs.DFSProperties;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Controller {
 
@@ -14,16 +17,23 @@ public class Controller {
 
     private final int port;
 
-    private final Set<ComponentAddress> onlineStorageNodes = new HashSet<>();
+    private final Set<ComponentAddress> onlineStorageNodes =
+            Collections.newSetFromMap(new ConcurrentHashMap<ComponentAddress, Boolean>());
 
-    private final FileTable fileTable = new FileTable();
+    private final FileTable fileTable;
 
-    private final Map<ComponentAddress, MessageFifoQueue> messageQueues = new HashMap<>();
+    // Added and removed by connection threads, read by every other thread
+    private final Map<ComponentAddress, MessageFifoQueue> messageQueues = new ConcurrentHashMap<>();
 
-    private final Map<ComponentAddress, Date> heartbeats = new HashMap<>();
+    private final StorageUsage storageUsage = new StorageUsage();
 
-    public Controller(int port) {
+    private final FailureDetector failureDetector = new FailureDetector(
+            DFSProperties.getInstance().getHeartbeatCheckPeriod(),
+            DFSProperties.getInstance().getMaxHeartbeatAge());
+
+    public Controller(int port) throws IOException {
         this.port = port;
+        this.fileTable = new FileTable(new MetadataLog(DFSProperties.getInstance().getControllerMetadataDir()));
     }
 
     public static void main(String[] args) throws Exception {
@@ -40,20 +50,37 @@ public class Controller {
     }
 
     public void start() throws Exception {
+        recover();
+
         ServerSocket serverSocket = new ServerSocket(port);
 
-        new Thread(new ChunkReplicationRunnable(onlineStorageNodes, messageQueues, fileTable)).start();
-        new Thread(new HeartbeatMonitor(onlineStorageNodes, heartbeats, fileTable)).start();
+        new Thread(new MetadataCheckpointRunnable(fileTable)).start();
+        new Thread(new ChunkReplicationRunnable(onlineStorageNodes, messageQueues, fileTable, storageUsage)).start();
+        new Thread(new HeartbeatMonitor(onlineStorageNodes, failureDetector, fileTable, storageUsage)).start();
+        new Thread(new RebalancerRunnable(onlineStorageNodes, messageQueues, fileTable)).start();
+        new Thread(new ContentChunkCollectorRunnable(messageQueues, fileTable)).start();
 
         while (true) {
             Socket socket = serverSocket.accept();
             logger.debug("New connection from " + socket.getRemoteSocketAddress());
             StorageNodeAddressService storageNodeAddressService = new StorageNodeAddressService();
-            new Thread(new MessageProcessor(storageNodeAddressService, onlineStorageNodes, heartbeats, messageQueues, fileTable, socket)).start();
+            new Thread(new MessageProcessor(storageNodeAddressService, onlineStorageNodes, failureDetector, storageUsage, messageQueues, fileTable, socket)).start();
+            new Thread(new MessageSender(storageNodeAddressService, messageQueues, fileTable)).start();
+        }
+    }
 
-            Thread.sleep(1000); // avoid race condition (would have no effect besides warning message)
-            new Thread(new MessageSender(storageNodeAddressService, messageQueues)).start();
+    /**
+     * Restore the file table from the metadata log. Storage nodes are not considered
+     * online until they send a heartbeat, but they are given the usual time to do so
+     * before their replicas are dropped from the file table.
+     */
+    private void recover() throws IOException {
+        logger.info("Recovering metadata...");
+        Set<ComponentAddress> storageNodes = fileTable.recover();
+        for (ComponentAddress storageNode : storageNodes) {
+            failureDetector.heartbeat(storageNode);
         }
+        logger.info("Metadata recovered. Waiting for heartbeats from " + storageNodes.size() + " storage nodes.");
     }
 
 }
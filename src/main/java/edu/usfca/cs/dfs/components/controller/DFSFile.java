@@ -1,37 +1,167 @@
 package edu.usfca.cs.dfs.components.controller;
 
-import java.util.*;
+import edu.usfca.cs.dfs.messages.Messages;
+
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
- * Structure used by the controller to manage the files stored in the DFS
+ * Structure used by the controller to manage the files stored in the DFS.
+ * <p>
+ * To keep the controller memory footprint small, replica locations are stored as
+ * sorted arrays of storage node IDs (see {@link StorageNodeIds}), in an array
+ * indexed by chunk sequence number. A null entry means the chunk is not stored
+ * anywhere. Not thread-safe, only used while holding the {@link FileTable} lock.
  */
 public class DFSFile implements Comparable<DFSFile> {
+    private static final int[][] NO_CHUNKS = new int[0][];
+
     private final String filename;
 
-    private final Map<Integer, ChunkRef> chunks = new HashMap<>();
+    private int[][] replicas = NO_CHUNKS;
+
+    private int chunkCount = 0;
+
+    private long generation = 0;
+
+    // Only for erasure coded files
+    private Messages.FileAttributes attributes;
 
     public DFSFile(String filename) {
         this.filename = filename;
     }
 
-    public SortedSet<ChunkRef> getChunks() {
-        return new TreeSet<>(chunks.values());
+    /**
+     * Returns an upper bound (exclusive) for the sequence numbers of the chunks of this file.
+     *
+     * @return highest sequence number + 1
+     */
+    public int getSequenceNoLimit() {
+        return replicas.length;
     }
 
-    public ChunkRef getChunk(int sequenceNo) {
-        return chunks.get(sequenceNo);
+    public boolean hasChunk(int sequenceNo) {
+        return sequenceNo >= 0 && sequenceNo < replicas.length && replicas[sequenceNo] != null;
     }
 
-    public void addChunk(ChunkRef chunkRef) {
-        this.chunks.put(chunkRef.getSequenceNo(), chunkRef);
+    public int getChunkCount() {
+        return chunkCount;
     }
 
-    public boolean hasChunk(int sequenceNo) {
-        return this.chunks.containsKey(sequenceNo);
+    public int getReplicaCount(int sequenceNo) {
+        return hasChunk(sequenceNo) ? replicas[sequenceNo].length : 0;
     }
 
-    public int getChunkCount() {
-        return this.chunks.size();
+    /**
+     * Returns the IDs of the storage nodes that have a chunk. The array must not be modified.
+     *
+     * @param sequenceNo chunk sequence number
+     * @return sorted storage node IDs, empty if the chunk isn't stored anywhere
+     */
+    int[] getReplicas(int sequenceNo) {
+        return hasChunk(sequenceNo) ? replicas[sequenceNo] : new int[0];
+    }
+
+    boolean hasReplica(int sequenceNo, int storageNodeId) {
+        return hasChunk(sequenceNo) && Arrays.binarySearch(replicas[sequenceNo], storageNodeId) >= 0;
+    }
+
+    /**
+     * Add a replica, creating the chunk if needed.
+     *
+     * @param sequenceNo    chunk sequence number
+     * @param storageNodeId ID of the storage node that has the chunk
+     * @return false if the replica was already known
+     */
+    boolean addReplica(int sequenceNo, int storageNodeId) {
+        if (sequenceNo >= replicas.length) {
+            replicas = Arrays.copyOf(replicas, Math.max(sequenceNo + 1, replicas.length * 2));
+        }
+
+        int[] nodes = replicas[sequenceNo];
+        if (nodes == null) {
+            replicas[sequenceNo] = new int[]{storageNodeId};
+            chunkCount++;
+            return true;
+        }
+
+        int index = Arrays.binarySearch(nodes, storageNodeId);
+        if (index >= 0) {
+            return false;
+        }
+        int insertionPoint = -index - 1;
+        int[] newNodes = new int[nodes.length + 1];
+        System.arraycopy(nodes, 0, newNodes, 0, insertionPoint);
+        newNodes[insertionPoint] = storageNodeId;
+        System.arraycopy(nodes, insertionPoint, newNodes, insertionPoint + 1, nodes.length - insertionPoint);
+        replicas[sequenceNo] = newNodes;
+        return true;
+    }
+
+    /**
+     * Remove a replica. The chunk is removed when its last replica is removed.
+     *
+     * @param sequenceNo    chunk sequence number
+     * @param storageNodeId ID of the storage node that doesn't have the chunk anymore
+     * @return false if the replica wasn't known
+     */
+    boolean removeReplica(int sequenceNo, int storageNodeId) {
+        if (!hasChunk(sequenceNo)) {
+            return false;
+        }
+
+        int[] nodes = replicas[sequenceNo];
+        int index = Arrays.binarySearch(nodes, storageNodeId);
+        if (index < 0) {
+            return false;
+        }
+        if (nodes.length == 1) {
+            replicas[sequenceNo] = null;
+            chunkCount--;
+            trim();
+            return true;
+        }
+        int[] newNodes = new int[nodes.length - 1];
+        System.arraycopy(nodes, 0, newNodes, 0, index);
+        System.arraycopy(nodes, index + 1, newNodes, index, nodes.length - index - 1);
+        replicas[sequenceNo] = newNodes;
+        return true;
+    }
+
+    // Release the end of the array if the last chunks are gone
+    private void trim() {
+        int limit = replicas.length;
+        while (limit > 0 && replicas[limit - 1] == null) {
+            limit--;
+        }
+        if (limit < replicas.length / 2) {
+            replicas = limit == 0 ? NO_CHUNKS : Arrays.copyOf(replicas, limit);
+        }
+    }
+
+    /**
+     * Returns the generation number of the file, which changes every time a chunk or replica
+     * is added or removed. Clients use it to tell whether their cached chunk locations are stale.
+     *
+     * @return generation number
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Returns how the file is stored, null if it is simply replicated.
+     */
+    public Messages.FileAttributes getAttributes() {
+        return attributes;
+    }
+
+    void setAttributes(Messages.FileAttributes attributes) {
+        this.attributes = attributes;
     }
 
     @Override
@@ -43,10 +173,6 @@ public class DFSFile implements Comparable<DFSFile> {
         return filename;
     }
 
-    public void removeChunk(int sequenceNo) {
-        chunks.remove(sequenceNo);
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,89 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.dedup.DedupLayout;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of files in every directory of the namespace, sub-directories included.
+ * <p>
+ * Directories are implicit: a file named dataset/2017-10-01/part-0 is in the directories
+ * "dataset/2017-10-01/", "dataset/" and "" (the root). Directory names always end with a slash,
+ * except for the root. Content chunks of deduplicated files are not files of the namespace,
+ * and are not counted. Not thread-safe, only used while holding the {@link FileTable} lock.
+ */
+class DirectoryIndex {
+    private final Map<String, Integer> fileCounts = new HashMap<>();
+
+    void add(String filename) {
+        if (DedupLayout.isChunkFilename(filename)) {
+            return;
+        }
+        for (String directory : getDirectories(filename)) {
+            Integer count = fileCounts.get(directory);
+            fileCounts.put(directory, count == null ? 1 : count + 1);
+        }
+    }
+
+    void remove(String filename) {
+        if (DedupLayout.isChunkFilename(filename)) {
+            return;
+        }
+        for (String directory : getDirectories(filename)) {
+            Integer count = fileCounts.get(directory);
+            if (count == null || count <= 1) {
+                fileCounts.remove(directory);
+            } else {
+                fileCounts.put(directory, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files in a directory, including those in sub-directories.
+     *
+     * @param directory directory name, ending with a slash, or "" for the root
+     * @return number of files, 0 if the directory doesn't exist
+     */
+    int getFileCount(String directory) {
+        Integer count = fileCounts.get(directory);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Turns a prefix as typed by a user into a directory name.
+     *
+     * @param name "dataset", "dataset/", "/dataset" or "" for instance
+     * @return "dataset/", or "" for the root
+     */
+    static String toDirectory(String name) {
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.endsWith("/")) {
+            return name;
+        }
+        return name + "/";
+    }
+
+    // All the directories a file is in, including the root
+    private static String[] getDirectories(String filename) {
+        int depth = 0;
+        for (int i = 0; i < filename.length(); i++) {
+            if (filename.charAt(i) == '/') {
+                depth++;
+            }
+        }
+
+        String[] directories = new String[depth + 1];
+        directories[0] = "";
+        int d = 1;
+        for (int i = 0; i < filename.length(); i++) {
+            if (filename.charAt(i) == '/') {
+                directories[d++] = filename.substring(0, i + 1);
+            }
+        }
+        return directories;
+    }
+}
@@ -0,0 +1,181 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects storage nodes that stopped sending heartbeats, using a hashed timing wheel.
+ * <p>
+ * Every heartbeat sets the deadline of the storage node to now + timeout, and puts
+ * the storage node in the wheel slot of that deadline: O(1) per heartbeat, no matter
+ * how many storage nodes there are. Every tick, {@link #advance()} only looks at the
+ * slots whose time has come. A storage node found in a slot that isn't its current
+ * deadline anymore (it sent a heartbeat since) is simply dropped from that slot.
+ * <p>
+ * If {@link #advance()} itself wasn't called for more than half the timeout, e.g.
+ * because of a long GC pause on the controller, the missing heartbeats are probably
+ * sitting unread in socket buffers. Storage nodes are then given one more timeout
+ * instead of being declared dead all at once.
+ * <p>
+ * Uses {@link System#nanoTime()}, so it is not affected by wall clock changes.
+ * {@link #heartbeat(ComponentAddress)} is thread-safe, {@link #advance()} must only
+ * be called by one thread.
+ */
+public class FailureDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailureDetector.class);
+
+    private final long tickNanos;
+    private final long timeoutNanos;
+    private final List<Set<ComponentAddress>> wheel;
+    private final ConcurrentMap<ComponentAddress, Long> deadlines = new ConcurrentHashMap<>();
+
+    // Ticks are counted from here, nanoTime() values can be negative
+    private final long originNanos;
+
+    // Last processed tick, and when it was processed
+    private long lastTick;
+    private long lastAdvanceNanos;
+
+    /**
+     * @param tickMillis    time between two calls to {@link #advance()}
+     * @param timeoutMillis maximum time without heartbeat before a storage node is declared dead
+     */
+    public FailureDetector(int tickMillis, int timeoutMillis) {
+        this(tickMillis, timeoutMillis, System.nanoTime());
+    }
+
+    FailureDetector(int tickMillis, int timeoutMillis, long nowNanos) {
+        if (tickMillis <= 0 || timeoutMillis < tickMillis) {
+            throw new IllegalArgumentException("Need 0 < tick <= timeout, got tick=" + tickMillis + " timeout=" + timeoutMillis);
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        // One more slot than the timeout spans, so a deadline never wraps around onto the current slot
+        int slots = (int) (timeoutNanos / tickNanos) + 2;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(Collections.newSetFromMap(new ConcurrentHashMap<ComponentAddress, Boolean>()));
+        }
+
+        this.originNanos = nowNanos;
+        this.lastTick = 0;
+        this.lastAdvanceNanos = nowNanos;
+    }
+
+    /**
+     * Record a heartbeat from a storage node. Also used to start monitoring a storage node
+     * before its first heartbeat.
+     *
+     * @param storageNode storage node that sent a heartbeat
+     */
+    public void heartbeat(ComponentAddress storageNode) {
+        heartbeat(storageNode, System.nanoTime());
+    }
+
+    void heartbeat(ComponentAddress storageNode, long nowNanos) {
+        long deadline = nowNanos + timeoutNanos;
+        deadlines.put(storageNode, deadline);
+        slot(toDeadlineTick(deadline)).add(storageNode);
+    }
+
+    /**
+     * Process the slots of the wheel up to now.
+     *
+     * @return storage nodes whose deadline passed since last call
+     */
+    public List<ComponentAddress> advance() {
+        return advance(System.nanoTime());
+    }
+
+    List<ComponentAddress> advance(long nowNanos) {
+        List<ComponentAddress> expired = new ArrayList<>();
+        List<ComponentAddress> postponed = new ArrayList<>();
+        long elapsed = nowNanos - lastAdvanceNanos;
+        boolean paused = elapsed > timeoutNanos / 2;
+        if (paused) {
+            logger.warn("Failure detector did not run for " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                    + " ms. Giving storage nodes more time.");
+        }
+
+        long currentTick = toTick(nowNanos);
+        // No need to go around the wheel more than once
+        long firstTick = Math.max(lastTick + 1, currentTick - wheel.size() + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Set<ComponentAddress> slot = slot(tick);
+            Iterator<ComponentAddress> it = slot.iterator();
+            while (it.hasNext()) {
+                ComponentAddress storageNode = it.next();
+                Long deadline = deadlines.get(storageNode);
+                if (deadline == null) {
+                    it.remove();
+                } else if (deadline - nowNanos > 0) {
+                    // Heartbeat received since, it is in a later slot too (unless that slot is this one)
+                    if (slot(toDeadlineTick(deadline)) != slot) {
+                        it.remove();
+                    }
+                } else if (paused) {
+                    it.remove();
+                    postponed.add(storageNode);
+                } else if (deadlines.remove(storageNode, deadline)) {
+                    it.remove();
+                    expired.add(storageNode);
+                }
+            }
+        }
+
+        // Only after going through the wheel, otherwise they could be dropped from their new slot
+        for (ComponentAddress storageNode : postponed) {
+            heartbeat(storageNode, nowNanos);
+        }
+
+        lastTick = currentTick;
+        lastAdvanceNanos = nowNanos;
+        return expired;
+    }
+
+    /**
+     * Stop monitoring a storage node.
+     *
+     * @param storageNode storage node
+     */
+    public void remove(ComponentAddress storageNode) {
+        deadlines.remove(storageNode);
+    }
+
+    /**
+     * Returns the time since the last heartbeat of a storage node.
+     *
+     * @param storageNode storage node
+     * @return time in milliseconds, or -1 if the storage node isn't monitored
+     */
+    public long getMillisSinceLastHeartbeat(ComponentAddress storageNode) {
+        Long deadline = deadlines.get(storageNode);
+        if (deadline == null) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (deadline - timeoutNanos));
+    }
+
+    private long toTick(long nanos) {
+        return (nanos - originNanos) / tickNanos;
+    }
+
+    // Deadlines are rounded up, so a slot is only processed once all its deadlines have passed
+    private long toDeadlineTick(long deadlineNanos) {
+        long relative = deadlineNanos - originNanos;
+        return relative % tickNanos == 0 ? relative / tickNanos : relative / tickNanos + 1;
+    }
+
+    private Set<ComponentAddress> slot(long tick) {
+        int index = (int) (tick % wheel.size());
+        return wheel.get(index < 0 ? index + wheel.size() : index);
+    }
+}
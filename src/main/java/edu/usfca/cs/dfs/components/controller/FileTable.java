@@ -1,8 +1,15 @@
 package edu.usfca.cs.dfs.components.controller;
 
 import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.dedup.DedupLayout;
+import edu.usfca.cs.dfs.erasure.StripeLayout;
+import edu.usfca.cs.dfs.messages.Messages;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -10,10 +17,217 @@ import java.util.*;
  * It only contains files and chunks that are currently reachable, i.e. there is at least
  * one replica on one reachable storage node for that chunk.
  *
+ * Every change is written to the {@link MetadataLog}, if any, so that the file table
+ * can be recovered after a controller restart.
+ *
+ * Chunks of replicated files need min-replicas replicas. Chunks of erasure coded files
+ * need only one, but lost ones must be rebuilt from the rest of their stripe.
+ *
+ * Content chunks of deduplicated files are stored as hidden files of their own, see
+ * {@link DedupLayout}, and replicated like any other chunk. They are deleted once no
+ * deduplicated file has referenced them for a grace period, as the same content may be
+ * uploaded again for another file in the meantime.
  */
 public class FileTable {
 
-    private final Map<String, DFSFile> files = new HashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(FileTable.class);
+
+    // Sorted, so that a page of filenames can be listed without going through all of them
+    private final NavigableMap<String, DFSFile> files = new TreeMap<>();
+
+    private final StorageNodeIds storageNodeIds = new StorageNodeIds();
+
+    private final DirectoryIndex directoryIndex = new DirectoryIndex();
+
+    // Deleted files each storage node may still have chunks of. Replicas of them that show up,
+    // e.g. from a storage node that was offline during the delete, must not bring them back.
+    private final Map<ComponentAddress, Set<String>> pendingDeletions = new HashMap<>();
+
+    // Their replicas were forgotten when they went offline, so they may have chunks of any deleted file
+    private final Set<ComponentAddress> offlineStorageNodes = new HashSet<>();
+
+    // Number of references from deduplicated files to every content chunk, by content chunk filename.
+    // Derived from file attributes, so not logged.
+    private final Map<String, Integer> contentChunkReferences = new HashMap<>();
+
+    // Since when content chunks are not referenced anymore, by content chunk filename
+    private final Map<String, Long> unreferencedContentChunks = new HashMap<>();
+
+    // Replicas of collected content chunks that storage nodes have not been told to delete yet
+    private final Map<ComponentAddress, Set<String>> collectedContentChunks = new HashMap<>();
+
+    // Starts at the current time so that generations keep increasing across controller restarts
+    private long nextGeneration = System.currentTimeMillis() * 1000;
+
+    private final MetadataLog metadataLog;
+
+    // True while the file table is rebuilt from the metadata log, so we don't log the changes again
+    private boolean replaying = false;
+
+    public FileTable() {
+        this(null);
+    }
+
+    public FileTable(MetadataLog metadataLog) {
+        this.metadataLog = metadataLog;
+    }
+
+    /**
+     * Rebuild the file table from the snapshot and write-ahead log.
+     *
+     * @return storage nodes that had replicas before the controller was restarted
+     * @throws IOException if the metadata log could not be read
+     */
+    public synchronized Set<ComponentAddress> recover() throws IOException {
+        if (metadataLog == null) {
+            return Collections.emptySet();
+        }
+
+        replaying = true;
+        try {
+            int count = metadataLog.replay(this);
+            logger.info("Recovered " + files.size() + " files from " + count + " metadata records");
+        } finally {
+            replaying = false;
+        }
+        // Left over from before the restart: their grace period starts over
+        for (String filename : files.tailMap(DedupLayout.CHUNK_PREFIX).keySet()) {
+            if (!DedupLayout.isChunkFilename(filename)) {
+                break;
+            }
+            if (!DedupLayout.isPendingFilename(filename) && !contentChunkReferences.containsKey(filename)) {
+                unreferencedContentChunks.put(filename, System.currentTimeMillis());
+            }
+        }
+
+        // Start over with a compact snapshot and an empty log
+        checkpoint();
+
+        return getStorageNodes();
+    }
+
+    /**
+     * Write a snapshot of the file table, and truncate the write-ahead log.
+     */
+    public synchronized void checkpoint() {
+        if (metadataLog == null) {
+            return;
+        }
+
+        try {
+            metadataLog.beginSnapshot();
+            for (DFSFile file : files.values()) {
+                metadataLog.writeSnapshotRecord(Messages.MetadataRecord.newBuilder()
+                        .setFile(toFileMsg(file))
+                        .build());
+            }
+            for (ComponentAddress storageNode : offlineStorageNodes) {
+                metadataLog.writeSnapshotRecord(Messages.MetadataRecord.newBuilder()
+                        .setStorageNodeOffline(toStorageNodeMsg(storageNode))
+                        .build());
+            }
+            for (Map.Entry<ComponentAddress, Set<String>> entry : pendingDeletions.entrySet()) {
+                for (String filename : entry.getValue()) {
+                    metadataLog.writeSnapshotRecord(Messages.MetadataRecord.newBuilder()
+                            .setPendingDeletion(toPendingDeletionMsg(filename, entry.getKey()))
+                            .build());
+                }
+            }
+            metadataLog.commitSnapshot();
+            logger.debug("Wrote metadata snapshot with " + files.size() + " files");
+        } catch (IOException e) {
+            logger.error("Could not write metadata snapshot", e);
+            metadataLog.abortSnapshot();
+        }
+    }
+
+    /**
+     * Apply a record read from the metadata log.
+     *
+     * @param record snapshot or write-ahead log record
+     */
+    synchronized void apply(Messages.MetadataRecord record) {
+        switch (record.getRecordCase()) {
+            case ADDREPLICA:
+                Messages.ReplicaChange addReplica = record.getAddReplica();
+                publishChunk(addReplica.getFilename(), addReplica.getSequenceNo(),
+                        toComponentAddress(addReplica.getStorageNode()));
+                break;
+
+            case REMOVEREPLICA:
+                Messages.ReplicaChange removeReplica = record.getRemoveReplica();
+                removeReplica(removeReplica.getFilename(), removeReplica.getSequenceNo(),
+                        toComponentAddress(removeReplica.getStorageNode()));
+                break;
+
+            case STORAGENODEOFFLINE:
+                onStorageNodeOffline(toComponentAddress(record.getStorageNodeOffline()));
+                break;
+
+            case FILEATTRIBUTES:
+                setFileAttributes(record.getFileAttributes());
+                break;
+
+            case DELETEDFILE:
+                deleteFile(record.getDeletedFile());
+                break;
+
+            case PENDINGDELETION:
+                Messages.PendingDeletion pendingDeletion = record.getPendingDeletion();
+                addPendingDeletion(pendingDeletion.getFilename(), toComponentAddress(pendingDeletion.getStorageNode()));
+                break;
+
+            case CONFIRMEDDELETION:
+                Messages.PendingDeletion confirmedDeletion = record.getConfirmedDeletion();
+                confirmDeletion(confirmedDeletion.getFilename(), toComponentAddress(confirmedDeletion.getStorageNode()));
+                break;
+
+            case FILE:
+                Messages.DownloadFileResponse fileMsg = record.getFile();
+                if (fileMsg.hasAttributes()) {
+                    setFileAttributes(fileMsg.getAttributes());
+                }
+                for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : fileMsg.getChunkLocationsList()) {
+                    for (Messages.StorageNode storageNode : chunkLocation.getStorageNodesList()) {
+                        publishChunk(fileMsg.getFilename(), chunkLocation.getSequenceNo(),
+                                toComponentAddress(storageNode));
+                    }
+                }
+                break;
+
+            default:
+                logger.warn("Ignoring unknown metadata record: " + record);
+        }
+    }
+
+    private void log(Messages.MetadataRecord record) {
+        if (metadataLog == null || replaying) {
+            return;
+        }
+        try {
+            metadataLog.append(record);
+        } catch (IOException e) {
+            logger.error("Could not write to metadata log. Changes may be lost on restart.", e);
+        }
+    }
+
+    private void logReplicaChange(boolean added, String filename, int sequenceNo, ComponentAddress storageNode) {
+        if (metadataLog == null || replaying) {
+            return;
+        }
+        Messages.ReplicaChange change = Messages.ReplicaChange.newBuilder()
+                .setFilename(filename)
+                .setSequenceNo(sequenceNo)
+                .setStorageNode(toStorageNodeMsg(storageNode))
+                .build();
+        Messages.MetadataRecord.Builder record = Messages.MetadataRecord.newBuilder();
+        if (added) {
+            record.setAddReplica(change);
+        } else {
+            record.setRemoveReplica(change);
+        }
+        log(record.build());
+    }
 
     /**
      * Returns names of the files in the system, sorted.
@@ -21,17 +235,127 @@ public class FileTable {
      * @return names of the files in the system
      */
     public synchronized SortedSet<String> getFilenames() {
-        return new TreeSet<>(files.keySet());
+        SortedSet<String> filenames = new TreeSet<>();
+        for (String filename : files.keySet()) {
+            if (!DedupLayout.isChunkFilename(filename)) {
+                filenames.add(filename);
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Returns one page of filenames, sorted.
+     *
+     * @param prefix     only list filenames that start with this prefix
+     * @param startAfter only list filenames after this one, or null to start from the beginning
+     * @param limit      maximum number of filenames
+     * @return names of the files
+     */
+    public synchronized List<String> listFilenames(String prefix, String startAfter, int limit) {
+        String filename;
+        if (startAfter != null && startAfter.compareTo(prefix) >= 0) {
+            filename = files.higherKey(startAfter);
+        } else {
+            filename = files.ceilingKey(prefix);
+        }
+
+        List<String> filenames = new ArrayList<>(Math.min(limit, 1024));
+        while (filename != null && filenames.size() < limit && filename.startsWith(prefix)) {
+            if (DedupLayout.isChunkFilename(filename)) {
+                // Skip all the content chunks at once
+                filename = files.ceilingKey(skipDirectory(DedupLayout.CHUNK_PREFIX));
+                continue;
+            }
+            filenames.add(filename);
+            filename = files.higherKey(filename);
+        }
+        return filenames;
+    }
+
+    /**
+     * Returns one page of the files and sub-directories directly in a directory, sorted.
+     * Sub-directories are skipped over without going through the files they contain.
+     *
+     * @param directory  directory name, see {@link DirectoryIndex#toDirectory(String)}
+     * @param startAfter only list entries after this one, or null to start from the beginning
+     * @param limit      maximum number of entries
+     * @return files and sub-directories
+     */
+    public synchronized List<Messages.DirectoryEntry> listDirectory(String directory, String startAfter, int limit) {
+        directory = DirectoryIndex.toDirectory(directory);
+
+        String from = directory;
+        boolean inclusive = true;
+        if (startAfter != null && startAfter.compareTo(directory) >= 0) {
+            from = startAfter.endsWith("/") ? skipDirectory(startAfter) : startAfter;
+            inclusive = startAfter.endsWith("/");
+        }
+
+        List<Messages.DirectoryEntry> entries = new ArrayList<>(Math.min(limit, 1024));
+        String filename = inclusive ? files.ceilingKey(from) : files.higherKey(from);
+        while (filename != null && entries.size() < limit && filename.startsWith(directory)) {
+            int slash = filename.indexOf('/', directory.length());
+            if (slash == -1) {
+                entries.add(Messages.DirectoryEntry.newBuilder()
+                        .setName(filename)
+                        .setFileCount(1)
+                        .build());
+                filename = files.higherKey(filename);
+            } else {
+                String subDirectory = filename.substring(0, slash + 1);
+                if (subDirectory.equals(DedupLayout.CHUNK_PREFIX)) {
+                    filename = files.ceilingKey(skipDirectory(subDirectory));
+                    continue;
+                }
+                entries.add(Messages.DirectoryEntry.newBuilder()
+                        .setName(subDirectory)
+                        .setDirectory(true)
+                        .setFileCount(directoryIndex.getFileCount(subDirectory))
+                        .build());
+                filename = files.ceilingKey(skipDirectory(subDirectory));
+            }
+        }
+        return entries;
+    }
+
+    // Smallest string after all the names in that directory: "a/b/" becomes "a/b0" ('0' comes right after '/')
+    private static String skipDirectory(String directory) {
+        return directory.substring(0, directory.length() - 1) + (char) ('/' + 1);
+    }
+
+    /**
+     * Returns the number of files in a directory, sub-directories included.
+     *
+     * @param directory directory name, see {@link DirectoryIndex#toDirectory(String)}
+     * @return number of files
+     */
+    public synchronized int getDirectoryFileCount(String directory) {
+        return directoryIndex.getFileCount(DirectoryIndex.toDirectory(directory));
+    }
+
+    /**
+     * Returns whether a file is known to the controller.
+     *
+     * @param filename Filename
+     * @return true if at least one chunk of the file is reachable
+     */
+    public synchronized boolean hasFile(String filename) {
+        return files.containsKey(filename);
     }
 
     /**
      * Look up a file (and its chunks and replicas) by name
      *
      * @param filename Filename
-     * @return file
+     * @return chunk locations of the file, or null if the file doesn't exist
      */
-    public synchronized DFSFile getFile(String filename) {
-        return files.get(filename);
+    public synchronized Messages.DownloadFileResponse getFileMsg(String filename) {
+        DFSFile file = files.get(filename);
+        if (file == null) {
+            return null;
+        }
+        return DedupLayout.isDeduplicated(file.getAttributes()) ? toDeduplicatedFileMsg(file) : toFileMsg(file);
     }
 
     /**
@@ -40,11 +364,11 @@ public class FileTable {
      */
     public synchronized List<ChunkRef> getUnderReplicatedChunks() {
         List<ChunkRef> chunks = new ArrayList<>();
-        int minReplicas = DFSProperties.getInstance().getMinReplicas();
         for (DFSFile file : files.values()) {
-            for (ChunkRef chunk : file.getChunks()) {
-                if (chunk.getReplicaCount() < minReplicas) {
-                    chunks.add(chunk);
+            int targetReplicas = getTargetReplicas(file);
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (file.hasChunk(sequenceNo) && file.getReplicaCount(sequenceNo) < targetReplicas) {
+                    chunks.add(toChunkRef(file, sequenceNo));
                 }
             }
         }
@@ -52,46 +376,87 @@ public class FileTable {
     }
 
     /**
-     * Remove replicas from a storage node that has gone offline, which might remove
-     * a chunk altogether, and even a file altogether.
-     * @param storageNode storage node now offline
+     * Returns chunks of erasure coded files that are not stored anywhere anymore, and
+     * need to be rebuilt from the other chunks of their stripe. Files that are still
+     * being uploaded are ignored.
+     *
+     * @return lost chunks, without replica locations
      */
-    public synchronized void onStorageNodeOffline(ComponentAddress storageNode) {
-        // Chunks that are modified and that we need to remove later in case
-        // there are no more replicas left
-        List<ChunkRef> modifiedChunks = new ArrayList<>();
-
+    public synchronized List<ChunkRef> getLostChunks() {
+        List<ChunkRef> chunks = new ArrayList<>();
         for (DFSFile file : files.values()) {
-            for (ChunkRef chunk : file.getChunks()) {
-                Set<ComponentAddress> locations = chunk.getReplicaLocations();
-                if (locations.contains(storageNode)) {
-                    locations.remove(storageNode);
-                    modifiedChunks.add(chunk);
+            Messages.FileAttributes attributes = file.getAttributes();
+            if (!StripeLayout.isErasureCoded(attributes) || !attributes.getComplete()) {
+                continue;
+            }
+            int chunkCount = new StripeLayout(attributes).getChunkCount();
+            for (int sequenceNo = 0; sequenceNo < chunkCount; sequenceNo++) {
+                if (!file.hasChunk(sequenceNo)) {
+                    chunks.add(toChunkRef(file, sequenceNo));
                 }
             }
         }
+        return chunks;
+    }
 
-        cleanup(modifiedChunks);
+    /**
+     * Returns list of chunks that have more replicas than needed, e.g. because a storage
+     * node came back after its chunks were replicated elsewhere.
+     *
+     * @return list of chunks that have replicas to spare
+     */
+    public synchronized List<ChunkRef> getOverReplicatedChunks() {
+        List<ChunkRef> chunks = new ArrayList<>();
+        for (DFSFile file : files.values()) {
+            int targetReplicas = getTargetReplicas(file);
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (file.getReplicaCount(sequenceNo) > targetReplicas) {
+                    chunks.add(toChunkRef(file, sequenceNo));
+                }
+            }
+        }
+        return chunks;
     }
 
-    private void cleanup(List<ChunkRef> modifiedChunks) {
-        // Files that are modified and that we need to remove later in case
-        // there are no chunks left
+    /**
+     * Remove replicas from a storage node that has gone offline, which might remove
+     * a chunk altogether, and even a file altogether.
+     * @param storageNode storage node now offline
+     */
+    public synchronized void onStorageNodeOffline(ComponentAddress storageNode) {
+        offlineStorageNodes.add(storageNode);
+        // Its message queue is gone
+        collectedContentChunks.remove(storageNode);
+        int storageNodeId = storageNodeIds.getId(storageNode);
+        if (storageNodeId == -1) {
+            return;
+        }
+
+        log(Messages.MetadataRecord.newBuilder()
+                .setStorageNodeOffline(toStorageNodeMsg(storageNode))
+                .build());
+
+        // Can't remove files from the map while iterating over it
         List<DFSFile> modifiedFiles = new ArrayList<>();
 
-        // Remove chunks that have no replicas
-        for (ChunkRef chunk : modifiedChunks) {
-            if (chunk.getReplicaCount() == 0) {
-                DFSFile file = files.get(chunk.getFilename());
-                file.removeChunk(chunk.getSequenceNo());
-                modifiedFiles.add(file);
+        for (DFSFile file : files.values()) {
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (file.removeReplica(sequenceNo, storageNodeId)) {
+                    file.setGeneration(nextGeneration++);
+                    modifiedFiles.add(file);
+                }
             }
         }
 
-        // Remove files that have no chunks
+        cleanup(modifiedFiles);
+    }
+
+    // Remove files that have no chunks. Deduplicated files never have chunks of their own.
+    private void cleanup(List<DFSFile> modifiedFiles) {
         for (DFSFile file : modifiedFiles) {
-            if (file.getChunkCount() == 0) {
-                files.remove(file.getFilename());
+            if (file.getChunkCount() == 0 && !DedupLayout.isDeduplicated(file.getAttributes())
+                    && files.remove(file.getFilename()) != null) {
+                directoryIndex.remove(file.getFilename());
             }
         }
     }
@@ -103,24 +468,483 @@ public class FileTable {
      * @param filename    name of whole file originally received from client
      * @param sequenceNo  chunk sequence number
      * @param storageNode storage node that has that chunk
+     * @return false if the file was deleted, or its name is not valid: the replica should be
+     * deleted too
      */
-    public synchronized void publishChunk(String filename,
-                                          int sequenceNo,
-                                          ComponentAddress storageNode) {
-        if (!files.containsKey(filename)) {
-            files.put(filename, new DFSFile(filename));
+    public synchronized boolean publishChunk(String filename,
+                                             int sequenceNo,
+                                             ComponentAddress storageNode) {
+        if (!Utils.isValidFilename(filename)) {
+            logger.warn("Refusing " + filename + "-chunk" + sequenceNo + " of " + storageNode + ": invalid filename");
+            return false;
+        }
+        if (isDeleted(filename)) {
+            // Wait for this storage node too before forgetting the file was deleted
+            addPendingDeletion(filename, storageNode);
+            return false;
+        }
+        // E.g. uploaded for a file that was deleted or replaced in the meantime. References
+        // are only all known once the metadata log is replayed.
+        if (!replaying && DedupLayout.isChunkFilename(filename) && !contentChunkReferences.containsKey(filename)
+                && !unreferencedContentChunks.containsKey(filename)) {
+            unreferencedContentChunks.put(filename, System.currentTimeMillis());
         }
 
         DFSFile file = files.get(filename);
-        if (!file.hasChunk(sequenceNo)) {
-            file.addChunk(new ChunkRef(filename, sequenceNo));
+        if (file == null) {
+            file = new DFSFile(filename);
+            files.put(filename, file);
+            directoryIndex.add(filename);
+        }
+
+        if (file.addReplica(sequenceNo, storageNodeIds.intern(storageNode))) {
+            file.setGeneration(nextGeneration++);
+            logReplicaChange(true, filename, sequenceNo, storageNode);
+        }
+        return true;
+    }
+
+    /**
+     * Delete a file. Replicas of its chunks that show up afterwards are refused until the
+     * file is uploaded again, or every storage node that had some, or was offline, confirms
+     * it has none left. Content chunks that only a deleted deduplicated file had are left
+     * for {@link #collectContentChunk}.
+     *
+     * @param filename name of the file
+     * @return replicas to delete from storage nodes, or null if there is no such file
+     */
+    public synchronized List<ChunkRef> deleteFile(String filename) {
+        DFSFile file = files.remove(filename);
+        if (file == null) {
+            return null;
+        }
+        directoryIndex.remove(filename);
+
+        List<ChunkRef> chunks = new ArrayList<>();
+        for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+            if (file.hasChunk(sequenceNo)) {
+                chunks.add(toChunkRef(file, sequenceNo));
+            }
+        }
+
+        log(Messages.MetadataRecord.newBuilder()
+                .setDeletedFile(filename)
+                .build());
+        // When replaying, pending deletions have records of their own
+        if (!replaying) {
+            Set<ComponentAddress> storageNodes = new HashSet<>(offlineStorageNodes);
+            for (ChunkRef chunk : chunks) {
+                storageNodes.addAll(chunk.getReplicaLocations());
+            }
+            for (ComponentAddress storageNode : storageNodes) {
+                addPendingDeletion(filename, storageNode);
+            }
+        }
+        removeReferences(file.getAttributes());
+        return chunks;
+    }
+
+    private boolean isDeleted(String filename) {
+        for (Set<String> filenames : pendingDeletions.values()) {
+            if (filenames.contains(filename)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPendingDeletion(String filename, ComponentAddress storageNode) {
+        Set<String> filenames = pendingDeletions.get(storageNode);
+        if (filenames == null) {
+            filenames = new HashSet<>();
+            pendingDeletions.put(storageNode, filenames);
         }
-        Set<ComponentAddress> replicaLocations = file.getChunk(sequenceNo).getReplicaLocations();
-        if (!replicaLocations.contains(storageNode)) {
-            replicaLocations.add(storageNode);
+        if (filenames.add(filename)) {
+            log(Messages.MetadataRecord.newBuilder()
+                    .setPendingDeletion(toPendingDeletionMsg(filename, storageNode))
+                    .build());
         }
     }
 
+    /**
+     * Announce to the file table that a storage node has no chunk of a file anymore. Once
+     * all the storage nodes that might have had chunks of a deleted file confirm, replicas
+     * of it are not refused anymore.
+     *
+     * @param filename    name of the file
+     * @param storageNode storage node that has no chunk of it
+     */
+    public synchronized void confirmDeletion(String filename, ComponentAddress storageNode) {
+        Set<String> filenames = pendingDeletions.get(storageNode);
+        if (filenames == null || !filenames.remove(filename)) {
+            return;
+        }
+        if (filenames.isEmpty()) {
+            pendingDeletions.remove(storageNode);
+        }
+        log(Messages.MetadataRecord.newBuilder()
+                .setConfirmedDeletion(toPendingDeletionMsg(filename, storageNode))
+                .build());
+    }
+
+    /**
+     * Returns the deleted files a storage node may still have chunks of.
+     *
+     * @param storageNode storage node
+     * @return names of the deleted files
+     */
+    public synchronized Set<String> getPendingDeletions(ComponentAddress storageNode) {
+        Set<String> filenames = pendingDeletions.get(storageNode);
+        return filenames == null ? Collections.<String>emptySet() : new TreeSet<>(filenames);
+    }
+
+    // Uploaded again: chunks stored from now on are of the new version
+    private void clearPendingDeletions(String filename) {
+        for (ComponentAddress storageNode : new ArrayList<>(pendingDeletions.keySet())) {
+            confirmDeletion(filename, storageNode);
+        }
+    }
+
+    /**
+     * Synchronize the file table with the complete list of chunks of a storage node.
+     * Replicas the storage node doesn't have anymore, e.g. because they got deleted
+     * while the controller was down, are removed, and so are pending deletions of files
+     * it has no chunk of.
+     *
+     * @param storageNode storage node that sent its complete list of chunks
+     * @param fileChunks  sequence numbers of chunks, by filename
+     * @return replicas of deleted files, to delete from the storage node
+     */
+    public synchronized List<ChunkRef> reconcileStorageNode(ComponentAddress storageNode,
+                                                  Map<String, SortedSet<Integer>> fileChunks) {
+        int storageNodeId = storageNodeIds.intern(storageNode);
+        offlineStorageNodes.remove(storageNode);
+        for (String filename : getPendingDeletions(storageNode)) {
+            if (!fileChunks.containsKey(filename)) {
+                confirmDeletion(filename, storageNode);
+            }
+        }
+
+        List<ChunkRef> staleReplicas = new ArrayList<>();
+        for (DFSFile file : files.values()) {
+            SortedSet<Integer> sequenceNos = fileChunks.get(file.getFilename());
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (file.hasReplica(sequenceNo, storageNodeId)
+                        && (sequenceNos == null || !sequenceNos.contains(sequenceNo))) {
+                    staleReplicas.add(toChunkRef(file, sequenceNo));
+                }
+            }
+        }
+        for (ChunkRef chunk : staleReplicas) {
+            logger.debug(storageNode + " does not have " + chunk + " anymore");
+            removeReplica(chunk.getFilename(), chunk.getSequenceNo(), storageNode);
+        }
+
+        List<ChunkRef> deletedReplicas = new ArrayList<>();
+        for (Map.Entry<String, SortedSet<Integer>> entry : fileChunks.entrySet()) {
+            for (Integer sequenceNo : entry.getValue()) {
+                if (!publishChunk(entry.getKey(), sequenceNo, storageNode)) {
+                    deletedReplicas.add(new ChunkRef(entry.getKey(), sequenceNo, Collections.singleton(storageNode)));
+                }
+            }
+        }
+        return deletedReplicas;
+    }
+
+    /**
+     * Returns all storage nodes that have at least one replica.
+     *
+     * @return storage nodes referenced by the file table
+     */
+    public synchronized Set<ComponentAddress> getStorageNodes() {
+        boolean[] referenced = new boolean[storageNodeIds.size()];
+        for (DFSFile file : files.values()) {
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                for (int storageNodeId : file.getReplicas(sequenceNo)) {
+                    referenced[storageNodeId] = true;
+                }
+            }
+        }
+
+        Set<ComponentAddress> storageNodes = new HashSet<>();
+        for (int storageNodeId = 0; storageNodeId < referenced.length; storageNodeId++) {
+            if (referenced[storageNodeId]) {
+                storageNodes.add(storageNodeIds.getAddress(storageNodeId));
+            }
+        }
+        return storageNodes;
+    }
+
+    /**
+     * Returns how many replicas each storage node has.
+     *
+     * @param storageNodes storage nodes to count replicas of
+     * @return number of replicas by storage node, including storage nodes that have none
+     */
+    public synchronized Map<ComponentAddress, Integer> getReplicaCounts(Collection<ComponentAddress> storageNodes) {
+        int[] counts = new int[storageNodeIds.size()];
+        for (DFSFile file : files.values()) {
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                for (int storageNodeId : file.getReplicas(sequenceNo)) {
+                    counts[storageNodeId]++;
+                }
+            }
+        }
+
+        Map<ComponentAddress, Integer> result = new HashMap<>();
+        for (ComponentAddress storageNode : storageNodes) {
+            int storageNodeId = storageNodeIds.getId(storageNode);
+            result.put(storageNode, storageNodeId == -1 ? 0 : counts[storageNodeId]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns chunks that a storage node has and another one doesn't, i.e. chunks
+     * that could be moved from the first one to the second one.
+     *
+     * @param source storage node that has the chunks
+     * @param target storage node that doesn't have the chunks
+     * @param limit  maximum number of chunks to return
+     * @return chunks, in filename and sequence number order
+     */
+    public synchronized List<ChunkRef> getMovableChunks(ComponentAddress source, ComponentAddress target, int limit) {
+        List<ChunkRef> chunks = new ArrayList<>();
+        int sourceId = storageNodeIds.getId(source);
+        int targetId = storageNodeIds.getId(target);
+        if (sourceId == -1) {
+            return chunks;
+        }
+
+        for (DFSFile file : files.values()) {
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (chunks.size() == limit) {
+                    return chunks;
+                }
+                if (file.hasReplica(sequenceNo, sourceId)
+                        && (targetId == -1 || !hasStripeReplica(file, sequenceNo, targetId))) {
+                    chunks.add(toChunkRef(file, sequenceNo));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    // Chunks of the same stripe must stay on distinct storage nodes, or losing one would lose several
+    private boolean hasStripeReplica(DFSFile file, int sequenceNo, int storageNodeId) {
+        if (!StripeLayout.isErasureCoded(file.getAttributes())) {
+            return file.hasReplica(sequenceNo, storageNodeId);
+        }
+        StripeLayout layout = new StripeLayout(file.getAttributes());
+        int stripe = layout.getStripe(sequenceNo);
+        for (int shardIndex = 0; shardIndex < layout.getDataShards() + layout.getParityShards(); shardIndex++) {
+            int stripeSequenceNo = layout.getSequenceNo(stripe, shardIndex);
+            if (stripeSequenceNo != -1 && file.hasReplica(stripeSequenceNo, storageNodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean hasReplica(String filename, int sequenceNo, ComponentAddress storageNode) {
+        DFSFile file = files.get(filename);
+        int storageNodeId = storageNodeIds.getId(storageNode);
+        return file != null && storageNodeId != -1 && file.hasReplica(sequenceNo, storageNodeId);
+    }
+
+    /**
+     * Remove a replica that is about to be deleted from its storage node, as long as
+     * the chunk keeps enough other replicas.
+     *
+     * @param filename    name of the file
+     * @param sequenceNo  chunk sequence number
+     * @param storageNode storage node that has the replica
+     * @return true if the replica was removed, and can be deleted from the storage node
+     */
+    public synchronized boolean removeExtraReplica(String filename, int sequenceNo, ComponentAddress storageNode) {
+        DFSFile file = files.get(filename);
+        if (!hasReplica(filename, sequenceNo, storageNode)
+                || file.getReplicaCount(sequenceNo) - 1 < getTargetReplicas(file)) {
+            return false;
+        }
+        removeReplica(filename, sequenceNo, storageNode);
+        return true;
+    }
+
+    /**
+     * Set how a file is stored, creating the file if needed. A deduplicated file references
+     * its content chunks from now on, and stops referencing those of its previous attributes.
+     * Attributes of another version replace the file: the chunks of the previous version are
+     * dropped, so that they are never read along with those of the new one.
+     *
+     * @param attributes file attributes, sent by the client that uploads the file
+     * @return replicas of the chunks of a previous version, to delete from storage nodes
+     */
+    public synchronized List<ChunkRef> setFileAttributes(Messages.FileAttributes attributes) {
+        // Uploaded again
+        clearPendingDeletions(attributes.getFilename());
+
+        DFSFile file = files.get(attributes.getFilename());
+        if (file == null) {
+            file = new DFSFile(attributes.getFilename());
+            files.put(attributes.getFilename(), file);
+            directoryIndex.add(attributes.getFilename());
+        }
+        Messages.FileAttributes previousAttributes = file.getAttributes();
+        // New references first, so that chunks both have are kept
+        addReferences(attributes);
+        file.setAttributes(attributes);
+        file.setGeneration(nextGeneration++);
+
+        log(Messages.MetadataRecord.newBuilder()
+                .setFileAttributes(attributes)
+                .build());
+        removeReferences(previousAttributes);
+        List<ChunkRef> chunks = new ArrayList<>();
+        // The same version is set again as its upload goes on, or is resumed
+        boolean replaced = previousAttributes != null && !previousAttributes.getVersion().equals(attributes.getVersion());
+        if (replaced || DedupLayout.isDeduplicated(attributes)) {
+            // Chunks of a previous version, or of one that was not deduplicated
+            for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+                if (!file.hasChunk(sequenceNo)) {
+                    continue;
+                }
+                ChunkRef chunk = toChunkRef(file, sequenceNo);
+                for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
+                    // Not removeReplica(), which would drop the file with its new attributes
+                    file.removeReplica(sequenceNo, storageNodeIds.getId(storageNode));
+                    logReplicaChange(false, file.getFilename(), sequenceNo, storageNode);
+                }
+                chunks.add(chunk);
+            }
+            file.setGeneration(nextGeneration++);
+        }
+        return chunks;
+    }
+
+    private void addReferences(Messages.FileAttributes attributes) {
+        for (Messages.ContentChunk contentChunk : attributes.getContentChunksList()) {
+            String chunkFilename = DedupLayout.getChunkFilename(contentChunk.getHash());
+            Integer count = contentChunkReferences.get(chunkFilename);
+            contentChunkReferences.put(chunkFilename, count == null ? 1 : count + 1);
+            unreferencedContentChunks.remove(chunkFilename);
+            // Stored again if it was deleted
+            clearPendingDeletions(chunkFilename);
+        }
+    }
+
+    private void removeReferences(Messages.FileAttributes attributes) {
+        if (attributes == null) {
+            return;
+        }
+        for (Messages.ContentChunk contentChunk : attributes.getContentChunksList()) {
+            String chunkFilename = DedupLayout.getChunkFilename(contentChunk.getHash());
+            Integer count = contentChunkReferences.get(chunkFilename);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                contentChunkReferences.put(chunkFilename, count - 1);
+                continue;
+            }
+            contentChunkReferences.remove(chunkFilename);
+            // Not deleted right away: a DeleteChunk still queued when the chunk is uploaded
+            // again would delete the new replica
+            unreferencedContentChunks.put(chunkFilename, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Returns content chunks that no file has referenced for at least a grace period.
+     *
+     * @param gracePeriod milliseconds
+     */
+    public synchronized List<String> getUnreferencedContentChunks(long gracePeriod) {
+        long now = System.currentTimeMillis();
+        List<String> chunkFilenames = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : unreferencedContentChunks.entrySet()) {
+            if (now - entry.getValue() >= gracePeriod) {
+                chunkFilenames.add(entry.getKey());
+            }
+        }
+        return chunkFilenames;
+    }
+
+    /**
+     * Delete a content chunk, if no file has referenced it for at least a grace period.
+     * Checked again here, as a file may reference it since it was listed by
+     * {@link #getUnreferencedContentChunks}.
+     *
+     * @param chunkFilename name of the content chunk
+     * @param gracePeriod   milliseconds
+     * @return replicas to delete from storage nodes, empty if the chunk is kept
+     */
+    public synchronized List<ChunkRef> collectContentChunk(String chunkFilename, long gracePeriod) {
+        Long since = unreferencedContentChunks.get(chunkFilename);
+        if (since == null || System.currentTimeMillis() - since < gracePeriod
+                || contentChunkReferences.containsKey(chunkFilename)) {
+            return Collections.emptyList();
+        }
+        unreferencedContentChunks.remove(chunkFilename);
+        List<ChunkRef> chunks = deleteFile(chunkFilename);
+        if (chunks == null) {
+            return Collections.emptyList();
+        }
+        for (ChunkRef chunk : chunks) {
+            for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
+                Set<String> filenames = collectedContentChunks.get(storageNode);
+                if (filenames == null) {
+                    filenames = new HashSet<>();
+                    collectedContentChunks.put(storageNode, filenames);
+                }
+                filenames.add(chunkFilename);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Called right before a storage node is told to delete a chunk. If it is a content chunk
+     * deleted by {@link #collectContentChunk}, and a file references it again by now, the
+     * storage node keeps its replica, which is known again.
+     *
+     * @param filename    name of the file of the chunk
+     * @param storageNode storage node told to delete it
+     * @return true if the replica must be kept
+     */
+    public synchronized boolean keepReferencedContentChunk(String filename, ComponentAddress storageNode) {
+        Set<String> filenames = collectedContentChunks.get(storageNode);
+        if (filenames == null || !filenames.remove(filename)) {
+            return false;
+        }
+        if (filenames.isEmpty()) {
+            collectedContentChunks.remove(storageNode);
+        }
+        if (!contentChunkReferences.containsKey(filename)) {
+            return false;
+        }
+        publishChunk(filename, 0, storageNode);
+        return true;
+    }
+
+    /**
+     * Returns the number of references from deduplicated files to a content chunk.
+     *
+     * @param hash SHA-256 of the content chunk
+     */
+    public synchronized int getReferenceCount(String hash) {
+        Integer count = contentChunkReferences.get(DedupLayout.getChunkFilename(hash));
+        return count == null ? 0 : count;
+    }
+
+    private static int getTargetReplicas(DFSFile file) {
+        if (StripeLayout.isErasureCoded(file.getAttributes())) {
+            // Parity chunks take care of durability
+            return 1;
+        }
+        return DFSProperties.getInstance().getMinReplicas();
+    }
+
     /**
      * Announce to file table that a storage node detected a corrupt chunk
      *
@@ -128,11 +952,89 @@ public class FileTable {
      * @param sequenceNo  Chunk sequence number
      * @param storageNode Storage node that has a broken chunk
      */
-    public void onChunkCorrupted(String filename, int sequenceNo, ComponentAddress storageNode) {
-        if (!files.containsKey(filename)) return;
+    public synchronized void onChunkCorrupted(String filename, int sequenceNo, ComponentAddress storageNode) {
+        removeReplica(filename, sequenceNo, storageNode);
+    }
+
+    private void removeReplica(String filename, int sequenceNo, ComponentAddress storageNode) {
+        DFSFile file = files.get(filename);
+        int storageNodeId = storageNodeIds.getId(storageNode);
+        if (file == null || storageNodeId == -1 || !file.removeReplica(sequenceNo, storageNodeId)) return;
+        file.setGeneration(nextGeneration++);
+
+        logReplicaChange(false, filename, sequenceNo, storageNode);
+        cleanup(Collections.singletonList(file));
+    }
+
+    private ChunkRef toChunkRef(DFSFile file, int sequenceNo) {
+        Set<ComponentAddress> replicaLocations = new TreeSet<>();
+        for (int storageNodeId : file.getReplicas(sequenceNo)) {
+            replicaLocations.add(storageNodeIds.getAddress(storageNodeId));
+        }
+        return new ChunkRef(file.getFilename(), sequenceNo, replicaLocations);
+    }
+
+    private Messages.DownloadFileResponse toFileMsg(DFSFile file) {
+        Messages.DownloadFileResponse.Builder builder = Messages.DownloadFileResponse.newBuilder()
+                .setFilename(file.getFilename())
+                .setGeneration(file.getGeneration());
+        if (file.getAttributes() != null) {
+            builder.setAttributes(file.getAttributes());
+        }
+        for (int sequenceNo = 0; sequenceNo < file.getSequenceNoLimit(); sequenceNo++) {
+            if (!file.hasChunk(sequenceNo)) {
+                continue;
+            }
+            Messages.DownloadFileResponse.ChunkLocation.Builder chunkLocation =
+                    Messages.DownloadFileResponse.ChunkLocation.newBuilder()
+                            .setSequenceNo(sequenceNo);
+            for (int storageNodeId : file.getReplicas(sequenceNo)) {
+                chunkLocation.addStorageNodes(storageNodeIds.getStorageNodeMsg(storageNodeId));
+            }
+            builder.addChunkLocations(chunkLocation.build());
+        }
+        return builder.build();
+    }
+
+    // Chunk i of a deduplicated file is wherever content chunk i is
+    private Messages.DownloadFileResponse toDeduplicatedFileMsg(DFSFile file) {
+        DedupLayout layout = new DedupLayout(file.getAttributes());
+        Messages.DownloadFileResponse.Builder builder = Messages.DownloadFileResponse.newBuilder()
+                .setFilename(file.getFilename())
+                .setAttributes(file.getAttributes());
+        long generation = file.getGeneration();
+        for (int sequenceNo = 0; sequenceNo < layout.getChunkCount(); sequenceNo++) {
+            DFSFile chunkFile = files.get(layout.getChunkFilename(sequenceNo));
+            if (chunkFile == null || !chunkFile.hasChunk(0)) {
+                continue;
+            }
+            generation = Math.max(generation, chunkFile.getGeneration());
+            Messages.DownloadFileResponse.ChunkLocation.Builder chunkLocation =
+                    Messages.DownloadFileResponse.ChunkLocation.newBuilder()
+                            .setSequenceNo(sequenceNo);
+            for (int storageNodeId : chunkFile.getReplicas(0)) {
+                chunkLocation.addStorageNodes(storageNodeIds.getStorageNodeMsg(storageNodeId));
+            }
+            builder.addChunkLocations(chunkLocation.build());
+        }
+        return builder.setGeneration(generation).build();
+    }
+
+    private static Messages.StorageNode toStorageNodeMsg(ComponentAddress storageNode) {
+        return Messages.StorageNode.newBuilder()
+                .setHost(storageNode.getHost())
+                .setPort(storageNode.getPort())
+                .build();
+    }
+
+    private static Messages.PendingDeletion toPendingDeletionMsg(String filename, ComponentAddress storageNode) {
+        return Messages.PendingDeletion.newBuilder()
+                .setFilename(filename)
+                .setStorageNode(toStorageNodeMsg(storageNode))
+                .build();
+    }
 
-        ChunkRef chunk = files.get(filename).getChunk(sequenceNo);
-        chunk.getReplicaLocations().remove(storageNode);
-        cleanup(Collections.singletonList(chunk));
+    private static ComponentAddress toComponentAddress(Messages.StorageNode storageNode) {
+        return new ComponentAddress(storageNode.getHost(), storageNode.getPort());
     }
 }
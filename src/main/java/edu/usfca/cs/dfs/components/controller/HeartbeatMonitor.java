@@ -5,19 +5,24 @@ import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
+import java.util.Set;
 
+/**
+ * Drives the {@link FailureDetector}, and removes the storage nodes it declares dead.
+ */
 public class HeartbeatMonitor implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(HeartbeatMonitor.class);
     private final Set<ComponentAddress> onlineStorageNodes;
-    private final Map<ComponentAddress, Date> heartbeats;
+    private final FailureDetector failureDetector;
     private final FileTable fileTable;
+    private final StorageUsage storageUsage;
 
-    public HeartbeatMonitor(Set<ComponentAddress> onlineStorageNodes, Map<ComponentAddress, Date> heartbeats, FileTable fileTable) {
+    public HeartbeatMonitor(Set<ComponentAddress> onlineStorageNodes, FailureDetector failureDetector, FileTable fileTable, StorageUsage storageUsage) {
         this.onlineStorageNodes = onlineStorageNodes;
-        this.heartbeats = heartbeats;
+        this.failureDetector = failureDetector;
         this.fileTable = fileTable;
+        this.storageUsage = storageUsage;
     }
 
     @Override
@@ -27,30 +32,17 @@ public class HeartbeatMonitor implements Runnable {
 
         try {
             while (true) {
-                // Can't remove items from list while iterating over it
-                List<ComponentAddress> toRemove = new ArrayList<>();
-
-                for (Map.Entry<ComponentAddress, Date> entry : heartbeats.entrySet()) {
-                    Date lastHeartbeat = entry.getValue();
-                    Date now = new Date();
-                    long differenceMilliseconds = now.getTime() - lastHeartbeat.getTime();
-                    if (differenceMilliseconds > maxHeartbeatAge) {
-                        // Uh oh
-                        ComponentAddress storageNode = entry.getKey();
-                        logger.warn("Haven't received any heartbeat from " + storageNode + " for the past " + differenceMilliseconds + " ms. Marking as unavailable.");
-                        if (onlineStorageNodes.contains(storageNode)) {
-                            onlineStorageNodes.remove(storageNode);
-                        }
-                        fileTable.onStorageNodeOffline(storageNode);
-                        toRemove.add(storageNode);
-                    }
-                }
+                Thread.sleep(heartbeatCheckPeriod);
 
-                for (ComponentAddress storageNode : toRemove) {
-                    heartbeats.remove(storageNode);
+                for (ComponentAddress storageNode : failureDetector.advance()) {
+                    // Uh oh
+                    logger.warn("Haven't received any heartbeat from " + storageNode + " for the past " + maxHeartbeatAge + " ms. Marking as unavailable.");
+                    // Offline in the file table first: a heartbeat that comes back once it is
+                    // removed from the online storage nodes has it reconcile its replicas
+                    fileTable.onStorageNodeOffline(storageNode);
+                    onlineStorageNodes.remove(storageNode);
+                    storageUsage.remove(storageNode);
                 }
-
-                Thread.sleep(heartbeatCheckPeriod);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -1,5 +1,8 @@
 package edu.usfca.cs.dfs.components.controller;
 
+import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.dedup.DedupLayout;
 import edu.usfca.cs.dfs.messages.Messages;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
@@ -8,22 +11,24 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
-import java.util.concurrent.*;
 
 class MessageProcessor implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(MessageProcessor.class);
+    private static final int LIST_FILES_BATCH_SIZE = 100;
     private final Map<ComponentAddress, MessageFifoQueue> messageQueues;
     private final Set<ComponentAddress> onlineStorageNodes;
-    private final Map<ComponentAddress, Date> heartbeats;
+    private final FailureDetector failureDetector;
+    private final StorageUsage storageUsage;
     private StorageNodeAddressService storageNodeAddressService;
     private final FileTable fileTable;
     private final Socket socket;
     private final Set<ComponentAddress> knownStorageNodes = new HashSet<>();
 
-    public MessageProcessor(StorageNodeAddressService storageNodeAddressService, Set<ComponentAddress> onlineStorageNodes, Map<ComponentAddress, Date> heartbeats, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable, Socket socket) {
+    public MessageProcessor(StorageNodeAddressService storageNodeAddressService, Set<ComponentAddress> onlineStorageNodes, FailureDetector failureDetector, StorageUsage storageUsage, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable, Socket socket) {
         this.storageNodeAddressService = storageNodeAddressService;
         this.onlineStorageNodes = onlineStorageNodes;
-        this.heartbeats = heartbeats;
+        this.failureDetector = failureDetector;
+        this.storageUsage = storageUsage;
         this.messageQueues = messageQueues;
         this.fileTable = fileTable;
         this.socket = socket;
@@ -52,16 +57,34 @@ class MessageProcessor implements Runnable {
                     processHeartbeatMsg(socket, msgWrapper);
                 } else if (msgWrapper.hasGetStoragesNodesRequestMsg()) {
                     logger.trace("Incoming get storage nodes request message");
-                    processGetStorageNodesRequestMsg(socket);
+                    processGetStorageNodesRequestMsg(socket, msgWrapper);
                 } else if (msgWrapper.hasDownloadFileMsg()) {
                     logger.trace("Incoming download file message");
                     processDownloadFileMsg(socket, msgWrapper);
                 } else if (msgWrapper.hasGetFilesRequestMsg()) {
                     logger.trace("Incoming get files request message");
                     processGetFilesRequestMsg(socket);
+                } else if (msgWrapper.hasDownloadFilesRequestMsg()) {
+                    logger.trace("Incoming download files message");
+                    processDownloadFilesRequestMsg(socket, msgWrapper);
+                } else if (msgWrapper.hasListFilesRequestMsg()) {
+                    logger.trace("Incoming list files request message");
+                    processListFilesRequestMsg(socket, msgWrapper);
                 } else if (msgWrapper.hasGetFreeSpaceRequestMsg()) {
                     logger.trace("Incoming get free space message");
                     processGetFreeSpaceRequestMsg(socket);
+                } else if (msgWrapper.hasFileAttributesMsg()) {
+                    logger.trace("Incoming file attributes message");
+                    processFileAttributesMsg(socket, msgWrapper);
+                } else if (msgWrapper.hasFileAttributesBatchMsg()) {
+                    logger.trace("Incoming file attributes batch message");
+                    processFileAttributesBatchMsg(socket, msgWrapper);
+                } else if (msgWrapper.hasDeleteFileMsg()) {
+                    logger.trace("Incoming delete file message");
+                    processDeleteFileMsg(socket, msgWrapper);
+                } else if (msgWrapper.hasSetBandwidthLimitsMsg()) {
+                    logger.trace("Incoming set bandwidth limits message");
+                    processSetBandwidthLimitsMsg(msgWrapper);
                 } else if (msgWrapper.hasChunkCorruptedMsg()) {
                     logger.trace("Incoming chunk corrupted message");
                     processChunkCorruptedMsg(msgWrapper);
@@ -84,120 +107,157 @@ class MessageProcessor implements Runnable {
         fileTable.onChunkCorrupted(filename, sequenceNo, storageNode);
     }
 
-    private void processGetFreeSpaceRequestMsg(Socket socket) throws IOException {
-        long globalFreeSpace = 0L;
-
-        List<Future<Long>> tasks = new ArrayList<>();
-        ExecutorService executor = Executors.newFixedThreadPool(4);
-        try {
-            for (ComponentAddress storageNode : onlineStorageNodes) {
-                GetFreeSpaceTask task = new GetFreeSpaceTask(storageNode);
-                tasks.add(executor.submit(task));
-            }
-
-            for (Future<Long> task : tasks) {
-                try {
-                    Long size = task.get();
-                    globalFreeSpace += size;
-                } catch (InterruptedException | ExecutionException e) {
-                    logger.error("Free space information not complete", e);
-                }
-            }
-
+    private void processFileAttributesMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        Messages.FileAttributes attributes = msgWrapper.getFileAttributesMsg();
+        if (isRefusedFilename(attributes.getFilename())) {
+            logger.warn("Refusing attributes of invalid or reserved filename " + attributes.getFilename());
             Messages.MessageWrapper.newBuilder()
-                    .setGetFreeSpaceResponseMsg(
-                            Messages.GetFreeSpaceResponse.newBuilder()
-                                    .setFreeSpace(globalFreeSpace)
-                                    .build()
-                    )
+                    .setErrorMsg(Messages.Error.newBuilder().setText("Error: Invalid or reserved filename").build())
                     .build()
                     .writeDelimitedTo(socket.getOutputStream());
-        } finally {
-            try {
-                logger.trace("Attempting to shutdown executor");
-                executor.shutdown();
-                executor.awaitTermination(5, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.error("Interrupted", e);
-            } finally {
-                if (!executor.isTerminated()) {
-                    logger.error("Some tasks didn't finish.");
-                }
-                executor.shutdownNow();
-                logger.trace("ExecutorService shutdown finished.");
+            return;
+        }
+        setFileAttributes(attributes);
+
+        if (DedupLayout.isDeduplicated(attributes)) {
+            // Tells the client which content chunks it doesn't need to upload
+            Messages.DownloadFileResponse fileMsg = fileTable.getFileMsg(attributes.getFilename());
+            Messages.MessageWrapper.Builder response = Messages.MessageWrapper.newBuilder();
+            if (fileMsg == null) {
+                // Deleted in the meantime
+                response.setErrorMsg(Messages.Error.newBuilder().setText("Error: File not found").build());
+            } else {
+                response.setDownloadFileResponseMsg(fileMsg);
             }
+            response.build().writeDelimitedTo(socket.getOutputStream());
+        } else {
+            Messages.MessageWrapper.newBuilder()
+                    .setFileAttributesAckMsg(Messages.FileAttributesAck.newBuilder().build())
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
         }
     }
 
-    private static class GetFreeSpaceTask implements Callable<Long> {
-
-        private final ComponentAddress storageNode;
-
-        private GetFreeSpaceTask(ComponentAddress storageNode) {
-            this.storageNode = storageNode;
+    private void processFileAttributesBatchMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        // All or nothing
+        for (Messages.FileAttributes attributes : msgWrapper.getFileAttributesBatchMsg().getFilesList()) {
+            if (isRefusedFilename(attributes.getFilename())) {
+                logger.warn("Refusing attributes of invalid or reserved filename " + attributes.getFilename());
+                Messages.MessageWrapper.newBuilder()
+                        .setErrorMsg(Messages.Error.newBuilder().setText("Error: Invalid or reserved filename " + attributes.getFilename()).build())
+                        .build()
+                        .writeDelimitedTo(socket.getOutputStream());
+                return;
+            }
+        }
+        for (Messages.FileAttributes attributes : msgWrapper.getFileAttributesBatchMsg().getFilesList()) {
+            setFileAttributes(attributes);
         }
 
-        @Override
-        public Long call() throws Exception {
-            long freeSpace;
-            Socket socket = storageNode.getSocket();
-
-            Messages.MessageWrapper.newBuilder()
-                    .setGetFreeSpaceRequestMsg(Messages.GetFreeSpaceRequest.newBuilder().build())
-                    .build()
-                    .writeDelimitedTo(socket.getOutputStream());
-
-            Messages.GetFreeSpaceResponse resp = receiveFreeSpaceResponse(socket);
-            freeSpace = resp.getFreeSpace();
+        Messages.MessageWrapper.newBuilder()
+                .setFileAttributesBatchAckMsg(Messages.FileAttributesBatchAck.newBuilder().build())
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+    }
 
-            socket.close();
+    // Names that would put chunk files outside of the chunks directory of storage nodes are
+    // refused. Content chunks are only managed by the controller, but clients register and
+    // delete pending versions of deduplicated files.
+    private static boolean isRefusedFilename(String filename) {
+        return !Utils.isValidFilename(filename)
+                || DedupLayout.isChunkFilename(filename) && !DedupLayout.isPendingFilename(filename);
+    }
 
-            return freeSpace;
+    // Also deletes the chunks only the previous version of the file had
+    private void setFileAttributes(Messages.FileAttributes attributes) {
+        List<ChunkRef> unreferencedChunks = fileTable.setFileAttributes(attributes);
+        if (!unreferencedChunks.isEmpty()) {
+            logger.info("Deleting " + unreferencedChunks.size() + " chunks of the previous version of " + attributes.getFilename());
         }
+        for (ChunkRef chunk : unreferencedChunks) {
+            for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
+                deleteReplica(chunk, storageNode);
+            }
+        }
+    }
 
-        private Messages.GetFreeSpaceResponse receiveFreeSpaceResponse(Socket socket) throws IOException {
-            Messages.MessageWrapper responseMsgWrapper = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
-            if (!responseMsgWrapper.hasGetFreeSpaceResponseMsg()) {
-                throw new IllegalStateException("Expected get free space response message, but got: " + responseMsgWrapper);
+    private void processDeleteFileMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        String filename = msgWrapper.getDeleteFileMsg().getFilename();
+        List<ChunkRef> chunks = null;
+        if (isRefusedFilename(filename)) {
+            logger.warn("Refusing to delete invalid or reserved filename " + filename);
+        } else {
+            chunks = fileTable.deleteFile(filename);
+        }
+        if (chunks != null) {
+            logger.info("Deleting " + filename + " and its " + chunks.size() + " chunks");
+            for (ChunkRef chunk : chunks) {
+                for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
+                    deleteReplica(chunk, storageNode);
+                }
             }
-            return responseMsgWrapper.getGetFreeSpaceResponseMsg();
         }
+
+        Messages.MessageWrapper.newBuilder()
+                .setDeleteFileResponseMsg(
+                        Messages.DeleteFileResponse.newBuilder()
+                                .setDeleted(chunks != null)
+                                .build()
+                )
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
     }
 
-    private void processGetFilesRequestMsg(Socket socket) throws IOException {
-        Map<ComponentAddress, Messages.StorageNode> storageNodeMap = new HashMap<>();
-        for (ComponentAddress address : onlineStorageNodes) {
-            storageNodeMap.put(address,
-                    Messages.StorageNode.newBuilder()
-                            .setHost(address.getHost())
-                            .setPort(address.getPort())
-                            .build());
+    private void deleteReplica(ChunkRef chunk, ComponentAddress storageNode) {
+        MessageFifoQueue queue = messageQueues.get(storageNode);
+        if (queue == null) {
+            // Offline: its replicas of deleted files are refused when it comes back
+            return;
         }
+        queue.queue(Messages.MessageWrapper.newBuilder()
+                .setDeleteChunkMsg(
+                        Messages.DeleteChunk.newBuilder()
+                                .setFileChunk(
+                                        Messages.FileChunk.newBuilder()
+                                                .setFilename(chunk.getFilename())
+                                                .setSequenceNo(chunk.getSequenceNo())
+                                                .build()
+                                )
+                                .build()
+                )
+                .build());
+    }
 
-        List<Messages.DownloadFileResponse> downloadFileResponseMessages = new ArrayList<>();
-        for (String filename : fileTable.getFilenames()) {
-            DFSFile file = fileTable.getFile(filename);
+    private void processSetBandwidthLimitsMsg(Messages.MessageWrapper msgWrapper) {
+        Messages.SetBandwidthLimits msg = msgWrapper.getSetBandwidthLimitsMsg();
+        logger.info("Setting background bandwidth limits of " + messageQueues.size() + " storage nodes to "
+                + msg.getOutgoingBytesPerSecond() + " B/s outgoing, " + msg.getIncomingBytesPerSecond() + " B/s incoming");
+        for (MessageFifoQueue queue : messageQueues.values()) {
+            queue.queue(msgWrapper);
+        }
+    }
 
-            List<Messages.DownloadFileResponse.ChunkLocation> chunkLocations = new ArrayList<>();
-            for (ChunkRef chunk : file.getChunks()) {
-                List<Messages.StorageNode> thisMsgStorageNodes = new ArrayList<>();
-                for (ComponentAddress address : chunk.getReplicaLocations()) {
-                    thisMsgStorageNodes.add(storageNodeMap.get(address));
-                }
-                chunkLocations.add(
-                        Messages.DownloadFileResponse.ChunkLocation.newBuilder()
-                                .setSequenceNo(chunk.getSequenceNo())
-                                .addAllStorageNodes(thisMsgStorageNodes)
+    private void processGetFreeSpaceRequestMsg(Socket socket) throws IOException {
+        // Up to date as of the last heartbeat of every storage node, no need to ask them
+        Messages.MessageWrapper.newBuilder()
+                .setGetFreeSpaceResponseMsg(
+                        Messages.GetFreeSpaceResponse.newBuilder()
+                                .setFreeSpace(storageUsage.getFreeSpace())
+                                .setTotalSpace(storageUsage.getTotalSpace())
+                                .setUsedSpace(storageUsage.getUsedSpace())
                                 .build()
-                );
-            }
+                )
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+    }
 
-            downloadFileResponseMessages.add(
-                    Messages.DownloadFileResponse.newBuilder()
-                            .setFilename(filename)
-                            .addAllChunkLocations(chunkLocations)
-                            .build()
-            );
+    private void processGetFilesRequestMsg(Socket socket) throws IOException {
+        List<Messages.DownloadFileResponse> downloadFileResponseMessages = new ArrayList<>();
+        for (String filename : fileTable.getFilenames()) {
+            Messages.DownloadFileResponse fileMsg = fileTable.getFileMsg(filename);
+            if (fileMsg != null) { // might have been removed in the meantime
+                downloadFileResponseMessages.add(fileMsg);
+            }
         }
 
         Messages.MessageWrapper.newBuilder()
@@ -210,12 +270,89 @@ class MessageProcessor implements Runnable {
                 .writeDelimitedTo(socket.getOutputStream());
     }
 
+    private void processListFilesRequestMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        Messages.ListFilesRequest msg = msgWrapper.getListFilesRequestMsg();
+        int maxPageSize = DFSProperties.getInstance().getListPageSize();
+        int pageSize = msg.getPageSize() <= 0 ? maxPageSize : Math.min(msg.getPageSize(), maxPageSize);
+        String startAfter = msg.getPageToken().isEmpty() ? null : msg.getPageToken();
+
+        if (msg.getDirectory()) {
+            listDirectory(socket, msg.getPrefix(), startAfter, pageSize);
+            return;
+        }
+
+        // One more, to know if there is a next page
+        List<String> filenames = fileTable.listFilenames(msg.getPrefix(), startAfter, pageSize + 1);
+        boolean hasNextPage = filenames.size() > pageSize;
+        if (hasNextPage) {
+            filenames = filenames.subList(0, pageSize);
+        }
+
+        // Stream the page in small messages, so neither side has to hold all of it at once
+        int i = 0;
+        do {
+            List<String> batch = filenames.subList(i, Math.min(i + LIST_FILES_BATCH_SIZE, filenames.size()));
+            i += batch.size();
+
+            Messages.ListFilesResponse.Builder response = Messages.ListFilesResponse.newBuilder()
+                    .addAllFilenames(batch);
+            if (msg.getWithChunkLocations()) {
+                for (String filename : batch) {
+                    Messages.DownloadFileResponse fileMsg = fileTable.getFileMsg(filename);
+                    if (fileMsg != null) { // might have been removed in the meantime
+                        response.addFiles(fileMsg);
+                    }
+                }
+            }
+            if (i == filenames.size()) {
+                response.setLast(true);
+                if (hasNextPage) {
+                    response.setNextPageToken(filenames.get(filenames.size() - 1));
+                }
+            }
+
+            Messages.MessageWrapper.newBuilder()
+                    .setListFilesResponseMsg(response.build())
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
+        } while (i < filenames.size());
+    }
+
+    private void listDirectory(Socket socket, String directory, String startAfter, int pageSize) throws IOException {
+        List<Messages.DirectoryEntry> entries = fileTable.listDirectory(directory, startAfter, pageSize + 1);
+        boolean hasNextPage = entries.size() > pageSize;
+        if (hasNextPage) {
+            entries = entries.subList(0, pageSize);
+        }
+
+        int i = 0;
+        do {
+            List<Messages.DirectoryEntry> batch = entries.subList(i, Math.min(i + LIST_FILES_BATCH_SIZE, entries.size()));
+            i += batch.size();
+
+            Messages.ListFilesResponse.Builder response = Messages.ListFilesResponse.newBuilder()
+                    .addAllEntries(batch);
+            if (i == entries.size()) {
+                response.setLast(true);
+                response.setDirectoryFileCount(fileTable.getDirectoryFileCount(directory));
+                if (hasNextPage) {
+                    response.setNextPageToken(entries.get(entries.size() - 1).getName());
+                }
+            }
+
+            Messages.MessageWrapper.newBuilder()
+                    .setListFilesResponseMsg(response.build())
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
+        } while (i < entries.size());
+    }
+
     private void processDownloadFileMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
         Messages.DownloadFile msg = msgWrapper.getDownloadFileMsg();
         String fileName = msg.getFileName();
-        DFSFile file = fileTable.getFile(fileName);
+        Messages.DownloadFileResponse internalMsg = fileTable.getFileMsg(fileName);
 
-        if (file == null) {
+        if (internalMsg == null) {
             Messages.MessageWrapper responseMsg = Messages.MessageWrapper.newBuilder()
                     .setErrorMsg(Messages.Error.newBuilder().setText("Error: File not found").build())
                     .build();
@@ -223,24 +360,6 @@ class MessageProcessor implements Runnable {
             return;
         }
 
-        SortedSet<ChunkRef> chunks = file.getChunks();
-
-        Messages.DownloadFileResponse.Builder downloadFileResponseBuilder = Messages.DownloadFileResponse.newBuilder();
-        downloadFileResponseBuilder.setFilename(fileName);
-
-        for (ChunkRef chunk : chunks) {
-            Messages.DownloadFileResponse.ChunkLocation.Builder chunkLocationBuilder = Messages.DownloadFileResponse.ChunkLocation.newBuilder()
-                    .setSequenceNo(chunk.getSequenceNo());
-            for (ComponentAddress storageNode : chunk.getReplicaLocations()) {
-                chunkLocationBuilder.addStorageNodes(Messages.StorageNode.newBuilder()
-                        .setHost(storageNode.getHost())
-                        .setPort(storageNode.getPort())
-                        .build());
-            }
-            downloadFileResponseBuilder.addChunkLocations(chunkLocationBuilder.build());
-        }
-
-        Messages.DownloadFileResponse internalMsg = downloadFileResponseBuilder.build();
         Messages.MessageWrapper outMsgWrapper = Messages.MessageWrapper.newBuilder()
                 .setDownloadFileResponseMsg(internalMsg)
                 .build();
@@ -248,15 +367,51 @@ class MessageProcessor implements Runnable {
         outMsgWrapper.writeDelimitedTo(socket.getOutputStream());
     }
 
+    private void processDownloadFilesRequestMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        Messages.DownloadFilesRequest msg = msgWrapper.getDownloadFilesRequestMsg();
+        Messages.DownloadFilesResponse.Builder response = Messages.DownloadFilesResponse.newBuilder();
+
+        Set<String> filenames = new LinkedHashSet<>(msg.getFilenamesList());
+        if (!msg.getPrefix().isEmpty()) {
+            int maxFiles = DFSProperties.getInstance().getListPageSize();
+            List<String> prefixFilenames = fileTable.listFilenames(msg.getPrefix(), null, maxFiles + 1);
+            if (prefixFilenames.size() > maxFiles) {
+                prefixFilenames = prefixFilenames.subList(0, maxFiles);
+                response.setTruncated(true);
+            }
+            filenames.addAll(prefixFilenames);
+        }
+
+        for (String filename : filenames) {
+            Messages.DownloadFileResponse fileMsg = fileTable.getFileMsg(filename);
+            if (fileMsg == null) {
+                response.addMissingFilenames(filename);
+            } else {
+                response.addFiles(fileMsg);
+            }
+        }
+
+        logger.debug("Telling client where the parts of " + response.getFilesCount() + " files are");
+        Messages.MessageWrapper.newBuilder()
+                .setDownloadFilesResponseMsg(response.build())
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+    }
+
     private void removeMessageQueue() {
         if (storageNodeAddressService.getStorageNodeAddress() != null) {
             messageQueues.remove(storageNodeAddressService.getStorageNodeAddress());
         }
     }
 
-    private void processGetStorageNodesRequestMsg(Socket socket) throws IOException {
-        List<Messages.StorageNode> msgStorageNodeList = new ArrayList<>(onlineStorageNodes.size());
-        for (ComponentAddress onlineStorageNode : onlineStorageNodes) {
+    private void processGetStorageNodesRequestMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
+        Collection<ComponentAddress> storageNodes = onlineStorageNodes;
+        if (msgWrapper.getGetStoragesNodesRequestMsg().getWritable()) {
+            storageNodes = storageUsage.getWritableStorageNodes(onlineStorageNodes, DFSProperties.getInstance().getChunkSize());
+        }
+
+        List<Messages.StorageNode> msgStorageNodeList = new ArrayList<>(storageNodes.size());
+        for (ComponentAddress onlineStorageNode : storageNodes) {
             msgStorageNodeList.add(Messages.StorageNode.newBuilder()
                     .setHost(onlineStorageNode.getHost())
                     .setPort(onlineStorageNode.getPort())
@@ -280,12 +435,20 @@ class MessageProcessor implements Runnable {
         ComponentAddress storageNode = new ComponentAddress(msg.getStorageNodeHost(), msg.getStorageNodePort());
 
         // Remember that we have seen this heartbeat, to detect missing heartbeats later.
-        heartbeats.put(storageNode, new Date());
+        failureDetector.heartbeat(storageNode);
+        storageUsage.update(storageNode, msg.getTotalSpace(), msg.getUsedSpace(), msg.getFreeSpace());
 
         this.storageNodeAddressService.setStorageNodeAddress(storageNodeAddress);
-        onlineStorageNodes.add(storageNodeAddress);
+        if (onlineStorageNodes.add(storageNodeAddress)) {
+            // Back after it was taken offline, e.g. after a long pause: its replicas were
+            // forgotten, so it must send the complete list of its chunks again
+            knownStorageNodes.remove(storageNode);
+        }
         createMessageQueueIfNotExists(storageNodeAddress);
 
+        for (String filename : msg.getDeletedFilesList()) {
+            fileTable.confirmDeletion(filename, storageNode);
+        }
         if (isFirstHearbeat(storageNode)) {
             onFirstHeartbeat(storageNode);
         } else {
@@ -323,9 +486,14 @@ class MessageProcessor implements Runnable {
             if (!responseMsgWrp.hasGetStorageNodeFilesResponse()) {
                 logger.error("Expected Storage Node Files Response from " + storageNode + " but got: " + responseMsgWrp);
             } else {
-                Map<String, SortedSet<Integer>> fileChunks = processFileChunksFromStorageNode(
-                        responseMsgWrp.getGetStorageNodeFilesResponse().getFilesList(),
-                        storageNode);
+                // Complete list, so replicas recovered from the metadata log that are not
+                // on the storage node anymore can be removed
+                Map<String, SortedSet<Integer>> fileChunks = toFileChunksMap(
+                        responseMsgWrp.getGetStorageNodeFilesResponse().getFilesList());
+                for (ChunkRef chunk : fileTable.reconcileStorageNode(storageNode, fileChunks)) {
+                    logger.debug(storageNode + " still has " + chunk + " of a deleted file. Telling it to delete it.");
+                    deleteReplica(chunk, storageNode);
+                }
                 logger.debug("Got back the complete list of files from " + storageNode + ": " + fileChunks);
             }
         }
@@ -337,7 +505,10 @@ class MessageProcessor implements Runnable {
             String filename = entry.getKey();
             SortedSet<Integer> sequenceNos = entry.getValue();
             for (Integer sequenceNo : sequenceNos) {
-                fileTable.publishChunk(filename, sequenceNo, storageNode);
+                if (!fileTable.publishChunk(filename, sequenceNo, storageNode)) {
+                    logger.debug(storageNode + " got chunk " + sequenceNo + " of deleted file " + filename + ". Telling it to delete it.");
+                    deleteReplica(new ChunkRef(filename, sequenceNo, Collections.singleton(storageNode)), storageNode);
+                }
             }
         }
         return fileChunks;
@@ -14,15 +14,24 @@ public class MessageSender implements Runnable {
 
     private final StorageNodeAddressService storageNodeAddressService;
     private final Map<ComponentAddress, MessageFifoQueue> messageQueues;
+    private final FileTable fileTable;
     private Socket mSocket;
 
-    public MessageSender(StorageNodeAddressService storageNodeAddressService, Map<ComponentAddress, MessageFifoQueue> messageQueues) {
+    public MessageSender(StorageNodeAddressService storageNodeAddressService, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable) {
         this.storageNodeAddressService = storageNodeAddressService;
         this.messageQueues = messageQueues;
+        this.fileTable = fileTable;
     }
 
     @Override
     public void run() {
+        try {
+            // Avoid race condition (would have no effect besides warning message), without
+            // keeping the controller from accepting the next connection meanwhile
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            return;
+        }
         ComponentAddress storageNode = storageNodeAddressService.getStorageNodeAddress();
         MessageFifoQueue messageQueue = messageQueues.get(storageNode);
         try {
@@ -30,6 +39,12 @@ public class MessageSender implements Runnable {
             while (!socket.isClosed()) {
                 try {
                     Messages.MessageWrapper msg = messageQueue.next();
+                    // Content chunks may be referenced again while the delete was queued
+                    if (msg.hasDeleteChunkMsg() && fileTable.keepReferencedContentChunk(
+                            msg.getDeleteChunkMsg().getFileChunk().getFilename(), storageNode)) {
+                        logger.debug("Not sending " + msg + " to " + storageNode + ": referenced again");
+                        continue;
+                    }
                     logger.trace("Sending message to " + socket.getRemoteSocketAddress() + ": " + msg);
                     msg.writeDelimitedTo(socket.getOutputStream());
                 } catch (InterruptedException e) {
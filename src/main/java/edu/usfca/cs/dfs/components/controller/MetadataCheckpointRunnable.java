@@ -0,0 +1,32 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically writes a snapshot of the file table, so that the write-ahead log
+ * stays small and the controller restarts quickly.
+ */
+public class MetadataCheckpointRunnable implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCheckpointRunnable.class);
+    private final FileTable fileTable;
+
+    public MetadataCheckpointRunnable(FileTable fileTable) {
+        this.fileTable = fileTable;
+    }
+
+    @Override
+    public void run() {
+        int snapshotPeriod = DFSProperties.getInstance().getMetadataSnapshotPeriod();
+        try {
+            while (true) {
+                Thread.sleep(snapshotPeriod);
+                fileTable.checkpoint();
+            }
+        } catch (InterruptedException e) {
+            logger.error("Thread interrupted", e);
+        }
+    }
+}
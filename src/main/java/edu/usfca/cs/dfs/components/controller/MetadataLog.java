@@ -0,0 +1,150 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.usfca.cs.dfs.messages.Messages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Write-ahead log (WAL) and snapshot of the controller metadata.
+ * <p>
+ * Every change made to the {@link FileTable} is appended to the WAL. Every once in a while
+ * the file table is written out as a compact snapshot, and the WAL is truncated.
+ * On startup, the controller replays the snapshot and then the WAL, so it knows
+ * where chunks are before any storage node has sent a heartbeat.
+ * <p>
+ * Both files are a sequence of delimited {@link Messages.MetadataRecord}.
+ * The WAL is flushed after every record, which survives a controller crash but not
+ * necessarily a power failure of the controller host.
+ */
+public class MetadataLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataLog.class);
+
+    private static final String SNAPSHOT_FILENAME = "snapshot";
+    private static final String SNAPSHOT_TMP_FILENAME = "snapshot.tmp";
+    private static final String WAL_FILENAME = "wal";
+
+    private final Path directory;
+    private OutputStream walOutputStream;
+    private FileOutputStream snapshotFileOutputStream;
+    private OutputStream snapshotOutputStream;
+
+    public MetadataLog(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * Apply the snapshot, then the WAL, to the file table.
+     *
+     * @param fileTable empty file table
+     * @return number of records replayed
+     * @throws IOException if the snapshot or the WAL could not be read
+     */
+    public int replay(FileTable fileTable) throws IOException {
+        int count = replayFile(directory.resolve(SNAPSHOT_FILENAME), fileTable);
+        count += replayFile(directory.resolve(WAL_FILENAME), fileTable);
+        return count;
+    }
+
+    private int replayFile(Path path, FileTable fileTable) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        int count = 0;
+        try (InputStream is = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+            while (true) {
+                Messages.MetadataRecord record;
+                try {
+                    record = Messages.MetadataRecord.parseDelimitedFrom(is);
+                } catch (InvalidProtocolBufferException e) {
+                    // Controller probably died while writing the last record
+                    logger.warn("Ignoring truncated record at the end of " + path);
+                    break;
+                }
+                if (record == null) {
+                    break;
+                }
+                fileTable.apply(record);
+                count++;
+            }
+        }
+        logger.debug("Replayed " + count + " records from " + path);
+        return count;
+    }
+
+    /**
+     * Append a record to the WAL.
+     *
+     * @param record record describing a change to the file table
+     * @throws IOException if the record could not be written
+     */
+    public void append(Messages.MetadataRecord record) throws IOException {
+        if (walOutputStream == null) {
+            walOutputStream = new BufferedOutputStream(
+                    new FileOutputStream(directory.resolve(WAL_FILENAME).toFile(), true));
+        }
+        record.writeDelimitedTo(walOutputStream);
+        walOutputStream.flush();
+    }
+
+    /**
+     * Start writing a new snapshot. The caller must make sure no record is appended
+     * to the WAL until {@link #commitSnapshot()} is called, otherwise that record
+     * would be lost.
+     *
+     * @throws IOException if the snapshot file could not be created
+     */
+    public void beginSnapshot() throws IOException {
+        snapshotFileOutputStream = new FileOutputStream(directory.resolve(SNAPSHOT_TMP_FILENAME).toFile());
+        snapshotOutputStream = new BufferedOutputStream(snapshotFileOutputStream);
+    }
+
+    public void writeSnapshotRecord(Messages.MetadataRecord record) throws IOException {
+        record.writeDelimitedTo(snapshotOutputStream);
+    }
+
+    /**
+     * Atomically replace the previous snapshot with the new one, and truncate the WAL.
+     *
+     * @throws IOException if the snapshot could not be written
+     */
+    public void commitSnapshot() throws IOException {
+        snapshotOutputStream.flush();
+        snapshotFileOutputStream.getFD().sync();
+        snapshotOutputStream.close();
+        snapshotOutputStream = null;
+
+        Files.move(directory.resolve(SNAPSHOT_TMP_FILENAME), directory.resolve(SNAPSHOT_FILENAME),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (walOutputStream != null) {
+            walOutputStream.close();
+            walOutputStream = null;
+        }
+        Files.deleteIfExists(directory.resolve(WAL_FILENAME));
+    }
+
+    /**
+     * Give up on a snapshot that could not be written completely.
+     * The previous snapshot and the WAL are still valid.
+     */
+    public void abortSnapshot() {
+        if (snapshotOutputStream != null) {
+            try {
+                snapshotOutputStream.close();
+            } catch (IOException e) {
+                logger.error("Could not close snapshot file", e);
+            }
+            snapshotOutputStream = null;
+        }
+    }
+}
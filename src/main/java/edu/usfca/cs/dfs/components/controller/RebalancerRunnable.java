@@ -0,0 +1,196 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Periodically moves chunks from the storage nodes that have the most replicas to the
+ * ones that have the fewest, so that new storage nodes get their share of existing data
+ * (and of the read load), not only new writes.
+ * <p>
+ * A move is a copy followed by a delete: the source is ordered to send the chunk to the
+ * target, and once the target reports the new replica in a heartbeat, the source is
+ * ordered to delete its own. Only a limited number of moves are in flight at the same
+ * time, so rebalancing doesn't eat all the bandwidth of the cluster. Nothing is moved
+ * once every storage node is within the configured threshold of the mean.
+ */
+public class RebalancerRunnable implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RebalancerRunnable.class);
+    private final Set<ComponentAddress> storageNodes;
+    private final Map<ComponentAddress, MessageFifoQueue> messageQueues;
+    private final FileTable fileTable;
+
+    // Moves ordered but not completed yet, by chunk
+    private final Map<String, Move> pendingMoves = new HashMap<>();
+
+    public RebalancerRunnable(Set<ComponentAddress> onlineStorageNodes, Map<ComponentAddress, MessageFifoQueue> messageQueues, FileTable fileTable) {
+        this.storageNodes = onlineStorageNodes;
+        this.messageQueues = messageQueues;
+        this.fileTable = fileTable;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int rebalancePeriod = DFSProperties.getInstance().getRebalancePeriod();
+            while (true) {
+                Thread.sleep(rebalancePeriod);
+                completePendingMoves();
+                orderMoves();
+            }
+        } catch (InterruptedException e) {
+            logger.error("Thread interrupted", e);
+        }
+    }
+
+    private void completePendingMoves() {
+        long now = System.currentTimeMillis();
+        Iterator<Move> it = pendingMoves.values().iterator();
+        while (it.hasNext()) {
+            Move move = it.next();
+            ChunkRef chunk = move.chunk;
+            if (fileTable.hasReplica(chunk.getFilename(), chunk.getSequenceNo(), move.target)) {
+                it.remove();
+                MessageFifoQueue sourceQueue = messageQueues.get(move.source);
+                // Keep the source replica if it is still needed, e.g. because another replica got lost meanwhile
+                if (sourceQueue != null && fileTable.removeExtraReplica(chunk.getFilename(), chunk.getSequenceNo(), move.source)) {
+                    logger.debug("Moved " + chunk + " to " + move.target + ", telling " + move.source + " to delete it");
+                    sourceQueue.queue(buildDeleteChunkMsg(chunk));
+                }
+            } else if (now > move.deadline) {
+                logger.warn("Giving up on moving " + chunk + " from " + move.source + " to " + move.target);
+                it.remove();
+            }
+        }
+    }
+
+    private void orderMoves() {
+        DFSProperties properties = DFSProperties.getInstance();
+        int maxMoves = properties.getRebalanceMaxMoves();
+        double threshold = properties.getRebalanceThreshold();
+        long deadline = System.currentTimeMillis() + properties.getRebalanceMoveTimeout();
+
+        Set<ComponentAddress> connectedNodes = new HashSet<>(storageNodes);
+        connectedNodes.retainAll(messageQueues.keySet());
+        if (connectedNodes.size() < 2 || pendingMoves.size() >= maxMoves) {
+            return;
+        }
+
+        // Count pending moves as done, so they are not ordered again
+        Map<ComponentAddress, Integer> counts = fileTable.getReplicaCounts(connectedNodes);
+        for (Move move : pendingMoves.values()) {
+            if (counts.containsKey(move.source)) {
+                counts.put(move.source, counts.get(move.source) - 1);
+            }
+            if (counts.containsKey(move.target)) {
+                counts.put(move.target, counts.get(move.target) + 1);
+            }
+        }
+
+        long total = 0;
+        for (int count : counts.values()) {
+            total += count;
+        }
+        double mean = (double) total / counts.size();
+        double upperBound = mean * (1 + threshold);
+        double lowerBound = mean * (1 - threshold);
+
+        while (pendingMoves.size() < maxMoves) {
+            ComponentAddress source = Collections.max(counts.keySet(), byCount(counts));
+            ComponentAddress target = Collections.min(counts.keySet(), byCount(counts));
+            int sourceCount = counts.get(source);
+            int targetCount = counts.get(target);
+            if ((sourceCount <= upperBound && targetCount >= lowerBound) || sourceCount - targetCount < 2) {
+                break;
+            }
+
+            ChunkRef chunk = chooseChunk(source, target, maxMoves);
+            if (chunk == null) {
+                logger.debug("Nothing can be moved from " + source + " to " + target);
+                break;
+            }
+
+            logger.debug("Telling " + source + " to move " + chunk + " to " + target);
+            pendingMoves.put(toKey(chunk), new Move(chunk, source, target, deadline));
+            messageQueues.get(source).queue(buildOrderChunkMsg(chunk, target));
+            counts.put(source, sourceCount - 1);
+            counts.put(target, targetCount + 1);
+        }
+    }
+
+    // A chunk of the source that the target doesn't have, and that isn't being moved already
+    private ChunkRef chooseChunk(ComponentAddress source, ComponentAddress target, int maxMoves) {
+        for (ChunkRef chunk : fileTable.getMovableChunks(source, target, pendingMoves.size() + maxMoves)) {
+            if (!pendingMoves.containsKey(toKey(chunk))) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    private static Comparator<ComponentAddress> byCount(final Map<ComponentAddress, Integer> counts) {
+        return new Comparator<ComponentAddress>() {
+            @Override
+            public int compare(ComponentAddress o1, ComponentAddress o2) {
+                return Integer.compare(counts.get(o1), counts.get(o2));
+            }
+        };
+    }
+
+    private static String toKey(ChunkRef chunk) {
+        return chunk.getFilename() + "-chunk" + chunk.getSequenceNo();
+    }
+
+    private static Messages.MessageWrapper buildOrderChunkMsg(ChunkRef chunk, ComponentAddress target) {
+        return Messages.MessageWrapper.newBuilder()
+                .setOrderSendChunkMsg(
+                        Messages.OrderSendChunk.newBuilder()
+                                .setStorageNode(
+                                        Messages.StorageNode.newBuilder()
+                                                .setHost(target.getHost())
+                                                .setPort(target.getPort())
+                                                .build()
+                                )
+                                .setFileChunk(toFileChunkMsg(chunk))
+                                .build()
+                )
+                .build();
+    }
+
+    private static Messages.MessageWrapper buildDeleteChunkMsg(ChunkRef chunk) {
+        return Messages.MessageWrapper.newBuilder()
+                .setDeleteChunkMsg(
+                        Messages.DeleteChunk.newBuilder()
+                                .setFileChunk(toFileChunkMsg(chunk))
+                                .build()
+                )
+                .build();
+    }
+
+    private static Messages.FileChunk toFileChunkMsg(ChunkRef chunk) {
+        return Messages.FileChunk.newBuilder()
+                .setFilename(chunk.getFilename())
+                .setSequenceNo(chunk.getSequenceNo())
+                .build();
+    }
+
+    private static class Move {
+        private final ChunkRef chunk;
+        private final ComponentAddress source;
+        private final ComponentAddress target;
+        private final long deadline;
+
+        private Move(ChunkRef chunk, ComponentAddress source, ComponentAddress target, long deadline) {
+            this.chunk = chunk;
+            this.source = source;
+            this.target = target;
+            this.deadline = deadline;
+        }
+    }
+}
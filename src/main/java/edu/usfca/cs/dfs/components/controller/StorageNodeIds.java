@@ -0,0 +1,66 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a small integer ID to every storage node seen by the controller, so that
+ * the file table can store replica locations as arrays of ints instead of
+ * sets of {@link ComponentAddress}.
+ * <p>
+ * IDs are never reused, a storage node that comes back online gets the same ID.
+ * Not thread-safe, only used while holding the {@link FileTable} lock.
+ */
+class StorageNodeIds {
+    private final Map<ComponentAddress, Integer> ids = new HashMap<>();
+    private final List<ComponentAddress> addresses = new ArrayList<>();
+    private final List<Messages.StorageNode> storageNodeMessages = new ArrayList<>();
+
+    /**
+     * Returns the ID of a storage node, assigning a new one if the storage node was never seen before.
+     *
+     * @param storageNode storage node address
+     * @return storage node ID
+     */
+    int intern(ComponentAddress storageNode) {
+        Integer id = ids.get(storageNode);
+        if (id == null) {
+            id = addresses.size();
+            ids.put(storageNode, id);
+            addresses.add(storageNode);
+            storageNodeMessages.add(Messages.StorageNode.newBuilder()
+                    .setHost(storageNode.getHost())
+                    .setPort(storageNode.getPort())
+                    .build());
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ID of a storage node.
+     *
+     * @param storageNode storage node address
+     * @return storage node ID, or -1 if the storage node was never seen before
+     */
+    int getId(ComponentAddress storageNode) {
+        Integer id = ids.get(storageNode);
+        return id == null ? -1 : id;
+    }
+
+    ComponentAddress getAddress(int id) {
+        return addresses.get(id);
+    }
+
+    Messages.StorageNode getStorageNodeMsg(int id) {
+        return storageNodeMessages.get(id);
+    }
+
+    int size() {
+        return addresses.size();
+    }
+}
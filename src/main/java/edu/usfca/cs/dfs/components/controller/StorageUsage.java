@@ -0,0 +1,136 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+
+import java.util.*;
+
+/**
+ * Disk usage of the storage nodes, as reported in their heartbeats, and its total
+ * over the whole cluster. The totals are updated with every heartbeat, so asking for
+ * them doesn't involve the storage nodes at all.
+ * <p>
+ * Storage nodes chosen to receive a chunk have their free space lowered right away,
+ * so that the next choice, made before the next heartbeat, takes it into account.
+ */
+public class StorageUsage {
+
+    private final Map<ComponentAddress, Usage> usages = new HashMap<>();
+
+    private long totalSpace = 0;
+    private long usedSpace = 0;
+    private long freeSpace = 0;
+
+    /**
+     * Record the disk usage reported by a storage node.
+     *
+     * @param storageNode storage node
+     * @param totalSpace  size of the disk the chunks are stored on
+     * @param usedSpace   bytes used by chunks
+     * @param freeSpace   bytes still available on the disk
+     */
+    public synchronized void update(ComponentAddress storageNode, long totalSpace, long usedSpace, long freeSpace) {
+        remove(storageNode);
+        usages.put(storageNode, new Usage(totalSpace, usedSpace, freeSpace));
+        this.totalSpace += totalSpace;
+        this.usedSpace += usedSpace;
+        this.freeSpace += freeSpace;
+    }
+
+    /**
+     * Forget a storage node that went offline.
+     *
+     * @param storageNode storage node
+     */
+    public synchronized void remove(ComponentAddress storageNode) {
+        Usage usage = usages.remove(storageNode);
+        if (usage != null) {
+            totalSpace -= usage.totalSpace;
+            usedSpace -= usage.usedSpace;
+            freeSpace -= usage.freeSpace;
+        }
+    }
+
+    public synchronized long getTotalSpace() {
+        return totalSpace;
+    }
+
+    public synchronized long getUsedSpace() {
+        return usedSpace;
+    }
+
+    public synchronized long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Returns the free space of a storage node.
+     *
+     * @param storageNode storage node
+     * @return free space in bytes, or -1 if the storage node hasn't reported it yet
+     */
+    public synchronized long getFreeSpace(ComponentAddress storageNode) {
+        Usage usage = usages.get(storageNode);
+        return usage == null ? -1 : usage.freeSpace;
+    }
+
+    /**
+     * Returns the storage nodes that have room for a chunk, those with the most free space first.
+     * Storage nodes that haven't reported their free space yet come last.
+     *
+     * @param storageNodes candidate storage nodes
+     * @param chunkSize    size of a chunk
+     * @return storage nodes, sorted
+     */
+    public synchronized List<ComponentAddress> getWritableStorageNodes(Collection<ComponentAddress> storageNodes, long chunkSize) {
+        List<ComponentAddress> result = new ArrayList<>();
+        for (ComponentAddress storageNode : storageNodes) {
+            long nodeFreeSpace = getFreeSpace(storageNode);
+            if (nodeFreeSpace == -1 || nodeFreeSpace >= chunkSize) {
+                result.add(storageNode);
+            }
+        }
+        Collections.sort(result, new Comparator<ComponentAddress>() {
+            @Override
+            public int compare(ComponentAddress o1, ComponentAddress o2) {
+                return Long.compare(getFreeSpace(o2), getFreeSpace(o1));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Choose the storage nodes that have the most free space to receive a chunk,
+     * and count the chunk as stored on them until their next heartbeat.
+     *
+     * @param n            number of storage nodes needed
+     * @param storageNodes candidate storage nodes
+     * @param chunkSize    size of the chunk
+     * @return at most n storage nodes, fewer if not enough have room for the chunk
+     */
+    public synchronized Set<ComponentAddress> chooseStorageNodes(int n, Collection<ComponentAddress> storageNodes, long chunkSize) {
+        List<ComponentAddress> writable = getWritableStorageNodes(storageNodes, chunkSize);
+        Set<ComponentAddress> chosen = new HashSet<>(writable.subList(0, Math.min(n, writable.size())));
+        for (ComponentAddress storageNode : chosen) {
+            Usage usage = usages.get(storageNode);
+            if (usage != null) {
+                usage.usedSpace += chunkSize;
+                usage.freeSpace -= chunkSize;
+                usedSpace += chunkSize;
+                freeSpace -= chunkSize;
+            }
+        }
+        return chosen;
+    }
+
+    private static class Usage {
+        private final long totalSpace;
+        private long usedSpace;
+        private long freeSpace;
+
+        private Usage(long totalSpace, long usedSpace, long freeSpace) {
+            this.totalSpace = totalSpace;
+            this.usedSpace = usedSpace;
+            this.freeSpace = freeSpace;
+        }
+    }
+}
@@ -20,49 +20,31 @@ public class ChunkCorruptionMonitor implements Runnable {
     private final Map<String, SortedSet<Chunk>> chunkMap;
     private final Lock chunkMapLock;
     private final ComponentAddress controllerAddr;
+    private final IoScheduler ioScheduler;
 
-    public ChunkCorruptionMonitor(ComponentAddress storageNode, Map<String, SortedSet<Chunk>> chunkMap, Lock chunkMapLock, ComponentAddress controllerAddr) {
+    public ChunkCorruptionMonitor(ComponentAddress storageNode, Map<String, SortedSet<Chunk>> chunkMap, Lock chunkMapLock, ComponentAddress controllerAddr, IoScheduler ioScheduler) {
         this.storageNode = storageNode;
         this.chunkMap = chunkMap;
         this.chunkMapLock = chunkMapLock;
         this.controllerAddr = controllerAddr;
+        this.ioScheduler = ioScheduler;
     }
 
     @Override
     public void run() {
         while (true) {
-            chunkMapLock.lock();
-            try {
-                logger.debug("Checking for corrupted files...");
-                for (SortedSet<Chunk> chunks : chunkMap.values()) {
-                    List<Chunk> corruptedChunks = new ArrayList<>();
-                    for (Chunk chunk : chunks) {
-                        if (chunk.isCorrupted()) {
-                            logger.warn("Chunk " + chunk + " is corrupted.");
-                            corruptedChunks.add(chunk);
-                        }
-                    }
-                    for (Chunk chunk : corruptedChunks) {
-                        File chunkFile = chunk.getChunkLocalPath().toFile();
-                        File checksumFile = new File(chunkFile.getAbsolutePath() + ".md5");
-                        chunkFile.delete();
-                        checksumFile.delete();
-                        chunks.remove(chunk);
-                        try {
-                            notifyChunkCorrupted(chunk);
-                        } catch (IOException e) {
-                            logger.error("Unable to connect to controller");
-                        }
+            logger.debug("Checking for corrupted files...");
+            // Chunks are read outside of the lock, at the lowest I/O priority,
+            // so that storing and serving chunks doesn't wait for the verification
+            for (Chunk chunk : getChunks()) {
+                try {
+                    if (isCorrupted(chunk)) {
+                        logger.warn("Chunk " + chunk + " is corrupted.");
+                        removeCorruptedChunk(chunk);
                     }
-                }
-            } finally {
-                chunkMapLock.unlock();
-            }
-
-            // We might have removed all known chunks of a file
-            for (String filename : new HashSet<>(chunkMap.keySet())) {
-                if (chunkMap.get(filename).isEmpty()) {
-                    chunkMap.remove(filename);
+                } catch (IOException | RuntimeException e) {
+                    // Most likely deleted in the meantime
+                    logger.debug("Could not verify chunk " + chunk, e);
                 }
             }
 
@@ -74,6 +56,41 @@ public class ChunkCorruptionMonitor implements Runnable {
         }
     }
 
+    private List<Chunk> getChunks() {
+        List<Chunk> result = new ArrayList<>();
+        chunkMapLock.lock();
+        try {
+            for (SortedSet<Chunk> chunks : chunkMap.values()) {
+                result.addAll(chunks);
+            }
+        } finally {
+            chunkMapLock.unlock();
+        }
+        return result;
+    }
+
+    private boolean isCorrupted(final Chunk chunk) throws IOException {
+        return ioScheduler.execute(IoScheduler.Priority.SCRUB, new IoScheduler.IoOperation<Boolean>() {
+            @Override
+            public Boolean run() {
+                return chunk.getChunkLocalPath().toFile().exists() && chunk.isCorrupted();
+            }
+        });
+    }
+
+    private void removeCorruptedChunk(Chunk chunk) {
+        StorageNode.removeFromChunks(chunk.getFilename(), chunk.getSequenceNo(), chunkMap, chunkMapLock);
+        File chunkFile = chunk.getChunkLocalPath().toFile();
+        File checksumFile = new File(chunkFile.getAbsolutePath() + ".md5");
+        chunkFile.delete();
+        checksumFile.delete();
+        try {
+            notifyChunkCorrupted(chunk);
+        } catch (IOException e) {
+            logger.error("Unable to connect to controller");
+        }
+    }
+
     private void notifyChunkCorrupted(Chunk chunk) throws IOException {
         Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
                 .setChunkCorruptedMsg(
@@ -7,6 +7,7 @@ import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
@@ -18,6 +19,8 @@ class HeartbeatRunnable implements Runnable {
     private final ComponentAddress controllerAddr;
     private final Map<String, SortedSet<Chunk>> chunks;
     private Map<String, SortedSet<Chunk>> lastChunks = new HashMap<>();
+    // Chunks as of the last heartbeat sent, they become lastChunks once it is acknowledged
+    private Map<String, SortedSet<Chunk>> sentChunks = new HashMap<>();
     private final Lock chunksLock;
 
     public HeartbeatRunnable(
@@ -40,10 +43,15 @@ class HeartbeatRunnable implements Runnable {
                 logger.debug("Connected to controller");
 
                 while (true) {
+                    File chunksDir = new File(DFSProperties.getInstance().getStorageNodeChunksDir());
                     Messages.Heartbeat heartbeatMsg = Messages.Heartbeat.newBuilder()
                             .setStorageNodeHost(storageNodeAddr.getHost())
                             .setStorageNodePort(storageNodeAddr.getPort())
                             .addAllFileChunks(getNewFileChunks())
+                            .addAllDeletedFiles(getDeletedFiles())
+                            .setTotalSpace(chunksDir.getTotalSpace())
+                            .setUsedSpace(getUsedSpace())
+                            .setFreeSpace(chunksDir.getFreeSpace())
                             .build();
                     Messages.MessageWrapper msgWrapper =
                             Messages.MessageWrapper.newBuilder()
@@ -56,7 +64,8 @@ class HeartbeatRunnable implements Runnable {
                     Messages.MessageWrapper response = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
                     if (response.hasHeartbeatAckMsg()) {
                         logger.debug("Got it.");
-                        lastChunks = cloneChunkMap();
+                        // Not the chunks as of now: those stored since the heartbeat was sent aren't in it
+                        lastChunks = sentChunks;
                     } else {
                         logger.error("Unexpected response to heartbeat: " + response);
                     }
@@ -101,12 +110,40 @@ class HeartbeatRunnable implements Runnable {
     private Collection<Messages.FileChunks> getNewFileChunks() {
         chunksLock.lock();
         try {
+            sentChunks = cloneChunkMap();
             return toFileChunksMessages(getDiff(lastChunks, chunks));
         } finally {
             chunksLock.unlock();
         }
     }
 
+    // Files of the last heartbeat that have no chunk in this one, so the controller can stop
+    // refusing chunks of them if they were deleted
+    private List<String> getDeletedFiles() {
+        List<String> deletedFiles = new ArrayList<>();
+        for (String filename : lastChunks.keySet()) {
+            if (!sentChunks.containsKey(filename)) {
+                deletedFiles.add(filename);
+            }
+        }
+        return deletedFiles;
+    }
+
+    private long getUsedSpace() {
+        long usedSpace = 0;
+        chunksLock.lock();
+        try {
+            for (SortedSet<Chunk> fileChunks : chunks.values()) {
+                for (Chunk chunk : fileChunks) {
+                    usedSpace += chunk.getSize();
+                }
+            }
+        } finally {
+            chunksLock.unlock();
+        }
+        return usedSpace;
+    }
+
     // Clones chunks, by having a new copy of:
     // - the map
     // - the values (sets)
@@ -130,7 +167,9 @@ class HeartbeatRunnable implements Runnable {
                 SortedSet<Chunk> oldChunks = oldChunkMap.get(entry.getKey());
                 SortedSet<Chunk> newChunks = new TreeSet<>();
                 for (Chunk chunk : entry.getValue()) {
-                    if (!oldChunks.contains(chunk)) {
+                    // Another instance means the chunk was written again since, e.g. by a new version of its file
+                    SortedSet<Chunk> oldTail = oldChunks.tailSet(chunk);
+                    if (oldTail.isEmpty() || oldTail.first() != chunk) {
                         newChunks.add(chunk);
                     }
                 }
@@ -0,0 +1,233 @@
+package edu.usfca.cs.dfs.components.storageNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the disk operations of a storage node, so that client reads don't wait behind
+ * background work.
+ * <p>
+ * Operations are queued by priority class, and a fixed number of worker threads take them
+ * from the queues: that bounds the number of operations outstanding on the disk. Queues
+ * are served by smooth weighted round robin: out of 15 operations, when every queue is
+ * busy, 8 are foreground reads, 4 foreground writes, 2 replication and 1 scrubbing.
+ * Background work keeps progressing, but a client read never has more than a few
+ * background operations ahead of it.
+ */
+class IoScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IoScheduler.class);
+
+    enum Priority {
+        FOREGROUND_READ(8),
+        FOREGROUND_WRITE(4),
+        // Replication, rebalancing and repair
+        REPLICATION(2),
+        // Corruption checks
+        SCRUB(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        private String getMetricName() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    interface IoOperation<T> {
+        T run() throws IOException;
+    }
+
+    private final int maxOutstanding;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<Priority, Queue<Task<?>>> queues = new EnumMap<>(Priority.class);
+    // Smooth weighted round robin state, by priority ordinal
+    private final int[] currentWeights = new int[Priority.values().length];
+
+    // Metrics, by priority ordinal
+    private final long[] completed = new long[Priority.values().length];
+    private final long[] failed = new long[Priority.values().length];
+    private final long[] waitNanos = new long[Priority.values().length];
+
+    IoScheduler(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<Task<?>>());
+        }
+    }
+
+    /**
+     * Start the worker threads.
+     */
+    void start() {
+        for (int i = 0; i < maxOutstanding; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            take().run();
+                        }
+                    } catch (InterruptedException e) {
+                        logger.error("Thread interrupted", e);
+                    }
+                }
+            }, "io-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    <T> Future<T> submit(final Priority priority, final IoOperation<T> operation) {
+        Task<T> task = new Task<>(priority, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // Counted before the result is handed out, so that whoever waits for it sees it counted
+                try {
+                    T result = operation.run();
+                    finished(priority, true);
+                    return result;
+                } catch (IOException | RuntimeException | Error e) {
+                    finished(priority, false);
+                    throw e;
+                }
+            }
+        });
+        lock.lock();
+        try {
+            queues.get(priority).add(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    /**
+     * Run an operation and wait for its result.
+     */
+    <T> T execute(Priority priority, IoOperation<T> operation) throws IOException {
+        try {
+            return submit(priority, operation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a disk operation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Task<?> take() throws InterruptedException {
+        lock.lock();
+        try {
+            Task<?> task;
+            while ((task = poll()) == null) {
+                notEmpty.await();
+            }
+            waitNanos[task.priority.ordinal()] += System.nanoTime() - task.submitNanos;
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished(Priority priority, boolean succeeded) {
+        lock.lock();
+        try {
+            if (succeeded) {
+                completed[priority.ordinal()]++;
+            } else {
+                failed[priority.ordinal()]++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next operation to run, if any.
+     */
+    Task<?> poll() {
+        lock.lock();
+        try {
+            Priority chosen = null;
+            int totalWeight = 0;
+            for (Priority priority : Priority.values()) {
+                int i = priority.ordinal();
+                if (queues.get(priority).isEmpty()) {
+                    // Idle classes don't save up turns
+                    currentWeights[i] = 0;
+                    continue;
+                }
+                currentWeights[i] += priority.weight;
+                totalWeight += priority.weight;
+                if (chosen == null || currentWeights[i] > currentWeights[chosen.ordinal()]) {
+                    chosen = priority;
+                }
+            }
+            if (chosen == null) {
+                return null;
+            }
+            currentWeights[chosen.ordinal()] -= totalWeight;
+            return queues.get(chosen).poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        lock.lock();
+        try {
+            for (Priority priority : Priority.values()) {
+                int i = priority.ordinal();
+                String prefix = "io-" + priority.getMetricName();
+                metrics.put(prefix + "-queued", (long) queues.get(priority).size());
+                metrics.put(prefix + "-completed", completed[i]);
+                metrics.put(prefix + "-failed", failed[i]);
+                metrics.put(prefix + "-wait-ms", TimeUnit.NANOSECONDS.toMillis(waitNanos[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return metrics;
+    }
+
+    static class Task<T> extends FutureTask<T> {
+        private final Priority priority;
+        private final long submitNanos = System.nanoTime();
+
+        private Task(Priority priority, Callable<T> callable) {
+            super(callable);
+            this.priority = priority;
+        }
+
+        Priority getPriority() {
+            return priority;
+        }
+    }
+}
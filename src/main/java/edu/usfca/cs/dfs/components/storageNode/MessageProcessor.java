@@ -3,21 +3,28 @@ package edu.usfca.cs.dfs.components.storageNode;
 import com.google.protobuf.ByteString;
 import edu.usfca.cs.dfs.DFSProperties;
 import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.erasure.StripeLayout;
+import edu.usfca.cs.dfs.exceptions.ChecksumException;
 import edu.usfca.cs.dfs.messages.Messages;
 import edu.usfca.cs.dfs.structures.Chunk;
 import edu.usfca.cs.dfs.structures.ComponentAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -32,12 +39,20 @@ class MessageProcessor implements Runnable {
     private final Map<String, SortedSet<Chunk>> chunks;
     private final Lock chunksLock;
     private final Map<ComponentAddress, Socket> storageNodeSockets = new HashMap<>();
+    // Limits of background transfers: replication, rebalancing and repair
+    private final TokenBucket outgoingBandwidth;
+    private final TokenBucket incomingBandwidth;
+    private final IoScheduler ioScheduler;
 
-    public MessageProcessor(Socket socket, Map<String, SortedSet<Chunk>> chunks, Lock chunksLock) {
+    public MessageProcessor(Socket socket, Map<String, SortedSet<Chunk>> chunks, Lock chunksLock,
+                            TokenBucket outgoingBandwidth, TokenBucket incomingBandwidth, IoScheduler ioScheduler) {
         logger.trace("Starting Message Processor, thread " + Thread.currentThread().getName());
         this.socket = socket;
         this.chunks = chunks;
         this.chunksLock = chunksLock;
+        this.outgoingBandwidth = outgoingBandwidth;
+        this.incomingBandwidth = incomingBandwidth;
+        this.ioScheduler = ioScheduler;
     }
 
     @Override
@@ -69,6 +84,12 @@ class MessageProcessor implements Runnable {
                 } else if (msg.hasOrderSendChunkMsg()) {
                     logger.trace("Incoming order send chunk message");
                     processOrderSendChunkMsg(msg);
+                } else if (msg.hasOrderReconstructChunkMsg()) {
+                    logger.trace("Incoming order reconstruct chunk message");
+                    processOrderReconstructChunkMsg(msg);
+                } else if (msg.hasDeleteChunkMsg()) {
+                    logger.trace("Incoming delete chunk message");
+                    processDeleteChunkMsg(msg);
                 } else if (msg.hasDownloadChunkMsg()) {
                     logger.trace("Incoming download chunk message");
                     processDownloadChunkMsg(socket, msg);
@@ -78,7 +99,25 @@ class MessageProcessor implements Runnable {
                 } else if (msg.hasGetStorageNodeFilesRequest()) {
                     logger.debug("Incoming get storage node files request message");
                     processGetStorageNodeFilesRequestMsg(socket);
+                } else if (msg.hasSetBandwidthLimitsMsg()) {
+                    logger.trace("Incoming set bandwidth limits message");
+                    processSetBandwidthLimitsMsg(msg);
+                } else if (msg.hasGetMetricsRequestMsg()) {
+                    logger.trace("Incoming get metrics request message");
+                    processGetMetricsRequestMsg(socket);
                 }
+            } catch (IllegalArgumentException e) {
+                // E.g. a filename that would put a chunk outside of the chunks directory
+                logger.warn("Refusing message from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            } catch (SocketException | EOFException e) {
+                // E.g. a client cancelled a hedged download, or stopped reading: nothing more will come
+                logger.debug("Connection with " + socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException closeException) {
+                    logger.debug("Could not close socket", closeException);
+                }
+                return;
             } catch (IOException e) {
                 logger.error("Error while parsing message or other IO error", e);
                 countExceptions++;
@@ -110,13 +149,45 @@ class MessageProcessor implements Runnable {
                 .writeDelimitedTo(socket.getOutputStream());
     }
 
+    private void processSetBandwidthLimitsMsg(Messages.MessageWrapper msgWrapper) {
+        Messages.SetBandwidthLimits msg = msgWrapper.getSetBandwidthLimitsMsg();
+        logger.info("Background bandwidth limits set to " + msg.getOutgoingBytesPerSecond() + " B/s outgoing, "
+                + msg.getIncomingBytesPerSecond() + " B/s incoming");
+        outgoingBandwidth.setRate(msg.getOutgoingBytesPerSecond());
+        incomingBandwidth.setRate(msg.getIncomingBytesPerSecond());
+    }
+
+    private void processGetMetricsRequestMsg(Socket socket) throws IOException {
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put("background-outgoing-limit", outgoingBandwidth.getRate());
+        metrics.put("background-outgoing-bytes", outgoingBandwidth.getTotalBytes());
+        metrics.put("background-outgoing-throttled-ms", outgoingBandwidth.getThrottledMillis());
+        metrics.put("background-incoming-limit", incomingBandwidth.getRate());
+        metrics.put("background-incoming-bytes", incomingBandwidth.getTotalBytes());
+        metrics.put("background-incoming-throttled-ms", incomingBandwidth.getThrottledMillis());
+        metrics.putAll(ioScheduler.getMetrics());
+
+        Messages.MessageWrapper.newBuilder()
+                .setGetMetricsResponseMsg(
+                        Messages.GetMetricsResponse.newBuilder()
+                                .putAllMetrics(metrics)
+                                .build()
+                )
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+    }
+
     private void processGetFreeSpaceRequestMsg(Socket socket) throws IOException {
+        long freeSpace = ioScheduler.execute(IoScheduler.Priority.FOREGROUND_READ, new IoScheduler.IoOperation<Long>() {
+            @Override
+            public Long run() {
+                return new File(DFSProperties.getInstance().getStorageNodeChunksDir()).getFreeSpace();
+            }
+        });
         Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
                 .setGetFreeSpaceResponseMsg(
                         Messages.GetFreeSpaceResponse.newBuilder()
-                                .setFreeSpace(new File(DFSProperties.getInstance()
-                                        .getStorageNodeChunksDir()).getFreeSpace()
-                                )
+                                .setFreeSpace(freeSpace)
                                 .build()
                 )
                 .build();
@@ -127,7 +198,57 @@ class MessageProcessor implements Runnable {
         Messages.DownloadChunk msg = messageWrapper.getDownloadChunkMsg();
         String filename = msg.getFilename();
         int sequenceNo = msg.getSequenceNo();
-        sendChunk(filename, sequenceNo, socket);
+        try {
+            if (msg.getShortCircuit() && isLocal(socket)) {
+                sendShortCircuitChunk(filename, sequenceNo, socket);
+            } else if (msg.getOffset() != 0 || msg.getLength() != 0) {
+                sendChunkRange(filename, sequenceNo, msg.getOffset(), msg.getLength(), socket);
+            } else {
+                sendChunk(filename, sequenceNo, socket, false);
+            }
+        } catch (IllegalStateException | IllegalArgumentException | ChecksumException e) {
+            // Tell the client, so it can try another replica and refresh its chunk locations
+            logger.warn("Can't send " + filename + "-chunk" + sequenceNo + ": " + e.getMessage());
+            Messages.MessageWrapper.newBuilder()
+                    .setErrorMsg(Messages.Error.newBuilder()
+                            .setText("Chunk not found: " + filename + "-chunk" + sequenceNo)
+                            .build())
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
+        }
+    }
+
+    private static boolean isLocal(Socket socket) {
+        return socket.getInetAddress().isLoopbackAddress() || socket.getInetAddress().equals(socket.getLocalAddress());
+    }
+
+    /**
+     * Tell a client running on this host where the chunk is, so it reads the file itself
+     * instead of getting the data through the socket. The client verifies the checksum.
+     */
+    private void sendShortCircuitChunk(final String filename, final int sequenceNo, Socket socket) throws IOException {
+        Messages.ShortCircuitChunk shortCircuitChunkMsg = ioScheduler.execute(IoScheduler.Priority.FOREGROUND_READ, new IoScheduler.IoOperation<Messages.ShortCircuitChunk>() {
+            @Override
+            public Messages.ShortCircuitChunk run() throws IOException {
+                Path chunkPath = StorageNode.getChunkPath(filename, sequenceNo);
+                Path checksumPath = StorageNode.getChecksumPath(chunkPath);
+                if (!Files.exists(chunkPath) || !Files.exists(checksumPath)) {
+                    throw new IllegalStateException("I don't have " + chunkPath.toString() + ".");
+                }
+                return Messages.ShortCircuitChunk.newBuilder()
+                        .setFilename(filename)
+                        .setSequenceNo(sequenceNo)
+                        .setPath(chunkPath.toAbsolutePath().toString())
+                        .setChecksum(new String(Files.readAllBytes(checksumPath)).split(" ")[0])
+                        .build();
+            }
+        });
+
+        logger.debug("Sending local path of " + filename + "-chunk" + sequenceNo + " to " + socket.getRemoteSocketAddress());
+        Messages.MessageWrapper.newBuilder()
+                .setShortCircuitChunkMsg(shortCircuitChunkMsg)
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
     }
 
     private void processOrderSendChunkMsg(Messages.MessageWrapper msgWrapper) throws IOException {
@@ -146,35 +267,210 @@ class MessageProcessor implements Runnable {
         Socket socket = storageNodeSockets.get(storageNode);
 
         logger.debug("Sending to " + storageNode);
-        sendChunk(filename, sequenceNo, socket);
+        sendChunk(filename, sequenceNo, socket, true);
+    }
+
+    private void processOrderReconstructChunkMsg(Messages.MessageWrapper msgWrapper) throws IOException {
+        Messages.OrderReconstructChunk msg = msgWrapper.getOrderReconstructChunkMsg();
+        String filename = msg.getFileChunk().getFilename();
+        int sequenceNo = msg.getFileChunk().getSequenceNo();
+        logger.debug("Controller wants me to rebuild " + filename + "-chunk" + sequenceNo);
+
+        StripeLayout layout = new StripeLayout(msg.getFile().getAttributes());
+        int stripe = layout.getStripe(sequenceNo);
+        Map<Integer, List<Messages.StorageNode>> locations = new HashMap<>();
+        for (Messages.DownloadFileResponse.ChunkLocation chunkLocation : msg.getFile().getChunkLocationsList()) {
+            locations.put(chunkLocation.getSequenceNo(), chunkLocation.getStorageNodesList());
+        }
+
+        // As many chunks as there are data chunks in the stripe are enough
+        byte[][] stripeChunks = new byte[layout.getDataShards() + layout.getParityShards()][];
+        int needed = layout.getDataChunkCount(stripe);
+        int fetched = 0;
+        for (int shardIndex = 0; shardIndex < stripeChunks.length && fetched < needed; shardIndex++) {
+            int stripeSequenceNo = layout.getSequenceNo(stripe, shardIndex);
+            if (stripeSequenceNo == -1 || !locations.containsKey(stripeSequenceNo)) {
+                continue;
+            }
+            for (Messages.StorageNode storageNode : locations.get(stripeSequenceNo)) {
+                try {
+                    stripeChunks[shardIndex] = fetchChunk(filename, stripeSequenceNo,
+                            new ComponentAddress(storageNode.getHost(), storageNode.getPort()));
+                    incomingBandwidth.acquire(stripeChunks[shardIndex].length);
+                    fetched++;
+                    break;
+                } catch (IOException e) {
+                    logger.debug("Could not get " + filename + "-chunk" + stripeSequenceNo + " from " + storageNode.getHost(), e);
+                }
+            }
+        }
+        if (fetched < needed) {
+            logger.error("Only " + fetched + " chunks of the stripe of " + filename + "-chunk" + sequenceNo
+                    + " are available, " + needed + " needed. Can't rebuild it.");
+            return;
+        }
+
+        layout.reconstruct(stripe, stripeChunks);
+        byte[] data = stripeChunks[layout.getShardIndex(sequenceNo)];
+        storeChunk(Messages.StoreChunk.newBuilder()
+                .setFileName(filename)
+                .setSequenceNo(sequenceNo)
+                .setChecksum(Utils.md5sum(data))
+                .setData(ByteString.copyFrom(data))
+                .build(), IoScheduler.Priority.REPLICATION);
+    }
+
+    private static byte[] fetchChunk(String filename, int sequenceNo, ComponentAddress storageNode) throws IOException {
+        Messages.MessageWrapper response;
+        try (Socket socket = storageNode.getSocket()) {
+            Messages.MessageWrapper.newBuilder()
+                    .setDownloadChunkMsg(
+                            Messages.DownloadChunk.newBuilder()
+                                    .setFilename(filename)
+                                    .setSequenceNo(sequenceNo)
+                                    .build()
+                    )
+                    .build()
+                    .writeDelimitedTo(socket.getOutputStream());
+            response = Messages.MessageWrapper.parseDelimitedFrom(socket.getInputStream());
+        }
+
+        if (response == null || !response.hasStoreChunkMsg()) {
+            throw new IOException("Storage node doesn't have the chunk");
+        }
+        byte[] data = response.getStoreChunkMsg().getData().toByteArray();
+        if (!Utils.md5sum(data).equals(response.getStoreChunkMsg().getChecksum())) {
+            throw new IOException("Wrong checksum");
+        }
+        return data;
     }
 
-    private void sendChunk(String filename, int sequenceNo, Socket socket) throws IOException {
+    private void processDeleteChunkMsg(Messages.MessageWrapper msgWrapper) throws IOException {
+        final String filename = msgWrapper.getDeleteChunkMsg().getFileChunk().getFilename();
+        final int sequenceNo = msgWrapper.getDeleteChunkMsg().getFileChunk().getSequenceNo();
+        logger.debug("Controller wants me to delete " + filename + "-chunk" + sequenceNo);
+        // Writes may be scheduled before this deletion: a chunk that was stored again since it was
+        // asked for, e.g. by a new version of its file, is not the one the controller meant
+        final Chunk chunkToDelete = StorageNode.getFromChunks(filename, sequenceNo, chunks, chunksLock);
+
+        ioScheduler.execute(IoScheduler.Priority.REPLICATION, new IoScheduler.IoOperation<Void>() {
+            @Override
+            public Void run() throws IOException {
+                Path chunkPath = StorageNode.getChunkPath(filename, sequenceNo);
+                chunksLock.lock();
+                try {
+                    if (StorageNode.getFromChunks(filename, sequenceNo, chunks, chunksLock) != chunkToDelete) {
+                        logger.info("Not deleting " + filename + "-chunk" + sequenceNo + ": it was stored again");
+                        return null;
+                    }
+                    Files.deleteIfExists(chunkPath);
+                    Files.deleteIfExists(StorageNode.getChecksumPath(chunkPath));
+                    // Forget it only once it is gone from disk: heartbeats then tell the controller it is
+                    // deleted. The corruption monitor skips chunks that are not on disk anymore.
+                    StorageNode.removeFromChunks(filename, sequenceNo, chunks, chunksLock);
+                } finally {
+                    chunksLock.unlock();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Send a chunk to a client or to another storage node.
+     *
+     * @param background true when replicating or rebalancing: the transfer counts against the
+     *                   outgoing bandwidth limit, and the receiver is told to count it too
+     */
+    private void sendChunk(final String filename, final int sequenceNo, Socket socket, boolean background) throws IOException {
+        IoScheduler.Priority priority = background ? IoScheduler.Priority.REPLICATION : IoScheduler.Priority.FOREGROUND_READ;
+        Messages.StoreChunk storeChunkMsg = ioScheduler.execute(priority, new IoScheduler.IoOperation<Messages.StoreChunk>() {
+            @Override
+            public Messages.StoreChunk run() throws IOException {
+                return readChunk(filename, sequenceNo);
+            }
+        });
+
+        // send a store chunk message
+        Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
+                .setStoreChunkMsg(storeChunkMsg.toBuilder().setBackground(background).build())
+                .build();
+        if (background) {
+            outgoingBandwidth.acquire(storeChunkMsg.getData().size());
+        }
+        logger.debug("Sending " + filename + "-chunk" + sequenceNo + " to " + socket.getRemoteSocketAddress());
+        msg.writeDelimitedTo(socket.getOutputStream());
+    }
+
+    /**
+     * Send a byte range of a chunk to a client. The whole chunk is still verified against its
+     * checksum, a range can't be verified on its own: only the network transfer is saved.
+     */
+    private void sendChunkRange(final String filename, final int sequenceNo, final long offset, final long length, Socket socket) throws IOException {
+        Messages.StoreChunk storeChunkMsg = ioScheduler.execute(IoScheduler.Priority.FOREGROUND_READ, new IoScheduler.IoOperation<Messages.StoreChunk>() {
+            @Override
+            public Messages.StoreChunk run() throws IOException {
+                return readChunkRange(filename, sequenceNo, offset, length);
+            }
+        });
+
+        logger.debug("Sending " + storeChunkMsg.getData().size() + " bytes of " + filename + "-chunk" + sequenceNo
+                + " at offset " + offset + " to " + socket.getRemoteSocketAddress());
+        Messages.MessageWrapper.newBuilder()
+                .setStoreChunkMsg(storeChunkMsg)
+                .build()
+                .writeDelimitedTo(socket.getOutputStream());
+    }
+
+    private static Messages.StoreChunk readChunkRange(String filename, int sequenceNo, long offset, long length) throws IOException {
+        Path chunkPath = StorageNode.getChunkPath(filename, sequenceNo);
+        File chunkFile = chunkPath.toFile();
+        if (!chunkFile.exists()) {
+            throw new IllegalStateException("I don't have " + chunkPath.toString() + ".");
+        }
+
+        String expectedChecksum = new String(Files.readAllBytes(StorageNode.getChecksumPath(chunkPath))).split(" ")[0];
+        try (FileChannel channel = FileChannel.open(chunkPath, StandardOpenOption.READ)) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            String actualChecksum = Utils.md5sum(chunk.duplicate());
+            if (!actualChecksum.equals(expectedChecksum)) {
+                throw new ChecksumException(chunkFile, expectedChecksum, actualChecksum);
+            }
+
+            int start = (int) Math.min(offset, chunk.limit());
+            int end = length == 0 ? chunk.limit() : (int) Math.min(start + length, chunk.limit());
+            chunk.position(start).limit(end);
+            ByteString data = ByteString.copyFrom(chunk);
+            return Messages.StoreChunk.newBuilder()
+                    .setFileName(filename)
+                    .setSequenceNo(sequenceNo)
+                    .setOffset(start)
+                    .setData(data)
+                    .setChecksum(Utils.md5sum(data.toByteArray()))
+                    .build();
+        }
+    }
+
+    private static Messages.StoreChunk readChunk(String filename, int sequenceNo) throws IOException {
         // Retrieve the chunk on local filesystem
-        String chunkFileName = filename + "-chunk" + sequenceNo;
-        Path chunkPath = Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir(), chunkFileName);
+        Path chunkPath = StorageNode.getChunkPath(filename, sequenceNo);
         File chunkFile = chunkPath.toFile();
         if (!chunkFile.exists()) {
             throw new IllegalStateException("I don't have " + chunkPath.toString() + ". Can't send it to another storage node.");
         }
 
-        // send a store chunk message
         FileInputStream fis = new FileInputStream(chunkFile);
-        String expectedChecksum = new String(Files.readAllBytes(Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir(), chunkFileName + ".md5"))).split(" ")[0];
+        String expectedChecksum = new String(Files.readAllBytes(StorageNode.getChecksumPath(chunkPath))).split(" ")[0];
         Utils.checkSum(chunkFile, expectedChecksum);
 
-        Messages.MessageWrapper msg = Messages.MessageWrapper.newBuilder()
-                .setStoreChunkMsg(
-                        Messages.StoreChunk.newBuilder()
-                                .setFileName(filename)
-                                .setSequenceNo(sequenceNo)
-                                .setData(ByteString.readFrom(fis))
-                                .setChecksum(expectedChecksum)
-                                .build()
-                ).build();
+        Messages.StoreChunk storeChunkMsg = Messages.StoreChunk.newBuilder()
+                .setFileName(filename)
+                .setSequenceNo(sequenceNo)
+                .setData(ByteString.readFrom(fis))
+                .setChecksum(expectedChecksum)
+                .build();
         fis.close();
-        logger.debug("Sending " + chunkFileName + " to " + socket.getRemoteSocketAddress());
-        msg.writeDelimitedTo(socket.getOutputStream());
+        return storeChunkMsg;
     }
 
     private void processStoreChunkMsg(Socket socket, Messages.MessageWrapper msgWrapper) throws IOException {
@@ -183,16 +479,53 @@ class MessageProcessor implements Runnable {
         logger.debug("Storing file name: "
                 + storeChunkMsg.getFileName() + " Chunk #" + storeChunkMsg.getSequenceNo() + " received from " +
                 socket.getRemoteSocketAddress().toString());
+        if (storeChunkMsg.getBackground()) {
+            // Not reading the next message until the limit allows it slows the sender down too
+            incomingBandwidth.acquire(storeChunkMsg.getData().size());
+            storeChunk(storeChunkMsg, IoScheduler.Priority.REPLICATION);
+        } else if (!storeChunkMsg.getAcknowledge()) {
+            storeChunk(storeChunkMsg, IoScheduler.Priority.FOREGROUND_WRITE);
+        } else {
+            Messages.MessageWrapper.Builder response = Messages.MessageWrapper.newBuilder();
+            try {
+                storeChunk(storeChunkMsg, IoScheduler.Priority.FOREGROUND_WRITE);
+                response.setChunkStoredMsg(Messages.ChunkStored.newBuilder()
+                        .setFileName(storeChunkMsg.getFileName())
+                        .setSequenceNo(storeChunkMsg.getSequenceNo())
+                        .build());
+            } catch (IOException | RuntimeException e) {
+                // E.g. the disk is full, or the chunk got corrupted on the way
+                logger.warn("Could not store " + storeChunkMsg.getFileName() + "-chunk" + storeChunkMsg.getSequenceNo(), e);
+                response.setErrorMsg(Messages.Error.newBuilder()
+                        .setText("Could not store chunk: " + e.getMessage())
+                        .build());
+            }
+            response.build().writeDelimitedTo(socket.getOutputStream());
+        }
+    }
+
+    private void storeChunk(final Messages.StoreChunk storeChunkMsg, IoScheduler.Priority priority) throws IOException {
+        ioScheduler.execute(priority, new IoScheduler.IoOperation<Void>() {
+            @Override
+            public Void run() throws IOException {
+                writeChunk(storeChunkMsg);
+                return null;
+            }
+        });
+    }
 
+    private void writeChunk(Messages.StoreChunk storeChunkMsg) throws IOException {
         String storageDirectory = DFSProperties.getInstance().getStorageNodeChunksDir();
         File storageDirectoryFile = new File(storageDirectory);
         if (!storageDirectoryFile.exists()) {
-            storageDirectoryFile.mkdir();
+            storageDirectoryFile.mkdirs();
         }
 
         // Store chunk file
         String chunkFilename = storeChunkMsg.getFileName() + "-chunk" + storeChunkMsg.getSequenceNo();
-        Path chunkFilePath = Paths.get(storageDirectory, chunkFilename);
+        Path chunkFilePath = StorageNode.getChunkPath(storeChunkMsg.getFileName(), storeChunkMsg.getSequenceNo());
+        // Filenames may contain directories
+        Files.createDirectories(chunkFilePath.getParent());
         File chunkFile = chunkFilePath.toFile();
         if (chunkFile.exists()) {
             if (!chunkFile.delete()) {
@@ -206,7 +539,7 @@ class MessageProcessor implements Runnable {
 
         // Store checksum
         checkSum(chunkFile, storeChunkMsg.getChecksum());
-        Path checksumFilePath = Paths.get(storageDirectory, chunkFilename + ".md5");
+        Path checksumFilePath = StorageNode.getChecksumPath(chunkFilePath);
         logger.debug("Storing checksum on disk to file " + checksumFilePath);
         Utils.writeStringToFile(checksumFilePath.toString(), storeChunkMsg.getChecksum() + "  " + chunkFilename + "\n");
 
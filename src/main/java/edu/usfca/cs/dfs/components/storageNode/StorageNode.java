@@ -13,10 +13,8 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedSet;
@@ -52,46 +50,110 @@ public class StorageNode {
             }
 
             logger.debug("Taking note of chunk " + chunk);
+            // A chunk that is written again replaces the previous one, so that heartbeats report it again
+            chunks.get(filename).remove(chunk);
             chunks.get(filename).add(chunk);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Returns the chunk that is currently known under this filename and sequence number, or null.
+     */
+    public static Chunk getFromChunks(String filename, int sequenceNo, Map<String, SortedSet<Chunk>> chunks, Lock lock) {
+        lock.lock();
+        try {
+            SortedSet<Chunk> fileChunks = chunks.get(filename);
+            if (fileChunks == null) {
+                return null;
+            }
+            SortedSet<Chunk> tail = fileChunks.tailSet(new Chunk(filename, sequenceNo, 0, null));
+            if (tail.isEmpty() || tail.first().getSequenceNo() != sequenceNo) {
+                return null;
+            }
+            return tail.first();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void removeFromChunks(String filename, int sequenceNo, Map<String, SortedSet<Chunk>> chunks, Lock lock) {
+        lock.lock();
+        try {
+            SortedSet<Chunk> fileChunks = chunks.get(filename);
+            if (fileChunks == null) {
+                return;
+            }
+
+            logger.debug("Forgetting chunk " + filename + "-chunk" + sequenceNo);
+            fileChunks.remove(new Chunk(filename, sequenceNo, 0, null));
+            if (fileChunks.isEmpty()) {
+                chunks.remove(filename);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns where a chunk is stored, under the chunks directory.
+     *
+     * @throws IllegalArgumentException if the filename would put it anywhere else
+     */
+    public static Path getChunkPath(String filename, int sequenceNo) {
+        Path chunksPath = Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir()).toAbsolutePath().normalize();
+        Path chunkPath = chunksPath.resolve(filename + "-chunk" + sequenceNo).normalize();
+        if (!Utils.isValidFilename(filename) || !chunkPath.startsWith(chunksPath)) {
+            throw new IllegalArgumentException("Invalid filename " + filename);
+        }
+        return chunkPath;
+    }
+
+    public static Path getChecksumPath(Path chunkPath) {
+        return chunkPath.resolveSibling(chunkPath.getFileName() + ".md5");
+    }
+
     private Map<String, SortedSet<Chunk>> readChunks() throws IOException {
-        Map<String, SortedSet<Chunk>> result = new HashMap<>();
-        Lock lock = new ReentrantLock();
-        Path chunksPath = Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir());
+        final Map<String, SortedSet<Chunk>> result = new HashMap<>();
+        final Lock lock = new ReentrantLock();
+        final Path chunksPath = Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir());
         File chunksDirFile = chunksPath.toFile();
-        Pattern chunkFileNamePattern = Pattern.compile("(.*?)-chunk([0-9]+)");
+        final Pattern chunkFileNamePattern = Pattern.compile("(.*)-chunk([0-9]+)$");
 
         if (!chunksDirFile.exists()) return result;
         if (!chunksDirFile.isDirectory()) throw new IllegalArgumentException("Chunks directory is a regular file");
-        DirectoryStream<Path> directoryStream = Files.newDirectoryStream(chunksPath);
-        for (Path path : directoryStream) {
-            // Ignore md5 files
-            if (path.toString().endsWith(".md5")) continue;
-
-            // Extract info from name
-            File chunkFile = path.toFile();
-            Matcher matcher = chunkFileNamePattern.matcher(chunkFile.getName());
-            if (!matcher.find()) {
-                throw new IllegalArgumentException("Malformed chunk file name " + chunkFile.getName());
-            }
-            String originalFileName = matcher.group(1);
-            int sequenceNo = Integer.parseInt(matcher.group(2));
 
-            // Create chunk
-            Chunk chunk = new Chunk(originalFileName, sequenceNo, chunkFile.length(), path);
-            chunk.calculateAndSetChecksum();
-
-            // Check sum
-            Path checksumFilePath = Paths.get(path.toString() + ".md5");
-            String expectedChecksum = new String(Files.readAllBytes(checksumFilePath)).split(" ")[0];
-            Utils.checkSum(chunkFile, expectedChecksum);
-
-            addToChunks(chunk, result, lock);
-        }
+        // Filenames may contain directories, so look into sub-directories too
+        Files.walkFileTree(chunksPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                // Ignore md5 files
+                if (path.toString().endsWith(".md5")) return FileVisitResult.CONTINUE;
+
+                // Extract info from name, relative to the chunks directory
+                File chunkFile = path.toFile();
+                String relativeName = chunksPath.relativize(path).toString();
+                Matcher matcher = chunkFileNamePattern.matcher(relativeName);
+                if (!matcher.find()) {
+                    throw new IllegalArgumentException("Malformed chunk file name " + relativeName);
+                }
+                String originalFileName = matcher.group(1);
+                int sequenceNo = Integer.parseInt(matcher.group(2));
+
+                // Create chunk
+                Chunk chunk = new Chunk(originalFileName, sequenceNo, chunkFile.length(), path);
+                chunk.calculateAndSetChecksum();
+
+                // Check sum
+                Path checksumFilePath = Paths.get(path.toString() + ".md5");
+                String expectedChecksum = new String(Files.readAllBytes(checksumFilePath)).split(" ")[0];
+                Utils.checkSum(chunkFile, expectedChecksum);
+
+                addToChunks(chunk, result, lock);
+                return FileVisitResult.CONTINUE;
+            }
+        });
 
         logger.debug("Chunks at startup: " + result);
 
@@ -127,18 +189,27 @@ public class StorageNode {
 
     private void start()
             throws Exception {
+        // Heartbeats report the free space of the chunks directory, which is 0 until it exists
+        Files.createDirectories(Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir()));
         Lock chunksLock = new ReentrantLock();
+        // Shared by all connections, so the limits apply to the storage node as a whole
+        DFSProperties properties = DFSProperties.getInstance();
+        TokenBucket outgoingBandwidth = new TokenBucket(properties.getBackgroundOutgoingBandwidth());
+        TokenBucket incomingBandwidth = new TokenBucket(properties.getBackgroundIncomingBandwidth());
+        // All chunks are on the same disk, so one scheduler is enough
+        IoScheduler ioScheduler = new IoScheduler(properties.getIoSchedulerMaxOutstanding());
+        ioScheduler.start();
         ComponentAddress myAddr = new ComponentAddress(getHostname(), port);
         new Thread(new HeartbeatRunnable(myAddr, controllerAddr, chunks, chunksLock)).start();
 
-        new Thread(new ChunkCorruptionMonitor(myAddr, chunks, chunksLock, controllerAddr)).start();
+        new Thread(new ChunkCorruptionMonitor(myAddr, chunks, chunksLock, controllerAddr, ioScheduler)).start();
 
         ServerSocket srvSocket = new ServerSocket(port);
         logger.debug("Listening on port " + port + "...");
         while (true) {
             Socket socket = srvSocket.accept();
             logger.trace("New connection from " + socket.getRemoteSocketAddress());
-            new Thread(new MessageProcessor(socket, chunks, chunksLock)).start();
+            new Thread(new MessageProcessor(socket, chunks, chunksLock, outgoingBandwidth, incomingBandwidth, ioScheduler)).start();
 
         }
     }
@@ -0,0 +1,93 @@
+package edu.usfca.cs.dfs.components.storageNode;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bandwidth used by background transfers (replication, rebalancing, repair),
+ * so they don't slow down client reads and writes.
+ * <p>
+ * The bucket fills up at the configured rate, up to one second worth of bytes. Sending or
+ * receiving a chunk takes its size from the bucket, possibly more than is available:
+ * the caller then waits until the bucket is back to zero. That way chunks bigger than
+ * the burst size can still go through, at the configured rate on average.
+ * Thread-safe, the rate can be changed at any time.
+ */
+class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // Bytes per second, 0 for no limit
+    private long rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    // Metrics
+    private long totalBytes = 0;
+    private long throttledNanos = 0;
+
+    TokenBucket(long rate) {
+        this(rate, System.nanoTime());
+    }
+
+    TokenBucket(long rate, long nowNanos) {
+        this.rate = rate;
+        this.tokens = rate;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * Take bytes from the bucket, waiting if there aren't enough.
+     *
+     * @param bytes number of bytes about to be transferred
+     */
+    void acquire(long bytes) {
+        long waitNanos = reserve(bytes, System.nanoTime());
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take bytes from the bucket.
+     *
+     * @return how long to wait before transferring them, in nanoseconds
+     */
+    synchronized long reserve(long bytes, long nowNanos) {
+        totalBytes += bytes;
+        if (rate <= 0) {
+            return 0;
+        }
+
+        tokens = Math.min(rate, tokens + (double) (nowNanos - lastRefillNanos) * rate / NANOS_PER_SECOND);
+        lastRefillNanos = nowNanos;
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+
+        long waitNanos = (long) (-tokens * NANOS_PER_SECOND / rate);
+        throttledNanos += waitNanos;
+        return waitNanos;
+    }
+
+    synchronized void setRate(long rate) {
+        this.rate = rate;
+        this.tokens = Math.min(tokens, rate);
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+    }
+}
@@ -0,0 +1,130 @@
+package edu.usfca.cs.dfs.dedup;
+
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.messages.Messages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts data into chunks where its content says so, rather than at fixed offsets, with
+ * FastCDC: a gear rolling hash over the last 64 bytes, and a cut wherever its top bits
+ * are all zeros. Inserting or removing bytes only changes the chunks around the change,
+ * the next cut points stay the same, so most chunks of a modified file are the chunks
+ * the previous version had.
+ * <p>
+ * No cut within minSize bytes of the previous one, and always a cut after maxSize bytes.
+ * Normalized chunking: cut points are harder to match before averageSize bytes, and
+ * easier after, so that chunk sizes gather around averageSize.
+ */
+public class ContentDefinedChunker {
+
+    // Same table in every JVM, or the same data would be cut differently by different clients
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    // Top bits of the hash that must be zero, before and after averageSize
+    private final long smallChunkMask;
+    private final long largeChunkMask;
+
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Need 0 < min <= average <= max chunk size, got "
+                    + minSize + ", " + averageSize + " and " + maxSize);
+        }
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = 63 - Long.numberOfLeadingZeros(averageSize);
+        this.smallChunkMask = -1L << (64 - Math.min(bits + 2, 63));
+        this.largeChunkMask = -1L << (64 - Math.max(bits - 2, 1));
+    }
+
+    /**
+     * Chunk sizes around averageSize: at least a quarter of it, at most four times it.
+     */
+    public ContentDefinedChunker(int averageSize) {
+        this(Math.max(1, averageSize / 4), averageSize, averageSize * 4);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Find where the next chunk ends.
+     *
+     * @param length number of bytes available, at least maxSize unless the data ends there
+     * @return length of the next chunk
+     */
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, averageSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & smallChunkMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & largeChunkMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Cut a stream into chunks, and name them after their content.
+     *
+     * @return content hash and length of every chunk, in order
+     */
+    public List<Messages.ContentChunk> split(InputStream in) throws IOException {
+        List<Messages.ContentChunk> chunks = new ArrayList<>();
+        byte[] buffer = new byte[2 * maxSize];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            // Keep at least maxSize bytes ahead, so that every cut point can be found
+            if (!eof && end - start < maxSize) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                int read;
+                while (end < buffer.length && (read = in.read(buffer, end, buffer.length - end)) != -1) {
+                    end += read;
+                }
+                eof = end < buffer.length;
+            }
+            if (start == end) {
+                return chunks;
+            }
+
+            int length = nextChunkLength(buffer, start, end - start);
+            chunks.add(Messages.ContentChunk.newBuilder()
+                    .setHash(Utils.sha256sum(buffer, start, length))
+                    .setLength(length)
+                    .build());
+            start += length;
+        }
+    }
+}
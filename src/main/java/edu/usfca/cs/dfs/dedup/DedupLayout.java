@@ -0,0 +1,112 @@
+package edu.usfca.cs.dfs.dedup;
+
+import edu.usfca.cs.dfs.messages.Messages;
+
+import java.util.Arrays;
+
+/**
+ * Where the chunks of a deduplicated file are.
+ * <p>
+ * A deduplicated file is cut into content defined chunks, listed in order in its
+ * attributes with their SHA-256 and length. Every distinct chunk is stored once in the
+ * DFS, as chunk 0 of a hidden file named after its hash, whatever the files it is in:
+ * the controller counts references to it, and deletes it once no file has had it for a
+ * grace period.
+ * Chunk i of the file is content chunk i of its attributes, and starts where the
+ * chunks before it end.
+ * <p>
+ * Small files are packed the same way: many of them share one stored chunk, and each has a
+ * single content chunk, the byte range of the stored chunk it is.
+ */
+public class DedupLayout {
+
+    // Hidden from listings, and never uploaded to directly
+    public static final String CHUNK_PREFIX = ".dedup/";
+    // Not a SHA-256, so never the name of a content chunk
+    private static final String PENDING_PREFIX = CHUNK_PREFIX + "pending/";
+
+    private final Messages.FileAttributes attributes;
+    // Chunk i is from offsets[i] to offsets[i + 1]
+    private final long[] offsets;
+
+    public DedupLayout(Messages.FileAttributes attributes) {
+        this.attributes = attributes;
+        this.offsets = new long[attributes.getContentChunksCount() + 1];
+        for (int i = 0; i < attributes.getContentChunksCount(); i++) {
+            offsets[i + 1] = offsets[i] + attributes.getContentChunks(i).getLength();
+        }
+    }
+
+    public static boolean isDeduplicated(Messages.FileAttributes attributes) {
+        return attributes != null && attributes.getContentChunksCount() > 0;
+    }
+
+    /**
+     * Returns the name of the file a content chunk is stored as.
+     *
+     * @param hash SHA-256 of the chunk
+     */
+    public static String getChunkFilename(String hash) {
+        return CHUNK_PREFIX + hash;
+    }
+
+    public static boolean isChunkFilename(String filename) {
+        return filename.startsWith(CHUNK_PREFIX);
+    }
+
+    /**
+     * Returns the name a new version of a file is registered as while its chunks are
+     * uploaded: the controller keeps the chunks it references, but readers still see the
+     * current version until the new one is committed under the name of the file.
+     */
+    public static String getPendingFilename(String filename) {
+        return PENDING_PREFIX + filename;
+    }
+
+    public static boolean isPendingFilename(String filename) {
+        return filename.startsWith(PENDING_PREFIX);
+    }
+
+    public int getChunkCount() {
+        return offsets.length - 1;
+    }
+
+    public String getChunkFilename(int sequenceNo) {
+        return getChunkFilename(attributes.getContentChunks(sequenceNo).getHash());
+    }
+
+    public long getChunkOffset(int sequenceNo) {
+        return offsets[sequenceNo];
+    }
+
+    public long getChunkLength(int sequenceNo) {
+        return offsets[sequenceNo + 1] - offsets[sequenceNo];
+    }
+
+    /**
+     * Returns where a chunk starts in the stored chunk it is read from, 0 unless it is a
+     * packed small file.
+     */
+    public long getStoredChunkOffset(int sequenceNo) {
+        return attributes.getContentChunks(sequenceNo).getOffset();
+    }
+
+    /**
+     * Returns where every chunk starts, followed by the size of the file.
+     */
+    public long[] getChunkOffsets() {
+        return offsets.clone();
+    }
+
+    /**
+     * Returns the sequence number of the chunk a position of the file is in.
+     */
+    public int getSequenceNo(long position) {
+        if (position < 0 || position >= offsets[offsets.length - 1]) {
+            throw new IllegalArgumentException("Position " + position + " is out of a file of " + offsets[offsets.length - 1] + " bytes");
+        }
+        int i = Arrays.binarySearch(offsets, position);
+        // Chunks are never empty, so a position is the start of at most one
+        return i >= 0 ? i : -i - 2;
+    }
+}
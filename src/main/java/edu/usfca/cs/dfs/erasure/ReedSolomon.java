@@ -0,0 +1,235 @@
+package edu.usfca.cs.dfs.erasure;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8).
+ * <p>
+ * k data shards are encoded into m parity shards, and any k of the k + m shards are
+ * enough to rebuild the other ones. The encoding matrix is a (k + m) x k Vandermonde
+ * matrix, multiplied by the inverse of its top k x k square so that the top rows are
+ * the identity: data shards are stored as is. Any k rows of a Vandermonde matrix built
+ * from distinct elements are independent, hence k + m must not exceed 256.
+ */
+public class ReedSolomon {
+
+    // x^8 + x^4 + x^3 + x^2 + 1
+    private static final int GENERATOR_POLYNOMIAL = 0x11D;
+
+    private static final int[] LOG = new int[256];
+    private static final byte[] EXP = new byte[512];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= GENERATOR_POLYNOMIAL;
+            }
+        }
+        // Avoids a modulo in multiply()
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Need 0 < data shards and data + parity shards <= 256, got "
+                    + dataShards + " data shards and " + parityShards + " parity shards");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        byte[][] vandermonde = vandermonde(dataShards + parityShards, dataShards);
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Compute the parity shards.
+     *
+     * @param shards data shards followed by parity shards, all at least length bytes long
+     * @param length number of bytes to encode in every shard
+     */
+    public void encodeParity(byte[][] shards, int length) {
+        checkShards(shards, length);
+        for (int i = 0; i < parityShards; i++) {
+            combine(matrix[dataShards + i], shards, shards[dataShards + i], length);
+        }
+    }
+
+    /**
+     * Rebuild the shards that are not present, from any k of the present ones.
+     *
+     * @param shards  data shards followed by parity shards, all at least length bytes long
+     * @param present which shards hold data; missing shards are overwritten
+     * @param length  number of bytes in every shard
+     * @throws IllegalArgumentException if fewer than k shards are present
+     */
+    public void decodeMissing(byte[][] shards, boolean[] present, int length) {
+        checkShards(shards, length);
+
+        // Rows of the encoding matrix, and shards, of the first k present shards
+        byte[][] subMatrix = new byte[dataShards][];
+        byte[][] subShards = new byte[dataShards][];
+        int count = 0;
+        for (int i = 0; i < shards.length && count < dataShards; i++) {
+            if (present[i]) {
+                subMatrix[count] = matrix[i];
+                subShards[count] = shards[i];
+                count++;
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to decode, only " + count + " present");
+        }
+
+        byte[][] decodeMatrix = invert(subMatrix);
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i]) {
+                combine(decodeMatrix[i], subShards, shards[i], length);
+            }
+        }
+        for (int i = dataShards; i < shards.length; i++) {
+            if (!present[i]) {
+                combine(matrix[i], shards, shards[i], length);
+            }
+        }
+    }
+
+    private void checkShards(byte[][] shards, int length) {
+        if (shards.length != dataShards + parityShards) {
+            throw new IllegalArgumentException("Expected " + (dataShards + parityShards) + " shards, got " + shards.length);
+        }
+        for (byte[] shard : shards) {
+            if (shard.length < length) {
+                throw new IllegalArgumentException("Shards must be at least " + length + " bytes long");
+            }
+        }
+    }
+
+    // output = sum of coefficients[j] * inputs[j]
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] output, int length) {
+        for (int b = 0; b < length; b++) {
+            output[b] = 0;
+        }
+        for (int j = 0; j < coefficients.length; j++) {
+            int coefficient = coefficients[j] & 0xFF;
+            if (coefficient == 0) {
+                continue;
+            }
+            byte[] input = inputs[j];
+            int logCoefficient = LOG[coefficient];
+            for (int b = 0; b < length; b++) {
+                int value = input[b] & 0xFF;
+                if (value != 0) {
+                    output[b] ^= EXP[logCoefficient + LOG[value]];
+                }
+            }
+        }
+    }
+
+    static int multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]] & 0xFF;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a]] & 0xFF;
+    }
+
+    private static int power(int a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % 255] & 0xFF;
+    }
+
+    private static byte[][] vandermonde(int rows, int columns) {
+        byte[][] result = new byte[rows][columns];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                result[r][c] = (byte) power(r, c);
+            }
+        }
+        return result;
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= multiply(a[r][i] & 0xFF, b[i][c] & 0xFF);
+                }
+                result[r][c] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination on [matrix | identity]
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] tmp = work[c];
+            work[c] = work[pivot];
+            work[pivot] = tmp;
+
+            int scale = inverse(work[c][c] & 0xFF);
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = (byte) multiply(work[c][i] & 0xFF, scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = work[r][c] & 0xFF;
+                if (r != c && factor != 0) {
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= (byte) multiply(work[c][i] & 0xFF, factor);
+                    }
+                }
+            }
+        }
+
+        byte[][] result = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, result[r], 0, n);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,154 @@
+package edu.usfca.cs.dfs.erasure;
+
+import edu.usfca.cs.dfs.messages.Messages;
+
+import java.util.Arrays;
+
+/**
+ * Where the chunks of an erasure coded file are, and how they are encoded.
+ * <p>
+ * Data chunks keep the sequence numbers they would have in a replicated file: 0 to n - 1.
+ * They are grouped in stripes of k consecutive data chunks, and every stripe gets m parity
+ * chunks, numbered n + stripe * m + j. The last stripe may have fewer than k data chunks,
+ * it is encoded as if the missing ones were filled with zeros, and so are data chunks
+ * shorter than the first one of their stripe. Parity chunks are as long as the first
+ * data chunk of their stripe.
+ */
+public class StripeLayout {
+
+    private final long fileSize;
+    private final long chunkSize;
+    private final int dataChunkCount;
+    private final ReedSolomon codec;
+
+    public StripeLayout(long fileSize, long chunkSize, int dataShards, int parityShards) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.dataChunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.codec = new ReedSolomon(dataShards, parityShards);
+    }
+
+    public StripeLayout(Messages.FileAttributes attributes) {
+        this(attributes.getFileSize(), attributes.getChunkSize(), attributes.getDataShards(), attributes.getParityShards());
+    }
+
+    public static boolean isErasureCoded(Messages.FileAttributes attributes) {
+        return attributes != null && attributes.getParityShards() > 0;
+    }
+
+    public int getDataShards() {
+        return codec.getDataShards();
+    }
+
+    public int getParityShards() {
+        return codec.getParityShards();
+    }
+
+    public int getDataChunkCount() {
+        return dataChunkCount;
+    }
+
+    /**
+     * Returns the number of data chunks in a stripe, i.e. k but for the last stripe.
+     */
+    public int getDataChunkCount(int stripe) {
+        return Math.min(getDataShards(), dataChunkCount - stripe * getDataShards());
+    }
+
+    public int getStripeCount() {
+        return (dataChunkCount + getDataShards() - 1) / getDataShards();
+    }
+
+    /**
+     * Returns the number of data and parity chunks of the file.
+     */
+    public int getChunkCount() {
+        return dataChunkCount + getStripeCount() * getParityShards();
+    }
+
+    public boolean isParity(int sequenceNo) {
+        return sequenceNo >= dataChunkCount;
+    }
+
+    public int getStripe(int sequenceNo) {
+        return isParity(sequenceNo)
+                ? (sequenceNo - dataChunkCount) / getParityShards()
+                : sequenceNo / getDataShards();
+    }
+
+    /**
+     * Returns the position of a chunk in its stripe: data chunks first, then parity chunks.
+     */
+    public int getShardIndex(int sequenceNo) {
+        return isParity(sequenceNo)
+                ? getDataShards() + (sequenceNo - dataChunkCount) % getParityShards()
+                : sequenceNo % getDataShards();
+    }
+
+    /**
+     * Returns the sequence number of a chunk of a stripe.
+     *
+     * @param stripe     stripe number
+     * @param shardIndex position in the stripe, from 0 to k + m - 1
+     * @return sequence number, or -1 if it is a zero-filled data chunk past the end of the file
+     */
+    public int getSequenceNo(int stripe, int shardIndex) {
+        if (shardIndex >= getDataShards()) {
+            return dataChunkCount + stripe * getParityShards() + shardIndex - getDataShards();
+        }
+        int sequenceNo = stripe * getDataShards() + shardIndex;
+        return sequenceNo < dataChunkCount ? sequenceNo : -1;
+    }
+
+    public long getChunkLength(int sequenceNo) {
+        if (isParity(sequenceNo)) {
+            return getChunkLength(getStripe(sequenceNo) * getDataShards());
+        }
+        return sequenceNo < dataChunkCount - 1 ? chunkSize : fileSize - (long) (dataChunkCount - 1) * chunkSize;
+    }
+
+    /**
+     * Compute the parity chunks of a stripe.
+     *
+     * @param stripe     stripe number
+     * @param dataChunks data chunks of the stripe
+     * @return parity chunks of the stripe
+     */
+    public byte[][] encode(int stripe, byte[][] dataChunks) {
+        int shardLength = (int) getChunkLength(stripe * getDataShards());
+        byte[][] shards = new byte[getDataShards() + getParityShards()][];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = i < dataChunks.length ? Arrays.copyOf(dataChunks[i], shardLength) : new byte[shardLength];
+        }
+        codec.encodeParity(shards, shardLength);
+        return Arrays.copyOfRange(shards, getDataShards(), shards.length);
+    }
+
+    /**
+     * Rebuild the missing chunks of a stripe.
+     *
+     * @param stripe stripe number
+     * @param chunks data then parity chunks of the stripe, null if missing.
+     *               Missing chunks are filled in.
+     * @throws IllegalArgumentException if there are not enough chunks left
+     */
+    public void reconstruct(int stripe, byte[][] chunks) {
+        int shardLength = (int) getChunkLength(stripe * getDataShards());
+        byte[][] shards = new byte[chunks.length][];
+        boolean[] present = new boolean[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            int sequenceNo = getSequenceNo(stripe, i);
+            present[i] = sequenceNo == -1 || chunks[i] != null;
+            shards[i] = chunks[i] == null ? new byte[shardLength] : Arrays.copyOf(chunks[i], shardLength);
+        }
+
+        codec.decodeMissing(shards, present, shardLength);
+
+        for (int i = 0; i < chunks.length; i++) {
+            int sequenceNo = getSequenceNo(stripe, i);
+            if (sequenceNo != -1 && chunks[i] == null) {
+                chunks[i] = Arrays.copyOf(shards[i], (int) getChunkLength(sequenceNo));
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package edu.usfca.cs.dfs.exceptions;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+
+public class ChunkNotFoundException extends RuntimeException {
+    private final String filename;
+    private final int sequenceNo;
+    private final ComponentAddress storageNode;
+
+    public ChunkNotFoundException(String filename, int sequenceNo, ComponentAddress storageNode) {
+        super("Storage node " + storageNode + " does not have " + filename + "-chunk" + sequenceNo);
+        this.filename = filename;
+        this.sequenceNo = sequenceNo;
+        this.storageNode = storageNode;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getSequenceNo() {
+        return sequenceNo;
+    }
+
+    public ComponentAddress getStorageNode() {
+        return storageNode;
+    }
+}
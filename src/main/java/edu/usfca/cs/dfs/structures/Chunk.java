@@ -35,6 +35,21 @@ public class Chunk implements Comparable<Chunk> {
 
     public static Chunk[] createChunksFromFile(String filename, long chunkSize, String outputDirectory)
             throws IOException {
+        return createChunksFromFile(filename, new File(filename).getName(), chunkSize, outputDirectory);
+    }
+
+    /**
+     * Split a local file into chunks.
+     *
+     * @param filename        local file
+     * @param dfsFilename     name of the file in the DFS, may contain slashes (directories)
+     * @param chunkSize       size of every chunk but the last one
+     * @param outputDirectory where to write the chunk files
+     * @return chunks, by sequence number
+     * @throws IOException if the file couldn't be read or the chunks couldn't be written
+     */
+    public static Chunk[] createChunksFromFile(String filename, String dfsFilename, long chunkSize, String outputDirectory)
+            throws IOException {
 
         File file = new File(filename);
         FileInputStream fis = new FileInputStream(file);
@@ -42,7 +57,7 @@ public class Chunk implements Comparable<Chunk> {
         fis.close();
         int numberOfChunks = calculateNumberOfChunks(totalSize, chunkSize);
         createDirectoryIfNotExists(outputDirectory);
-        return doCreateChunksFromFile(file, totalSize, numberOfChunks, chunkSize, outputDirectory);
+        return doCreateChunksFromFile(file, dfsFilename, totalSize, numberOfChunks, chunkSize, outputDirectory);
     }
 
     private static void createDirectoryIfNotExists(String directory) {
@@ -54,7 +69,7 @@ public class Chunk implements Comparable<Chunk> {
         }
     }
 
-    private static Chunk[] doCreateChunksFromFile(File file, long fileSize, int numberOfChunks, long defaultChunkSize, String outputDirectory) throws IOException {
+    private static Chunk[] doCreateChunksFromFile(File file, String dfsFilename, long fileSize, int numberOfChunks, long defaultChunkSize, String outputDirectory) throws IOException {
         Chunk[] chunks = new Chunk[numberOfChunks];
         int lastSequenceNo = numberOfChunks - 1;
 
@@ -62,14 +77,14 @@ public class Chunk implements Comparable<Chunk> {
 
         for (int i = 0; i < lastSequenceNo; i++) {
             Path chunkLocalPath = makeChunkFilePath(file, i, outputDirectory);
-            chunks[i] = new Chunk(file.getName(), i, defaultChunkSize, chunkLocalPath);
+            chunks[i] = new Chunk(dfsFilename, i, defaultChunkSize, chunkLocalPath);
             writeToChunkFile(fis, chunkLocalPath, defaultChunkSize);
             chunks[i].calculateAndSetChecksum();
         }
 
         long lastChunkSize = calculateLastChunkSize(numberOfChunks, defaultChunkSize, fileSize);
         Path lastChunkFilePath = makeChunkFilePath(file, lastSequenceNo, outputDirectory);
-        chunks[lastSequenceNo] = new Chunk(file.getName(), lastSequenceNo, lastChunkSize, lastChunkFilePath);
+        chunks[lastSequenceNo] = new Chunk(dfsFilename, lastSequenceNo, lastChunkSize, lastChunkFilePath);
         writeToChunkFile(fis, lastChunkFilePath, lastChunkSize);
         chunks[lastSequenceNo].calculateAndSetChecksum();
         return chunks;
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class UtilsTest {
@@ -38,4 +39,19 @@ class UtilsTest {
         assertEquals(expectedSum, actualSum);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void testIsValidFilename() {
+        assertTrue(Utils.isValidFilename("a"));
+        assertTrue(Utils.isValidFilename("dataset/2017-10-01/part-0"));
+        assertTrue(Utils.isValidFilename(".dedup/pending/a..b"));
+        assertFalse(Utils.isValidFilename(""));
+        assertFalse(Utils.isValidFilename("/etc/passwd"));
+        assertFalse(Utils.isValidFilename("../../x"));
+        assertFalse(Utils.isValidFilename("a/../../x"));
+        assertFalse(Utils.isValidFilename("a/./b"));
+        assertFalse(Utils.isValidFilename("a//b"));
+        assertFalse(Utils.isValidFilename("a/"));
+        assertFalse(Utils.isValidFilename("a\0b"));
+    }
+}
@@ -0,0 +1,74 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+
+    @Test
+    void testReuse() throws IOException {
+        try (ServerSocket server = new ServerSocket(0);
+             ConnectionPool pool = new ConnectionPool(1, 60000)) {
+            ComponentAddress node = new ComponentAddress("localhost", server.getLocalPort());
+
+            Socket first = pool.borrow(node);
+            Socket second = pool.borrow(node);
+            assertNotSame(first, second);
+
+            // Only one is kept
+            pool.release(node, first);
+            pool.release(node, second);
+            assertEquals(1, pool.getIdleCount(node));
+            assertTrue(second.isClosed());
+            assertSame(first, pool.borrow(node));
+            assertEquals(0, pool.getIdleCount(node));
+
+            pool.discard(first);
+            assertTrue(first.isClosed());
+            pool.release(node, first);
+            assertNull(pool.pollIdle(node));
+        }
+    }
+
+    @Test
+    void testIdleTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             ConnectionPool pool = new ConnectionPool(4, 50)) {
+            ComponentAddress node = new ComponentAddress("localhost", server.getLocalPort());
+
+            Socket socket = pool.borrow(node);
+            pool.release(node, socket);
+            Thread.sleep(100);
+            assertNull(pool.pollIdle(node));
+            assertTrue(socket.isClosed());
+        }
+    }
+
+    @Test
+    void testClose() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        ConnectionPool pool = new ConnectionPool(4, 60000);
+        ComponentAddress node = new ComponentAddress("localhost", server.getLocalPort());
+
+        Socket socket = pool.borrow(node);
+        pool.release(node, socket);
+        pool.close();
+        assertTrue(socket.isClosed());
+
+        // Released after close
+        Socket other = node.getSocket();
+        pool.release(node, other);
+        assertTrue(other.isClosed());
+        server.close();
+    }
+}
@@ -0,0 +1,252 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DFSInputStreamTest {
+    private static final Messages.StorageNode NODE = Messages.StorageNode.newBuilder().setHost("bass01").setPort(10000).build();
+
+    /**
+     * Serves chunks from memory instead of storage nodes, and remembers the byte ranges asked for.
+     */
+    private static class StubClient extends DfsClient {
+        private final Map<String, Messages.DownloadFileResponse> files = new HashMap<>();
+        private final Map<String, byte[]> chunks = new HashMap<>();
+        private final List<long[]> requests = new ArrayList<>();
+
+        private StubClient() {
+            super(new ComponentAddress("localhost", 1), new DfsClientConfig().setReadBufferSize(4));
+        }
+
+        // A replicated file, cut into chunks of chunkSize bytes
+        private void addFile(String filename, byte[] data, int chunkSize) {
+            Messages.DownloadFileResponse.Builder file = Messages.DownloadFileResponse.newBuilder()
+                    .setFilename(filename)
+                    .setAttributes(Messages.FileAttributes.newBuilder()
+                            .setFilename(filename).setFileSize(data.length).setChunkSize(chunkSize).setComplete(true));
+            for (int sequenceNo = 0; sequenceNo * chunkSize < data.length; sequenceNo++) {
+                chunks.put(filename + "-chunk" + sequenceNo,
+                        Arrays.copyOfRange(data, sequenceNo * chunkSize, Math.min(data.length, (sequenceNo + 1) * chunkSize)));
+                file.addChunkLocations(location(sequenceNo));
+            }
+            files.put(filename, file.build());
+        }
+
+        // A deduplicated or packed file, made of ranges of stored chunks
+        private void addFile(String filename, Messages.FileAttributes attributes) {
+            Messages.DownloadFileResponse.Builder file = Messages.DownloadFileResponse.newBuilder()
+                    .setFilename(filename)
+                    .setAttributes(attributes);
+            for (int sequenceNo = 0; sequenceNo < attributes.getContentChunksCount(); sequenceNo++) {
+                file.addChunkLocations(location(sequenceNo));
+            }
+            files.put(filename, file.build());
+        }
+
+        private static Messages.DownloadFileResponse.ChunkLocation location(int sequenceNo) {
+            return Messages.DownloadFileResponse.ChunkLocation.newBuilder()
+                    .setSequenceNo(sequenceNo)
+                    .addStorageNodes(NODE)
+                    .build();
+        }
+
+        @Override
+        Messages.DownloadFileResponse getChunkLocations(String filename) throws IOException {
+            if (!files.containsKey(filename)) {
+                throw new FileNotFoundException(filename);
+            }
+            return files.get(filename);
+        }
+
+        @Override
+        byte[] downloadChunkRange(String filename, int sequenceNo, ComponentAddress storageNode, long offset, int length) throws IOException {
+            byte[] chunk = chunks.get(filename + "-chunk" + sequenceNo);
+            if (chunk == null) {
+                throw new IOException("No chunk " + sequenceNo + " of " + filename);
+            }
+            int start = (int) Math.min(offset, chunk.length);
+            int end = length == 0 ? chunk.length : Math.min(start + length, chunk.length);
+            synchronized (requests) {
+                requests.add(new long[]{start, end});
+            }
+            return Arrays.copyOfRange(chunk, start, end);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    // Sequential reads of a few bytes at a time, until the end of the file
+    private static byte[] readAll(DFSInputStream in, int readSize) throws IOException {
+        List<Byte> bytes = new ArrayList<>();
+        byte[] b = new byte[readSize];
+        int n;
+        while ((n = in.read(b, 0, b.length)) != -1) {
+            for (int i = 0; i < n; i++) {
+                bytes.add(b[i]);
+            }
+        }
+        byte[] data = new byte[bytes.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = bytes.get(i);
+        }
+        return data;
+    }
+
+    @Test
+    void testReadAcrossChunks() throws IOException {
+        byte[] data = randomBytes(25);
+        try (StubClient client = new StubClient()) {
+            client.addFile("f", data, 10);
+            DFSInputStream in = new DFSInputStream(client, "f", 0);
+            assertEquals(25, in.length());
+            assertArrayEquals(data, readAll(in, 3));
+
+            // Positional reads span chunks, and don't move the stream
+            byte[] b = new byte[15];
+            assertEquals(15, in.read(8, b, 0, 15));
+            assertArrayEquals(Arrays.copyOfRange(data, 8, 23), b);
+            in.readFully(0, b, 0, 15);
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 15), b);
+            assertEquals(25, in.getPos());
+        }
+    }
+
+    @Test
+    void testSeekBackwards() throws IOException {
+        byte[] data = randomBytes(25);
+        try (StubClient client = new StubClient()) {
+            client.addFile("f", data, 10);
+            DFSInputStream in = new DFSInputStream(client, "f", 0);
+            byte[] b = new byte[20];
+            in.readFully(0, b, 0, 20);
+            in.seek(21);
+            assertEquals(data[21] & 0xff, in.read());
+
+            // Back before the buffer, into another chunk
+            in.seek(3);
+            assertEquals(data[3] & 0xff, in.read());
+            assertArrayEquals(Arrays.copyOfRange(data, 4, 25), readAll(in, 7));
+        }
+    }
+
+    @Test
+    void testReadNearEof() throws IOException {
+        byte[] data = randomBytes(25);
+        try (StubClient client = new StubClient()) {
+            client.addFile("f", data, 10);
+            DFSInputStream in = new DFSInputStream(client, "f", 0);
+            byte[] b = new byte[10];
+            in.seek(23);
+            assertEquals(2, in.read(b, 0, 10));
+            assertEquals(-1, in.read(b, 0, 10));
+            assertEquals(1, in.read(24, b, 0, 10));
+            assertEquals(data[24], b[0]);
+            assertEquals(-1, in.read(25, b, 0, 10));
+
+            try {
+                in.readFully(20, b, 0, 10);
+                fail("Expected an EOFException");
+            } catch (EOFException e) {
+                // Only 5 bytes left
+            }
+            in.seek(25);
+            assertEquals(-1, in.read());
+            try {
+                in.seek(26);
+                fail("Expected an EOFException");
+            } catch (EOFException e) {
+                // Past the end
+            }
+        }
+    }
+
+    @Test
+    void testReadAhead() throws IOException {
+        byte[] data = randomBytes(95);
+        try (StubClient client = new StubClient()) {
+            client.addFile("f", data, 10);
+            DFSInputStream in = new DFSInputStream(client, "f", 3);
+            assertArrayEquals(data, readAll(in, 7));
+
+            // Out of the window: the window starts over
+            in.seek(12);
+            assertArrayEquals(Arrays.copyOfRange(data, 12, 95), readAll(in, 50));
+            in.close();
+        }
+    }
+
+    @Test
+    void testDeduplicatedFile() throws IOException {
+        byte[] a = randomBytes(7);
+        byte[] b = randomBytes(3);
+        byte[] c = randomBytes(12);
+        try (StubClient client = new StubClient()) {
+            client.chunks.put(".dedup/a-chunk0", a);
+            client.chunks.put(".dedup/b-chunk0", b);
+            client.chunks.put(".dedup/c-chunk0", c);
+            client.addFile("d", Messages.FileAttributes.newBuilder()
+                    .setFilename("d").setFileSize(29).setChunkSize(8).setComplete(true)
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("a").setLength(7))
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("b").setLength(3))
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("c").setLength(12))
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("a").setLength(7))
+                    .build());
+            byte[] data = new byte[29];
+            System.arraycopy(a, 0, data, 0, 7);
+            System.arraycopy(b, 0, data, 7, 3);
+            System.arraycopy(c, 0, data, 10, 12);
+            System.arraycopy(a, 0, data, 22, 7);
+
+            DFSInputStream in = new DFSInputStream(client, "d", 0);
+            assertEquals(29, in.length());
+            assertArrayEquals(data, readAll(in, 5));
+            byte[] range = new byte[10];
+            in.readFully(5, range, 0, 10);
+            assertArrayEquals(Arrays.copyOfRange(data, 5, 15), range);
+
+            assertArrayEquals(data, readAll(new DFSInputStream(client, "d", 2), 6));
+        }
+    }
+
+    @Test
+    void testPackedFile() throws IOException {
+        byte[] container = randomBytes(40);
+        try (StubClient client = new StubClient()) {
+            client.chunks.put(".dedup/p-chunk0", container);
+            client.addFile("small", Messages.FileAttributes.newBuilder()
+                    .setFilename("small").setFileSize(6).setChunkSize(40).setComplete(true)
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("p").setOffset(5).setLength(6))
+                    .build());
+
+            DFSInputStream in = new DFSInputStream(client, "small", 0);
+            assertEquals(6, in.length());
+            assertArrayEquals(Arrays.copyOfRange(container, 5, 11), readAll(in, 4));
+            byte[] b = new byte[3];
+            assertEquals(2, in.read(4, b, 0, 3));
+            assertEquals(container[9], b[0]);
+            assertArrayEquals(Arrays.copyOfRange(container, 5, 11), readAll(new DFSInputStream(client, "small", 1), 4));
+
+            // Never a byte of the other files of the container
+            for (long[] request : client.requests) {
+                assertTrue(request[0] >= 5 && request[1] <= 11, request[0] + ".." + request[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class DfsClientTest {
+
+    @Test
+    void testDownloadDirectoryOutsideOfRoot() throws IOException {
+        final Path parent = Files.createTempDirectory("dfs-client-test");
+        Path root = Files.createDirectory(parent.resolve("root"));
+        DfsClient client = new DfsClient(new ComponentAddress("localhost", 1), new DfsClientConfig()) {
+            @Override
+            public List<Messages.DownloadFileResponse> listFiles(String prefix) {
+                return Arrays.asList(file("dir/../../escaped"), file("dir/.."), file("dir/" + parent.resolve("absolute")));
+            }
+        };
+        TransferProgress progress = new TransferProgress(null, 0);
+        try {
+            assertEquals(Arrays.asList("dir/../../escaped", "dir/..", "dir/" + parent.resolve("absolute")),
+                    client.downloadDirectory("dir", root.toString(), progress));
+            assertEquals(3, progress.getFailedFiles());
+            assertFalse(Files.exists(parent.resolve("escaped")));
+            assertFalse(Files.exists(parent.resolve("absolute")));
+        } finally {
+            client.close();
+            Files.delete(root);
+            Files.delete(parent);
+        }
+    }
+
+    @Test
+    void testDownloadFilesOutsideOfRoot() throws IOException {
+        Path root = Files.createTempDirectory("dfs-client-test");
+        try (DfsClient client = new DfsClient(new ComponentAddress("localhost", 1), new DfsClientConfig())) {
+            // Refused before anything is asked from the controller, or downloaded
+            client.downloadFiles(Arrays.asList("a", "../escaped"), root.toString());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("outside of " + root), e.getMessage());
+        } finally {
+            Files.delete(root);
+        }
+    }
+
+    private static Messages.DownloadFileResponse file(String filename) {
+        return Messages.DownloadFileResponse.newBuilder()
+                .setFilename(filename)
+                .setAttributes(Messages.FileAttributes.newBuilder().setFilename(filename).setFileSize(1))
+                .build();
+    }
+}
@@ -0,0 +1,142 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.Utils;
+import edu.usfca.cs.dfs.exceptions.ChecksumException;
+import edu.usfca.cs.dfs.messages.Messages;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputFileTest {
+
+    @Test
+    void testChunksInAnyOrder() throws IOException {
+        byte[] content = "I like ice cream.\n".getBytes();
+        File file = File.createTempFile("outputfiletest", "icecream");
+        file.delete();
+
+        // 18 bytes: chunks of 8, 8 and 2 bytes
+        try (OutputFile output = new OutputFile(file.toPath(), 8, 3)) {
+            write(output, 2, Arrays.copyOfRange(content, 16, 18));
+            write(output, 0, Arrays.copyOfRange(content, 0, 8));
+            assertFalse(output.hasChunk(1));
+            write(output, 1, Arrays.copyOfRange(content, 8, 16));
+
+            assertArrayEquals(Arrays.copyOfRange(content, 16, 18), output.readChunk(2));
+            // Not there until it is complete
+            assertFalse(file.exists());
+            output.complete();
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse(Files.exists(OutputFile.getPartPath(file.toPath())));
+        file.delete();
+    }
+
+    @Test
+    void testTransferChunk() throws IOException {
+        byte[] data = "0123456789".getBytes();
+        File chunkFile = File.createTempFile("outputfiletest", "chunk");
+        Files.write(chunkFile.toPath(), data);
+        File file = File.createTempFile("outputfiletest", "output");
+        file.delete();
+
+        try (OutputFile output = new OutputFile(file.toPath(), 10, 2)) {
+            output.transferChunk(1, chunkFile.toPath(), Utils.md5sum(data));
+            output.transferChunk(0, chunkFile.toPath(), Utils.md5sum(data));
+            output.complete();
+        }
+
+        assertEquals("01234567890123456789", new String(Files.readAllBytes(file.toPath())));
+        chunkFile.delete();
+        file.delete();
+    }
+
+    @Test
+    void testRejectBadChunks() throws IOException {
+        File file = File.createTempFile("outputfiletest", "output");
+        file.delete();
+
+        try (OutputFile output = new OutputFile(file.toPath(), 8, 2)) {
+            try {
+                output.writeChunk(0, ByteBuffer.wrap("01234567".getBytes()), Utils.md5sum("something else".getBytes()));
+                fail("Expected a ChecksumException");
+            } catch (ChecksumException e) {
+                assertFalse(output.hasChunk(0));
+            }
+
+            // Only the last chunk may be shorter
+            try {
+                write(output, 0, "0123".getBytes());
+                fail("Expected an IllegalStateException");
+            } catch (IllegalStateException e) {
+                assertFalse(output.hasChunk(0));
+            }
+
+            try {
+                output.complete();
+                fail("Expected an IllegalStateException");
+            } catch (IllegalStateException e) {
+                // Chunks are missing
+            }
+        }
+        assertFalse(file.exists());
+        Files.delete(OutputFile.getPartPath(file.toPath()));
+    }
+
+    @Test
+    void testResume() throws IOException {
+        byte[] content = "I like ice cream.\n".getBytes();
+        File file = File.createTempFile("outputfiletest", "resume");
+        file.delete();
+        Messages.FileAttributes attributes = Messages.FileAttributes.newBuilder()
+                .setFilename("icecream")
+                .setFileSize(content.length)
+                .setChunkSize(8)
+                .setVersion("1")
+                .build();
+
+        Path journal = TransferJournal.getPath(Files.createTempDirectory("outputfiletest"), "download", file.toPath());
+
+        // Killed after two chunks
+        OutputFile output = new OutputFile(file.toPath(), 8, 3);
+        output.setJournal(TransferJournal.create(journal, attributes, Collections.<Messages.TransferRecord.TransferredChunk>emptyList()));
+        write(output, 2, Arrays.copyOfRange(content, 16, 18));
+        write(output, 0, Arrays.copyOfRange(content, 0, 8));
+        output.close();
+        assertFalse(file.exists());
+
+        assertTrue(TransferJournal.read(journal, attributes.toBuilder().setFileSize(19).build()).isEmpty());
+        // Uploaded again with the same size
+        assertTrue(TransferJournal.read(journal, attributes.toBuilder().setVersion("2").build()).isEmpty());
+        Map<Integer, Messages.TransferRecord.TransferredChunk> chunks = TransferJournal.read(journal, attributes);
+        assertEquals(2, chunks.size());
+
+        try (OutputFile resumed = OutputFile.resume(file.toPath(), 8, 3, false)) {
+            for (Messages.TransferRecord.TransferredChunk chunk : chunks.values()) {
+                assertTrue(resumed.resumeChunk(chunk.getSequenceNo(), chunk.getLength(), chunk.getChecksum()));
+            }
+            assertFalse(resumed.resumeChunk(1, 8, Utils.md5sum(Arrays.copyOfRange(content, 8, 16))));
+            assertFalse(resumed.hasChunk(1));
+            write(resumed, 1, Arrays.copyOfRange(content, 8, 16));
+            resumed.complete();
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        TransferJournal.delete(journal);
+        file.delete();
+    }
+
+    private static void write(OutputFile output, int sequenceNo, byte[] data) throws IOException {
+        output.writeChunk(sequenceNo, ByteBuffer.wrap(data), Utils.md5sum(data));
+    }
+}
@@ -0,0 +1,47 @@
+package edu.usfca.cs.dfs.components.client;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaLatenciesTest {
+    private static final ComponentAddress NODE_1 = new ComponentAddress("bass01", 10000);
+    private static final ComponentAddress NODE_2 = new ComponentAddress("bass02", 10000);
+    private static final ComponentAddress NODE_3 = new ComponentAddress("bass03", 10000);
+
+    @Test
+    void testRank() {
+        ReplicaLatencies latencies = new ReplicaLatencies(95, 500);
+        latencies.record(NODE_1, 100);
+        latencies.record(NODE_2, 10);
+
+        // Unknown nodes rank as the average of known ones
+        assertEquals(Arrays.asList(NODE_2, NODE_3, NODE_1), latencies.rank(Arrays.asList(NODE_1, NODE_2, NODE_3)));
+
+        // The average moves towards recent download times
+        for (int i = 0; i < 20; i++) {
+            latencies.record(NODE_1, 1);
+        }
+        assertTrue(latencies.getLatency(NODE_1) < 10);
+        assertEquals(NODE_1, latencies.rank(Arrays.asList(NODE_2, NODE_1)).get(0));
+
+        latencies.recordFailure(NODE_1);
+        assertEquals(NODE_2, latencies.rank(Arrays.asList(NODE_1, NODE_2)).get(0));
+    }
+
+    @Test
+    void testHedgeDelay() {
+        ReplicaLatencies latencies = new ReplicaLatencies(95, 500);
+        assertEquals(500, latencies.getHedgeDelay());
+
+        // 1 to 100 ms
+        for (int i = 1; i <= 100; i++) {
+            latencies.record(NODE_1, i);
+        }
+        assertEquals(95, latencies.getHedgeDelay());
+    }
+}
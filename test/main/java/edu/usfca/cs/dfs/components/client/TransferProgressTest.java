@@ -0,0 +1,41 @@
+package edu.usfca.cs.dfs.components.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferProgressTest {
+
+    @Test
+    void testProgress() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferProgress progress = new TransferProgress(new PrintStream(out, true), 0);
+        progress.addFile(1000000);
+        progress.addFile(500000);
+        progress.addFile(10);
+
+        progress.bytesTransferred(1000000);
+        progress.fileTransferred();
+        progress.fileFailed();
+        assertEquals(1, progress.getTransferredFiles());
+        assertEquals(1, progress.getFailedFiles());
+        assertEquals(1000000, progress.getTransferredBytes());
+        assertTrue(progress.toString().startsWith("1 of 3 files (1 failed), 1.0 of 1.5 MB, "), progress.toString());
+
+        // Reported as bytes are transferred
+        assertTrue(out.toString().startsWith("0 of 3 files, 1.0 of 1.5 MB, "), out.toString());
+    }
+
+    @Test
+    void testReportInterval() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransferProgress progress = new TransferProgress(new PrintStream(out, true), 60000);
+        progress.addFile(10);
+        progress.bytesTransferred(10);
+        assertEquals("", out.toString());
+    }
+}
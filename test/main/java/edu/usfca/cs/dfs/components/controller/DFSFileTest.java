@@ -0,0 +1,42 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DFSFileTest {
+    @Test
+    void testAddReplica() {
+        DFSFile file = new DFSFile("theFilename");
+        assertTrue(file.addReplica(2, 7));
+        assertTrue(file.addReplica(2, 3));
+        assertTrue(file.addReplica(2, 5));
+        assertFalse(file.addReplica(2, 5));
+
+        assertEquals(1, file.getChunkCount());
+        assertTrue(file.getSequenceNoLimit() > 2);
+        assertFalse(file.hasChunk(0));
+        assertTrue(file.hasChunk(2));
+        assertArrayEquals(new int[]{3, 5, 7}, file.getReplicas(2));
+    }
+
+    @Test
+    void testRemoveReplica() {
+        DFSFile file = new DFSFile("theFilename");
+        file.addReplica(0, 1);
+        file.addReplica(0, 2);
+        file.addReplica(1, 2);
+
+        assertFalse(file.removeReplica(0, 3));
+        assertTrue(file.removeReplica(0, 1));
+        assertArrayEquals(new int[]{2}, file.getReplicas(0));
+
+        assertTrue(file.removeReplica(1, 2));
+        assertFalse(file.hasChunk(1));
+        assertEquals(1, file.getChunkCount());
+
+        assertTrue(file.removeReplica(0, 2));
+        assertEquals(0, file.getChunkCount());
+        assertEquals(0, file.getSequenceNoLimit());
+    }
+}
@@ -0,0 +1,51 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FailureDetectorTest {
+    private static final ComponentAddress NODE_A = new ComponentAddress("bass01", 10000);
+    private static final ComponentAddress NODE_B = new ComponentAddress("bass02", 10000);
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    void testExpiresSilentNode() {
+        long start = -ms(123456); // nanoTime() can be negative
+        FailureDetector failureDetector = new FailureDetector(1000, 5000, start);
+        failureDetector.heartbeat(NODE_A, start);
+        failureDetector.heartbeat(NODE_B, start);
+
+        for (long t = 1000; t <= 8000; t += 1000) {
+            failureDetector.heartbeat(NODE_A, start + ms(t));
+            if (t < 5000) {
+                assertTrue(failureDetector.advance(start + ms(t)).isEmpty());
+            } else if (t == 5000) {
+                assertEquals(Collections.singletonList(NODE_B), failureDetector.advance(start + ms(t)));
+            } else {
+                assertTrue(failureDetector.advance(start + ms(t)).isEmpty());
+            }
+        }
+    }
+
+    @Test
+    void testDoesNotExpireAfterPause() {
+        FailureDetector failureDetector = new FailureDetector(1000, 5000, 0);
+        failureDetector.heartbeat(NODE_A, 0);
+
+        // Detector itself didn't run for 10 s: give the node another timeout
+        assertTrue(failureDetector.advance(ms(10000)).isEmpty());
+        for (long t = 11000; t < 15000; t += 1000) {
+            assertTrue(failureDetector.advance(ms(t)).isEmpty());
+        }
+        assertEquals(Collections.singletonList(NODE_A), failureDetector.advance(ms(15000)));
+    }
+}
@@ -0,0 +1,466 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import edu.usfca.cs.dfs.dedup.DedupLayout;
+import edu.usfca.cs.dfs.messages.Messages;
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileTableTest {
+    private static final ComponentAddress NODE = new ComponentAddress("bass01", 10000);
+
+    private static FileTable createFileTable(String... filenames) {
+        FileTable fileTable = new FileTable();
+        for (String filename : filenames) {
+            fileTable.publishChunk(filename, 0, NODE);
+        }
+        return fileTable;
+    }
+
+    private static List<String> names(List<Messages.DirectoryEntry> entries) {
+        List<String> names = new ArrayList<>();
+        for (Messages.DirectoryEntry entry : entries) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    @Test
+    void testListFilenames() {
+        FileTable fileTable = createFileTable("b", "a/1", "a/2", "a/3", "c");
+        assertEquals(Arrays.asList("a/1", "a/2"), fileTable.listFilenames("a/", null, 2));
+        assertEquals(Arrays.asList("a/3"), fileTable.listFilenames("a/", "a/2", 2));
+        assertEquals(Arrays.asList("a/1", "a/2", "a/3", "b", "c"), fileTable.listFilenames("", null, 10));
+    }
+
+    @Test
+    void testListDirectory() {
+        FileTable fileTable = createFileTable(
+                "dataset/2017-10-01/part-0",
+                "dataset/2017-10-01/part-1",
+                "dataset/2017-10-02/part-0",
+                "dataset/readme",
+                "dataset.txt",
+                "other");
+
+        assertEquals(Arrays.asList("dataset.txt", "dataset/", "other"), names(fileTable.listDirectory("", null, 10)));
+        assertEquals(Arrays.asList("dataset/2017-10-01/", "dataset/2017-10-02/", "dataset/readme"),
+                names(fileTable.listDirectory("dataset", null, 10)));
+        assertEquals(Arrays.asList("dataset/2017-10-02/", "dataset/readme"),
+                names(fileTable.listDirectory("dataset/", "dataset/2017-10-01/", 10)));
+        assertEquals(Arrays.asList("dataset/2017-10-01/part-1"),
+                names(fileTable.listDirectory("dataset/2017-10-01/", "dataset/2017-10-01/part-0", 10)));
+
+        assertEquals(2, fileTable.listDirectory("dataset/", null, 10).get(0).getFileCount());
+        assertEquals(4, fileTable.getDirectoryFileCount("dataset"));
+        assertEquals(6, fileTable.getDirectoryFileCount(""));
+    }
+
+    @Test
+    void testMoveReplica() {
+        ComponentAddress newNode = new ComponentAddress("bass02", 10000);
+        FileTable fileTable = createFileTable("a", "b");
+        fileTable.publishChunk("a", 0, newNode);
+
+        Map<ComponentAddress, Integer> counts = fileTable.getReplicaCounts(Arrays.asList(NODE, newNode));
+        assertEquals(2, (int) counts.get(NODE));
+        assertEquals(1, (int) counts.get(newNode));
+
+        List<ChunkRef> movable = fileTable.getMovableChunks(NODE, newNode, 10);
+        assertEquals(1, movable.size());
+        assertEquals("b", movable.get(0).getFilename());
+
+        // b doesn't have a replica to spare, a does once it has one more than needed
+        assertFalse(fileTable.removeExtraReplica("b", 0, NODE));
+        for (int i = 2; i <= DFSProperties.getInstance().getMinReplicas(); i++) {
+            fileTable.publishChunk("a", 0, new ComponentAddress("bass1" + i, 10000));
+        }
+        assertTrue(fileTable.removeExtraReplica("a", 0, NODE));
+        assertFalse(fileTable.hasReplica("a", 0, NODE));
+        assertTrue(fileTable.hasReplica("a", 0, newNode));
+    }
+
+    @Test
+    void testOverReplicatedChunks() {
+        FileTable fileTable = createFileTable("a", "b");
+        int minReplicas = DFSProperties.getInstance().getMinReplicas();
+        for (int i = 0; i <= minReplicas; i++) {
+            fileTable.publishChunk("a", 0, new ComponentAddress("bass1" + i, 10000));
+        }
+
+        List<ChunkRef> chunks = fileTable.getOverReplicatedChunks();
+        assertEquals(1, chunks.size());
+        assertEquals("a", chunks.get(0).getFilename());
+
+        assertTrue(fileTable.removeExtraReplica("a", 0, NODE));
+        assertTrue(fileTable.removeExtraReplica("a", 0, new ComponentAddress("bass10", 10000)));
+        assertFalse(fileTable.removeExtraReplica("a", 0, new ComponentAddress("bass11", 10000)));
+        assertTrue(fileTable.getOverReplicatedChunks().isEmpty());
+    }
+
+    @Test
+    void testErasureCodedFile() {
+        FileTable fileTable = new FileTable();
+        // 3 data chunks, 2 parity chunks
+        Messages.FileAttributes attributes = Messages.FileAttributes.newBuilder()
+                .setFilename("cold")
+                .setFileSize(25)
+                .setChunkSize(10)
+                .setDataShards(3)
+                .setParityShards(2)
+                .build();
+        fileTable.setFileAttributes(attributes);
+        for (int sequenceNo = 0; sequenceNo < 4; sequenceNo++) {
+            fileTable.publishChunk("cold", sequenceNo, new ComponentAddress("bass0" + sequenceNo, 10000));
+        }
+
+        // One replica per chunk is enough
+        assertTrue(fileTable.getUnderReplicatedChunks().isEmpty());
+        // Nothing is lost until the upload is complete
+        assertTrue(fileTable.getLostChunks().isEmpty());
+
+        fileTable.setFileAttributes(attributes.toBuilder().setComplete(true).build());
+        List<ChunkRef> lostChunks = fileTable.getLostChunks();
+        assertEquals(1, lostChunks.size());
+        assertEquals(4, lostChunks.get(0).getSequenceNo());
+        assertEquals(attributes.getDataShards(), fileTable.getFileMsg("cold").getAttributes().getDataShards());
+    }
+
+    @Test
+    void testReplaceFile() {
+        FileTable fileTable = createFileTable();
+        Messages.FileAttributes v1 = Messages.FileAttributes.newBuilder()
+                .setFilename("a").setFileSize(25).setChunkSize(10).setVersion("v1").build();
+        fileTable.setFileAttributes(v1);
+        for (int sequenceNo = 0; sequenceNo < 3; sequenceNo++) {
+            fileTable.publishChunk("a", sequenceNo, NODE);
+        }
+        // Same version, once its upload is complete
+        assertTrue(fileTable.setFileAttributes(v1.toBuilder().setComplete(true).build()).isEmpty());
+        assertEquals(3, fileTable.getFileMsg("a").getChunkLocationsCount());
+
+        // A shorter version: none of the chunks of the previous one are left
+        Messages.FileAttributes v2 = Messages.FileAttributes.newBuilder()
+                .setFilename("a").setFileSize(4).setChunkSize(10).setVersion("v2").build();
+        List<ChunkRef> chunks = fileTable.setFileAttributes(v2);
+        assertEquals(3, chunks.size());
+        assertEquals(Collections.singleton(NODE), chunks.get(2).getReplicaLocations());
+        assertEquals(0, fileTable.getFileMsg("a").getChunkLocationsCount());
+        assertTrue(fileTable.publishChunk("a", 0, NODE));
+        assertTrue(fileTable.setFileAttributes(v2.toBuilder().setComplete(true).build()).isEmpty());
+        Messages.DownloadFileResponse file = fileTable.getFileMsg("a");
+        assertEquals(1, file.getChunkLocationsCount());
+        assertEquals(4, file.getAttributes().getFileSize());
+        assertFalse(fileTable.hasReplica("a", 2, NODE));
+    }
+
+    @Test
+    void testInvalidFilenames() {
+        FileTable fileTable = createFileTable();
+        assertFalse(fileTable.publishChunk("../../x", 0, NODE));
+        assertFalse(fileTable.publishChunk("/etc/passwd", 0, NODE));
+        assertFalse(fileTable.publishChunk("a/./b", 0, NODE));
+        assertTrue(fileTable.publishChunk("a/b", 0, NODE));
+        assertEquals(Arrays.asList("a/b"), fileTable.listFilenames("", null, 10));
+    }
+
+    @Test
+    void testDeleteFile() {
+        FileTable fileTable = createFileTable("a", "b");
+        fileTable.publishChunk("a", 1, NODE);
+
+        List<ChunkRef> chunks = fileTable.deleteFile("a");
+        assertEquals(2, chunks.size());
+        assertEquals(Collections.singleton(NODE), chunks.get(0).getReplicaLocations());
+        assertFalse(fileTable.hasFile("a"));
+        assertEquals(Arrays.asList("b"), fileTable.listFilenames("", null, 10));
+        assertNull(fileTable.deleteFile("a"));
+
+        // Replicas that were on their way are refused, until the file is uploaded again
+        assertFalse(fileTable.publishChunk("a", 2, NODE));
+        assertFalse(fileTable.hasFile("a"));
+        fileTable.setFileAttributes(Messages.FileAttributes.newBuilder().setFilename("a").build());
+        assertTrue(fileTable.publishChunk("a", 0, NODE));
+        assertTrue(fileTable.hasFile("a"));
+    }
+
+    @Test
+    void testPendingDeletions() throws IOException {
+        ComponentAddress other = new ComponentAddress("bass02", 10000);
+        ComponentAddress late = new ComponentAddress("bass03", 10000);
+        Path directory = Files.createTempDirectory("metadata");
+        FileTable fileTable = new FileTable(new MetadataLog(directory.toString()));
+        fileTable.publishChunk("a", 0, NODE);
+        fileTable.publishChunk("a", 0, other);
+        fileTable.onStorageNodeOffline(other);
+        fileTable.deleteFile("a");
+
+        // other was offline, so it may still have chunks of a
+        assertEquals(Collections.singleton("a"), fileTable.getPendingDeletions(NODE));
+        assertEquals(Collections.singleton("a"), fileTable.getPendingDeletions(other));
+        fileTable.confirmDeletion("a", NODE);
+        assertFalse(fileTable.publishChunk("a", 1, late));
+        fileTable.confirmDeletion("a", late);
+
+        // Survives a controller restart, from the log then from the snapshot
+        fileTable = new FileTable(new MetadataLog(directory.toString()));
+        fileTable.recover();
+        fileTable = new FileTable(new MetadataLog(directory.toString()));
+        fileTable.recover();
+        assertTrue(fileTable.getPendingDeletions(NODE).isEmpty());
+        assertEquals(Collections.singleton("a"), fileTable.getPendingDeletions(other));
+
+        // Back online, with its chunk of a: it is told to delete it, then has none left
+        Map<String, SortedSet<Integer>> fileChunks = new HashMap<>();
+        fileChunks.put("a", new TreeSet<>(Collections.singleton(0)));
+        assertEquals(1, fileTable.reconcileStorageNode(other, fileChunks).size());
+        assertFalse(fileTable.hasFile("a"));
+        fileTable.reconcileStorageNode(other, Collections.<String, SortedSet<Integer>>emptyMap());
+        assertTrue(fileTable.getPendingDeletions(other).isEmpty());
+        assertTrue(fileTable.publishChunk("a", 0, other));
+    }
+
+    // Files a, b and c on two storage nodes, as the metadata log of fileTable has them
+    private static void addFiles(FileTable fileTable, ComponentAddress other) {
+        fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename("a").setFileSize(25).setChunkSize(10).setComplete(true).build());
+        for (int sequenceNo = 0; sequenceNo < 3; sequenceNo++) {
+            fileTable.publishChunk("a", sequenceNo, NODE);
+        }
+        fileTable.publishChunk("a", 1, other);
+        fileTable.publishChunk("b", 0, other);
+        fileTable.publishChunk("c", 0, NODE);
+        fileTable.deleteFile("c");
+    }
+
+    private static void assertRecovered(FileTable fileTable, ComponentAddress other, long generation) {
+        assertEquals(Arrays.asList("a", "b"), fileTable.listFilenames("", null, 10));
+        Messages.DownloadFileResponse a = fileTable.getFileMsg("a");
+        assertEquals(25, a.getAttributes().getFileSize());
+        assertTrue(a.getAttributes().getComplete());
+        assertEquals(3, a.getChunkLocationsCount());
+        for (int sequenceNo = 0; sequenceNo < 3; sequenceNo++) {
+            assertTrue(fileTable.hasReplica("a", sequenceNo, NODE));
+        }
+        assertTrue(fileTable.hasReplica("a", 1, other));
+        assertFalse(fileTable.hasReplica("a", 0, other));
+        assertTrue(fileTable.hasReplica("b", 0, other));
+        assertFalse(fileTable.hasReplica("b", 0, NODE));
+        // Clients must not mistake the recovered file for the one they have cached
+        assertTrue(a.getGeneration() > generation);
+        assertEquals(new HashSet<>(Arrays.asList(NODE, other)), fileTable.getStorageNodes());
+    }
+
+    @Test
+    void testRecoverFromLog() throws IOException {
+        ComponentAddress other = new ComponentAddress("bass02", 10000);
+        Path directory = Files.createTempDirectory("metadata");
+        FileTable fileTable = new FileTable(new MetadataLog(directory.toString()));
+        addFiles(fileTable, other);
+        long generation = fileTable.getFileMsg("a").getGeneration();
+
+        FileTable recovered = new FileTable(new MetadataLog(directory.toString()));
+        assertEquals(new HashSet<>(Arrays.asList(NODE, other)), recovered.recover());
+        assertRecovered(recovered, other, generation);
+
+        // Storage nodes met after the restart don't take the ids of the recovered ones
+        ComponentAddress late = new ComponentAddress("bass03", 10000);
+        assertTrue(recovered.publishChunk("b", 0, late));
+        assertTrue(recovered.hasReplica("b", 0, other));
+        assertFalse(recovered.hasReplica("a", 0, late));
+    }
+
+    @Test
+    void testRecoverFromSnapshotAndLog() throws IOException {
+        ComponentAddress other = new ComponentAddress("bass02", 10000);
+        Path directory = Files.createTempDirectory("metadata");
+        FileTable fileTable = new FileTable(new MetadataLog(directory.toString()));
+        fileTable.publishChunk("a", 0, other);
+        fileTable.publishChunk("d", 0, NODE);
+        fileTable.checkpoint();
+        // Changes to files of the snapshot, and new files
+        fileTable.onChunkCorrupted("a", 0, other);
+        fileTable.deleteFile("d");
+        addFiles(fileTable, other);
+        long generation = fileTable.getFileMsg("a").getGeneration();
+
+        FileTable recovered = new FileTable(new MetadataLog(directory.toString()));
+        recovered.recover();
+        assertRecovered(recovered, other, generation);
+
+        // Once more, from the snapshot written by the recovery alone
+        recovered = new FileTable(new MetadataLog(directory.toString()));
+        recovered.recover();
+        assertRecovered(recovered, other, generation);
+    }
+
+    @Test
+    void testRecoverTornRecord() throws IOException {
+        ComponentAddress other = new ComponentAddress("bass02", 10000);
+        Path directory = Files.createTempDirectory("metadata");
+        FileTable fileTable = new FileTable(new MetadataLog(directory.toString()));
+        addFiles(fileTable, other);
+        long generation = fileTable.getFileMsg("a").getGeneration();
+
+        // The controller died while writing the replica of e
+        byte[] record = Messages.MetadataRecord.newBuilder()
+                .setAddReplica(Messages.ReplicaChange.newBuilder()
+                        .setFilename("e")
+                        .setStorageNode(Messages.StorageNode.newBuilder().setHost("bass01").setPort(10000)))
+                .build()
+                .toByteArray();
+        ByteArrayOutputStream torn = new ByteArrayOutputStream();
+        torn.write(record.length);
+        torn.write(record, 0, record.length / 2);
+        Files.write(directory.resolve("wal"), torn.toByteArray(), StandardOpenOption.APPEND);
+
+        FileTable recovered = new FileTable(new MetadataLog(directory.toString()));
+        recovered.recover();
+        assertRecovered(recovered, other, generation);
+        assertFalse(recovered.hasFile("e"));
+
+        // Also when only the length of the last record was written
+        recovered.publishChunk("f", 0, NODE);
+        Files.write(directory.resolve("wal"), new byte[]{(byte) 0x80}, StandardOpenOption.APPEND);
+        recovered = new FileTable(new MetadataLog(directory.toString()));
+        recovered.recover();
+        assertTrue(recovered.hasReplica("f", 0, NODE));
+        assertEquals(Arrays.asList("a", "b", "f"), recovered.listFilenames("", null, 10));
+    }
+
+    @Test
+    void testDeduplicatedFiles() {
+        FileTable fileTable = createFileTable("b");
+        Messages.ContentChunk x = Messages.ContentChunk.newBuilder().setHash("x").setLength(10).build();
+        Messages.ContentChunk y = Messages.ContentChunk.newBuilder().setHash("y").setLength(5).build();
+        Messages.ContentChunk z = Messages.ContentChunk.newBuilder().setHash("z").setLength(7).build();
+        fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename("v1").setFileSize(25).addContentChunks(x).addContentChunks(y).addContentChunks(x).build());
+        fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename("v2").setFileSize(17).addContentChunks(x).addContentChunks(z).build());
+        assertEquals(3, fileTable.getReferenceCount("x"));
+        assertTrue(fileTable.publishChunk(".dedup/x", 0, NODE));
+        assertTrue(fileTable.publishChunk(".dedup/y", 0, NODE));
+        // Not referenced by any file, collected later
+        assertTrue(fileTable.publishChunk(".dedup/w", 0, NODE));
+        assertEquals(Collections.singletonList(".dedup/w"), fileTable.getUnreferencedContentChunks(0));
+        assertEquals(1, fileTable.collectContentChunk(".dedup/w", 0).size());
+        assertFalse(fileTable.hasFile(".dedup/w"));
+
+        // Chunks of the file are wherever its content chunks are, z is not uploaded yet
+        Messages.DownloadFileResponse v1 = fileTable.getFileMsg("v1");
+        assertEquals(3, v1.getChunkLocationsCount());
+        assertEquals(2, v1.getChunkLocations(2).getSequenceNo());
+        assertEquals(1, fileTable.getFileMsg("v2").getChunkLocationsCount());
+
+        // Content chunks are not files of the namespace
+        assertEquals(Arrays.asList("b", "v1", "v2"), fileTable.listFilenames("", null, 10));
+        assertEquals(Arrays.asList("b", "v1", "v2"), names(fileTable.listDirectory("", null, 10)));
+        assertEquals(3, fileTable.getDirectoryFileCount(""));
+
+        // y is only in v1, and kept for the grace period
+        assertTrue(fileTable.deleteFile("v1").isEmpty());
+        assertEquals(1, fileTable.getReferenceCount("x"));
+        assertTrue(fileTable.hasFile(".dedup/y"));
+        assertTrue(fileTable.getUnreferencedContentChunks(60000).isEmpty());
+        assertTrue(fileTable.collectContentChunk(".dedup/y", 60000).isEmpty());
+        assertEquals(Collections.singletonList(".dedup/y"), fileTable.getUnreferencedContentChunks(0));
+        List<ChunkRef> chunks = fileTable.collectContentChunk(".dedup/y", 0);
+        assertEquals(1, chunks.size());
+        assertEquals(".dedup/y", chunks.get(0).getFilename());
+        assertFalse(fileTable.hasFile(".dedup/y"));
+        assertTrue(fileTable.hasFile(".dedup/x"));
+
+        // A new version of v2 without x
+        assertTrue(fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename("v2").setFileSize(7).addContentChunks(z).build()).isEmpty());
+        assertTrue(fileTable.hasFile(".dedup/x"));
+        assertEquals(1, fileTable.collectContentChunk(".dedup/x", 0).size());
+        assertFalse(fileTable.hasFile(".dedup/x"));
+        assertTrue(fileTable.hasFile("v2"));
+
+        // Referenced again before the storage node is told to delete it: it keeps its replica
+        fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                .setFilename("v3").setFileSize(10).addContentChunks(x).build());
+        assertTrue(fileTable.collectContentChunk(".dedup/x", 0).isEmpty());
+        assertTrue(fileTable.keepReferencedContentChunk(".dedup/x", NODE));
+        assertTrue(fileTable.hasReplica(".dedup/x", 0, NODE));
+        assertFalse(fileTable.keepReferencedContentChunk(".dedup/x", NODE));
+        // Only deletes of collected chunks are held back
+        assertFalse(fileTable.keepReferencedContentChunk(".dedup/z", NODE));
+    }
+
+    @Test
+    void testDeduplicatedUpdate() {
+        FileTable fileTable = createFileTable();
+        Messages.ContentChunk x = Messages.ContentChunk.newBuilder().setHash("x").setLength(10).build();
+        Messages.ContentChunk y = Messages.ContentChunk.newBuilder().setHash("y").setLength(5).build();
+        Messages.ContentChunk z = Messages.ContentChunk.newBuilder().setHash("z").setLength(7).build();
+        Messages.FileAttributes v1 = Messages.FileAttributes.newBuilder()
+                .setFilename("f").setFileSize(15).addContentChunks(x).addContentChunks(y).setComplete(true).build();
+        fileTable.setFileAttributes(v1);
+        fileTable.publishChunk(".dedup/x", 0, NODE);
+        fileTable.publishChunk(".dedup/y", 0, NODE);
+
+        // The new version is pending while z is uploaded, readers still see the current one
+        Messages.FileAttributes v2 = Messages.FileAttributes.newBuilder()
+                .setFilename("f").setFileSize(17).addContentChunks(x).addContentChunks(z).build();
+        fileTable.setFileAttributes(v2.toBuilder().setFilename(DedupLayout.getPendingFilename("f")).build());
+        assertTrue(fileTable.publishChunk(".dedup/z", 0, NODE));
+        assertEquals(v1, fileTable.getFileMsg("f").getAttributes());
+        assertEquals(Collections.singletonList("f"), fileTable.listFilenames("", null, 10));
+
+        // Commit: y is only in the previous version
+        assertTrue(fileTable.setFileAttributes(v2.toBuilder().setComplete(true).build()).isEmpty());
+        assertTrue(fileTable.deleteFile(DedupLayout.getPendingFilename("f")).isEmpty());
+        assertEquals(Collections.singletonList(".dedup/y"), fileTable.getUnreferencedContentChunks(0));
+        assertEquals(1, fileTable.getReferenceCount("x"));
+        assertEquals(1, fileTable.getReferenceCount("z"));
+        assertEquals(2, fileTable.getFileMsg("f").getChunkLocationsCount());
+    }
+
+    @Test
+    void testPackedFiles() {
+        FileTable fileTable = createFileTable();
+        for (int i = 0; i < 3; i++) {
+            fileTable.setFileAttributes(Messages.FileAttributes.newBuilder()
+                    .setFilename("small/" + i).setFileSize(10).setComplete(true)
+                    .addContentChunks(Messages.ContentChunk.newBuilder().setHash("c").setOffset(10 * i).setLength(10))
+                    .build());
+        }
+        assertTrue(fileTable.publishChunk(".dedup/c", 0, NODE));
+        assertEquals(3, fileTable.getReferenceCount("c"));
+        assertEquals(3, fileTable.getDirectoryFileCount("small/"));
+        Messages.DownloadFileResponse file = fileTable.getFileMsg("small/2");
+        assertEquals(1, file.getChunkLocationsCount());
+        assertEquals(20, file.getAttributes().getContentChunks(0).getOffset());
+
+        // The container goes with the last of its files
+        assertTrue(fileTable.deleteFile("small/0").isEmpty());
+        assertTrue(fileTable.deleteFile("small/1").isEmpty());
+        assertTrue(fileTable.deleteFile("small/2").isEmpty());
+        List<ChunkRef> chunks = fileTable.collectContentChunk(".dedup/c", 0);
+        assertEquals(1, chunks.size());
+        assertEquals(".dedup/c", chunks.get(0).getFilename());
+    }
+}
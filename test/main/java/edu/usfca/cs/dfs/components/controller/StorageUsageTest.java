@@ -0,0 +1,48 @@
+package edu.usfca.cs.dfs.components.controller;
+
+import edu.usfca.cs.dfs.structures.ComponentAddress;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StorageUsageTest {
+    private static final ComponentAddress NODE_1 = new ComponentAddress("bass01", 10000);
+    private static final ComponentAddress NODE_2 = new ComponentAddress("bass02", 10000);
+    private static final ComponentAddress NODE_3 = new ComponentAddress("bass03", 10000);
+
+    @Test
+    void testAggregate() {
+        StorageUsage storageUsage = new StorageUsage();
+        storageUsage.update(NODE_1, 1000, 100, 900);
+        storageUsage.update(NODE_2, 1000, 300, 700);
+        storageUsage.update(NODE_1, 1000, 200, 800);
+        assertEquals(2000, storageUsage.getTotalSpace());
+        assertEquals(500, storageUsage.getUsedSpace());
+        assertEquals(1500, storageUsage.getFreeSpace());
+
+        storageUsage.remove(NODE_2);
+        assertEquals(800, storageUsage.getFreeSpace());
+        assertEquals(-1, storageUsage.getFreeSpace(NODE_2));
+    }
+
+    @Test
+    void testChooseStorageNodes() {
+        StorageUsage storageUsage = new StorageUsage();
+        storageUsage.update(NODE_1, 1000, 950, 50);
+        storageUsage.update(NODE_2, 1000, 600, 400);
+        storageUsage.update(NODE_3, 1000, 500, 500);
+        List<ComponentAddress> storageNodes = Arrays.asList(NODE_1, NODE_2, NODE_3);
+
+        // NODE_1 is full
+        assertEquals(Arrays.asList(NODE_3, NODE_2), storageUsage.getWritableStorageNodes(storageNodes, 100));
+
+        // Chosen storage nodes have less free space until their next heartbeat
+        assertEquals(Collections.singleton(NODE_3), storageUsage.chooseStorageNodes(1, storageNodes, 200));
+        assertEquals(Collections.singleton(NODE_2), storageUsage.chooseStorageNodes(1, storageNodes, 200));
+        assertEquals(550, storageUsage.getFreeSpace());
+    }
+}
@@ -0,0 +1,87 @@
+package edu.usfca.cs.dfs.components.storageNode;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IoSchedulerTest {
+
+    private static final IoScheduler.IoOperation<Void> NOTHING = new IoScheduler.IoOperation<Void>() {
+        @Override
+        public Void run() {
+            return null;
+        }
+    };
+
+    @Test
+    void testWeightedSharing() {
+        // Not started: tasks stay queued until polled
+        IoScheduler scheduler = new IoScheduler(1);
+        for (IoScheduler.Priority priority : IoScheduler.Priority.values()) {
+            for (int i = 0; i < 20; i++) {
+                scheduler.submit(priority, NOTHING);
+            }
+        }
+
+        Map<IoScheduler.Priority, Integer> counts = new EnumMap<>(IoScheduler.Priority.class);
+        for (IoScheduler.Priority priority : IoScheduler.Priority.values()) {
+            counts.put(priority, 0);
+        }
+        for (int i = 0; i < 15; i++) {
+            IoScheduler.Priority priority = scheduler.poll().getPriority();
+            counts.put(priority, counts.get(priority) + 1);
+        }
+        assertEquals(8, (int) counts.get(IoScheduler.Priority.FOREGROUND_READ));
+        assertEquals(4, (int) counts.get(IoScheduler.Priority.FOREGROUND_WRITE));
+        assertEquals(2, (int) counts.get(IoScheduler.Priority.REPLICATION));
+        assertEquals(1, (int) counts.get(IoScheduler.Priority.SCRUB));
+    }
+
+    @Test
+    void testReadsGoFirst() {
+        IoScheduler scheduler = new IoScheduler(1);
+        scheduler.submit(IoScheduler.Priority.SCRUB, NOTHING);
+        scheduler.submit(IoScheduler.Priority.REPLICATION, NOTHING);
+        scheduler.submit(IoScheduler.Priority.FOREGROUND_READ, NOTHING);
+
+        assertEquals(IoScheduler.Priority.FOREGROUND_READ, scheduler.poll().getPriority());
+        assertEquals(IoScheduler.Priority.REPLICATION, scheduler.poll().getPriority());
+        assertEquals(IoScheduler.Priority.SCRUB, scheduler.poll().getPriority());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    void testExecute() throws IOException {
+        IoScheduler scheduler = new IoScheduler(2);
+        scheduler.start();
+
+        int result = scheduler.execute(IoScheduler.Priority.FOREGROUND_WRITE, new IoScheduler.IoOperation<Integer>() {
+            @Override
+            public Integer run() {
+                return 42;
+            }
+        });
+        assertEquals(42, result);
+
+        try {
+            scheduler.execute(IoScheduler.Priority.FOREGROUND_READ, new IoScheduler.IoOperation<Void>() {
+                @Override
+                public Void run() throws IOException {
+                    throw new IOException("disk on fire");
+                }
+            });
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("disk on fire", e.getMessage());
+        }
+
+        assertEquals(1L, (long) scheduler.getMetrics().get("io-foreground-write-completed"));
+        // Counted once run, and only if it succeeded
+        assertEquals(0L, (long) scheduler.getMetrics().get("io-foreground-read-completed"));
+        assertEquals(1L, (long) scheduler.getMetrics().get("io-foreground-read-failed"));
+    }
+}
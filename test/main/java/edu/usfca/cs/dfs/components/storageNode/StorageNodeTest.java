@@ -0,0 +1,31 @@
+package edu.usfca.cs.dfs.components.storageNode;
+
+import edu.usfca.cs.dfs.DFSProperties;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class StorageNodeTest {
+
+    @Test
+    void testChunkPath() {
+        Path chunksPath = Paths.get(DFSProperties.getInstance().getStorageNodeChunksDir()).toAbsolutePath().normalize();
+        Path chunkPath = StorageNode.getChunkPath("dataset/part-0", 3);
+        assertEquals(chunksPath.resolve("dataset/part-0-chunk3"), chunkPath);
+        assertEquals(chunksPath.resolve("dataset/part-0-chunk3.md5"), StorageNode.getChecksumPath(chunkPath));
+
+        // Anything that would be outside of the chunks directory
+        for (String filename : new String[]{"../../x", "a/../../x", "/etc/passwd", "", "a//b"}) {
+            try {
+                StorageNode.getChunkPath(filename, 0);
+                fail("Expected " + filename + " to be refused");
+            } catch (IllegalArgumentException e) {
+                // Refused
+            }
+        }
+    }
+}
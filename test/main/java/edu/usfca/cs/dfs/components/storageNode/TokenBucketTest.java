@@ -0,0 +1,36 @@
+package edu.usfca.cs.dfs.components.storageNode;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenBucketTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    void testReserve() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        assertEquals(0, bucket.reserve(500, 0));
+        // 500 bytes short, half a second to get them back
+        assertEquals(SECOND / 2, bucket.reserve(1000, 0));
+        // Back to 500 tokens after a second
+        assertEquals(0, bucket.reserve(500, SECOND));
+
+        // Idle buckets don't fill up past one second worth of bytes
+        assertEquals(SECOND, bucket.reserve(2000, 11 * SECOND));
+
+        assertEquals(4000, bucket.getTotalBytes());
+        assertEquals(1500, bucket.getThrottledMillis());
+    }
+
+    @Test
+    void testUnlimited() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(1000000, 0));
+        assertEquals(0, bucket.getThrottledMillis());
+
+        bucket.setRate(1000);
+        assertEquals(SECOND, bucket.reserve(1000, 0));
+    }
+}
@@ -0,0 +1,96 @@
+package edu.usfca.cs.dfs.dedup;
+
+import edu.usfca.cs.dfs.messages.Messages;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentDefinedChunkerTest {
+
+    private static final ContentDefinedChunker chunker = new ContentDefinedChunker(4096);
+
+    @Test
+    void testChunkSizes() throws IOException {
+        byte[] data = randomBytes(1000000, 1);
+        List<Messages.ContentChunk> chunks = chunker.split(new ByteArrayInputStream(data));
+
+        long total = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            long length = chunks.get(i).getLength();
+            assertTrue(length <= 4 * 4096);
+            assertTrue(length >= 1024 || i == chunks.size() - 1);
+            total += length;
+        }
+        assertEquals(data.length, total);
+        // Around the average size
+        assertTrue(chunks.size() > 1000000 / (3 * 4096) && chunks.size() < 1000000 / 1024);
+
+        // Zeros never match a cut point: maximum size chunks, all the same
+        chunks = chunker.split(new ByteArrayInputStream(new byte[100000]));
+        assertEquals(7, chunks.size());
+        assertEquals(4 * 4096, chunks.get(0).getLength());
+        assertEquals(chunks.get(0).getHash(), chunks.get(5).getHash());
+    }
+
+    @Test
+    void testInsertion() throws IOException {
+        byte[] data = randomBytes(500000, 2);
+        // 10 bytes inserted in the middle
+        byte[] modified = new byte[data.length + 10];
+        System.arraycopy(data, 0, modified, 0, 250000);
+        System.arraycopy(data, 250000, modified, 250010, data.length - 250000);
+
+        Set<String> hashes = new HashSet<>();
+        List<Messages.ContentChunk> chunks = chunker.split(new ByteArrayInputStream(data));
+        for (Messages.ContentChunk chunk : chunks) {
+            hashes.add(chunk.getHash());
+        }
+        int changed = 0;
+        for (Messages.ContentChunk chunk : chunker.split(new ByteArrayInputStream(modified))) {
+            if (!hashes.contains(chunk.getHash())) {
+                changed++;
+            }
+        }
+        // Only the chunks around the insertion, where fixed size chunks would all have changed after it
+        assertTrue(changed <= 2, changed + " chunks changed out of " + chunks.size());
+    }
+
+    @Test
+    void testLayout() {
+        DedupLayout layout = new DedupLayout(Messages.FileAttributes.newBuilder()
+                .setFileSize(17)
+                .addContentChunks(Messages.ContentChunk.newBuilder().setHash("a").setLength(10))
+                .addContentChunks(Messages.ContentChunk.newBuilder().setHash("b").setLength(2))
+                .addContentChunks(Messages.ContentChunk.newBuilder().setHash("a").setLength(5))
+                .build());
+        assertEquals(3, layout.getChunkCount());
+        assertEquals(12, layout.getChunkOffset(2));
+        assertEquals(0, layout.getSequenceNo(9));
+        assertEquals(1, layout.getSequenceNo(10));
+        assertEquals(2, layout.getSequenceNo(16));
+        assertEquals(".dedup/b", layout.getChunkFilename(1));
+        assertEquals(0, layout.getStoredChunkOffset(1));
+
+        // A packed small file
+        layout = new DedupLayout(Messages.FileAttributes.newBuilder()
+                .setFileSize(4)
+                .addContentChunks(Messages.ContentChunk.newBuilder().setHash("c").setOffset(100).setLength(4))
+                .build());
+        assertEquals(100, layout.getStoredChunkOffset(0));
+        assertEquals(4, layout.getChunkLength(0));
+        assertEquals(0, layout.getSequenceNo(3));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.usfca.cs.dfs.erasure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReedSolomonTest {
+    private static byte[][] randomShards(int dataShards, int parityShards, int length) {
+        Random random = new Random(42);
+        byte[][] shards = new byte[dataShards + parityShards][length];
+        for (int i = 0; i < dataShards; i++) {
+            random.nextBytes(shards[i]);
+        }
+        return shards;
+    }
+
+    @Test
+    void testMultiply() {
+        assertEquals(0, ReedSolomon.multiply(0, 7));
+        assertEquals(7, ReedSolomon.multiply(1, 7));
+        assertEquals(ReedSolomon.multiply(3, 5), ReedSolomon.multiply(5, 3));
+        // Every non-zero element has an inverse
+        for (int a = 1; a < 256; a++) {
+            int inverses = 0;
+            for (int b = 1; b < 256; b++) {
+                if (ReedSolomon.multiply(a, b) == 1) {
+                    inverses++;
+                }
+            }
+            assertEquals(1, inverses);
+        }
+    }
+
+    @Test
+    void testDecodeAnyMissingShards() {
+        ReedSolomon codec = new ReedSolomon(6, 3);
+        byte[][] original = randomShards(6, 3, 100);
+        codec.encodeParity(original, 100);
+
+        // Lose data and parity shards, 3 at most
+        int[][] losses = {{0, 1, 2}, {3, 4, 5}, {0, 6, 8}, {6, 7, 8}, {5}};
+        for (int[] lost : losses) {
+            byte[][] shards = new byte[9][];
+            boolean[] present = new boolean[9];
+            for (int i = 0; i < 9; i++) {
+                shards[i] = original[i].clone();
+                present[i] = true;
+            }
+            for (int i : lost) {
+                shards[i] = new byte[100];
+                present[i] = false;
+            }
+
+            codec.decodeMissing(shards, present, 100);
+            for (int i = 0; i < 9; i++) {
+                assertArrayEquals(original[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    void testTooManyMissingShards() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] shards = randomShards(4, 2, 10);
+        codec.encodeParity(shards, 10);
+        boolean[] present = {true, false, true, false, false, true};
+        try {
+            codec.decodeMissing(shards, present, 10);
+            fail("Decoded with only 3 shards out of 4 needed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package edu.usfca.cs.dfs.erasure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripeLayoutTest {
+    @Test
+    void testSequenceNumbers() {
+        // 10 data chunks, the last one 5 bytes long: stripes of 4 + 4 + 2 data chunks
+        StripeLayout layout = new StripeLayout(95, 10, 4, 2);
+        assertEquals(10, layout.getDataChunkCount());
+        assertEquals(3, layout.getStripeCount());
+        assertEquals(16, layout.getChunkCount());
+        assertEquals(2, layout.getDataChunkCount(2));
+
+        assertEquals(5, layout.getChunkLength(9));
+        assertEquals(10, layout.getChunkLength(15));
+
+        assertEquals(1, layout.getStripe(5));
+        assertEquals(1, layout.getStripe(12));
+        assertEquals(5, layout.getShardIndex(15));
+        assertEquals(9, layout.getSequenceNo(2, 1));
+        assertEquals(-1, layout.getSequenceNo(2, 2));
+        assertEquals(14, layout.getSequenceNo(2, 4));
+        assertFalse(layout.isParity(9));
+        assertTrue(layout.isParity(10));
+    }
+
+    @Test
+    void testReconstructLastStripe() {
+        StripeLayout layout = new StripeLayout(95, 10, 4, 2);
+        Random random = new Random(42);
+        byte[] chunk8 = new byte[10];
+        byte[] chunk9 = new byte[5];
+        random.nextBytes(chunk8);
+        random.nextBytes(chunk9);
+        byte[][] parity = layout.encode(2, new byte[][]{chunk8, chunk9});
+        assertEquals(2, parity.length);
+
+        // Both data chunks lost, the two parity chunks are enough
+        byte[][] chunks = {null, null, null, null, parity[0], parity[1]};
+        layout.reconstruct(2, chunks);
+        assertArrayEquals(chunk8, chunks[0]);
+        assertArrayEquals(chunk9, chunks[1]);
+
+        // A lost parity chunk is rebuilt too
+        chunks = new byte[][]{chunk8, chunk9, null, null, null, parity[1]};
+        layout.reconstruct(2, chunks);
+        assertTrue(Arrays.equals(parity[0], chunks[4]));
+    }
+}